@@ -0,0 +1,196 @@
+package org.asamk.signal.manager;
+
+import org.asamk.signal.manager.api.MessageEnvelope;
+import org.asamk.signal.manager.helper.Context;
+import org.asamk.signal.manager.storage.attachments.AttachmentDownloadStore;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.whispersystems.signalservice.api.messages.SignalServiceAttachmentPointer;
+
+import java.io.IOException;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Downloads the attachments of received messages from background threads.
+ * The queue is stored in the account database, so downloads that haven't completed yet are resumed after a restart.
+ */
+public class AttachmentDownloader {
+
+    private final static Logger logger = LoggerFactory.getLogger(AttachmentDownloader.class);
+    private final static int WORKER_COUNT = 4;
+    private final static int MAX_ATTEMPTS = 5;
+    private final static Duration INITIAL_BACKOFF = Duration.ofSeconds(10);
+    private final static Duration MAX_BACKOFF = Duration.ofHours(1);
+
+    private static final AtomicInteger threadNumber = new AtomicInteger(0);
+
+    private final Context context;
+    private final Set<Long> inProgress = new HashSet<>();
+    private final Set<Manager.AttachmentDownloadHandler> handlers = new HashSet<>();
+    private final List<Thread> workers = new ArrayList<>();
+
+    public AttachmentDownloader(final Context context) {
+        this.context = context;
+    }
+
+    public void enqueue(final List<SignalServiceAttachmentPointer> pointers) {
+        if (pointers.isEmpty()) {
+            return;
+        }
+        getStore().addDownloads(pointers);
+        start();
+        // Workers only see the new downloads once they have been committed
+        context.getAccount().getAccountDatabase().runAfterCommit(() -> {
+            synchronized (this) {
+                notifyAll();
+            }
+        });
+    }
+
+    public void addHandler(final Manager.AttachmentDownloadHandler handler) {
+        synchronized (handlers) {
+            handlers.add(handler);
+        }
+    }
+
+    public void removeHandler(final Manager.AttachmentDownloadHandler handler) {
+        synchronized (handlers) {
+            handlers.remove(handler);
+        }
+    }
+
+    /**
+     * Resumes the downloads that were queued in a previous run.
+     */
+    public void startIfPending() {
+        if (getStore().getNextAttemptTime().isPresent()) {
+            start();
+        }
+    }
+
+    public void close() {
+        final List<Thread> threads;
+        synchronized (this) {
+            threads = new ArrayList<>(workers);
+            workers.clear();
+        }
+        threads.forEach(Thread::interrupt);
+        for (final var thread : threads) {
+            try {
+                thread.join();
+            } catch (InterruptedException ignored) {
+            }
+        }
+    }
+
+    private synchronized void start() {
+        if (!workers.isEmpty()) {
+            return;
+        }
+        for (var i = 0; i < WORKER_COUNT; i++) {
+            final var thread = new Thread(this::run);
+            thread.setName("attachment-download-" + threadNumber.getAndIncrement());
+            thread.setDaemon(true);
+            thread.start();
+            workers.add(thread);
+        }
+    }
+
+    private AttachmentDownloadStore getStore() {
+        return context.getAccount().getAttachmentDownloadStore();
+    }
+
+    private void run() {
+        while (!Thread.currentThread().isInterrupted()) {
+            final AttachmentDownloadStore.PendingDownload download;
+            try {
+                download = takeNextDownload();
+            } catch (InterruptedException e) {
+                break;
+            }
+            try {
+                download(download);
+            } catch (RuntimeException e) {
+                logger.warn("Failed to handle attachment download", e);
+                try {
+                    // Count it as a failed attempt, so a download that always fails is eventually dropped
+                    retryLater(download, e.getMessage());
+                } catch (RuntimeException ex) {
+                    logger.warn("Failed to update attachment download, retrying later", ex);
+                    try {
+                        Thread.sleep(INITIAL_BACKOFF.toMillis());
+                    } catch (InterruptedException ie) {
+                        break;
+                    }
+                }
+            } finally {
+                synchronized (this) {
+                    inProgress.remove(download.id());
+                    notifyAll();
+                }
+            }
+        }
+    }
+
+    private synchronized AttachmentDownloadStore.PendingDownload takeNextDownload() throws InterruptedException {
+        while (true) {
+            final var next = getStore().getDueDownloads(System.currentTimeMillis(), inProgress.size() + 1)
+                    .stream()
+                    .filter(d -> !inProgress.contains(d.id()))
+                    .findFirst();
+            if (next.isPresent()) {
+                inProgress.add(next.get().id());
+                return next.get();
+            }
+            final var nextAttempt = getStore().getNextAttemptTime();
+            final var delay = nextAttempt.map(t -> t - System.currentTimeMillis()).orElse(0L);
+            // Without a future attempt, wait until a download is added or a running download has finished
+            if (delay > 0) {
+                wait(delay);
+            } else {
+                wait();
+            }
+        }
+    }
+
+    private void download(final AttachmentDownloadStore.PendingDownload download) {
+        final var pointer = download.pointer();
+        try {
+            context.getAttachmentHelper().storeAttachment(pointer);
+        } catch (IOException e) {
+            retryLater(download, e.getMessage());
+            return;
+        }
+        getStore().deleteDownload(download.id());
+
+        final var attachment = MessageEnvelope.Data.Attachment.from(pointer,
+                context.getAttachmentHelper()::getAttachmentFile);
+        synchronized (handlers) {
+            for (final var handler : handlers) {
+                try {
+                    handler.handleAttachmentDownloaded(attachment);
+                } catch (Throwable ex) {
+                    logger.warn("Attachment download handler failed, ignoring", ex);
+                }
+            }
+        }
+    }
+
+    private void retryLater(final AttachmentDownloadStore.PendingDownload download, final String reason) {
+        final var pointer = download.pointer();
+        final var attempts = download.attempts() + 1;
+        if (attempts >= MAX_ATTEMPTS) {
+            logger.warn("Failed to download attachment ({}), giving up: {}", pointer.getRemoteId(), reason);
+            getStore().deleteDownload(download.id());
+        } else {
+            logger.debug("Failed to download attachment ({}), retrying later: {}", pointer.getRemoteId(), reason);
+            final var backoff = Math.min(MAX_BACKOFF.toMillis(), INITIAL_BACKOFF.toMillis() << (attempts - 1));
+            getStore().scheduleRetry(download.id(), attempts, System.currentTimeMillis() + backoff);
+        }
+    }
+}
@@ -11,6 +11,8 @@ import java.io.File;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
 import java.util.Optional;
 
 public class AttachmentStore {
@@ -41,15 +43,35 @@ public class AttachmentStore {
                 Optional.ofNullable(pointer.getContentType()));
     }
 
+    /**
+     * Returns a file in the attachments directory for the encrypted download of the attachment.
+     */
+    public File createDownloadFile(final SignalServiceAttachmentPointer pointer) throws IOException {
+        createAttachmentsDir();
+        return new File(attachmentsPath, pointer.getRemoteId().toString() + ".download");
+    }
+
     public StreamDetails retrieveAttachment(final String id) throws IOException {
         final var attachmentFile = new File(attachmentsPath, id);
         return Utils.createStreamDetailsFromFile(attachmentFile);
     }
 
+    /**
+     * The attachment is first written to a partial file, which is only moved to the final file once it's complete.
+     */
     private void storeAttachment(final File attachmentFile, final AttachmentStorer storer) throws IOException {
         createAttachmentsDir();
-        try (OutputStream output = new FileOutputStream(attachmentFile)) {
-            storer.store(output);
+        final var partialFile = new File(attachmentFile.getParentFile(), attachmentFile.getName() + ".part");
+        try {
+            try (OutputStream output = new FileOutputStream(partialFile)) {
+                storer.store(output);
+            }
+            Files.move(partialFile.toPath(),
+                    attachmentFile.toPath(),
+                    StandardCopyOption.ATOMIC_MOVE,
+                    StandardCopyOption.REPLACE_EXISTING);
+        } finally {
+            Files.deleteIfExists(partialFile.toPath());
         }
     }
 
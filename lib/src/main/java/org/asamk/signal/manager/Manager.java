@@ -129,6 +129,26 @@ public interface Manager extends Closeable {
             Message message, Set<RecipientIdentifier> recipients
     ) throws IOException, AttachmentInvalidException, NotAGroupMemberException, GroupNotFoundException, GroupSendingNotAllowedException, UnregisteredRecipientException, InvalidStickerException;
 
+    /**
+     * Add the message to the outgoing queue, it's sent in the background.
+     * Failed sends are retried with the same timestamp, the results are passed to the handlers added with
+     * {@link #addSendResultHandler(SendResultHandler)}.
+     *
+     * @return the timestamp of the message
+     */
+    long enqueueMessage(Message message, Set<RecipientIdentifier> recipients);
+
+    void addSendResultHandler(SendResultHandler handler);
+
+    void removeSendResultHandler(SendResultHandler handler);
+
+    /**
+     * Add a handler that's called when an attachment has been downloaded in the background.
+     */
+    void addAttachmentDownloadHandler(AttachmentDownloadHandler handler);
+
+    void removeAttachmentDownloadHandler(AttachmentDownloadHandler handler);
+
     SendMessageResults sendRemoteDeleteMessage(
             long targetSentTimestamp, Set<RecipientIdentifier> recipients
     ) throws IOException, NotAGroupMemberException, GroupNotFoundException, GroupSendingNotAllowedException;
@@ -283,5 +303,28 @@ public interface Manager extends Closeable {
         };
 
         void handleMessage(MessageEnvelope envelope, Throwable e);
+
+        /**
+         * Called when the handler has been removed because it fell too far behind, with the DISCONNECT
+         * handler overflow policy. It receives no further messages.
+         */
+        default void handleDisconnect() {
+        }
+    }
+
+    interface SendResultHandler {
+
+        /**
+         * Called when sending a queued message has completed for some of its recipients.
+         *
+         * @param results the send results of these recipients
+         * @param e       the error, if sending failed without a result for these recipients
+         */
+        void handleSendResult(SendMessageResults results, Throwable e);
+    }
+
+    interface AttachmentDownloadHandler {
+
+        void handleAttachmentDownloaded(MessageEnvelope.Data.Attachment attachment);
     }
 }
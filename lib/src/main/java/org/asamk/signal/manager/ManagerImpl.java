@@ -73,6 +73,7 @@ import org.signal.libsignal.protocol.state.PreKeyRecord;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.whispersystems.signalservice.api.SignalSessionLock;
+import org.whispersystems.signalservice.api.messages.SignalServiceAttachment;
 import org.whispersystems.signalservice.api.messages.SignalServiceDataMessage;
 import org.whispersystems.signalservice.api.messages.SignalServicePreview;
 import org.whispersystems.signalservice.api.messages.SignalServiceReceiptMessage;
@@ -104,17 +105,23 @@ import java.util.Base64;
 import java.util.Collection;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
 import java.util.Objects;
 import java.util.Optional;
 import java.util.Set;
+import java.util.concurrent.ExecutionException;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
 import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.locks.ReentrantLock;
 import java.util.function.Function;
+import java.util.function.Supplier;
 import java.util.stream.Collectors;
 import java.util.stream.Stream;
 
@@ -134,6 +141,16 @@ class ManagerImpl implements Manager {
 	private boolean isReceivingSynchronous;
 	private final Set<ReceiveMessageHandler> weakHandlers = new HashSet<>();
 	private final Set<ReceiveMessageHandler> messageHandlers = new HashSet<>();
+	private final OutboxSender outboxSender;
+	private final ReceiveHandlerDispatcher handlerDispatcher = new ReceiveHandlerDispatcher(
+			handler -> executor.execute(() -> {
+				removeReceiveHandler(handler);
+				try {
+					handler.handleDisconnect();
+				} catch (Throwable e) {
+					logger.warn("Receive handler failed to handle disconnect, ignoring", e);
+				}
+			}));
 	private final List<Runnable> closedListeners = new ArrayList<>();
 	private final List<Runnable> addressChangedListeners = new ArrayList<>();
 	private final CompositeDisposable disposable = new CompositeDisposable();
@@ -171,6 +188,7 @@ class ManagerImpl implements Manager {
 				accountFileUpdater.removeAccount();
 			}
 		}, dependencies, avatarStore, attachmentStore, stickerPackStore);
+		this.outboxSender = new OutboxSender(account.getOutboxStore(), this::sendQueuedMessage);
 		this.context.getAccountHelper().setUnregisteredListener(this::close);
 		this.context.getReceiveHelper().setAuthenticationFailureListener(this::close);
 		this.context.getReceiveHelper().setCaughtUpWithOldMessagesListener(() -> {
@@ -467,31 +485,167 @@ class ManagerImpl implements Manager {
 		return context.getGroupHelper().joinGroup(inviteLinkUrl);
 	}
 
-	private SendMessageResults sendMessage(SignalServiceDataMessage.Builder messageBuilder,
+	private SendMessageResults sendMessage(Supplier<SignalServiceDataMessage.Builder> messageBuilderFactory,
 			Set<RecipientIdentifier> recipients)
 			throws IOException, NotAGroupMemberException, GroupNotFoundException, GroupSendingNotAllowedException {
+		return sendMessage(messageBuilderFactory, recipients, System.currentTimeMillis());
+	}
+
+	/**
+	 * @param messageBuilderFactory creates a new builder for each recipient, as the builder is extended with
+	 *                              recipient specific fields like the expiration timer and group context
+	 */
+	private SendMessageResults sendMessage(Supplier<SignalServiceDataMessage.Builder> messageBuilderFactory,
+			Set<RecipientIdentifier> recipients, long timestamp)
+			throws IOException, NotAGroupMemberException, GroupNotFoundException, GroupSendingNotAllowedException {
 		var results = new HashMap<RecipientIdentifier, List<SendMessageResult>>();
-		long timestamp = System.currentTimeMillis();
-		messageBuilder.withTimestamp(timestamp);
+		final Supplier<SignalServiceDataMessage.Builder> timestampedFactory = () -> messageBuilderFactory.get()
+				.withTimestamp(timestamp);
+		final var sendConcurrency = account.getSendConcurrency();
+		if (sendConcurrency > 1 && recipients.size() > 1) {
+			results.putAll(sendMessageConcurrently(timestampedFactory, recipients, sendConcurrency));
+			return new SendMessageResults(timestamp, results);
+		}
 		for (final var recipient : recipients) {
-			if (recipient instanceof RecipientIdentifier.Single single) {
+			results.put(recipient, sendMessage(timestampedFactory.get(), recipient, null));
+		}
+		return new SendMessageResults(timestamp, results);
+	}
+
+	/**
+	 * @param messageBuilder only used for this recipient, it's modified while sending
+	 * @param rateLimit      if not null, sends to single recipients wait for a rate limit hit by another send and are
+	 *                       retried after being rate limited themselves
+	 */
+	private List<SendMessageResult> sendMessage(SignalServiceDataMessage.Builder messageBuilder,
+			RecipientIdentifier recipient, SendRateLimit rateLimit)
+			throws IOException, NotAGroupMemberException, GroupNotFoundException, GroupSendingNotAllowedException {
+		if (recipient instanceof RecipientIdentifier.Single single) {
+			final RecipientId recipientId;
+			try {
+				recipientId = context.getRecipientHelper().resolveRecipient(single);
+			} catch (UnregisteredRecipientException e) {
+				return List.of(SendMessageResult.unregisteredFailure(single.toPartialRecipientAddress()));
+			}
+			if (rateLimit == null) {
+				final var result = context.getSendHelper().sendMessage(messageBuilder, recipientId);
+				return List.of(toSendMessageResult(result));
+			}
+			for (var attempt = 1; ; attempt++) {
+				rateLimit.await();
+				final var result = context.getSendHelper().sendMessage(messageBuilder, recipientId);
+				if (result.getRateLimitFailure() == null || attempt >= SendRateLimit.MAX_ATTEMPTS) {
+					return List.of(toSendMessageResult(result));
+				}
+				rateLimit.onRateLimited(result.getRateLimitFailure().getRetryAfterMilliseconds(), attempt);
+			}
+		} else if (recipient instanceof RecipientIdentifier.NoteToSelf) {
+			final var result = context.getSendHelper().sendSelfMessage(messageBuilder);
+			return List.of(toSendMessageResult(result));
+		} else if (recipient instanceof RecipientIdentifier.Group group) {
+			final var result = context.getSendHelper().sendAsGroupMessage(messageBuilder, group.groupId());
+			return result.stream().map(this::toSendMessageResult).toList();
+		}
+		return List.of();
+	}
+
+	/**
+	 * Sends the message to up to sendConcurrency recipients at the same time.
+	 * If sending to a recipient fails with an exception, the first exception in recipient order is rethrown after all
+	 * sends have completed.
+	 */
+	private Map<RecipientIdentifier, List<SendMessageResult>> sendMessageConcurrently(
+			Supplier<SignalServiceDataMessage.Builder> messageBuilderFactory, Set<RecipientIdentifier> recipients,
+			int sendConcurrency)
+			throws IOException, NotAGroupMemberException, GroupNotFoundException, GroupSendingNotAllowedException {
+		final var rateLimit = new SendRateLimit();
+		final var permits = new Semaphore(sendConcurrency);
+		final var futures = new LinkedHashMap<RecipientIdentifier, Future<List<SendMessageResult>>>();
+		try {
+			for (final var recipient : recipients) {
+				permits.acquire();
 				try {
-					final var recipientId = context.getRecipientHelper().resolveRecipient(single);
-					final var result = context.getSendHelper().sendMessage(messageBuilder, recipientId);
-					results.put(recipient, List.of(toSendMessageResult(result)));
-				} catch (UnregisteredRecipientException e) {
-					results.put(recipient,
-							List.of(SendMessageResult.unregisteredFailure(single.toPartialRecipientAddress())));
+					futures.put(recipient, executor.submit(() -> {
+						try {
+							return sendMessage(messageBuilderFactory.get(), recipient, rateLimit);
+						} finally {
+							permits.release();
+						}
+					}));
+				} catch (RejectedExecutionException e) {
+					permits.release();
+					throw e;
 				}
-			} else if (recipient instanceof RecipientIdentifier.NoteToSelf) {
-				final var result = context.getSendHelper().sendSelfMessage(messageBuilder);
-				results.put(recipient, List.of(toSendMessageResult(result)));
-			} else if (recipient instanceof RecipientIdentifier.Group group) {
-				final var result = context.getSendHelper().sendAsGroupMessage(messageBuilder, group.groupId());
-				results.put(recipient, result.stream().map(this::toSendMessageResult).toList());
 			}
+		} catch (InterruptedException e) {
+			futures.values().forEach(f -> f.cancel(true));
+			Thread.currentThread().interrupt();
+			throw new IOException("Interrupted while sending message", e);
+		}
+
+		final var results = new HashMap<RecipientIdentifier, List<SendMessageResult>>();
+		Throwable failure = null;
+		for (final var entry : futures.entrySet()) {
+			try {
+				results.put(entry.getKey(), entry.getValue().get());
+			} catch (ExecutionException e) {
+				if (failure == null) {
+					failure = e.getCause();
+				}
+			} catch (InterruptedException e) {
+				futures.values().forEach(f -> f.cancel(true));
+				Thread.currentThread().interrupt();
+				throw new IOException("Interrupted while sending message", e);
+			}
+		}
+		if (failure instanceof IOException e) {
+			throw e;
+		} else if (failure instanceof NotAGroupMemberException e) {
+			throw e;
+		} else if (failure instanceof GroupNotFoundException e) {
+			throw e;
+		} else if (failure instanceof GroupSendingNotAllowedException e) {
+			throw e;
+		} else if (failure instanceof RuntimeException e) {
+			throw e;
+		} else if (failure instanceof Error e) {
+			throw e;
+		} else if (failure != null) {
+			throw new AssertionError(failure);
+		}
+		return results;
+	}
+
+	/**
+	 * Shared back-off state of one concurrent send, so a rate limit hit by one send pauses all of them.
+	 */
+	private static final class SendRateLimit {
+
+		private static final int MAX_ATTEMPTS = 3;
+		private static final long DEFAULT_BACKOFF_MILLIS = 1000;
+		private static final long MAX_BACKOFF_MILLIS = 60_000;
+
+		private long pausedUntil;
+
+		private synchronized void await() throws IOException {
+			try {
+				var remaining = pausedUntil - System.currentTimeMillis();
+				while (remaining > 0) {
+					wait(remaining);
+					remaining = pausedUntil - System.currentTimeMillis();
+				}
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new IOException("Interrupted while waiting for rate limit", e);
+			}
+		}
+
+		private synchronized void onRateLimited(Optional<Long> retryAfterMillis, int attempt) {
+			final var backoff = Math.min(MAX_BACKOFF_MILLIS,
+					retryAfterMillis.orElse(DEFAULT_BACKOFF_MILLIS << (attempt - 1)));
+			pausedUntil = Math.max(pausedUntil, System.currentTimeMillis() + backoff);
+			logger.debug("Rate limited while sending, pausing sends for {}ms", backoff);
 		}
-		return new SendMessageResults(timestamp, results);
 	}
 
 	private SendMessageResult toSendMessageResult(
@@ -570,42 +724,78 @@ class ManagerImpl implements Manager {
 			logger.warn(
 					"No profile name set. When sending a message it's recommended to set a profile name with the updateProfile command. This may become mandatory in the future.");
 		}
-		final var messageBuilder = SignalServiceDataMessage.newBuilder();
-		applyMessage(messageBuilder, message);
-		return sendMessage(messageBuilder, recipients);
+		return sendMessage(prepareMessage(message), recipients);
+	}
+
+	private SendMessageResults sendQueuedMessage(Message message, Set<RecipientIdentifier> recipients, long timestamp)
+			throws IOException, AttachmentInvalidException, NotAGroupMemberException, GroupNotFoundException,
+			GroupSendingNotAllowedException, UnregisteredRecipientException, InvalidStickerException {
+		return sendMessage(prepareMessage(message), recipients, timestamp);
+	}
+
+	@Override
+	public long enqueueMessage(Message message, Set<RecipientIdentifier> recipients) {
+		return outboxSender.enqueue(message, recipients);
+	}
+
+	@Override
+	public void addSendResultHandler(final SendResultHandler handler) {
+		outboxSender.addHandler(handler);
 	}
 
-	private void applyMessage(final SignalServiceDataMessage.Builder messageBuilder, final Message message)
+	@Override
+	public void removeSendResultHandler(final SendResultHandler handler) {
+		outboxSender.removeHandler(handler);
+	}
+
+	@Override
+	public void addAttachmentDownloadHandler(final AttachmentDownloadHandler handler) {
+		context.getAttachmentDownloader().addHandler(handler);
+	}
+
+	@Override
+	public void removeAttachmentDownloadHandler(final AttachmentDownloadHandler handler) {
+		context.getAttachmentDownloader().removeHandler(handler);
+	}
+
+	/**
+	 * Uploads the attachments and resolves the recipients of the message once.
+	 *
+	 * @return a factory for builders that contain the prepared message
+	 */
+	private Supplier<SignalServiceDataMessage.Builder> prepareMessage(final Message message)
 			throws AttachmentInvalidException, IOException, UnregisteredRecipientException, InvalidStickerException {
+		final String body;
+		final SignalServiceAttachment textAttachment;
 		if (message.messageText().length() > 2000) {
 			final var messageBytes = message.messageText().getBytes(StandardCharsets.UTF_8);
-			final var textAttachment = AttachmentUtils.createAttachmentStream(
+			textAttachment = AttachmentUtils.createAttachmentStream(
 					new StreamDetails(new ByteArrayInputStream(messageBytes), MimeUtils.LONG_TEXT, messageBytes.length),
 					Optional.empty());
-			messageBuilder.withBody(message.messageText().substring(0, 2000));
-			messageBuilder.withAttachment(textAttachment);
+			body = message.messageText().substring(0, 2000);
 		} else {
-			messageBuilder.withBody(message.messageText());
-		}
-		if (message.attachments().size() > 0) {
-			messageBuilder.withAttachments(context.getAttachmentHelper().uploadAttachments(message.attachments()));
-		}
-		if (message.mentions().size() > 0) {
-			messageBuilder.withMentions(resolveMentions(message.mentions()));
+			textAttachment = null;
+			body = message.messageText();
 		}
+		final var attachments = message.attachments().size() > 0
+				? context.getAttachmentHelper().uploadAttachments(message.attachments())
+				: null;
+		final var mentions = message.mentions().size() > 0 ? resolveMentions(message.mentions()) : null;
+		SignalServiceDataMessage.Quote quote = null;
 		if (message.quote().isPresent()) {
-			final var quote = message.quote().get();
-			messageBuilder.withQuote(new SignalServiceDataMessage.Quote(quote.timestamp(),
+			final var q = message.quote().get();
+			quote = new SignalServiceDataMessage.Quote(q.timestamp(),
 					context.getRecipientHelper()
-							.resolveSignalServiceAddress(context.getRecipientHelper().resolveRecipient(quote.author()))
+							.resolveSignalServiceAddress(context.getRecipientHelper().resolveRecipient(q.author()))
 							.getServiceId(),
-					quote.message(), List.of(), resolveMentions(quote.mentions()),
-					SignalServiceDataMessage.Quote.Type.NORMAL, List.of()));
+					q.message(), List.of(), resolveMentions(q.mentions()),
+					SignalServiceDataMessage.Quote.Type.NORMAL, List.of());
 		}
+		SignalServiceDataMessage.Sticker sticker = null;
 		if (message.sticker().isPresent()) {
-			final var sticker = message.sticker().get();
-			final var packId = StickerPackId.deserialize(sticker.packId());
-			final var stickerId = sticker.stickerId();
+			final var s = message.sticker().get();
+			final var packId = StickerPackId.deserialize(s.packId());
+			final var stickerId = s.stickerId();
 
 			final var stickerPack = context.getAccount().getStickerStore().getStickerPack(packId);
 			if (stickerPack == null) {
@@ -620,12 +810,13 @@ class ManagerImpl implements Manager {
 			if (streamDetails == null) {
 				throw new InvalidStickerException("Missing local sticker file");
 			}
-			messageBuilder.withSticker(new SignalServiceDataMessage.Sticker(packId.serialize(), stickerPack.packKey(),
+			sticker = new SignalServiceDataMessage.Sticker(packId.serialize(), stickerPack.packKey(),
 					stickerId, manifestSticker.emoji(),
-					AttachmentUtils.createAttachmentStream(streamDetails, Optional.empty())));
+					AttachmentUtils.createAttachmentStream(streamDetails, Optional.empty()));
 		}
+		ArrayList<SignalServicePreview> previews = null;
 		if (message.previews().size() > 0) {
-			final var previews = new ArrayList<SignalServicePreview>(message.previews().size());
+			previews = new ArrayList<>(message.previews().size());
 			for (final var p : message.previews()) {
 				final var image = p.image().isPresent()
 						? context.getAttachmentHelper().uploadAttachment(p.image().get())
@@ -633,16 +824,45 @@ class ManagerImpl implements Manager {
 				previews.add(
 						new SignalServicePreview(p.url(), p.title(), p.description(), 0, Optional.ofNullable(image)));
 			}
-			messageBuilder.withPreviews(previews);
 		}
+		SignalServiceDataMessage.StoryContext storyContext = null;
 		if (message.storyReply().isPresent()) {
 			final var storyReply = message.storyReply().get();
 			final var authorServiceId = context.getRecipientHelper()
 					.resolveSignalServiceAddress(context.getRecipientHelper().resolveRecipient(storyReply.author()))
 					.getServiceId();
-			messageBuilder.withStoryContext(
-					new SignalServiceDataMessage.StoryContext(authorServiceId, storyReply.timestamp()));
+			storyContext = new SignalServiceDataMessage.StoryContext(authorServiceId, storyReply.timestamp());
 		}
+
+		final var finalQuote = quote;
+		final var finalSticker = sticker;
+		final var finalPreviews = previews;
+		final var finalStoryContext = storyContext;
+		return () -> {
+			final var messageBuilder = SignalServiceDataMessage.newBuilder().withBody(body);
+			if (textAttachment != null) {
+				messageBuilder.withAttachment(textAttachment);
+			}
+			if (attachments != null) {
+				messageBuilder.withAttachments(attachments);
+			}
+			if (mentions != null) {
+				messageBuilder.withMentions(mentions);
+			}
+			if (finalQuote != null) {
+				messageBuilder.withQuote(finalQuote);
+			}
+			if (finalSticker != null) {
+				messageBuilder.withSticker(finalSticker);
+			}
+			if (finalPreviews != null) {
+				messageBuilder.withPreviews(finalPreviews);
+			}
+			if (finalStoryContext != null) {
+				messageBuilder.withStoryContext(finalStoryContext);
+			}
+			return messageBuilder;
+		};
 	}
 
 	private ArrayList<SignalServiceDataMessage.Mention> resolveMentions(final List<Message.Mention> mentionList)
@@ -661,7 +881,6 @@ class ManagerImpl implements Manager {
 	public SendMessageResults sendRemoteDeleteMessage(long targetSentTimestamp, Set<RecipientIdentifier> recipients)
 			throws IOException, NotAGroupMemberException, GroupNotFoundException, GroupSendingNotAllowedException {
 		var delete = new SignalServiceDataMessage.RemoteDelete(targetSentTimestamp);
-		final var messageBuilder = SignalServiceDataMessage.newBuilder().withRemoteDelete(delete);
 		for (final var recipient : recipients) {
 			if (recipient instanceof RecipientIdentifier.Single r) {
 				try {
@@ -674,7 +893,7 @@ class ManagerImpl implements Manager {
 				account.getMessageSendLogStore().deleteEntryForGroup(targetSentTimestamp, r.groupId());
 			}
 		}
-		return sendMessage(messageBuilder, recipients);
+		return sendMessage(() -> SignalServiceDataMessage.newBuilder().withRemoteDelete(delete), recipients);
 	}
 
 	@Override
@@ -686,12 +905,14 @@ class ManagerImpl implements Manager {
 		final var authorServiceId = context.getRecipientHelper().resolveSignalServiceAddress(targetAuthorRecipientId)
 				.getServiceId();
 		var reaction = new SignalServiceDataMessage.Reaction(emoji, remove, authorServiceId, targetSentTimestamp);
-		final var messageBuilder = SignalServiceDataMessage.newBuilder().withReaction(reaction);
-		if (isStory) {
-			messageBuilder
-					.withStoryContext(new SignalServiceDataMessage.StoryContext(authorServiceId, targetSentTimestamp));
-		}
-		return sendMessage(messageBuilder, recipients);
+		return sendMessage(() -> {
+			final var messageBuilder = SignalServiceDataMessage.newBuilder().withReaction(reaction);
+			if (isStory) {
+				messageBuilder.withStoryContext(
+						new SignalServiceDataMessage.StoryContext(authorServiceId, targetSentTimestamp));
+			}
+			return messageBuilder;
+		}, recipients);
 	}
 
 	@Override
@@ -699,9 +920,8 @@ class ManagerImpl implements Manager {
 			RecipientIdentifier.Single recipient) throws IOException {
 		final var paymentNotification = new SignalServiceDataMessage.PaymentNotification(receipt, note);
 		final var payment = new SignalServiceDataMessage.Payment(paymentNotification, null);
-		final var messageBuilder = SignalServiceDataMessage.newBuilder().withPayment(payment);
 		try {
-			return sendMessage(messageBuilder, Set.of(recipient));
+			return sendMessage(() -> SignalServiceDataMessage.newBuilder().withPayment(payment), Set.of(recipient));
 		} catch (NotAGroupMemberException | GroupNotFoundException | GroupSendingNotAllowedException e) {
 			throw new AssertionError(e);
 		}
@@ -709,10 +929,8 @@ class ManagerImpl implements Manager {
 
 	@Override
 	public SendMessageResults sendEndSessionMessage(Set<RecipientIdentifier.Single> recipients) throws IOException {
-		var messageBuilder = SignalServiceDataMessage.newBuilder().asEndSessionMessage();
-
 		try {
-			return sendMessage(messageBuilder,
+			return sendMessage(() -> SignalServiceDataMessage.newBuilder().asEndSessionMessage(),
 					recipients.stream().map(RecipientIdentifier.class::cast).collect(Collectors.toSet()));
 		} catch (GroupNotFoundException | NotAGroupMemberException | GroupSendingNotAllowedException e) {
 			throw new AssertionError(e);
@@ -808,9 +1026,8 @@ class ManagerImpl implements Manager {
 			throws IOException, UnregisteredRecipientException {
 		var recipientId = context.getRecipientHelper().resolveRecipient(recipient);
 		context.getContactHelper().setExpirationTimer(recipientId, messageExpirationTimer);
-		final var messageBuilder = SignalServiceDataMessage.newBuilder().asExpirationUpdate();
 		try {
-			sendMessage(messageBuilder, Set.of(recipient));
+			sendMessage(() -> SignalServiceDataMessage.newBuilder().asExpirationUpdate(), Set.of(recipient));
 		} catch (NotAGroupMemberException | GroupNotFoundException | GroupSendingNotAllowedException e) {
 			throw new AssertionError(e);
 		}
@@ -870,7 +1087,13 @@ class ManagerImpl implements Manager {
 				weakHandlers.add(handler);
 			} else {
 				messageHandlers.add(handler);
+			}
+			handlerDispatcher.subscribe(handler);
+			if (!isWeakListener) {
 				startReceiveThreadIfRequired();
+				// Messages and attachments that are still queued from a previous run are handled while receiving
+				outboxSender.start();
+				context.getAttachmentDownloader().startIfPending();
 			}
 		}
 	}
@@ -901,6 +1124,10 @@ class ManagerImpl implements Manager {
 	}
 
 	private void passReceivedMessageToHandlers(MessageEnvelope envelope, Throwable e) {
+		if (handlerDispatcher.isEnabled()) {
+			handlerDispatcher.dispatch(envelope, e);
+			return;
+		}
 		synchronized (messageHandlers) {
 			Stream.concat(messageHandlers.stream(), weakHandlers.stream()).forEach(h -> {
 				try {
@@ -918,6 +1145,7 @@ class ManagerImpl implements Manager {
 		synchronized (messageHandlers) {
 			weakHandlers.remove(handler);
 			messageHandlers.remove(handler);
+			handlerDispatcher.unsubscribe(handler);
 			if (!messageHandlers.isEmpty() || receiveThread == null || isReceivingSynchronous) {
 				return;
 			}
@@ -983,6 +1211,11 @@ class ManagerImpl implements Manager {
 	@Override
 	public void setReceiveConfig(final ReceiveConfig receiveConfig) {
 		context.getReceiveHelper().setReceiveConfig(receiveConfig);
+		synchronized (messageHandlers) {
+			handlerDispatcher.configure(receiveConfig.handlerQueueSize(),
+					receiveConfig.handlerOverflowPolicy(),
+					Stream.concat(messageHandlers.stream(), weakHandlers.stream()).toList());
+		}
 	}
 
 	@Override
@@ -1154,6 +1387,9 @@ class ManagerImpl implements Manager {
 		if (thread != null) {
 			stopReceiveThread(thread);
 		}
+		handlerDispatcher.close();
+		outboxSender.close();
+		context.getAttachmentDownloader().close();
 		executor.shutdown();
 
 		dependencies.getSignalWebSocket().disconnect();
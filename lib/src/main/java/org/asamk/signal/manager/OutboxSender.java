@@ -0,0 +1,240 @@
+package org.asamk.signal.manager;
+
+import org.asamk.signal.manager.api.AttachmentInvalidException;
+import org.asamk.signal.manager.api.InvalidStickerException;
+import org.asamk.signal.manager.api.Message;
+import org.asamk.signal.manager.api.RecipientIdentifier;
+import org.asamk.signal.manager.api.SendMessageResult;
+import org.asamk.signal.manager.api.SendMessageResults;
+import org.asamk.signal.manager.api.UnregisteredRecipientException;
+import org.asamk.signal.manager.groups.GroupNotFoundException;
+import org.asamk.signal.manager.groups.GroupSendingNotAllowedException;
+import org.asamk.signal.manager.groups.NotAGroupMemberException;
+import org.asamk.signal.manager.storage.outbox.OutboxEntry;
+import org.asamk.signal.manager.storage.outbox.OutboxStore;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Collectors;
+
+/**
+ * Sends the messages of the outbox from a background thread.
+ * The oldest message of each recipient is sent first, all due recipients of one message are sent to together.
+ * Network and rate limit failures are retried with exponential back-off.
+ */
+final class OutboxSender {
+
+    private final static Logger logger = LoggerFactory.getLogger(OutboxSender.class);
+    private final static int BATCH_SIZE = 100;
+    private final static int MAX_ATTEMPTS = 10;
+    private final static Duration INITIAL_BACKOFF = Duration.ofSeconds(5);
+    private final static Duration MAX_BACKOFF = Duration.ofHours(1);
+
+    private final OutboxStore outboxStore;
+    private final MessageSender messageSender;
+    private final Set<Manager.SendResultHandler> handlers = new HashSet<>();
+    private final AtomicLong lastTimestamp = new AtomicLong();
+    private Thread thread;
+    private boolean wakeUpRequested;
+
+    OutboxSender(final OutboxStore outboxStore, final MessageSender messageSender) {
+        this.outboxStore = outboxStore;
+        this.messageSender = messageSender;
+    }
+
+    long enqueue(final Message message, final Set<RecipientIdentifier> recipients) {
+        // Each message needs its own timestamp, as recipients use it to identify the message
+        final var timestamp = lastTimestamp.updateAndGet(last -> Math.max(last + 1, System.currentTimeMillis()));
+        outboxStore.addMessage(timestamp, message, recipients);
+        start();
+        wakeUp();
+        return timestamp;
+    }
+
+    void addHandler(final Manager.SendResultHandler handler) {
+        synchronized (handlers) {
+            handlers.add(handler);
+        }
+    }
+
+    void removeHandler(final Manager.SendResultHandler handler) {
+        synchronized (handlers) {
+            handlers.remove(handler);
+        }
+    }
+
+    synchronized void start() {
+        if (thread != null) {
+            return;
+        }
+        thread = new Thread(this::run);
+        thread.setName("outbox-sender");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    void close() {
+        final Thread thread;
+        synchronized (this) {
+            thread = this.thread;
+            this.thread = null;
+        }
+        if (thread == null) {
+            return;
+        }
+        thread.interrupt();
+        try {
+            thread.join();
+        } catch (InterruptedException ignored) {
+        }
+    }
+
+    private synchronized void wakeUp() {
+        wakeUpRequested = true;
+        notifyAll();
+    }
+
+    private void run() {
+        while (!Thread.currentThread().isInterrupted()) {
+            try {
+                final var entries = outboxStore.getDueEntries(System.currentTimeMillis(), BATCH_SIZE);
+                if (entries.isEmpty()) {
+                    waitForNextAttempt();
+                    continue;
+                }
+                final var messages = entries.stream()
+                        .collect(Collectors.groupingBy(OutboxEntry::batch,
+                                LinkedHashMap::new,
+                                Collectors.toList()));
+                for (final var messageEntries : messages.values()) {
+                    if (Thread.currentThread().isInterrupted()) {
+                        break;
+                    }
+                    sendMessage(messageEntries);
+                }
+            } catch (InterruptedException e) {
+                break;
+            } catch (RuntimeException e) {
+                logger.warn("Failed to send queued messages, retrying later", e);
+                try {
+                    Thread.sleep(INITIAL_BACKOFF.toMillis());
+                } catch (InterruptedException ex) {
+                    break;
+                }
+            }
+        }
+    }
+
+    private synchronized void waitForNextAttempt() throws InterruptedException {
+        if (wakeUpRequested) {
+            wakeUpRequested = false;
+            return;
+        }
+        final var nextAttempt = outboxStore.getNextAttemptTime();
+        if (nextAttempt.isEmpty()) {
+            wait();
+        } else {
+            final var delay = nextAttempt.get() - System.currentTimeMillis();
+            if (delay > 0) {
+                wait(delay);
+            }
+        }
+        wakeUpRequested = false;
+    }
+
+    private void sendMessage(final List<OutboxEntry> entries) {
+        final var timestamp = entries.get(0).timestamp();
+        final var message = entries.get(0).message();
+        final var recipients = entries.stream()
+                .map(OutboxEntry::recipient)
+                .collect(Collectors.toCollection(LinkedHashSet::new));
+
+        final SendMessageResults results;
+        try {
+            results = messageSender.sendMessage(message, recipients, timestamp);
+        } catch (IOException e) {
+            logger.debug("Failed to send queued message {}: {}", timestamp, e.getMessage());
+            final var failed = new ArrayList<RecipientIdentifier>();
+            for (final var entry : entries) {
+                if (!scheduleRetry(entry)) {
+                    outboxStore.deleteEntry(entry.id());
+                    failed.add(entry.recipient());
+                }
+            }
+            if (!failed.isEmpty()) {
+                notifyHandlers(new SendMessageResults(timestamp,
+                        failed.stream().collect(Collectors.toMap(r -> r, r -> List.<SendMessageResult>of()))), e);
+            }
+            return;
+        } catch (AttachmentInvalidException | NotAGroupMemberException | GroupNotFoundException
+                | GroupSendingNotAllowedException | UnregisteredRecipientException | InvalidStickerException
+                | RuntimeException e) {
+            logger.warn("Failed to send queued message {}, dropping it: {}", timestamp, e.getMessage());
+            entries.forEach(entry -> outboxStore.deleteEntry(entry.id()));
+            notifyHandlers(new SendMessageResults(timestamp,
+                    recipients.stream().collect(Collectors.toMap(r -> r, r -> List.<SendMessageResult>of()))), e);
+            return;
+        }
+
+        final var completed = new HashMap<RecipientIdentifier, List<SendMessageResult>>();
+        for (final var entry : entries) {
+            final var recipientResults = results.results().getOrDefault(entry.recipient(), List.of());
+            if (isRetryable(recipientResults) && scheduleRetry(entry)) {
+                continue;
+            }
+            outboxStore.deleteEntry(entry.id());
+            completed.put(entry.recipient(), recipientResults);
+        }
+        if (!completed.isEmpty()) {
+            notifyHandlers(new SendMessageResults(timestamp, completed), null);
+        }
+    }
+
+    /**
+     * @return false if the entry has used up all its attempts
+     */
+    private boolean scheduleRetry(final OutboxEntry entry) {
+        final var attempts = entry.attempts() + 1;
+        if (attempts >= MAX_ATTEMPTS) {
+            return false;
+        }
+        final var backoff = Math.min(MAX_BACKOFF.toMillis(), INITIAL_BACKOFF.toMillis() << (attempts - 1));
+        outboxStore.scheduleRetry(entry.id(), attempts, System.currentTimeMillis() + backoff);
+        return true;
+    }
+
+    private static boolean isRetryable(final List<SendMessageResult> results) {
+        return results.stream()
+                .anyMatch(r -> r.isRateLimitFailure() || (r.isNetworkFailure() && r.proofRequiredFailure() == null));
+    }
+
+    private void notifyHandlers(final SendMessageResults results, final Throwable e) {
+        synchronized (handlers) {
+            for (final var handler : handlers) {
+                try {
+                    handler.handleSendResult(results, e);
+                } catch (Throwable ex) {
+                    logger.warn("Send result handler failed, ignoring", ex);
+                }
+            }
+        }
+    }
+
+    interface MessageSender {
+
+        SendMessageResults sendMessage(
+                Message message, Set<RecipientIdentifier> recipients, long timestamp
+        ) throws IOException, AttachmentInvalidException, NotAGroupMemberException, GroupNotFoundException,
+                GroupSendingNotAllowedException, UnregisteredRecipientException, InvalidStickerException;
+    }
+}
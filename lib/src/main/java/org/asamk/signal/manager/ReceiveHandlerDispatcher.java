@@ -0,0 +1,258 @@
+package org.asamk.signal.manager;
+
+import org.asamk.signal.manager.api.MessageEnvelope;
+import org.asamk.signal.manager.api.ReceiveHandlerOverflowPolicy;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+
+/**
+ * Delivers received messages to the receive handlers, each from its own thread with a bounded queue.
+ * A slow handler then only delays its own messages instead of the receiving of messages for the whole account.
+ */
+final class ReceiveHandlerDispatcher {
+
+    private final static Logger logger = LoggerFactory.getLogger(ReceiveHandlerDispatcher.class);
+    private final static Duration LAG_WARNING_THRESHOLD = Duration.ofSeconds(10);
+    private final static Duration LAG_WARNING_INTERVAL = Duration.ofMinutes(1);
+
+    private static final AtomicInteger threadNumber = new AtomicInteger(0);
+
+    private final Consumer<Manager.ReceiveMessageHandler> disconnectListener;
+    private final Map<Manager.ReceiveMessageHandler, Subscription> subscriptions = new HashMap<>();
+    private int queueSize;
+    private ReceiveHandlerOverflowPolicy overflowPolicy = ReceiveHandlerOverflowPolicy.BLOCK;
+
+    /**
+     * @param disconnectListener called from the receive thread when a handler is dropped because of the
+     *                           {@link ReceiveHandlerOverflowPolicy#DISCONNECT} policy, it has to remove the handler
+     *                           and report the disconnect to it
+     */
+    ReceiveHandlerDispatcher(final Consumer<Manager.ReceiveMessageHandler> disconnectListener) {
+        this.disconnectListener = disconnectListener;
+    }
+
+    /**
+     * Changing the configuration restarts the delivery for the given handlers, messages that are already queued are
+     * still delivered.
+     */
+    synchronized void configure(
+            final int queueSize,
+            final ReceiveHandlerOverflowPolicy overflowPolicy,
+            final Collection<Manager.ReceiveMessageHandler> handlers
+    ) {
+        if (this.queueSize == queueSize && this.overflowPolicy == overflowPolicy) {
+            return;
+        }
+        this.queueSize = queueSize;
+        this.overflowPolicy = overflowPolicy;
+        subscriptions.values().forEach(s -> s.stop(false));
+        subscriptions.clear();
+        if (isEnabled()) {
+            handlers.forEach(this::subscribe);
+        }
+    }
+
+    synchronized boolean isEnabled() {
+        return queueSize > 0;
+    }
+
+    synchronized void subscribe(final Manager.ReceiveMessageHandler handler) {
+        if (!isEnabled() || subscriptions.containsKey(handler)) {
+            return;
+        }
+        final var subscription = new Subscription(handler, queueSize, overflowPolicy);
+        subscriptions.put(handler, subscription);
+        subscription.start();
+    }
+
+    /**
+     * Stops the delivery to the handler, messages that haven't been delivered yet are discarded.
+     */
+    synchronized void unsubscribe(final Manager.ReceiveMessageHandler handler) {
+        final var subscription = subscriptions.remove(handler);
+        if (subscription != null) {
+            subscription.stop(true);
+        }
+    }
+
+    synchronized void close() {
+        subscriptions.values().forEach(s -> s.stop(true));
+        subscriptions.clear();
+    }
+
+    /**
+     * Queues the message for all subscribed handlers.
+     * Depending on the overflow policy this blocks until every handler has room in its queue.
+     */
+    void dispatch(final MessageEnvelope envelope, final Throwable exception) {
+        final List<Subscription> currentSubscriptions;
+        synchronized (this) {
+            currentSubscriptions = new ArrayList<>(subscriptions.values());
+        }
+        final var message = new QueuedMessage(envelope, exception, System.nanoTime());
+        for (final var subscription : currentSubscriptions) {
+            if (!subscription.offer(message)) {
+                synchronized (this) {
+                    subscriptions.remove(subscription.handler, subscription);
+                }
+                disconnectListener.accept(subscription.handler);
+            }
+        }
+    }
+
+    private record QueuedMessage(MessageEnvelope envelope, Throwable exception, long queuedAt) {}
+
+    private static final QueuedMessage STOP = new QueuedMessage(null, null, 0);
+
+    private static final class Subscription implements Runnable {
+
+        private final Manager.ReceiveMessageHandler handler;
+        private final BlockingQueue<QueuedMessage> queue;
+        private final ReceiveHandlerOverflowPolicy overflowPolicy;
+        private final Thread thread;
+
+        private final AtomicLong delivered = new AtomicLong();
+        private final AtomicLong dropped = new AtomicLong();
+        private volatile long maxLagNanos;
+        private long lastLagWarning;
+        private boolean overflowing;
+        private volatile boolean stopped;
+
+        private Subscription(
+                final Manager.ReceiveMessageHandler handler,
+                final int queueSize,
+                final ReceiveHandlerOverflowPolicy overflowPolicy
+        ) {
+            this.handler = handler;
+            // One additional slot, so the stop marker always fits
+            this.queue = new ArrayBlockingQueue<>(queueSize + 1);
+            this.overflowPolicy = overflowPolicy;
+            this.thread = new Thread(this);
+            this.thread.setName("receive-handler-" + threadNumber.getAndIncrement());
+            this.thread.setDaemon(true);
+        }
+
+        private void start() {
+            thread.start();
+        }
+
+        /**
+         * Messages are only queued while at least one other slot is free, as offer and stop are mutually exclusive
+         * the stop marker always fits.
+         *
+         * @return false if the handler has to be disconnected
+         */
+        private synchronized boolean offer(final QueuedMessage message) {
+            if (stopped) {
+                return true;
+            }
+            if (queue.remainingCapacity() > 1) {
+                overflowing = false;
+                queue.offer(message);
+                return true;
+            }
+            switch (overflowPolicy) {
+                case BLOCK -> {
+                    while (!stopped && queue.remainingCapacity() <= 1) {
+                        try {
+                            wait(100);
+                        } catch (InterruptedException e) {
+                            Thread.currentThread().interrupt();
+                            return true;
+                        }
+                    }
+                    if (!stopped) {
+                        queue.offer(message);
+                    }
+                }
+                case DROP_OLDEST -> {
+                    if (queue.poll() != null) {
+                        dropped.incrementAndGet();
+                    }
+                    if (!overflowing) {
+                        logger.warn("Receive handler {} is falling behind, dropping oldest messages", thread.getName());
+                        overflowing = true;
+                    }
+                    queue.offer(message);
+                }
+                case DISCONNECT -> {
+                    logger.warn("Receive handler {} is falling behind, disconnecting it", thread.getName());
+                    stop(true);
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        private synchronized void stop(final boolean discardPending) {
+            final var wasStopped = stopped;
+            stopped = true;
+            if (discardPending) {
+                dropped.addAndGet(queue.size());
+                queue.clear();
+            }
+            if (discardPending || !wasStopped) {
+                queue.offer(STOP);
+            }
+            notifyAll();
+        }
+
+        @Override
+        public void run() {
+            try {
+                while (true) {
+                    final var message = queue.take();
+                    if (message == STOP) {
+                        break;
+                    }
+                    if (overflowPolicy == ReceiveHandlerOverflowPolicy.BLOCK) {
+                        synchronized (this) {
+                            notifyAll();
+                        }
+                    }
+                    recordLag(System.nanoTime() - message.queuedAt());
+                    try {
+                        handler.handleMessage(message.envelope(), message.exception());
+                    } catch (Throwable ex) {
+                        logger.warn("Message handler failed, ignoring", ex);
+                    }
+                    delivered.incrementAndGet();
+                }
+            } catch (InterruptedException ignored) {
+            }
+            logger.debug("Stopped receive handler {}: {} messages delivered, {} dropped, max lag {}ms",
+                    thread.getName(),
+                    delivered.get(),
+                    dropped.get(),
+                    Duration.ofNanos(maxLagNanos).toMillis());
+        }
+
+        private void recordLag(final long lagNanos) {
+            if (lagNanos > maxLagNanos) {
+                maxLagNanos = lagNanos;
+            }
+            final var now = System.nanoTime();
+            if (lagNanos > LAG_WARNING_THRESHOLD.toNanos() && (
+                    lastLagWarning == 0 || now - lastLagWarning > LAG_WARNING_INTERVAL.toNanos()
+            )) {
+                lastLagWarning = now;
+                logger.warn("Receive handler {} is lagging behind by {}ms, {} messages queued",
+                        thread.getName(),
+                        Duration.ofNanos(lagNanos).toMillis(),
+                        queue.size());
+            }
+        }
+    }
+}
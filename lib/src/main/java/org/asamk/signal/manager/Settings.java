@@ -1,8 +1,26 @@
 package org.asamk.signal.manager;
 
+import org.asamk.signal.manager.storage.StorageProfile;
 import org.asamk.signal.manager.storage.identities.TrustNewIdentity;
+import org.asamk.signal.manager.storage.messageCache.MessageCacheBackend;
 
-public record Settings(TrustNewIdentity trustNewIdentity, boolean disableMessageSendLog) {
+public record Settings(
+        TrustNewIdentity trustNewIdentity,
+        boolean disableMessageSendLog,
+        boolean sessionWriteBehind,
+        StorageProfile storageProfile,
+        boolean transactionPerEnvelope,
+        MessageCacheBackend messageCacheBackend,
+        int sendConcurrency,
+        boolean backgroundAttachmentDownloads
+) {
 
-    public static Settings DEFAULT = new Settings(TrustNewIdentity.ON_FIRST_USE, false);
+    public static Settings DEFAULT = new Settings(TrustNewIdentity.ON_FIRST_USE,
+            false,
+            false,
+            StorageProfile.DEFAULT,
+            false,
+            MessageCacheBackend.FILES,
+            1,
+            false);
 }
@@ -214,6 +214,10 @@ public class SignalDependencies {
                         getSignalWebSocket()));
     }
 
+    public SignalSessionLock getSessionLock() {
+        return sessionLock;
+    }
+
     public SignalServiceCipher getCipher() {
         return getOrCreate(() -> cipher, () -> {
             final var certificateValidator = new CertificateValidator(serviceEnvironmentConfig.getUnidentifiedSenderTrustRoot());
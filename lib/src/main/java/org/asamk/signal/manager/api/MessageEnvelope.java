@@ -292,7 +292,9 @@ public record MessageEnvelope(
                 boolean isBorderless
         ) {
 
-            static Attachment from(SignalServiceAttachment attachment, AttachmentFileProvider fileProvider) {
+            public static Attachment from(
+                    SignalServiceAttachment attachment, AttachmentFileProvider fileProvider
+            ) {
                 if (attachment.isPointer()) {
                     final var a = attachment.asPointer();
                     final var attachmentFile = fileProvider.getFile(a);
@@ -1,3 +1,20 @@
 package org.asamk.signal.manager.api;
 
-public record ReceiveConfig(boolean ignoreAttachments, boolean ignoreStories, boolean sendReadReceipts) {}
+/**
+ * @param batchSize maximum number of already available envelopes that are received together and handled in a single
+ *                  database transaction, 1 to handle each envelope on its own
+ * @param retryConcurrency maximum number of senders whose cached messages are retried concurrently, while new
+ *                         messages are received. With 1 cached messages are retried one by one before receiving.
+ * @param handlerQueueSize number of received messages that can be queued for each receive handler, which is then
+ *                         called from its own thread. With 0 all handlers are called directly from the receive thread.
+ * @param handlerOverflowPolicy what to do with new messages when the queue of a handler is full
+ */
+public record ReceiveConfig(
+        boolean ignoreAttachments,
+        boolean ignoreStories,
+        boolean sendReadReceipts,
+        int batchSize,
+        int retryConcurrency,
+        int handlerQueueSize,
+        ReceiveHandlerOverflowPolicy handlerOverflowPolicy
+) {}
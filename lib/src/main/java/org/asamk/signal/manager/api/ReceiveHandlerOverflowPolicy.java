@@ -0,0 +1,19 @@
+package org.asamk.signal.manager.api;
+
+/**
+ * What happens when a receive handler falls behind and its queue of undelivered messages is full.
+ */
+public enum ReceiveHandlerOverflowPolicy {
+    /**
+     * Wait until the handler has caught up, this slows down receiving for all handlers.
+     */
+    BLOCK,
+    /**
+     * Discard the oldest undelivered message of the handler.
+     */
+    DROP_OLDEST,
+    /**
+     * Remove the handler, it won't receive any further messages.
+     */
+    DISCONNECT
+}
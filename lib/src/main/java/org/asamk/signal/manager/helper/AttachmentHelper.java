@@ -4,8 +4,10 @@ import org.asamk.signal.manager.AttachmentStore;
 import org.asamk.signal.manager.SignalDependencies;
 import org.asamk.signal.manager.api.AttachmentInvalidException;
 import org.asamk.signal.manager.config.ServiceConfig;
+import org.asamk.signal.manager.storage.SignalAccount;
 import org.asamk.signal.manager.util.AttachmentUtils;
 import org.asamk.signal.manager.util.IOUtils;
+import org.asamk.signal.manager.util.Utils;
 import org.signal.libsignal.protocol.InvalidMessageException;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -20,17 +22,32 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
 import java.nio.file.Files;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.time.Duration;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 public class AttachmentHelper {
 
     private final static Logger logger = LoggerFactory.getLogger(AttachmentHelper.class);
+    private final static int MAX_CONCURRENT_UPLOADS = 4;
+    private final static int MAX_CONCURRENT_DOWNLOADS = 4;
+    // Signal clients only reuse uploads for a few days, well within the time attachments are kept on the CDN
+    private final static Duration UPLOAD_REUSE_DURATION = Duration.ofDays(3);
 
+    private final Context context;
+    private final SignalAccount account;
     private final SignalDependencies dependencies;
     private final AttachmentStore attachmentStore;
 
     public AttachmentHelper(final Context context) {
+        this.context = context;
+        this.account = context.getAccount();
         this.dependencies = context.getDependencies();
         this.attachmentStore = context.getAttachmentStore();
     }
@@ -44,19 +61,38 @@ public class AttachmentHelper {
     }
 
     public List<SignalServiceAttachment> uploadAttachments(final List<String> attachments) throws AttachmentInvalidException, IOException {
-        var attachmentStreams = AttachmentUtils.createAttachmentStreams(attachments);
+        // Check all attachments before uploading any of them
+        final var uploads = new ArrayList<PendingUpload>(attachments.size());
+        for (var attachment : attachments) {
+            uploads.add(prepareUpload(attachment));
+        }
 
         // Upload attachments here, so we only upload once even for multiple recipients
-        var attachmentPointers = new ArrayList<SignalServiceAttachment>(attachmentStreams.size());
-        for (var attachmentStream : attachmentStreams) {
-            attachmentPointers.add(uploadAttachment(attachmentStream));
+        var attachmentPointers = new ArrayList<SignalServiceAttachment>(uploads.size());
+        if (uploads.size() <= 1) {
+            for (var upload : uploads) {
+                attachmentPointers.add(uploadPendingAttachment(upload));
+            }
+            return attachmentPointers;
+        }
+
+        final var executor = Executors.newFixedThreadPool(Math.min(MAX_CONCURRENT_UPLOADS, uploads.size()));
+        try {
+            final var futures = new ArrayList<Future<SignalServiceAttachmentPointer>>(uploads.size());
+            for (var upload : uploads) {
+                futures.add(executor.submit(() -> uploadPendingAttachment(upload)));
+            }
+            for (var future : futures) {
+                attachmentPointers.add(getUploadResult(future));
+            }
+        } finally {
+            executor.shutdownNow();
         }
         return attachmentPointers;
     }
 
     public SignalServiceAttachmentPointer uploadAttachment(String attachment) throws IOException, AttachmentInvalidException {
-        var attachmentStream = AttachmentUtils.createAttachmentStream(attachment);
-        return uploadAttachment(attachmentStream);
+        return uploadPendingAttachment(prepareUpload(attachment));
     }
 
     public SignalServiceAttachmentPointer uploadAttachment(SignalServiceAttachmentStream attachment) throws IOException {
@@ -64,12 +100,143 @@ public class AttachmentHelper {
         return messageSender.uploadAttachment(attachment);
     }
 
+    private SignalServiceAttachmentPointer uploadPendingAttachment(
+            final PendingUpload upload
+    ) throws IOException, AttachmentInvalidException {
+        final var uploadedAttachmentStore = account.getUploadedAttachmentStore();
+        final var minUploadTimestamp = System.currentTimeMillis() - UPLOAD_REUSE_DURATION.toMillis();
+        final var cachedPointer = uploadedAttachmentStore.getPointer(upload.contentHash(),
+                upload.fileName(),
+                minUploadTimestamp);
+        if (cachedPointer.isPresent()) {
+            logger.debug("Reusing previously uploaded attachment {}", cachedPointer.get().getRemoteId());
+            return cachedPointer.get();
+        }
+
+        final var uploadTimestamp = System.currentTimeMillis();
+        final var pointer = uploadAttachment(AttachmentUtils.createAttachmentStream(upload.attachment()));
+        uploadedAttachmentStore.storePointer(upload.contentHash(),
+                upload.fileName(),
+                pointer,
+                uploadTimestamp,
+                minUploadTimestamp);
+        return pointer;
+    }
+
+    private static PendingUpload prepareUpload(final String attachment) throws AttachmentInvalidException {
+        try {
+            final var streamDetails = Utils.createStreamDetails(attachment);
+            try (final var stream = streamDetails.first().getStream()) {
+                final var digest = MessageDigest.getInstance("SHA-256");
+                final var buffer = new byte[4096];
+                int read;
+                while ((read = stream.read(buffer)) != -1) {
+                    digest.update(buffer, 0, read);
+                }
+                return new PendingUpload(attachment, digest.digest(), streamDetails.second());
+            }
+        } catch (IOException e) {
+            throw new AttachmentInvalidException(attachment, e);
+        } catch (NoSuchAlgorithmException e) {
+            throw new AssertionError(e);
+        }
+    }
+
+    private static SignalServiceAttachmentPointer getUploadResult(
+            final Future<SignalServiceAttachmentPointer> future
+    ) throws IOException, AttachmentInvalidException {
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while uploading attachments", e);
+        } catch (ExecutionException e) {
+            final var cause = e.getCause();
+            if (cause instanceof IOException ex) {
+                throw ex;
+            } else if (cause instanceof AttachmentInvalidException ex) {
+                throw ex;
+            } else if (cause instanceof RuntimeException ex) {
+                throw ex;
+            } else if (cause instanceof Error ex) {
+                throw ex;
+            }
+            throw new AssertionError(cause);
+        }
+    }
+
+    /**
+     * Downloads the attachments of a message, with up to four downloads at the same time.
+     * Failed downloads are logged and ignored.
+     * With background downloads only the embedded previews are stored immediately, the attachments are added to the
+     * download queue.
+     */
+    public void downloadAttachments(final List<SignalServiceAttachment> attachments) {
+        if (account.isBackgroundAttachmentDownloads()) {
+            final var pointers = new ArrayList<SignalServiceAttachmentPointer>(attachments.size());
+            for (var attachment : attachments) {
+                if (!attachment.isPointer()) {
+                    logger.warn("Invalid state, can't store an attachment stream.");
+                    continue;
+                }
+                storeAttachmentPreview(attachment.asPointer());
+                pointers.add(attachment.asPointer());
+            }
+            context.getAttachmentDownloader().enqueue(pointers);
+            return;
+        }
+
+        if (attachments.size() <= 1) {
+            attachments.forEach(this::downloadAttachment);
+            return;
+        }
+
+        final var executor = Executors.newFixedThreadPool(Math.min(MAX_CONCURRENT_DOWNLOADS, attachments.size()));
+        try {
+            final var futures = new ArrayList<Future<?>>(attachments.size());
+            for (var attachment : attachments) {
+                futures.add(executor.submit(() -> downloadAttachment(attachment)));
+            }
+            for (var future : futures) {
+                try {
+                    future.get();
+                } catch (ExecutionException e) {
+                    logger.warn("Failed to download attachment, ignoring", e.getCause());
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
     public void downloadAttachment(final SignalServiceAttachment attachment) {
         if (!attachment.isPointer()) {
             logger.warn("Invalid state, can't store an attachment stream.");
         }
 
         var pointer = attachment.asPointer();
+        storeAttachmentPreview(pointer);
+
+        try {
+            storeAttachment(pointer);
+        } catch (IOException e) {
+            logger.warn("Failed to download attachment ({}), ignoring: {}", pointer.getRemoteId(), e.getMessage());
+        }
+    }
+
+    public void storeAttachment(final SignalServiceAttachmentPointer pointer) throws IOException {
+        // The encrypted download is kept next to the attachment, so the decrypted content is written directly to
+        // the attachments directory instead of being copied from a temp file
+        final var downloadFile = attachmentStore.createDownloadFile(pointer);
+        attachmentStore.storeAttachment(pointer,
+                outputStream -> retrieveAttachment(pointer,
+                        downloadFile,
+                        input -> IOUtils.copyStream(input, outputStream)));
+    }
+
+    private void storeAttachmentPreview(final SignalServiceAttachmentPointer pointer) {
         if (pointer.getPreview().isPresent()) {
             final var preview = pointer.getPreview().get();
             try {
@@ -79,12 +246,6 @@ public class AttachmentHelper {
                 logger.warn("Failed to download attachment preview, ignoring: {}", e.getMessage());
             }
         }
-
-        try {
-            attachmentStore.storeAttachment(pointer, outputStream -> this.retrieveAttachment(pointer, outputStream));
-        } catch (IOException e) {
-            logger.warn("Failed to download attachment ({}), ignoring: {}", pointer.getRemoteId(), e.getMessage());
-        }
     }
 
     void retrieveAttachment(SignalServiceAttachment attachment, OutputStream outputStream) throws IOException {
@@ -101,14 +262,18 @@ public class AttachmentHelper {
             return;
         }
 
-        final var pointer = attachment.asPointer();
+        retrieveAttachment(attachment.asPointer(), IOUtils.createTempFile(), consumer);
+    }
+
+    private void retrieveAttachment(
+            SignalServiceAttachmentPointer pointer, File tmpFile, AttachmentHandler consumer
+    ) throws IOException {
         logger.debug("Retrieving attachment {} with size {}", pointer.getRemoteId(), pointer.getSize());
-        var tmpFile = IOUtils.createTempFile();
         try (var input = retrieveAttachmentAsStream(pointer, tmpFile)) {
             consumer.handle(input);
         } finally {
             try {
-                Files.delete(tmpFile.toPath());
+                Files.deleteIfExists(tmpFile.toPath());
             } catch (IOException e) {
                 logger.warn("Failed to delete received attachment temp file “{}”, ignoring: {}",
                         tmpFile,
@@ -128,6 +293,8 @@ public class AttachmentHelper {
         }
     }
 
+    private record PendingUpload(String attachment, byte[] contentHash, Optional<String> fileName) {}
+
     @FunctionalInterface
     public interface AttachmentHandler {
 
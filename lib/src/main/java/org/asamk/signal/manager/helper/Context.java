@@ -1,5 +1,6 @@
 package org.asamk.signal.manager.helper;
 
+import org.asamk.signal.manager.AttachmentDownloader;
 import org.asamk.signal.manager.AttachmentStore;
 import org.asamk.signal.manager.AvatarStore;
 import org.asamk.signal.manager.JobExecutor;
@@ -20,6 +21,7 @@ public class Context {
     private final StickerPackStore stickerPackStore;
     private final AttachmentStore attachmentStore;
     private final JobExecutor jobExecutor;
+    private final AttachmentDownloader attachmentDownloader;
 
     private AccountHelper accountHelper;
     private AttachmentHelper attachmentHelper;
@@ -54,6 +56,7 @@ public class Context {
         this.stickerPackStore = stickerPackStore;
         this.attachmentStore = attachmentStore;
         this.jobExecutor = new JobExecutor(this);
+        this.attachmentDownloader = new AttachmentDownloader(this);
     }
 
     public SignalAccount getAccount() {
@@ -84,6 +87,10 @@ public class Context {
         return jobExecutor;
     }
 
+    public AttachmentDownloader getAttachmentDownloader() {
+        return attachmentDownloader;
+    }
+
     public AccountHelper getAccountHelper() {
         return getOrCreate(() -> accountHelper, () -> accountHelper = new AccountHelper(this));
     }
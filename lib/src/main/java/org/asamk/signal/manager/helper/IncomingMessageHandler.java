@@ -32,10 +32,12 @@ import org.asamk.signal.manager.groups.GroupUtils;
 import org.asamk.signal.manager.jobs.RetrieveStickerPackJob;
 import org.asamk.signal.manager.storage.SignalAccount;
 import org.asamk.signal.manager.storage.groups.GroupInfoV1;
+import org.asamk.signal.manager.storage.groups.GroupInfoV2;
 import org.asamk.signal.manager.storage.recipients.Profile;
 import org.asamk.signal.manager.storage.recipients.RecipientId;
 import org.asamk.signal.manager.storage.stickers.StickerPack;
 import org.asamk.signal.manager.util.KeyUtils;
+import org.signal.libsignal.metadata.ProtocolException;
 import org.signal.libsignal.metadata.ProtocolInvalidKeyException;
 import org.signal.libsignal.metadata.ProtocolInvalidKeyIdException;
 import org.signal.libsignal.metadata.ProtocolInvalidMessageException;
@@ -50,6 +52,7 @@ import org.signal.libsignal.zkgroup.InvalidInputException;
 import org.signal.libsignal.zkgroup.profiles.ProfileKey;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import org.whispersystems.signalservice.api.messages.SignalServiceAttachment;
 import org.whispersystems.signalservice.api.messages.SignalServiceContent;
 import org.whispersystems.signalservice.api.messages.SignalServiceDataMessage;
 import org.whispersystems.signalservice.api.messages.SignalServiceEnvelope;
@@ -69,6 +72,7 @@ import org.whispersystems.signalservice.api.push.SignalServiceAddress;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.Optional;
+import java.util.function.Supplier;
 import java.util.stream.Collectors;
 
 public final class IncomingMessageHandler {
@@ -87,102 +91,137 @@ public final class IncomingMessageHandler {
 
 	public Pair<List<HandleAction>, Exception> handleRetryEnvelope(final SignalServiceEnvelope envelope,
 			final ReceiveConfig receiveConfig, final Manager.ReceiveMessageHandler handler) {
-		final List<HandleAction> actions = new ArrayList<>();
-		if (envelope.isPreKeySignalMessage()) {
-			actions.add(RefreshPreKeysAction.create());
-		}
+		return handleEnvelopes(List.of(envelope), receiveConfig, handler, true, account.isTransactionPerEnvelope())
+				.get(0);
+	}
 
-		SignalServiceContent content = null;
-		if (!envelope.isReceipt()) {
-			account.getIdentityKeyStore().setRetryingDecryption(true);
-			try {
-				content = dependencies.getCipher().decrypt(envelope);
-			} catch (ProtocolUntrustedIdentityException e) {
-				final var recipientId = account.getRecipientResolver().resolveRecipient(e.getSender());
-				final var exception = new UntrustedIdentityException(account.getRecipientAddressResolver()
-						.resolveRecipientAddress(recipientId).toApiRecipientAddress(), e.getSenderDevice());
-				return new Pair<>(List.of(), exception);
-			} catch (Exception e) {
-				return new Pair<>(List.of(), e);
-			} finally {
-				account.getIdentityKeyStore().setRetryingDecryption(false);
+	public Pair<List<HandleAction>, Exception> handleEnvelope(final SignalServiceEnvelope envelope,
+			final ReceiveConfig receiveConfig, final Manager.ReceiveMessageHandler handler) {
+		return handleEnvelopes(List.of(envelope), receiveConfig, handler, false, account.isTransactionPerEnvelope())
+				.get(0);
+	}
+
+	/**
+	 * Handles the envelopes in order, committing all their store updates in a single database transaction.
+	 * The transaction is only split if an envelope requires network requests.
+	 */
+	public List<Pair<List<HandleAction>, Exception>> handleEnvelopes(final List<SignalServiceEnvelope> envelopes,
+			final ReceiveConfig receiveConfig, final Manager.ReceiveMessageHandler handler) {
+		return handleEnvelopes(envelopes, receiveConfig, handler, false, true);
+	}
+
+	/**
+	 * Decryption and store updates of consecutive envelopes run in one unit of work. Network requests, like fetching
+	 * a group that has changed, are made between units of work, so the session lock and the database transaction
+	 * aren't held while waiting for the server. Attachment downloads and the message handler run once the changes of
+	 * the envelope have been committed.
+	 *
+	 * @param transactional if enabled, each unit of work runs with one database connection and transaction
+	 */
+	private List<Pair<List<HandleAction>, Exception>> handleEnvelopes(final List<SignalServiceEnvelope> envelopes,
+			final ReceiveConfig receiveConfig, final Manager.ReceiveMessageHandler handler, final boolean isRetry,
+			final boolean transactional) {
+		final var results = new ArrayList<Pair<List<HandleAction>, Exception>>(envelopes.size());
+		final var remaining = envelopes.iterator();
+		DecryptedEnvelope pending = null;
+		do {
+			final var fetched = pending;
+			pending = runInUnitOfWork(transactional, () -> {
+				if (fetched != null) {
+					results.add(handleDecryptedEnvelope(fetched, receiveConfig, handler));
+				}
+				while (remaining.hasNext()) {
+					final var decrypted = decryptEnvelope(remaining.next(), isRetry);
+					if (decrypted.dropped()) {
+						results.add(new Pair<>(decrypted.actions(), decrypted.exception()));
+					} else if (requiresNetwork(decrypted)) {
+						return decrypted;
+					} else {
+						results.add(handleDecryptedEnvelope(decrypted, receiveConfig, handler));
+					}
+				}
+				return null;
+			});
+			if (pending != null) {
+				fetchRemoteState(pending);
 			}
+		} while (pending != null);
+		return results;
+	}
+
+	/**
+	 * The session lock is taken before the transaction, so other threads holding it can't be blocked on the database
+	 * by this thread.
+	 */
+	private <T> T runInUnitOfWork(final boolean transactional, final Supplier<T> work) {
+		if (!transactional) {
+			return work.get();
+		}
+		try (final var ignored = dependencies.getSessionLock().acquire()) {
+			return account.runInTransaction(work);
 		}
-		actions.addAll(checkAndHandleMessage(envelope, content, receiveConfig, handler, null));
-		return new Pair<>(actions, null);
 	}
 
-	public Pair<List<HandleAction>, Exception> handleEnvelope(final SignalServiceEnvelope envelope,
-			final ReceiveConfig receiveConfig, final Manager.ReceiveMessageHandler handler) {
+	private DecryptedEnvelope decryptEnvelope(final SignalServiceEnvelope envelope, final boolean isRetry) {
 		final var actions = new ArrayList<HandleAction>();
-		if (envelope.hasSourceUuid()) {
+		if (isRetry && envelope.isPreKeySignalMessage()) {
+			actions.add(RefreshPreKeysAction.create());
+		}
+		if (!isRetry && envelope.hasSourceUuid()) {
 			// Store uuid if we don't have it already
 			// address/uuid in envelope is sent by server
 			account.getRecipientTrustedResolver().resolveRecipientTrusted(envelope.getSourceAddress());
 		}
 		SignalServiceContent content = null;
 		Exception exception = null;
+		ProtocolException invalidMessage = null;
 		if (!envelope.isReceipt()) {
+			if (isRetry) {
+				account.getIdentityKeyStore().setRetryingDecryption(true);
+			}
 			try {
-				if (!account.isDisconnected())
+				if (isRetry || !account.isDisconnected())
 					content = dependencies.getCipher().decrypt(envelope);
 			} catch (ProtocolUntrustedIdentityException e) {
 				final var recipientId = account.getRecipientResolver().resolveRecipient(e.getSender());
-				actions.add(new RetrieveProfileAction(recipientId));
+				if (!isRetry) {
+					actions.add(new RetrieveProfileAction(recipientId));
+				}
 				exception = new UntrustedIdentityException(account.getRecipientAddressResolver()
 						.resolveRecipientAddress(recipientId).toApiRecipientAddress(), e.getSenderDevice());
 			} catch (ProtocolInvalidKeyIdException | ProtocolInvalidKeyException | ProtocolNoSessionException
 					| ProtocolInvalidMessageException e) {
 				logger.debug("Failed to decrypt incoming message", e);
-				final var sender = account.getRecipientResolver().resolveRecipient(e.getSender());
-				if (context.getContactHelper().isContactBlocked(sender)) {
-					logger.debug("Received invalid message from blocked contact, ignoring.");
-				} else if (account.isDisconnected()) {
+				if (!isRetry) {
+					final var sender = account.getRecipientResolver().resolveRecipient(e.getSender());
+					if (context.getContactHelper().isContactBlocked(sender)) {
+						logger.debug("Received invalid message from blocked contact, ignoring.");
+					} else if (account.isDisconnected()) {
 //                	System.out.println("Ignoring message as message received on disconnected account");
-				} else {
-					final var senderProfile = context.getProfileHelper().getRecipientProfile(sender);
-					final var selfProfile = context.getProfileHelper().getSelfProfile();
-					var serviceId = ServiceId.parseOrNull(e.getSender());
-					if (serviceId == null) {
-						// Workaround for libsignal-client issue #492
-						serviceId = account.getRecipientAddressResolver().resolveRecipientAddress(sender).serviceId()
-								.orElse(null);
-					}
-					if (serviceId != null) {
-						final var isSelf = sender.equals(account.getSelfRecipientId())
-								&& e.getSenderDevice() == account.getDeviceId();
-						final var isSenderSenderKeyCapable = senderProfile != null
-								&& senderProfile.getCapabilities().contains(Profile.Capability.senderKey);
-						final var isSelfSenderKeyCapable = selfProfile != null
-								&& selfProfile.getCapabilities().contains(Profile.Capability.senderKey);
-						if (!isSelf && isSenderSenderKeyCapable && isSelfSenderKeyCapable) {
-							logger.debug("Received invalid message, requesting message resend.");
-							actions.add(new SendRetryMessageRequestAction(sender, serviceId, e, envelope));
-						} else {
-							logger.debug("Received invalid message, queuing renew session action.");
-							actions.add(new RenewSessionAction(sender, serviceId));
-						}
 					} else {
-						logger.debug("Received invalid message from invalid sender: {}", e.getSender());
+						invalidMessage = e;
 					}
 				}
 				exception = e;
 			} catch (SelfSendException e) {
-				logger.debug("Dropping unidentified message from self.");
-				return new Pair<>(List.of(), null);
+				if (!isRetry) {
+					logger.debug("Dropping unidentified message from self.");
+					return DecryptedEnvelope.dropped(List.of(), null);
+				}
+				exception = e;
 			} catch (Exception e) {
 				logger.debug("Failed to handle incoming message", e);
 				exception = e;
+			} finally {
+				if (isRetry) {
+					account.getIdentityKeyStore().setRetryingDecryption(false);
+				}
 			}
 		}
+		if (isRetry && exception != null) {
+			return DecryptedEnvelope.dropped(List.of(), exception);
+		}
 
-		actions.addAll(checkAndHandleMessage(envelope, content, receiveConfig, handler, exception));
-		return new Pair<>(actions, exception);
-	}
-
-	private List<HandleAction> checkAndHandleMessage(final SignalServiceEnvelope envelope,
-			final SignalServiceContent content, final ReceiveConfig receiveConfig,
-			final Manager.ReceiveMessageHandler handler, final Exception exception) {
 		if (content != null) {
 			// Store uuid if we don't have it already
 			// address/uuid is validated by unidentified sender certificate
@@ -206,13 +245,73 @@ public final class IncomingMessageHandler {
 			account.getMessageSendLogStore().deleteEntryForRecipient(envelope.getTimestamp(), sender, senderDeviceId);
 		}
 
-		var notAllowedToSendToGroup = isNotAllowedToSendToGroup(envelope, content);
-		final var groupContext = getGroupContext(content);
-		if (groupContext != null && groupContext.getGroupV2().isPresent()) {
-			handleGroupV2Context(groupContext.getGroupV2().get());
+		// Checked before the group is updated, so a sender can still announce leaving the group
+		final var notAllowedToSendToGroup = isNotAllowedToSendToGroup(envelope, content);
+		return new DecryptedEnvelope(envelope, content, exception, actions, invalidMessage, notAllowedToSendToGroup,
+				false);
+	}
+
+	private boolean requiresNetwork(final DecryptedEnvelope decrypted) {
+		return decrypted.invalidMessage() != null
+				|| getGroupV2Contexts(decrypted.content()).stream().anyMatch(this::isGroupOutdated);
+	}
+
+	/**
+	 * Makes the network requests the envelope requires, while neither the session lock nor a database transaction are
+	 * held.
+	 */
+	private void fetchRemoteState(final DecryptedEnvelope decrypted) {
+		if (decrypted.invalidMessage() != null) {
+			decrypted.actions().addAll(handleInvalidMessage(decrypted.envelope(), decrypted.invalidMessage()));
+		}
+		for (final var groupContext : getGroupV2Contexts(decrypted.content())) {
+			handleGroupV2Context(groupContext);
+		}
+	}
+
+	private List<HandleAction> handleInvalidMessage(final SignalServiceEnvelope envelope, final ProtocolException e) {
+		final var sender = account.getRecipientResolver().resolveRecipient(e.getSender());
+		final var senderProfile = context.getProfileHelper().getRecipientProfile(sender);
+		final var selfProfile = context.getProfileHelper().getSelfProfile();
+		var serviceId = ServiceId.parseOrNull(e.getSender());
+		if (serviceId == null) {
+			// Workaround for libsignal-client issue #492
+			serviceId = account.getRecipientAddressResolver().resolveRecipientAddress(sender).serviceId().orElse(null);
+		}
+		if (serviceId == null) {
+			logger.debug("Received invalid message from invalid sender: {}", e.getSender());
+			return List.of();
 		}
+		final var isSelf = sender.equals(account.getSelfRecipientId())
+				&& e.getSenderDevice() == account.getDeviceId();
+		final var isSenderSenderKeyCapable = senderProfile != null
+				&& senderProfile.getCapabilities().contains(Profile.Capability.senderKey);
+		final var isSelfSenderKeyCapable = selfProfile != null
+				&& selfProfile.getCapabilities().contains(Profile.Capability.senderKey);
+		if (!isSelf && isSenderSenderKeyCapable && isSelfSenderKeyCapable) {
+			logger.debug("Received invalid message, requesting message resend.");
+			return List.of(new SendRetryMessageRequestAction(sender, serviceId, e, envelope));
+		} else {
+			logger.debug("Received invalid message, queuing renew session action.");
+			return List.of(new RenewSessionAction(sender, serviceId));
+		}
+	}
+
+	private Pair<List<HandleAction>, Exception> handleDecryptedEnvelope(final DecryptedEnvelope decrypted,
+			final ReceiveConfig receiveConfig, final Manager.ReceiveMessageHandler handler) {
+		final var actions = new ArrayList<>(decrypted.actions());
+		actions.addAll(checkAndHandleMessage(decrypted, receiveConfig, handler));
+		return new Pair<>(actions, decrypted.exception());
+	}
+
+	private List<HandleAction> checkAndHandleMessage(final DecryptedEnvelope decrypted,
+			final ReceiveConfig receiveConfig, final Manager.ReceiveMessageHandler handler) {
+		final var envelope = decrypted.envelope();
+		final var content = decrypted.content();
+		final var exception = decrypted.exception();
 		// Check again in case the user just joined the group
-		notAllowedToSendToGroup = notAllowedToSendToGroup && isNotAllowedToSendToGroup(envelope, content);
+		final var notAllowedToSendToGroup = decrypted.notAllowedToSendToGroup()
+				&& isNotAllowedToSendToGroup(envelope, content);
 
 		if (isMessageBlocked(envelope, content)) {
 			logger.info("Ignoring a message from blocked user/group: {}", envelope.getTimestamp());
@@ -229,9 +328,9 @@ public final class IncomingMessageHandler {
 			} else {
 				actions = List.of();
 			}
-			handler.handleMessage(MessageEnvelope.from(envelope, content, account.getRecipientResolver(),
-					account.getRecipientAddressResolver(), context.getAttachmentHelper()::getAttachmentFile, exception),
-					exception);
+			final var messageEnvelope = MessageEnvelope.from(envelope, content, account.getRecipientResolver(),
+					account.getRecipientAddressResolver(), context.getAttachmentHelper()::getAttachmentFile, exception);
+			account.runAfterCommit(() -> handler.handleMessage(messageEnvelope, exception));
 			return actions;
 		}
 	}
@@ -419,13 +518,15 @@ public final class IncomingMessageHandler {
 			}
 		}
 		if (syncMessage.getGroups().isPresent()) {
-			try {
-				final var groupsMessage = syncMessage.getGroups().get();
-				context.getAttachmentHelper().retrieveAttachment(groupsMessage,
-						context.getSyncHelper()::handleSyncDeviceGroups);
-			} catch (Exception e) {
-				logger.warn("Failed to handle received sync groups, ignoring: {}", e.getMessage());
-			}
+			final var groupsMessage = syncMessage.getGroups().get();
+			account.runAfterCommit(() -> {
+				try {
+					context.getAttachmentHelper().retrieveAttachment(groupsMessage,
+							context.getSyncHelper()::handleSyncDeviceGroups);
+				} catch (Exception e) {
+					logger.warn("Failed to handle received sync groups, ignoring: {}", e.getMessage());
+				}
+			});
 		}
 		if (syncMessage.getBlockedList().isPresent()) {
 			final var blockedListMessage = syncMessage.getBlockedList().get();
@@ -444,13 +545,15 @@ public final class IncomingMessageHandler {
 			}
 		}
 		if (syncMessage.getContacts().isPresent()) {
-			try {
-				final var contactsMessage = syncMessage.getContacts().get();
-				context.getAttachmentHelper().retrieveAttachment(contactsMessage.getContactsStream(),
-						context.getSyncHelper()::handleSyncDeviceContacts);
-			} catch (Exception e) {
-				logger.warn("Failed to handle received sync contacts, ignoring: {}", e.getMessage());
-			}
+			final var contactsMessage = syncMessage.getContacts().get();
+			account.runAfterCommit(() -> {
+				try {
+					context.getAttachmentHelper().retrieveAttachment(contactsMessage.getContactsStream(),
+							context.getSyncHelper()::handleSyncDeviceContacts);
+				} catch (Exception e) {
+					logger.warn("Failed to handle received sync contacts, ignoring: {}", e.getMessage());
+				}
+			});
 		}
 		if (syncMessage.getVerified().isPresent()) {
 			final var verifiedMessage = syncMessage.getVerified().get();
@@ -582,7 +685,9 @@ public final class IncomingMessageHandler {
 		final var groupContext = getGroupContext(content);
 		if (groupContext != null) {
 			var groupId = GroupUtils.getGroupId(groupContext);
-			return context.getGroupHelper().isGroupBlocked(groupId);
+			// Read from the store, as the group helper may fetch missing groups from the server
+			final var group = account.getGroupStore().getGroup(groupId);
+			return group != null && group.isBlocked();
 		}
 
 		return false;
@@ -607,7 +712,7 @@ public final class IncomingMessageHandler {
 		}
 
 		var groupId = GroupUtils.getGroupId(groupContext);
-		var group = context.getGroupHelper().getGroup(groupId);
+		var group = account.getGroupStore().getGroup(groupId);
 		if (group == null) {
 			return false;
 		}
@@ -647,7 +752,9 @@ public final class IncomingMessageHandler {
 
 						if (groupInfo.getAvatar().isPresent()) {
 							var avatar = groupInfo.getAvatar().get();
-							context.getGroupHelper().downloadGroupAvatar(groupV1.getGroupId(), avatar);
+							final var avatarGroupId = groupV1.getGroupId();
+							account.runAfterCommit(
+									() -> context.getGroupHelper().downloadGroupAvatar(avatarGroupId, avatar));
 						}
 
 						if (groupInfo.getName().isPresent()) {
@@ -684,9 +791,7 @@ public final class IncomingMessageHandler {
 					// Received a group v1 message for a v2 group
 				}
 			}
-			if (groupContext.getGroupV2().isPresent()) {
-				handleGroupV2Context(groupContext.getGroupV2().get());
-			}
+			// Group v2 contexts have already been handled by fetchRemoteState
 		}
 
 		final var conversationPartnerAddress = isSync ? destination : source;
@@ -714,15 +819,14 @@ public final class IncomingMessageHandler {
 			}
 		}
 		if (!ignoreAttachments) {
+			final var attachments = new ArrayList<SignalServiceAttachment>();
 			if (message.getAttachments().isPresent()) {
-				for (var attachment : message.getAttachments().get()) {
-					context.getAttachmentHelper().downloadAttachment(attachment);
-				}
+				attachments.addAll(message.getAttachments().get());
 			}
 			if (message.getSharedContacts().isPresent()) {
 				for (var contact : message.getSharedContacts().get()) {
 					if (contact.getAvatar().isPresent()) {
-						context.getAttachmentHelper().downloadAttachment(contact.getAvatar().get().getAttachment());
+						attachments.add(contact.getAvatar().get().getAttachment());
 					}
 				}
 			}
@@ -730,7 +834,7 @@ public final class IncomingMessageHandler {
 				final var previews = message.getPreviews().get();
 				for (var preview : previews) {
 					if (preview.getImage().isPresent()) {
-						context.getAttachmentHelper().downloadAttachment(preview.getImage().get());
+						attachments.add(preview.getImage().get());
 					}
 				}
 			}
@@ -740,10 +844,11 @@ public final class IncomingMessageHandler {
 				for (var quotedAttachment : quote.getAttachments()) {
 					final var thumbnail = quotedAttachment.getThumbnail();
 					if (thumbnail != null) {
-						context.getAttachmentHelper().downloadAttachment(thumbnail);
+						attachments.add(thumbnail);
 					}
 				}
 			}
+			downloadAttachments(attachments);
 		}
 		if (message.getProfileKey().isPresent()) {
 			handleIncomingProfileKey(message.getProfileKey().get(), source.recipientId());
@@ -761,26 +866,36 @@ public final class IncomingMessageHandler {
 		return actions;
 	}
 
+	private void downloadAttachments(final List<SignalServiceAttachment> attachments) {
+		if (account.isBackgroundAttachmentDownloads()) {
+			// Queued in the same unit of work as the message, so the downloads aren't lost if the process stops
+			// after the envelope has been removed from the cache, the workers are only woken after the commit
+			context.getAttachmentHelper().downloadAttachments(attachments);
+		} else {
+			// Downloading sends network requests, which are kept out of the unit of work
+			account.runAfterCommit(() -> context.getAttachmentHelper().downloadAttachments(attachments));
+		}
+	}
+
 	private List<HandleAction> handleSignalServiceStoryMessage(SignalServiceStoryMessage message, RecipientId source,
 			boolean ignoreAttachments) {
 		var actions = new ArrayList<HandleAction>();
-		if (message.getGroupContext().isPresent()) {
-			handleGroupV2Context(message.getGroupContext().get());
-		}
 
 		if (!ignoreAttachments) {
+			final var attachments = new ArrayList<SignalServiceAttachment>();
 			if (message.getFileAttachment().isPresent()) {
-				context.getAttachmentHelper().downloadAttachment(message.getFileAttachment().get());
+				attachments.add(message.getFileAttachment().get());
 			}
 			if (message.getTextAttachment().isPresent()) {
 				final var textAttachment = message.getTextAttachment().get();
 				if (textAttachment.getPreview().isPresent()) {
 					final var preview = textAttachment.getPreview().get();
 					if (preview.getImage().isPresent()) {
-						context.getAttachmentHelper().downloadAttachment(preview.getImage().get());
+						attachments.add(preview.getImage().get());
 					}
 				}
 			}
+			downloadAttachments(attachments);
 		}
 
 		if (message.getProfileKey().isPresent()) {
@@ -790,6 +905,39 @@ public final class IncomingMessageHandler {
 		return actions;
 	}
 
+	/**
+	 * @return the group v2 contexts of the message and of sent messages synced from another device
+	 */
+	private List<SignalServiceGroupV2> getGroupV2Contexts(final SignalServiceContent content) {
+		if (content == null) {
+			return List.of();
+		}
+		final var groupContexts = new ArrayList<SignalServiceGroupV2>();
+		final var dataMessages = new ArrayList<SignalServiceDataMessage>();
+		final var storyMessages = new ArrayList<SignalServiceStoryMessage>();
+		content.getDataMessage().ifPresent(dataMessages::add);
+		content.getStoryMessage().ifPresent(storyMessages::add);
+		content.getSyncMessage().flatMap(SignalServiceSyncMessage::getSent).ifPresent(sent -> {
+			sent.getDataMessage().ifPresent(dataMessages::add);
+			sent.getStoryMessage().ifPresent(storyMessages::add);
+		});
+		for (final var message : dataMessages) {
+			message.getGroupContext().flatMap(SignalServiceGroupContext::getGroupV2).ifPresent(groupContexts::add);
+		}
+		for (final var message : storyMessages) {
+			message.getGroupContext().ifPresent(groupContexts::add);
+		}
+		return groupContexts;
+	}
+
+	private boolean isGroupOutdated(final SignalServiceGroupV2 groupContext) {
+		final var groupId = GroupUtils.getGroupIdV2(groupContext.getMasterKey());
+		final var group = account.getGroupStore().getGroup(groupId);
+		return !(group instanceof GroupInfoV2 groupInfoV2)
+				|| groupInfoV2.getGroup() == null
+				|| groupInfoV2.getGroup().getRevision() < groupContext.getRevision();
+	}
+
 	private void handleGroupV2Context(final SignalServiceGroupV2 groupContext) {
 		final var groupMasterKey = groupContext.getMasterKey();
 
@@ -848,4 +996,20 @@ public final class IncomingMessageHandler {
 
 	private record DeviceAddress(RecipientId recipientId, ServiceId serviceId, int deviceId) {
 	}
+
+	/**
+	 * An envelope that has been decrypted, but whose content hasn't been handled yet.
+	 *
+	 * @param invalidMessage          decryption error that requires a resend request or session renewal
+	 * @param notAllowedToSendToGroup if the sender wasn't allowed to send to the group before it was updated
+	 * @param dropped                 if true, the envelope doesn't need to be handled any further
+	 */
+	private record DecryptedEnvelope(SignalServiceEnvelope envelope, SignalServiceContent content,
+			Exception exception, List<HandleAction> actions, ProtocolException invalidMessage,
+			boolean notAllowedToSendToGroup, boolean dropped) {
+
+		static DecryptedEnvelope dropped(final List<HandleAction> actions, final Exception exception) {
+			return new DecryptedEnvelope(null, null, exception, actions, null, false, true);
+		}
+	}
 }
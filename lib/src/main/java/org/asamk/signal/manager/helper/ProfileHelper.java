@@ -229,13 +229,21 @@ public final class ProfileHelper {
 
     private List<Profile> getRecipientProfiles(Collection<RecipientId> recipientIds, boolean force) {
         final var profileStore = account.getProfileStore();
-        final var profileFetches = Flowable.fromIterable(recipientIds)
-                .filter(recipientId -> force || isProfileRefreshRequired(profileStore.getProfile(recipientId)))
+        final var storedProfiles = profileStore.getProfiles(recipientIds);
+        final var recipientsToRefresh = recipientIds.stream()
+                .filter(recipientId -> force || isProfileRefreshRequired(storedProfiles.get(recipientId)))
+                .toList();
+        if (recipientsToRefresh.isEmpty()) {
+            return recipientIds.stream().map(storedProfiles::get).toList();
+        }
+
+        final var profileFetches = Flowable.fromIterable(recipientsToRefresh)
                 .map(recipientId -> retrieveProfile(recipientId,
                         SignalServiceProfile.RequestType.PROFILE).onErrorComplete());
         Maybe.merge(profileFetches, 10).blockingSubscribe();
 
-        return recipientIds.stream().map(profileStore::getProfile).toList();
+        final var profiles = profileStore.getProfiles(recipientIds);
+        return recipientIds.stream().map(profiles::get).toList();
     }
 
     private Profile getRecipientProfile(RecipientId recipientId, boolean force) {
@@ -3,11 +3,15 @@ package org.asamk.signal.manager.helper;
 import org.asamk.signal.manager.Manager;
 import org.asamk.signal.manager.SignalDependencies;
 import org.asamk.signal.manager.actions.HandleAction;
+import org.asamk.signal.manager.api.Pair;
 import org.asamk.signal.manager.api.ReceiveConfig;
+import org.asamk.signal.manager.api.ReceiveHandlerOverflowPolicy;
 import org.asamk.signal.manager.api.UntrustedIdentityException;
 import org.asamk.signal.manager.storage.SignalAccount;
 import org.asamk.signal.manager.storage.messageCache.CachedMessage;
 import org.asamk.signal.manager.storage.recipients.RecipientAddress;
+import org.asamk.signal.manager.util.IOUtils;
+import org.asamk.signal.manager.util.MessageCacheUtils;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.whispersystems.signalservice.api.SignalWebSocket;
@@ -15,14 +19,21 @@ import org.whispersystems.signalservice.api.messages.SignalServiceEnvelope;
 import org.whispersystems.signalservice.api.websocket.WebSocketConnectionState;
 import org.whispersystems.signalservice.api.websocket.WebSocketUnavailableException;
 
+import java.io.File;
 import java.io.IOException;
 import java.time.Duration;
+import java.util.ArrayList;
 import java.util.Collection;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Optional;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.TimeoutException;
 
 import io.reactivex.rxjava3.core.Observable;
@@ -32,16 +43,24 @@ public class ReceiveHelper {
 
 	private final static Logger logger = LoggerFactory.getLogger(ReceiveHelper.class);
 	private final static int MAX_BACKOFF_COUNTER = 9;
+	private final static Duration BATCH_DRAIN_TIMEOUT = Duration.ofMillis(10);
 
 	private final SignalAccount account;
 	private final SignalDependencies dependencies;
 	private final Context context;
 
-	private ReceiveConfig receiveConfig = new ReceiveConfig(false, false, false);
+	private ReceiveConfig receiveConfig = new ReceiveConfig(false,
+			false,
+			false,
+			1,
+			1,
+			0,
+			ReceiveHandlerOverflowPolicy.BLOCK);
 	private boolean needsToRetryFailedMessages = false;
 	private boolean hasCaughtUpWithOldMessages = false;
 	private boolean isWaitingForMessage = false;
-	private boolean shouldStop = false;
+	private volatile boolean shouldStop = false;
+	private Thread retryThread;
 	private Callable authenticationFailureListener;
 	private Callable caughtUpWithOldMessagesListener;
 
@@ -103,9 +122,13 @@ public class ReceiveHelper {
 				.subscribe(this::onWebSocketStateChange);
 		signalWebSocket.connect();
 
+		// The handler is not required to be thread-safe, with background retries it's called from several threads
+		final var receiveHandler = receiveConfig.retryConcurrency() > 1 ? synchronizedHandler(handler) : handler;
 		try {
-			receiveMessagesInternal(signalWebSocket, timeout, returnOnTimeout, maxMessages, handler, queuedActions);
+			receiveMessagesInternal(signalWebSocket, timeout, returnOnTimeout, maxMessages, receiveHandler,
+					queuedActions);
 		} finally {
+			waitForRetryThread();
 			hasCaughtUpWithOldMessages = false;
 			handleQueuedActions(queuedActions.keySet());
 			queuedActions.clear();
@@ -123,14 +146,13 @@ public class ReceiveHelper {
 		isWaitingForMessage = false;
 
 		while (!shouldStop && remainingMessages != 0) {
-			if (needsToRetryFailedMessages) {
+			if (needsToRetryFailedMessages && !isRetryingFailedMessages()) {
 
 				if (!account.isDisconnected())
 					retryFailedReceivedMessages(handler);
 				needsToRetryFailedMessages = false;
 			}
-			SignalServiceEnvelope envelope;
-			final CachedMessage[] cachedMessage = { null };
+			final var envelopes = new ArrayList<Pair<SignalServiceEnvelope, CachedMessage>>();
 			final var nowMillis = System.currentTimeMillis();
 			if (nowMillis - account.getLastReceiveTimestamp() > 60000) {
 				account.setLastReceiveTimestamp(nowMillis);
@@ -138,15 +160,7 @@ public class ReceiveHelper {
 			logger.debug("Checking for new message from server");
 			try {
 				isWaitingForMessage = true;
-				var result = signalWebSocket.readOrEmpty(timeout.toMillis(), envelope1 -> {
-					isWaitingForMessage = false;
-					final var recipientId = envelope1.hasSourceUuid()
-							? account.getRecipientResolver().resolveRecipient(envelope1.getSourceAddress())
-							: null;
-					logger.trace("Storing new message from {}", recipientId);
-					// store message on disk, before acknowledging receipt to the server
-					cachedMessage[0] = account.getMessageCache().cacheMessage(envelope1, recipientId);
-				});
+				var result = readOrEmpty(signalWebSocket, timeout.toMillis());
 				isWaitingForMessage = false;
 				backOffCounter = 0;
 
@@ -154,15 +168,11 @@ public class ReceiveHelper {
 					if (remainingMessages > 0) {
 						remainingMessages -= 1;
 					}
-					envelope = result.get();
+					envelopes.add(result.get());
 					logger.debug("New message received from server");
 				} else {
 					logger.debug("Received indicator that server queue is empty");
-					handleQueuedActions(queuedActions.keySet());
-					queuedActions.clear();
-
-					hasCaughtUpWithOldMessages = true;
-					caughtUpWithOldMessagesListener.call();
+					handleQueueEmpty(queuedActions);
 
 					// Continue to wait another timeout for new messages
 					continue;
@@ -196,44 +206,142 @@ public class ReceiveHelper {
 				continue;
 			}
 
-			final var result = context.getIncomingMessageHandler().handleEnvelope(envelope, receiveConfig, handler);
-			for (final var h : result.first()) {
-				final var existingAction = queuedActions.get(h);
-				if (existingAction == null) {
-					queuedActions.put(h, h);
-				} else {
-					existingAction.mergeOther(h);
+			// Drain envelopes that are already available, they have been cached and acknowledged individually
+			var isQueueEmpty = false;
+			var interrupted = false;
+			while (envelopes.size() < receiveConfig.batchSize() && remainingMessages != 0 && !shouldStop) {
+				final Optional<Pair<SignalServiceEnvelope, CachedMessage>> result;
+				try {
+					result = readOrEmpty(signalWebSocket, BATCH_DRAIN_TIMEOUT.toMillis());
+				} catch (TimeoutException | IOException e) {
+					// Connection errors are handled by the next regular read
+					break;
+				} catch (AssertionError e) {
+					if (e.getCause() instanceof InterruptedException) {
+						interrupted = true;
+						break;
+					} else {
+						throw e;
+					}
+				}
+				if (result.isEmpty()) {
+					isQueueEmpty = true;
+					break;
 				}
+				if (remainingMessages > 0) {
+					remainingMessages -= 1;
+				}
+				envelopes.add(result.get());
 			}
-			final var exception = result.second();
 
-			if (hasCaughtUpWithOldMessages) {
-				handleQueuedActions(queuedActions.keySet());
-				queuedActions.clear();
+			final List<Pair<List<HandleAction>, Exception>> results;
+			if (envelopes.size() == 1) {
+				results = List.of(context.getIncomingMessageHandler()
+						.handleEnvelope(envelopes.get(0).first(), receiveConfig, handler));
+			} else {
+				logger.debug("Handling batch of {} messages", envelopes.size());
+				results = context.getIncomingMessageHandler()
+						.handleEnvelopes(envelopes.stream().map(Pair::first).toList(), receiveConfig, handler);
 			}
-			if (cachedMessage[0] != null) {
-				if (exception instanceof UntrustedIdentityException) {
-					logger.debug("Keeping message with untrusted identity in message cache");
-					final var address = ((UntrustedIdentityException) exception).getSender();
-					final var recipientId = account.getRecipientResolver().resolveRecipient(address.getServiceId());
-					if (!envelope.hasSourceUuid()) {
-						try {
-							cachedMessage[0] = account.getMessageCache().replaceSender(cachedMessage[0], recipientId);
-						} catch (IOException ioException) {
-							logger.warn("Failed to move cached message to recipient folder: {}",
-									ioException.getMessage());
-						}
-					}
-				} else {
-					if (!account.isDisconnected()) {
-						cachedMessage[0].delete();
+			for (var i = 0; i < envelopes.size(); i++) {
+				handleEnvelopeResult(envelopes.get(i).first(), envelopes.get(i).second(), results.get(i),
+						queuedActions);
+			}
+
+			if (isQueueEmpty) {
+				logger.debug("Received indicator that server queue is empty");
+				handleQueueEmpty(queuedActions);
+			}
+			if (interrupted) {
+				break;
+			}
+		}
+	}
+
+	private Optional<Pair<SignalServiceEnvelope, CachedMessage>> readOrEmpty(final SignalWebSocket signalWebSocket,
+			final long timeoutMillis) throws TimeoutException, IOException {
+		final CachedMessage[] cachedMessage = { null };
+		final var result = signalWebSocket.readOrEmpty(timeoutMillis, envelope1 -> {
+			isWaitingForMessage = false;
+			final var recipientId = envelope1.hasSourceUuid()
+					? account.getRecipientResolver().resolveRecipient(envelope1.getSourceAddress())
+					: null;
+			logger.trace("Storing new message from {}", recipientId);
+			// store message on disk, before acknowledging receipt to the server
+			cachedMessage[0] = account.getMessageCache().cacheMessage(envelope1, recipientId);
+			if (account.isDisconnected()) {
+				exportEnvelope(envelope1);
+			}
+		});
+		return result.map(envelope -> new Pair<>(envelope, cachedMessage[0]));
+	}
+
+	/**
+	 * A disconnected device can't decrypt messages itself, so received envelopes are exported for external tools.
+	 */
+	private void exportEnvelope(final SignalServiceEnvelope envelope) {
+		try {
+			final var exportPath = account.getDDDAccountPath();
+			IOUtils.createPrivateDirectories(exportPath);
+			final var file = new File(exportPath,
+					System.currentTimeMillis() + "_" + envelope.getTimestamp() + ".json");
+			MessageCacheUtils.exportEnvelope(envelope, file);
+			System.out.println(file.getAbsolutePath());
+		} catch (IOException e) {
+			logger.warn("Failed to export received envelope: {}", e.getMessage());
+		}
+	}
+
+	private void handleQueueEmpty(final Map<HandleAction, HandleAction> queuedActions) {
+		handleQueuedActions(queuedActions.keySet());
+		queuedActions.clear();
+
+		hasCaughtUpWithOldMessages = true;
+		caughtUpWithOldMessagesListener.call();
+	}
+
+	private void handleEnvelopeResult(final SignalServiceEnvelope envelope, final CachedMessage cachedMessage,
+			final Pair<List<HandleAction>, Exception> result, final Map<HandleAction, HandleAction> queuedActions) {
+		for (final var h : result.first()) {
+			final var existingAction = queuedActions.get(h);
+			if (existingAction == null) {
+				queuedActions.put(h, h);
+			} else {
+				existingAction.mergeOther(h);
+			}
+		}
+		final var exception = result.second();
+
+		if (hasCaughtUpWithOldMessages) {
+			handleQueuedActions(queuedActions.keySet());
+			queuedActions.clear();
+		}
+		if (cachedMessage != null) {
+			if (exception instanceof UntrustedIdentityException) {
+				logger.debug("Keeping message with untrusted identity in message cache");
+				final var address = ((UntrustedIdentityException) exception).getSender();
+				final var recipientId = account.getRecipientResolver().resolveRecipient(address.getServiceId());
+				if (!envelope.hasSourceUuid()) {
+					try {
+						account.getMessageCache().replaceSender(cachedMessage, recipientId);
+					} catch (IOException ioException) {
+						logger.warn("Failed to move cached message to recipient folder: {}",
+								ioException.getMessage());
 					}
 				}
+			} else {
+				if (!account.isDisconnected()) {
+					cachedMessage.delete();
+				}
 			}
 		}
 	}
 
 	private void retryFailedReceivedMessages(Manager.ReceiveMessageHandler handler) {
+		if (receiveConfig.retryConcurrency() > 1) {
+			retryFailedReceivedMessagesInBackground(handler, receiveConfig.retryConcurrency());
+			return;
+		}
 		Set<HandleAction> queuedActions = new HashSet<>();
 		for (var cachedMessage : account.getMessageCache().getCachedMessages()) {
 			var actions = retryFailedReceivedMessage(handler, cachedMessage);
@@ -244,6 +352,86 @@ public class ReceiveHelper {
 		handleQueuedActions(queuedActions);
 	}
 
+	/**
+	 * Retry the cached messages of different senders concurrently, while new messages are received.
+	 * The messages of each sender are still retried in the order they have been received.
+	 *
+	 * @param handler must be synchronized with the handler used for newly received messages
+	 */
+	private void retryFailedReceivedMessagesInBackground(final Manager.ReceiveMessageHandler handler,
+			final int concurrency) {
+		final var partitions = new LinkedHashMap<Long, List<CachedMessage>>();
+		for (var cachedMessage : account.getMessageCache().getCachedMessages()) {
+			// Messages without a known sender share one partition, as they may all be from the same sender
+			partitions.computeIfAbsent(cachedMessage.getRawRecipientId(), k -> new ArrayList<>()).add(cachedMessage);
+		}
+		if (partitions.isEmpty()) {
+			return;
+		}
+		logger.debug("Retrying cached messages of {} senders in the background", partitions.size());
+
+		retryThread = new Thread(() -> {
+			final Set<HandleAction> queuedActions = ConcurrentHashMap.newKeySet();
+			final var executor = Executors.newFixedThreadPool(Math.min(concurrency, partitions.size()));
+			for (final var partition : partitions.values()) {
+				executor.execute(() -> {
+					for (final var cachedMessage : partition) {
+						if (shouldStop) {
+							return;
+						}
+						try {
+							final var actions = retryFailedReceivedMessage(handler, cachedMessage);
+							if (actions != null) {
+								queuedActions.addAll(actions);
+							}
+						} catch (Exception e) {
+							// Skip the remaining messages of the sender, so they are not handled out of order
+							logger.warn("Failed to retry cached message, skipping sender until next retry", e);
+							return;
+						}
+					}
+				});
+			}
+			executor.shutdown();
+			try {
+				executor.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+			} catch (InterruptedException e) {
+				executor.shutdownNow();
+				return;
+			}
+			handleQueuedActions(queuedActions);
+		});
+		retryThread.setName("retry-cached-messages");
+		retryThread.setDaemon(true);
+		retryThread.start();
+	}
+
+	private static Manager.ReceiveMessageHandler synchronizedHandler(final Manager.ReceiveMessageHandler handler) {
+		final var handlerLock = new Object();
+		return (envelope, e) -> {
+			synchronized (handlerLock) {
+				handler.handleMessage(envelope, e);
+			}
+		};
+	}
+
+	private boolean isRetryingFailedMessages() {
+		return retryThread != null && retryThread.isAlive();
+	}
+
+	private void waitForRetryThread() {
+		final var thread = retryThread;
+		if (thread == null) {
+			return;
+		}
+		try {
+			thread.join();
+		} catch (InterruptedException e) {
+			thread.interrupt();
+		}
+		retryThread = null;
+	}
+
 	private List<HandleAction> retryFailedReceivedMessage(final Manager.ReceiveMessageHandler handler,
 			final CachedMessage cachedMessage) {
 		var envelope = cachedMessage.loadEnvelope();
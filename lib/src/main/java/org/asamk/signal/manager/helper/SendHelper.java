@@ -34,6 +34,7 @@ import org.whispersystems.signalservice.api.messages.SignalServiceTypingMessage;
 import org.whispersystems.signalservice.api.messages.multidevice.SentTranscriptMessage;
 import org.whispersystems.signalservice.api.messages.multidevice.SignalServiceSyncMessage;
 import org.whispersystems.signalservice.api.push.DistributionId;
+import org.whispersystems.signalservice.api.push.ServiceId;
 import org.whispersystems.signalservice.api.push.SignalServiceAddress;
 import org.whispersystems.signalservice.api.push.exceptions.NotFoundException;
 import org.whispersystems.signalservice.api.push.exceptions.ProofRequiredException;
@@ -44,13 +45,13 @@ import org.whispersystems.signalservice.internal.push.exceptions.InvalidUnidenti
 import java.io.IOException;
 import java.time.Duration;
 import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Optional;
 import java.util.Set;
 import java.util.concurrent.TimeUnit;
-import java.util.concurrent.atomic.AtomicLong;
 
 public class SendHelper {
 
@@ -317,57 +318,38 @@ public class SendHelper {
             final ContentHint contentHint
     ) throws IOException {
         final var messageSender = dependencies.getMessageSender();
-        final var messageSendLogStore = account.getMessageSendLogStore();
-        final AtomicLong entryId = new AtomicLong(-1);
-
         final var urgent = true;
-        final LegacySenderHandler legacySender = (recipients, unidentifiedAccess, isRecipientUpdate) -> messageSender.sendDataMessage(
-                recipients,
-                unidentifiedAccess,
-                isRecipientUpdate,
-                contentHint,
-                message,
-                SignalServiceMessageSender.LegacyGroupEvents.EMPTY,
-                sendResult -> {
-                    logger.trace("Partial message send result: {}", sendResult.isSuccess());
-                    synchronized (entryId) {
-                        if (entryId.get() == -1) {
-                            final var newId = messageSendLogStore.insertIfPossible(message.getTimestamp(),
-                                    sendResult,
-                                    contentHint,
-                                    urgent);
-                            entryId.set(newId);
-                        } else {
-                            messageSendLogStore.addRecipientToExistingEntryIfPossible(entryId.get(), sendResult);
-                        }
-                    }
-                },
-                () -> false,
-                urgent);
-        final SenderKeySenderHandler senderKeySender = (distId, recipients, unidentifiedAccess, isRecipientUpdate) -> {
-            final var res = messageSender.sendGroupDataMessage(distId,
+        final List<SendMessageResult> results;
+        try (final var messageSendLogWriter = account.getMessageSendLogStore()
+                .createWriter(message.getTimestamp(), contentHint, urgent)) {
+            final LegacySenderHandler legacySender = (recipients, unidentifiedAccess, isRecipientUpdate) -> messageSender.sendDataMessage(
                     recipients,
                     unidentifiedAccess,
                     isRecipientUpdate,
                     contentHint,
                     message,
-                    SignalServiceMessageSender.SenderKeyGroupEvents.EMPTY,
-                    urgent,
-                    false);
-            synchronized (entryId) {
-                if (entryId.get() == -1) {
-                    final var newId = messageSendLogStore.insertIfPossible(message.getTimestamp(),
-                            res,
-                            contentHint,
-                            urgent);
-                    entryId.set(newId);
-                } else {
-                    messageSendLogStore.addRecipientToExistingEntryIfPossible(entryId.get(), res);
-                }
-            }
-            return res;
-        };
-        final var results = sendGroupMessageInternal(legacySender, senderKeySender, recipientIds, distributionId);
+                    SignalServiceMessageSender.LegacyGroupEvents.EMPTY,
+                    sendResult -> {
+                        logger.trace("Partial message send result: {}", sendResult.isSuccess());
+                        messageSendLogWriter.add(sendResult);
+                    },
+                    () -> false,
+                    urgent);
+            final SenderKeySenderHandler senderKeySender = (distId, recipients, unidentifiedAccess, isRecipientUpdate) -> {
+                final var res = messageSender.sendGroupDataMessage(distId,
+                        recipients,
+                        unidentifiedAccess,
+                        isRecipientUpdate,
+                        contentHint,
+                        message,
+                        SignalServiceMessageSender.SenderKeyGroupEvents.EMPTY,
+                        urgent,
+                        false);
+                messageSendLogWriter.add(res);
+                return res;
+            };
+            results = sendGroupMessageInternal(legacySender, senderKeySender, recipientIds, distributionId);
+        }
 
         for (var r : results) {
             handleSendMessageResult(r);
@@ -475,30 +457,42 @@ public class SendHelper {
             return Set.of();
         }
 
-        final var senderKeyTargets = new HashSet<RecipientId>();
+        final var startTime = System.currentTimeMillis();
         final var recipientList = new ArrayList<>(recipientIds);
         final var profiles = context.getProfileHelper().getRecipientProfiles(recipientList).iterator();
+        final var capableRecipients = new ArrayList<RecipientId>();
         for (final var recipientId : recipientList) {
             final var profile = profiles.next();
-            if (profile == null || !profile.getCapabilities().contains(Profile.Capability.senderKey)) {
-                continue;
+            if (profile != null && profile.getCapabilities().contains(Profile.Capability.senderKey)) {
+                capableRecipients.add(recipientId);
             }
+        }
 
-            final var access = context.getUnidentifiedAccessHelper().getAccessFor(recipientId);
+        // The profiles have just been refreshed, so the stored profiles can be used for the unidentified access
+        final var accesses = context.getUnidentifiedAccessHelper().getAccessFor(capableRecipients, true).iterator();
+        final var serviceIds = new HashMap<RecipientId, ServiceId>();
+        for (final var recipientId : capableRecipients) {
+            final var access = accesses.next();
             if (access.isEmpty() || access.get().getTargetUnidentifiedAccess().isEmpty()) {
                 continue;
             }
-
             final var serviceId = account.getRecipientAddressResolver()
                     .resolveRecipientAddress(recipientId)
                     .getServiceId();
-            final var identity = account.getIdentityKeyStore().getIdentityInfo(serviceId);
-            if (identity == null || !identity.getTrustLevel().isTrusted()) {
-                continue;
-            }
+            serviceIds.put(recipientId, serviceId);
+        }
 
-            senderKeyTargets.add(recipientId);
+        final var identities = account.getIdentityKeyStore().getIdentityInfos(serviceIds.values());
+        final var senderKeyTargets = new HashSet<RecipientId>();
+        for (final var entry : serviceIds.entrySet()) {
+            final var identity = identities.get(entry.getValue());
+            if (identity != null && identity.getTrustLevel().isTrusted()) {
+                senderKeyTargets.add(entry.getKey());
+            }
         }
+        logger.debug("Checking sender key capability of {} recipients took {}ms",
+                recipientIds.size(),
+                System.currentTimeMillis() - startTime);
 
         if (senderKeyTargets.size() < 2) {
             logger.debug("Too few sender-key-capable users ({}). Doing all legacy sends.", senderKeyTargets.size());
@@ -14,8 +14,11 @@ import org.whispersystems.signalservice.api.crypto.UnidentifiedAccess;
 import org.whispersystems.signalservice.api.crypto.UnidentifiedAccessPair;
 
 import java.io.IOException;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Optional;
+import java.util.Set;
 import java.util.concurrent.TimeUnit;
 
 public class UnidentifiedAccessHelper {
@@ -43,7 +46,53 @@ public class UnidentifiedAccessHelper {
     }
 
     public List<Optional<UnidentifiedAccessPair>> getAccessFor(List<RecipientId> recipients) {
-        return recipients.stream().map(this::getAccessFor).toList();
+        return getAccessFor(recipients, false);
+    }
+
+    /**
+     * Same as calling {@link #getAccessFor(RecipientId, boolean)} for each recipient, but reads the profiles, profile
+     * keys and contacts of all recipients with a single query each.
+     */
+    public List<Optional<UnidentifiedAccessPair>> getAccessFor(List<RecipientId> recipients, boolean noRefresh) {
+        if (recipients.isEmpty()) {
+            return List.of();
+        }
+        final var profiles = noRefresh
+                ? account.getProfileStore().getProfiles(recipients)
+                : getRecipientProfiles(recipients);
+        final var profileKeys = account.getProfileStore().getProfileKeys(recipients);
+
+        final var selfUnidentifiedAccessKey = getSelfUnidentifiedAccessKey(noRefresh);
+        if (selfUnidentifiedAccessKey == null) {
+            logger.trace("Unidentified access not available for self");
+            return recipients.stream().map(r -> Optional.<UnidentifiedAccessPair>empty()).toList();
+        }
+
+        final var sharingMode = account.getConfigurationStore().getPhoneNumberSharingMode();
+        final var contacts = sharingMode == PhoneNumberSharingMode.CONTACTS
+                ? account.getContactStore().getContactRecipientIds(recipients)
+                : Set.<RecipientId>of();
+
+        return recipients.stream().map(recipientId -> {
+            final var targetProfile = profiles.get(recipientId);
+            final var recipientUnidentifiedAccessKey = targetProfile == null
+                    ? null
+                    : getTargetUnidentifiedAccessKey(targetProfile, profileKeys.get(recipientId));
+            if (recipientUnidentifiedAccessKey == null) {
+                logger.trace("Unidentified access not available for {}", recipientId);
+                return Optional.<UnidentifiedAccessPair>empty();
+            }
+
+            final var senderCertificate = getSenderCertificateFor(recipientId,
+                    sharingMode,
+                    contacts.contains(recipientId));
+            if (senderCertificate == null) {
+                logger.trace("Unidentified access not available due to missing sender certificate");
+                return Optional.<UnidentifiedAccessPair>empty();
+            }
+
+            return createAccessPair(recipientUnidentifiedAccessKey, selfUnidentifiedAccessKey, senderCertificate);
+        }).toList();
     }
 
     public Optional<UnidentifiedAccessPair> getAccessFor(RecipientId recipient) {
@@ -69,12 +118,7 @@ public class UnidentifiedAccessHelper {
             return Optional.empty();
         }
 
-        try {
-            return Optional.of(new UnidentifiedAccessPair(new UnidentifiedAccess(recipientUnidentifiedAccessKey,
-                    senderCertificate), new UnidentifiedAccess(selfUnidentifiedAccessKey, senderCertificate)));
-        } catch (InvalidCertificateException e) {
-            return Optional.empty();
-        }
+        return createAccessPair(recipientUnidentifiedAccessKey, selfUnidentifiedAccessKey, senderCertificate);
     }
 
     public Optional<UnidentifiedAccessPair> getAccessForSync() {
@@ -94,11 +138,44 @@ public class UnidentifiedAccessHelper {
         }
     }
 
+    private static Optional<UnidentifiedAccessPair> createAccessPair(
+            final byte[] recipientUnidentifiedAccessKey,
+            final byte[] selfUnidentifiedAccessKey,
+            final byte[] senderCertificate
+    ) {
+        try {
+            return Optional.of(new UnidentifiedAccessPair(new UnidentifiedAccess(recipientUnidentifiedAccessKey,
+                    senderCertificate), new UnidentifiedAccess(selfUnidentifiedAccessKey, senderCertificate)));
+        } catch (InvalidCertificateException e) {
+            return Optional.empty();
+        }
+    }
+
+    private Map<RecipientId, Profile> getRecipientProfiles(final List<RecipientId> recipientIds) {
+        final var profiles = context.getProfileHelper().getRecipientProfiles(recipientIds).iterator();
+        final var result = new HashMap<RecipientId, Profile>();
+        for (final var recipientId : recipientIds) {
+            final var profile = profiles.next();
+            if (profile != null) {
+                result.put(recipientId, profile);
+            }
+        }
+        return result;
+    }
+
     private byte[] getSenderCertificateFor(final RecipientId recipientId) {
         final var sharingMode = account.getConfigurationStore().getPhoneNumberSharingMode();
-        if (sharingMode == null || sharingMode == PhoneNumberSharingMode.EVERYBODY || (
+        return getSenderCertificateFor(recipientId,
+                sharingMode,
                 sharingMode == PhoneNumberSharingMode.CONTACTS
-                        && account.getContactStore().getContact(recipientId) != null
+                        && account.getContactStore().getContact(recipientId) != null);
+    }
+
+    private byte[] getSenderCertificateFor(
+            final RecipientId recipientId, final PhoneNumberSharingMode sharingMode, final boolean isContact
+    ) {
+        if (sharingMode == null || sharingMode == PhoneNumberSharingMode.EVERYBODY || (
+                sharingMode == PhoneNumberSharingMode.CONTACTS && isContact
         )) {
             logger.trace("Using normal sender certificate for message to {}", recipientId);
             return getSenderCertificate();
@@ -2,12 +2,14 @@ package org.asamk.signal.manager.storage;
 
 import com.zaxxer.hikari.HikariDataSource;
 
+import org.asamk.signal.manager.storage.attachments.AttachmentDownloadStore;
+import org.asamk.signal.manager.storage.attachments.UploadedAttachmentStore;
 import org.asamk.signal.manager.storage.groups.GroupStore;
 import org.asamk.signal.manager.storage.identities.IdentityKeyStore;
+import org.asamk.signal.manager.storage.outbox.OutboxStore;
 import org.asamk.signal.manager.storage.prekeys.PreKeyStore;
 import org.asamk.signal.manager.storage.prekeys.SignedPreKeyStore;
 import org.asamk.signal.manager.storage.recipients.RecipientStore;
-import org.asamk.signal.manager.storage.sendLog.MessageSendLogStore;
 import org.asamk.signal.manager.storage.senderKeys.SenderKeyRecordStore;
 import org.asamk.signal.manager.storage.senderKeys.SenderKeySharedStore;
 import org.asamk.signal.manager.storage.sessions.SessionStore;
@@ -22,20 +24,19 @@ import java.sql.SQLException;
 public class AccountDatabase extends Database {
 
     private final static Logger logger = LoggerFactory.getLogger(AccountDatabase.class);
-    private static final long DATABASE_VERSION = 11;
+    private static final long DATABASE_VERSION = 15;
 
     private AccountDatabase(final HikariDataSource dataSource) {
         super(logger, DATABASE_VERSION, dataSource);
     }
 
-    public static AccountDatabase init(File databaseFile) throws SQLException {
-        return initDatabase(databaseFile, AccountDatabase::new);
+    public static AccountDatabase init(File databaseFile, StorageProfile storageProfile) throws SQLException {
+        return initDatabase(databaseFile, storageProfile, AccountDatabase::new);
     }
 
     @Override
     protected void createDatabase(final Connection connection) throws SQLException {
         RecipientStore.createSql(connection);
-        MessageSendLogStore.createSql(connection);
         StickerStore.createSql(connection);
         PreKeyStore.createSql(connection);
         SignedPreKeyStore.createSql(connection);
@@ -44,6 +45,9 @@ public class AccountDatabase extends Database {
         IdentityKeyStore.createSql(connection);
         SenderKeyRecordStore.createSql(connection);
         SenderKeySharedStore.createSql(connection);
+        OutboxStore.createSql(connection);
+        UploadedAttachmentStore.createSql(connection);
+        AttachmentDownloadStore.createSql(connection);
     }
 
     @Override
@@ -296,5 +300,62 @@ public class AccountDatabase extends Database {
                                         """);
             }
         }
+        if (oldVersion < 12) {
+            logger.debug("Updating database: Creating outbox table");
+            try (final var statement = connection.createStatement()) {
+                statement.executeUpdate("""
+                                        CREATE TABLE outbox (
+                                          _id INTEGER PRIMARY KEY,
+                                          batch INTEGER NOT NULL,
+                                          timestamp INTEGER NOT NULL,
+                                          recipient TEXT NOT NULL,
+                                          message TEXT NOT NULL,
+                                          attempts INTEGER NOT NULL DEFAULT 0,
+                                          next_attempt INTEGER NOT NULL
+                                        ) STRICT;
+                                        CREATE INDEX outbox_recipient ON outbox (recipient, _id);
+                                        """);
+            }
+        }
+        if (oldVersion < 13) {
+            logger.debug("Updating database: Creating uploaded attachment table");
+            try (final var statement = connection.createStatement()) {
+                statement.executeUpdate("""
+                                        CREATE TABLE uploaded_attachment (
+                                          _id INTEGER PRIMARY KEY,
+                                          content_hash BLOB NOT NULL,
+                                          file_name TEXT NOT NULL,
+                                          pointer BLOB NOT NULL,
+                                          upload_timestamp INTEGER NOT NULL,
+                                          UNIQUE(content_hash, file_name)
+                                        ) STRICT;
+                                        """);
+            }
+        }
+        if (oldVersion < 14) {
+            logger.debug("Updating database: Creating attachment download table");
+            try (final var statement = connection.createStatement()) {
+                statement.executeUpdate("""
+                                        CREATE TABLE attachment_download (
+                                          _id INTEGER PRIMARY KEY,
+                                          remote_id TEXT UNIQUE NOT NULL,
+                                          pointer BLOB NOT NULL,
+                                          size INTEGER NOT NULL,
+                                          attempts INTEGER NOT NULL DEFAULT 0,
+                                          next_attempt INTEGER NOT NULL
+                                        ) STRICT;
+                                        """);
+            }
+        }
+        if (oldVersion < 15) {
+            logger.debug("Updating database: Partitioning message send log by time");
+            // The message send log tables are now created per time bucket, existing entries are just dropped
+            try (final var statement = connection.createStatement()) {
+                statement.executeUpdate("""
+                                        DROP TABLE IF EXISTS message_send_log;
+                                        DROP TABLE IF EXISTS message_send_log_content;
+                                        """);
+            }
+        }
     }
 }
@@ -9,13 +9,23 @@ import org.sqlite.SQLiteConfig;
 import java.io.File;
 import java.sql.Connection;
 import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.function.Function;
+import java.util.function.Supplier;
 
 public abstract class Database implements AutoCloseable {
 
+    private static final int READ_POOL_SIZE = 4;
+
     private final Logger logger;
     private final long databaseVersion;
     private final HikariDataSource dataSource;
+    private final StatementCache statementCache = new StatementCache();
+    private final ThreadLocal<Connection> threadConnection = new ThreadLocal<>();
+    private final ThreadLocal<List<Runnable>> afterCommitActions = new ThreadLocal<>();
+    private StorageProfile storageProfile = StorageProfile.DEFAULT;
+    private HikariDataSource readDataSource;
 
     protected Database(final Logger logger, final long databaseVersion, final HikariDataSource dataSource) {
         this.logger = logger;
@@ -24,15 +34,20 @@ public abstract class Database implements AutoCloseable {
     }
 
     public static <T extends Database> T initDatabase(
-            File databaseFile, Function<HikariDataSource, T> newDatabase
+            File databaseFile, StorageProfile storageProfile, Function<HikariDataSource, T> newDatabase
     ) throws SQLException {
         HikariDataSource dataSource = null;
 
         try {
-            dataSource = getHikariDataSource(databaseFile.getAbsolutePath());
+            dataSource = getHikariDataSource(databaseFile.getAbsolutePath(), storageProfile, false);
 
             final var result = newDatabase.apply(dataSource);
+            result.storageProfile = storageProfile;
             result.initDb();
+            if (storageProfile == StorageProfile.WAL) {
+                // The read pool can only be opened once the database file exists in WAL mode
+                result.readDataSource = getHikariDataSource(databaseFile.getAbsolutePath(), storageProfile, true);
+            }
             dataSource = null;
             return result;
         } finally {
@@ -42,12 +57,102 @@ public abstract class Database implements AutoCloseable {
         }
     }
 
+    /**
+     * Returns a pooled connection, whose {@code prepareStatement(String)} reuses statements that have already been
+     * prepared on the same underlying connection.
+     * <p>
+     * With the WAL storage profile this is the single writer connection. If the current thread already holds it, a
+     * nested handle to the same connection is returned instead of waiting for it.
+     */
     public final Connection getConnection() throws SQLException {
-        return dataSource.getConnection();
+        final var current = threadConnection.get();
+        if (current != null) {
+            return NestedConnection.wrap(current);
+        }
+        if (storageProfile != StorageProfile.WAL) {
+            return statementCache.wrap(dataSource.getConnection());
+        }
+        final var connection = statementCache.wrap(dataSource.getConnection(), threadConnection::remove);
+        threadConnection.set(connection);
+        return connection;
+    }
+
+    /**
+     * Returns a connection for queries that don't modify the database.
+     * With the WAL storage profile it is taken from a read-only pool, so it doesn't wait for the writer connection.
+     */
+    public final Connection getReadConnection() throws SQLException {
+        if (readDataSource == null || threadConnection.get() != null) {
+            return getConnection();
+        }
+        return statementCache.wrap(readDataSource.getConnection());
+    }
+
+    /**
+     * Runs the given work as a single unit: every connection the current thread requests while it runs is a handle to
+     * the same connection, and all changes are committed in one transaction at the end. If the work throws, the
+     * transaction is rolled back.
+     * <p>
+     * If the current thread is already running a unit of work, the given work simply joins it.
+     */
+    public final <T> T runInTransaction(final Supplier<T> work) throws SQLException {
+        final var current = threadConnection.get();
+        if (current != null && !current.getAutoCommit()) {
+            return work.get();
+        }
+        final var actions = new ArrayList<Runnable>();
+        final T result;
+        afterCommitActions.set(actions);
+        try (final var connection = current != null
+                ? NestedConnection.wrap(current)
+                : statementCache.wrap(dataSource.getConnection(), threadConnection::remove)) {
+            if (current == null) {
+                threadConnection.set(connection);
+            }
+            connection.setAutoCommit(false);
+            result = work.get();
+            connection.commit();
+        } finally {
+            afterCommitActions.remove();
+        }
+        // All actions are run even if one fails, as the changes they depend on have already been committed
+        RuntimeException failure = null;
+        for (final var action : actions) {
+            try {
+                action.run();
+            } catch (RuntimeException e) {
+                if (failure == null) {
+                    failure = e;
+                } else {
+                    failure.addSuppressed(e);
+                }
+            }
+        }
+        if (failure != null) {
+            throw failure;
+        }
+        return result;
+    }
+
+    /**
+     * Runs the action once the changes of the current thread are visible to other threads.
+     * Inside of {@link #runInTransaction(Supplier)} that's after the whole unit of work has been committed, otherwise
+     * the action is run immediately. The action is discarded if the unit of work is rolled back.
+     */
+    public final void runAfterCommit(final Runnable action) {
+        final var actions = afterCommitActions.get();
+        if (actions == null) {
+            action.run();
+        } else {
+            actions.add(action);
+        }
     }
 
     @Override
     public void close() throws SQLException {
+        if (readDataSource != null) {
+            readDataSource.close();
+        }
         dataSource.close();
     }
 
@@ -88,16 +193,35 @@ public abstract class Database implements AutoCloseable {
         }
     }
 
-    private static HikariDataSource getHikariDataSource(final String databaseFile) {
+    private static HikariDataSource getHikariDataSource(
+            final String databaseFile, final StorageProfile storageProfile, final boolean readOnly
+    ) {
         final var sqliteConfig = new SQLiteConfig();
         sqliteConfig.setBusyTimeout(60_000);
         sqliteConfig.setTransactionMode(SQLiteConfig.TransactionMode.IMMEDIATE);
 
         HikariConfig config = new HikariConfig();
         config.setJdbcUrl("jdbc:sqlite:" + databaseFile);
-        config.setDataSourceProperties(sqliteConfig.toProperties());
         config.setMinimumIdle(1);
         config.setConnectionInitSql("PRAGMA foreign_keys=ON");
+
+        if (storageProfile == StorageProfile.WAL) {
+            if (readOnly) {
+                sqliteConfig.setReadOnly(true);
+                config.setMaximumPoolSize(READ_POOL_SIZE);
+            } else {
+                sqliteConfig.setJournalMode(SQLiteConfig.JournalMode.WAL);
+                config.setMaximumPoolSize(1);
+                // Writers now wait for the pool instead of the SQLite busy timeout
+                config.setConnectionTimeout(60_000);
+            }
+            sqliteConfig.setSynchronous(SQLiteConfig.SynchronousMode.NORMAL);
+            sqliteConfig.setTempStore(SQLiteConfig.TempStore.MEMORY);
+            sqliteConfig.setCacheSize(-16 * 1024); // negative value is in KiB
+            sqliteConfig.setPragma(SQLiteConfig.Pragma.MMAP_SIZE, String.valueOf(64 * 1024 * 1024));
+        }
+
+        config.setDataSourceProperties(sqliteConfig.toProperties());
         return new HikariDataSource(config);
     }
 }
@@ -0,0 +1,62 @@
+package org.asamk.signal.manager.storage;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.SQLException;
+
+/**
+ * Connection handed out when the current thread already holds a connection of the same database.
+ * <p>
+ * If the outer connection is in a transaction, the nested connection joins it: transaction control calls are
+ * ignored and the outer owner commits. Otherwise the nested connection may run its own transaction, and auto commit
+ * is restored when it is closed. Closing a nested connection never returns the underlying connection to the pool.
+ */
+final class NestedConnection implements InvocationHandler {
+
+    private final Connection connection;
+    private final boolean joinedTransaction;
+    private boolean closed;
+
+    private NestedConnection(final Connection connection, final boolean joinedTransaction) {
+        this.connection = connection;
+        this.joinedTransaction = joinedTransaction;
+    }
+
+    static Connection wrap(final Connection connection) throws SQLException {
+        return (Connection) Proxy.newProxyInstance(Connection.class.getClassLoader(),
+                new Class<?>[]{Connection.class},
+                new NestedConnection(connection, !connection.getAutoCommit()));
+    }
+
+    @Override
+    public Object invoke(final Object proxy, final Method method, final Object[] args) throws Throwable {
+        switch (method.getName()) {
+            case "close" -> {
+                if (!closed) {
+                    closed = true;
+                    if (!joinedTransaction && !connection.getAutoCommit()) {
+                        connection.rollback();
+                        connection.setAutoCommit(true);
+                    }
+                }
+                return null;
+            }
+            case "isClosed" -> {
+                return closed || connection.isClosed();
+            }
+            case "setAutoCommit", "commit", "rollback" -> {
+                if (joinedTransaction) {
+                    return null;
+                }
+            }
+        }
+        try {
+            return method.invoke(connection, args);
+        } catch (InvocationTargetException e) {
+            throw e.getCause();
+        }
+    }
+}
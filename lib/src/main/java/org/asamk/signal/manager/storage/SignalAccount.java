@@ -9,6 +9,8 @@ import org.asamk.signal.manager.api.TrustLevel;
 import org.asamk.signal.manager.config.ServiceEnvironment;
 import org.asamk.signal.manager.groups.GroupId;
 import org.asamk.signal.manager.helper.RecipientAddressResolver;
+import org.asamk.signal.manager.storage.attachments.AttachmentDownloadStore;
+import org.asamk.signal.manager.storage.attachments.UploadedAttachmentStore;
 import org.asamk.signal.manager.storage.configuration.ConfigurationStore;
 import org.asamk.signal.manager.storage.contacts.ContactsStore;
 import org.asamk.signal.manager.storage.contacts.LegacyJsonContactsStore;
@@ -18,7 +20,11 @@ import org.asamk.signal.manager.storage.groups.LegacyGroupStore;
 import org.asamk.signal.manager.storage.identities.IdentityKeyStore;
 import org.asamk.signal.manager.storage.identities.LegacyIdentityKeyStore;
 import org.asamk.signal.manager.storage.identities.SignalIdentityKeyStore;
+import org.asamk.signal.manager.storage.messageCache.FileMessageCache;
 import org.asamk.signal.manager.storage.messageCache.MessageCache;
+import org.asamk.signal.manager.storage.messageCache.MessageCacheBackend;
+import org.asamk.signal.manager.storage.messageCache.SegmentedLogMessageCache;
+import org.asamk.signal.manager.storage.outbox.OutboxStore;
 import org.asamk.signal.manager.storage.prekeys.LegacyPreKeyStore;
 import org.asamk.signal.manager.storage.prekeys.LegacySignedPreKeyStore;
 import org.asamk.signal.manager.storage.prekeys.PreKeyStore;
@@ -156,6 +162,9 @@ public class SignalAccount implements Closeable {
 	private GroupStore groupStore;
 	private RecipientStore recipientStore;
 	private StickerStore stickerStore;
+	private OutboxStore outboxStore;
+	private UploadedAttachmentStore uploadedAttachmentStore;
+	private AttachmentDownloadStore attachmentDownloadStore;
 	private ConfigurationStore configurationStore;
 	private ConfigurationStore.Storage configurationStoreStorage;
 
@@ -385,6 +394,10 @@ public class SignalAccount implements Closeable {
 		return new File(getUserPath(dataPath, account), "msg-cache");
 	}
 
+	private static File getMessageLogPath(File dataPath, String account) {
+		return new File(getUserPath(dataPath, account), "msg-log");
+	}
+
 	private static File getDDDPath(File dataPath, String account) {
 		return new File(getUserPath(dataPath, account), "ddd");
 	}
@@ -1080,12 +1093,16 @@ public class SignalAccount implements Closeable {
 
 	public SessionStore getAciSessionStore() {
 		return getOrCreate(() -> aciSessionStore,
-				() -> aciSessionStore = new SessionStore(getAccountDatabase(), ServiceIdType.ACI));
+				() -> aciSessionStore = new SessionStore(getAccountDatabase(),
+						ServiceIdType.ACI,
+						settings.sessionWriteBehind()));
 	}
 
 	public SessionStore getPniSessionStore() {
 		return getOrCreate(() -> pniSessionStore,
-				() -> pniSessionStore = new SessionStore(getAccountDatabase(), ServiceIdType.PNI));
+				() -> pniSessionStore = new SessionStore(getAccountDatabase(),
+						ServiceIdType.PNI,
+						settings.sessionWriteBehind()));
 	}
 
 	public IdentityKeyStore getIdentityKeyStore() {
@@ -1153,7 +1170,19 @@ public class SignalAccount implements Closeable {
 
 	public MessageCache getMessageCache() {
 		return getOrCreate(() -> messageCache,
-				() -> messageCache = new MessageCache(getMessageCachePath(dataPath, accountPath)));
+				() -> messageCache = createMessageCache());
+	}
+
+	private MessageCache createMessageCache() {
+		final var messageCachePath = getMessageCachePath(dataPath, accountPath);
+		if (settings.messageCacheBackend() == MessageCacheBackend.FILES) {
+			return new FileMessageCache(messageCachePath);
+		}
+		try {
+			return new SegmentedLogMessageCache(getMessageLogPath(dataPath, accountPath), messageCachePath);
+		} catch (IOException e) {
+			throw new RuntimeException("Failed to open message cache log", e);
+		}
 	}
 
 	public File getDDDAccountPath() {
@@ -1165,7 +1194,8 @@ public class SignalAccount implements Closeable {
 	public AccountDatabase getAccountDatabase() {
 		return getOrCreate(() -> accountDatabase, () -> {
 			try {
-				accountDatabase = AccountDatabase.init(getDatabaseFile(dataPath, accountPath));
+				accountDatabase = AccountDatabase.init(getDatabaseFile(dataPath, accountPath),
+						settings.storageProfile());
 			} catch (SQLException e) {
 				throw new RuntimeException(e);
 			}
@@ -1178,6 +1208,63 @@ public class SignalAccount implements Closeable {
 						settings.disableMessageSendLog()));
 	}
 
+	public OutboxStore getOutboxStore() {
+		return getOrCreate(() -> outboxStore, () -> outboxStore = new OutboxStore(getAccountDatabase()));
+	}
+
+	public UploadedAttachmentStore getUploadedAttachmentStore() {
+		return getOrCreate(() -> uploadedAttachmentStore,
+				() -> uploadedAttachmentStore = new UploadedAttachmentStore(getAccountDatabase()));
+	}
+
+	public AttachmentDownloadStore getAttachmentDownloadStore() {
+		return getOrCreate(() -> attachmentDownloadStore,
+				() -> attachmentDownloadStore = new AttachmentDownloadStore(getAccountDatabase()));
+	}
+
+	public boolean isTransactionPerEnvelope() {
+		return settings.transactionPerEnvelope();
+	}
+
+	public int getSendConcurrency() {
+		return settings.sendConcurrency();
+	}
+
+	public boolean isBackgroundAttachmentDownloads() {
+		return settings.backgroundAttachmentDownloads();
+	}
+
+	/**
+	 * Runs the work with a single account database connection and commits all its changes at once, see
+	 * {@link Database#runInTransaction(Supplier)}.
+	 */
+	public <T> T runInTransaction(final Supplier<T> work) {
+		var committed = false;
+		try {
+			final var result = getAccountDatabase().runInTransaction(work);
+			committed = true;
+			return result;
+		} catch (SQLException e) {
+			throw new RuntimeException("Failed to commit account database transaction", e);
+		} finally {
+			if (!committed) {
+				// Cached sessions, recipients and groups may contain changes that have just been rolled back
+				getAciSessionStore().invalidateCache();
+				getPniSessionStore().invalidateCache();
+				getRecipientStore().invalidateCache();
+				getGroupStore().invalidateCache();
+			}
+		}
+	}
+
+	/**
+	 * Runs the action once the changes of the current unit of work have been committed, see
+	 * {@link Database#runAfterCommit(Runnable)}.
+	 */
+	public void runAfterCommit(final Runnable action) {
+		getAccountDatabase().runAfterCommit(action);
+	}
+
 	public CredentialsProvider getCredentialsProvider() {
 		return new CredentialsProvider() {
 			@Override
@@ -1597,6 +1684,12 @@ public class SignalAccount implements Closeable {
 	@Override
 	public void close() {
 		synchronized (fileChannel) {
+			if (aciSessionStore != null) {
+				aciSessionStore.close();
+			}
+			if (pniSessionStore != null) {
+				pniSessionStore.close();
+			}
 			if (accountDatabase != null) {
 				try {
 					accountDatabase.close();
@@ -1607,6 +1700,9 @@ public class SignalAccount implements Closeable {
 			if (messageSendLogStore != null) {
 				messageSendLogStore.close();
 			}
+			if (messageCache != null) {
+				messageCache.close();
+			}
 			try {
 				try {
 					lock.close();
@@ -0,0 +1,233 @@
+package org.asamk.signal.manager.storage;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Keeps prepared statements alive across connection checkouts, so repeated queries don't have to be re-prepared by
+ * SQLite every time a store method borrows a connection from the pool.
+ * <p>
+ * Statements are cached per physical connection. Connections handed out by {@link #wrap(Connection)} return cached
+ * statements from {@code prepareStatement(String)}; closing such a statement only resets it and returns it to the
+ * cache. The other {@code prepareStatement} overloads are passed through uncached, they are used for dynamically built
+ * SQL, see {@link Utils#prepareUncachedStatement(Connection, String)}.
+ * The statements of a physical connection are dropped once the pool has closed that connection, this is checked
+ * whenever a connection is wrapped.
+ */
+final class StatementCache {
+
+    private final static Logger logger = LoggerFactory.getLogger(StatementCache.class);
+
+    private static final int MAX_STATEMENTS_PER_CONNECTION = 64;
+
+    private final Map<Connection, ConnectionStatements> statements = new HashMap<>();
+
+    Connection wrap(final Connection connection) throws SQLException {
+        return wrap(connection, null);
+    }
+
+    /**
+     * @param onClose called after the connection has been returned to the pool
+     */
+    Connection wrap(final Connection connection, final Runnable onClose) throws SQLException {
+        final Connection physicalConnection;
+        try {
+            physicalConnection = connection.unwrap(Connection.class);
+        } catch (SQLException e) {
+            connection.close();
+            throw e;
+        }
+        final ConnectionStatements connectionStatements;
+        synchronized (statements) {
+            // The cached statements reference their connection, so entries have to be removed explicitly
+            statements.keySet().removeIf(StatementCache::isClosed);
+            connectionStatements = statements.computeIfAbsent(physicalConnection,
+                    c -> new ConnectionStatements(physicalConnection));
+        }
+        return (Connection) Proxy.newProxyInstance(Connection.class.getClassLoader(),
+                new Class<?>[]{Connection.class},
+                new ConnectionHandler(connection, connectionStatements, onClose));
+    }
+
+    private static boolean isClosed(final Connection connection) {
+        try {
+            return connection.isClosed();
+        } catch (SQLException e) {
+            return true;
+        }
+    }
+
+    private static Object invoke(final Object target, final Method method, final Object[] args) throws Throwable {
+        try {
+            return method.invoke(target, args);
+        } catch (InvocationTargetException e) {
+            throw e.getCause();
+        }
+    }
+
+    private static final class ConnectionHandler implements InvocationHandler {
+
+        private final Connection connection;
+        private final ConnectionStatements connectionStatements;
+        private final Runnable onClose;
+        private boolean uncommittedChanges;
+
+        private ConnectionHandler(
+                final Connection connection,
+                final ConnectionStatements connectionStatements,
+                final Runnable onClose
+        ) {
+            this.connection = connection;
+            this.connectionStatements = connectionStatements;
+            this.onClose = onClose;
+        }
+
+        @Override
+        public Object invoke(final Object proxy, final Method method, final Object[] args) throws Throwable {
+            switch (method.getName()) {
+                case "prepareStatement" -> {
+                    if (args.length == 1) {
+                        if (!connection.getAutoCommit()) {
+                            uncommittedChanges = true;
+                        }
+                        return connectionStatements.checkout((String) args[0]);
+                    }
+                }
+                case "commit", "rollback", "setAutoCommit" -> uncommittedChanges = false;
+                case "close" -> {
+                    if (uncommittedChanges && !connection.isClosed() && !connection.getAutoCommit()) {
+                        // Cached statements are not tracked by the connection pool, so it doesn't know the
+                        // transaction is dirty and would commit it when resetting the auto commit state.
+                        connection.rollback();
+                    }
+                    uncommittedChanges = false;
+                    try {
+                        return StatementCache.invoke(connection, method, args);
+                    } finally {
+                        if (onClose != null) {
+                            onClose.run();
+                        }
+                    }
+                }
+            }
+            return StatementCache.invoke(connection, method, args);
+        }
+    }
+
+    private static final class ConnectionStatements {
+
+        private final Connection physicalConnection;
+        private final Map<String, CachedStatement> cache = new LinkedHashMap<>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(final Map.Entry<String, CachedStatement> eldest) {
+                if (size() > MAX_STATEMENTS_PER_CONNECTION) {
+                    eldest.getValue().evict();
+                    return true;
+                }
+                return false;
+            }
+        };
+
+        private ConnectionStatements(final Connection physicalConnection) {
+            this.physicalConnection = physicalConnection;
+        }
+
+        private PreparedStatement checkout(final String sql) throws SQLException {
+            var cachedStatement = cache.get(sql);
+            if (cachedStatement != null && cachedStatement.statement.isClosed()) {
+                cache.remove(sql);
+                cachedStatement = null;
+            }
+            if (cachedStatement == null) {
+                cachedStatement = new CachedStatement(physicalConnection.prepareStatement(sql));
+                cache.put(sql, cachedStatement);
+            } else if (cachedStatement.inUse) {
+                // The same query is already running on this connection, e.g. while iterating a result stream
+                logger.trace("Statement already in use, preparing uncached statement");
+                return physicalConnection.prepareStatement(sql);
+            }
+            cachedStatement.inUse = true;
+            return cachedStatement.proxy;
+        }
+    }
+
+    private static final class CachedStatement implements InvocationHandler {
+
+        private final PreparedStatement statement;
+        private final PreparedStatement proxy;
+        private final List<ResultSet> resultSets = new ArrayList<>();
+        private boolean inUse;
+        private boolean evicted;
+
+        private CachedStatement(final PreparedStatement statement) {
+            this.statement = statement;
+            this.proxy = (PreparedStatement) Proxy.newProxyInstance(PreparedStatement.class.getClassLoader(),
+                    new Class<?>[]{PreparedStatement.class},
+                    this);
+        }
+
+        @Override
+        public Object invoke(final Object proxy, final Method method, final Object[] args) throws Throwable {
+            switch (method.getName()) {
+                case "close" -> {
+                    release();
+                    return null;
+                }
+                case "isClosed" -> {
+                    return !inUse || statement.isClosed();
+                }
+            }
+            final var result = StatementCache.invoke(statement, method, args);
+            if (result instanceof ResultSet resultSet) {
+                resultSets.add(resultSet);
+            }
+            return result;
+        }
+
+        private void release() throws SQLException {
+            if (!inUse) {
+                return;
+            }
+            inUse = false;
+            try {
+                // Closing the result sets resets the SQLite statement and releases its read lock
+                for (final var resultSet : resultSets) {
+                    resultSet.close();
+                }
+                resultSets.clear();
+                if (!statement.isClosed()) {
+                    statement.clearParameters();
+                }
+            } finally {
+                if (evicted) {
+                    statement.close();
+                }
+            }
+        }
+
+        private void evict() {
+            evicted = true;
+            if (!inUse) {
+                try {
+                    statement.close();
+                } catch (SQLException e) {
+                    logger.debug("Failed to close evicted statement", e);
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,14 @@
+package org.asamk.signal.manager.storage;
+
+public enum StorageProfile {
+    /**
+     * Rollback journal and a shared connection pool for reads and writes.
+     */
+    DEFAULT,
+    /**
+     * Write-ahead log with relaxed syncing and larger caches.
+     * All writes go through a single dedicated connection, reads are served from a separate read-only pool, so
+     * readers and the writer don't block each other.
+     */
+    WAL
+}
@@ -17,6 +17,7 @@ import org.whispersystems.signalservice.api.push.ServiceIdType;
 import org.whispersystems.signalservice.api.util.UuidUtil;
 
 import java.io.InvalidObjectException;
+import java.sql.Connection;
 import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
@@ -71,6 +72,17 @@ public class Utils {
         };
     }
 
+    /**
+     * Prepares a statement that bypasses the statement cache, for SQL that is built at runtime and differs between
+     * calls, e.g. per-bucket table names or a variable number of parameters.
+     * Caching such statements would only evict the fixed statements that are reused all the time.
+     */
+    public static PreparedStatement prepareUncachedStatement(
+            final Connection connection, final String sql
+    ) throws SQLException {
+        return connection.prepareStatement(sql, ResultSet.TYPE_FORWARD_ONLY, ResultSet.CONCUR_READ_ONLY);
+    }
+
     public static <T> T executeQuerySingleRow(
             PreparedStatement statement, ResultSetMapper<T> mapper
     ) throws SQLException {
@@ -0,0 +1,175 @@
+package org.asamk.signal.manager.storage.attachments;
+
+import org.asamk.signal.manager.storage.Database;
+import org.asamk.signal.manager.storage.Utils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.whispersystems.signalservice.api.InvalidMessageStructureException;
+import org.whispersystems.signalservice.api.messages.SignalServiceAttachmentPointer;
+import org.whispersystems.signalservice.api.util.AttachmentPointerUtil;
+
+import java.io.IOException;
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.Collection;
+import java.util.List;
+import java.util.Objects;
+import java.util.Optional;
+
+/**
+ * Attachments of received messages that still need to be downloaded.
+ * Smaller attachments are downloaded first, attachments without a known size last.
+ */
+public class AttachmentDownloadStore {
+
+    private final static Logger logger = LoggerFactory.getLogger(AttachmentDownloadStore.class);
+    private static final String TABLE_ATTACHMENT_DOWNLOAD = "attachment_download";
+
+    private final Database database;
+
+    public static void createSql(Connection connection) throws SQLException {
+        // When modifying the CREATE statement here, also add a migration in AccountDatabase.java
+        try (final var statement = connection.createStatement()) {
+            statement.executeUpdate("""
+                                    CREATE TABLE attachment_download (
+                                      _id INTEGER PRIMARY KEY,
+                                      remote_id TEXT UNIQUE NOT NULL,
+                                      pointer BLOB NOT NULL,
+                                      size INTEGER NOT NULL,
+                                      attempts INTEGER NOT NULL DEFAULT 0,
+                                      next_attempt INTEGER NOT NULL
+                                    ) STRICT;
+                                    """);
+        }
+    }
+
+    public AttachmentDownloadStore(final Database database) {
+        this.database = database;
+    }
+
+    public void addDownloads(final Collection<SignalServiceAttachmentPointer> pointers) {
+        final var sql = (
+                """
+                INSERT OR IGNORE INTO %s (remote_id, pointer, size, next_attempt)
+                VALUES (?, ?, ?, ?)
+                """
+        ).formatted(TABLE_ATTACHMENT_DOWNLOAD);
+        try (final var connection = database.getConnection()) {
+            connection.setAutoCommit(false);
+            try (final var statement = connection.prepareStatement(sql)) {
+                for (final var pointer : pointers) {
+                    statement.setString(1, pointer.getRemoteId().toString());
+                    statement.setBytes(2, AttachmentPointerUtil.createAttachmentPointer(pointer).toByteArray());
+                    statement.setLong(3, pointer.getSize().map(Integer::longValue).orElse(Long.MAX_VALUE));
+                    statement.setLong(4, System.currentTimeMillis());
+                    statement.executeUpdate();
+                }
+            }
+            connection.commit();
+        } catch (SQLException e) {
+            throw new RuntimeException("Failed update attachment download store", e);
+        }
+    }
+
+    /**
+     * @return the due downloads, smallest attachments first
+     */
+    public List<PendingDownload> getDueDownloads(final long now, final int limit) {
+        final var sql = (
+                """
+                SELECT d._id, d.pointer, d.attempts
+                FROM %s d
+                WHERE d.next_attempt <= ?
+                ORDER BY d.size, d._id
+                LIMIT ?
+                """
+        ).formatted(TABLE_ATTACHMENT_DOWNLOAD);
+        try (final var connection = database.getReadConnection()) {
+            try (final var statement = connection.prepareStatement(sql)) {
+                statement.setLong(1, now);
+                statement.setInt(2, limit);
+                try (var result = Utils.executeQueryForStream(statement, this::getPendingDownloadFromResultSet)) {
+                    return result.filter(Objects::nonNull).toList();
+                }
+            }
+        } catch (SQLException e) {
+            throw new RuntimeException("Failed read from attachment download store", e);
+        }
+    }
+
+    /**
+     * @return the time when the next download is due, if there are any downloads
+     */
+    public Optional<Long> getNextAttemptTime() {
+        final var sql = (
+                """
+                SELECT MIN(d.next_attempt)
+                FROM %s d
+                """
+        ).formatted(TABLE_ATTACHMENT_DOWNLOAD);
+        try (final var connection = database.getReadConnection()) {
+            try (final var statement = connection.prepareStatement(sql)) {
+                return Utils.executeQueryForOptional(statement, resultSet -> {
+                    final var nextAttempt = resultSet.getLong(1);
+                    return resultSet.wasNull() ? null : nextAttempt;
+                });
+            }
+        } catch (SQLException e) {
+            throw new RuntimeException("Failed read from attachment download store", e);
+        }
+    }
+
+    public void scheduleRetry(final long id, final int attempts, final long nextAttempt) {
+        final var sql = (
+                """
+                UPDATE %s
+                SET attempts = ?, next_attempt = ?
+                WHERE _id = ?
+                """
+        ).formatted(TABLE_ATTACHMENT_DOWNLOAD);
+        try (final var connection = database.getConnection()) {
+            try (final var statement = connection.prepareStatement(sql)) {
+                statement.setInt(1, attempts);
+                statement.setLong(2, nextAttempt);
+                statement.setLong(3, id);
+                statement.executeUpdate();
+            }
+        } catch (SQLException e) {
+            throw new RuntimeException("Failed update attachment download store", e);
+        }
+    }
+
+    public void deleteDownload(final long id) {
+        final var sql = (
+                """
+                DELETE FROM %s
+                WHERE _id = ?
+                """
+        ).formatted(TABLE_ATTACHMENT_DOWNLOAD);
+        try (final var connection = database.getConnection()) {
+            try (final var statement = connection.prepareStatement(sql)) {
+                statement.setLong(1, id);
+                statement.executeUpdate();
+            }
+        } catch (SQLException e) {
+            throw new RuntimeException("Failed update attachment download store", e);
+        }
+    }
+
+    private PendingDownload getPendingDownloadFromResultSet(ResultSet resultSet) throws SQLException {
+        final var id = resultSet.getLong("_id");
+        final SignalServiceAttachmentPointer pointer;
+        try {
+            pointer = AttachmentPointerUtil.createSignalAttachmentPointer(resultSet.getBytes("pointer"));
+        } catch (InvalidMessageStructureException | IOException e) {
+            logger.warn("Dropping invalid attachment download: {}", e.getMessage());
+            deleteDownload(id);
+            return null;
+        }
+        final var attempts = resultSet.getInt("attempts");
+        return new PendingDownload(id, pointer, attempts);
+    }
+
+    public record PendingDownload(long id, SignalServiceAttachmentPointer pointer, int attempts) {}
+}
@@ -0,0 +1,122 @@
+package org.asamk.signal.manager.storage.attachments;
+
+import org.asamk.signal.manager.storage.Database;
+import org.asamk.signal.manager.storage.Utils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.whispersystems.signalservice.api.InvalidMessageStructureException;
+import org.whispersystems.signalservice.api.messages.SignalServiceAttachmentPointer;
+import org.whispersystems.signalservice.api.util.AttachmentPointerUtil;
+
+import java.io.IOException;
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.Optional;
+
+/**
+ * Attachments that have already been uploaded, indexed by the hash of their content.
+ * Sending the same content again can reuse the pointer, as long as the attachment is still available on the CDN.
+ */
+public class UploadedAttachmentStore {
+
+    private final static Logger logger = LoggerFactory.getLogger(UploadedAttachmentStore.class);
+    private static final String TABLE_UPLOADED_ATTACHMENT = "uploaded_attachment";
+
+    private final Database database;
+
+    public static void createSql(Connection connection) throws SQLException {
+        // When modifying the CREATE statement here, also add a migration in AccountDatabase.java
+        try (final var statement = connection.createStatement()) {
+            statement.executeUpdate("""
+                                    CREATE TABLE uploaded_attachment (
+                                      _id INTEGER PRIMARY KEY,
+                                      content_hash BLOB NOT NULL,
+                                      file_name TEXT NOT NULL,
+                                      pointer BLOB NOT NULL,
+                                      upload_timestamp INTEGER NOT NULL,
+                                      UNIQUE(content_hash, file_name)
+                                    ) STRICT;
+                                    """);
+        }
+    }
+
+    public UploadedAttachmentStore(final Database database) {
+        this.database = database;
+    }
+
+    /**
+     * @param minUploadTimestamp attachments uploaded before this time are ignored
+     */
+    public Optional<SignalServiceAttachmentPointer> getPointer(
+            final byte[] contentHash, final Optional<String> fileName, final long minUploadTimestamp
+    ) {
+        final var sql = (
+                """
+                SELECT u.pointer
+                FROM %s u
+                WHERE u.content_hash = ? AND u.file_name = ? AND u.upload_timestamp >= ?
+                """
+        ).formatted(TABLE_UPLOADED_ATTACHMENT);
+        try (final var connection = database.getReadConnection()) {
+            try (final var statement = connection.prepareStatement(sql)) {
+                statement.setBytes(1, contentHash);
+                statement.setString(2, fileName.orElse(""));
+                statement.setLong(3, minUploadTimestamp);
+                return Utils.executeQueryForOptional(statement, this::getPointerFromResultSet).flatMap(p -> p);
+            }
+        } catch (SQLException e) {
+            throw new RuntimeException("Failed read from uploaded attachment store", e);
+        }
+    }
+
+    /**
+     * Stores the pointer of an uploaded attachment and removes the entries uploaded before minUploadTimestamp.
+     */
+    public void storePointer(
+            final byte[] contentHash,
+            final Optional<String> fileName,
+            final SignalServiceAttachmentPointer pointer,
+            final long uploadTimestamp,
+            final long minUploadTimestamp
+    ) {
+        final var insertSql = (
+                """
+                INSERT OR REPLACE INTO %s (content_hash, file_name, pointer, upload_timestamp)
+                VALUES (?, ?, ?, ?)
+                """
+        ).formatted(TABLE_UPLOADED_ATTACHMENT);
+        final var deleteSql = (
+                """
+                DELETE FROM %s
+                WHERE upload_timestamp < ?
+                """
+        ).formatted(TABLE_UPLOADED_ATTACHMENT);
+        try (final var connection = database.getConnection()) {
+            connection.setAutoCommit(false);
+            try (final var statement = connection.prepareStatement(insertSql)) {
+                statement.setBytes(1, contentHash);
+                statement.setString(2, fileName.orElse(""));
+                statement.setBytes(3, AttachmentPointerUtil.createAttachmentPointer(pointer).toByteArray());
+                statement.setLong(4, uploadTimestamp);
+                statement.executeUpdate();
+            }
+            try (final var statement = connection.prepareStatement(deleteSql)) {
+                statement.setLong(1, minUploadTimestamp);
+                statement.executeUpdate();
+            }
+            connection.commit();
+        } catch (SQLException e) {
+            throw new RuntimeException("Failed update uploaded attachment store", e);
+        }
+    }
+
+    private Optional<SignalServiceAttachmentPointer> getPointerFromResultSet(ResultSet resultSet) throws SQLException {
+        try {
+            return Optional.of(AttachmentPointerUtil.createSignalAttachmentPointer(resultSet.getBytes("pointer")));
+        } catch (InvalidMessageStructureException | IOException e) {
+            logger.debug("Ignoring invalid uploaded attachment pointer: {}", e.getMessage());
+            return Optional.empty();
+        }
+    }
+}
@@ -4,7 +4,9 @@ import org.asamk.signal.manager.api.Pair;
 import org.asamk.signal.manager.storage.recipients.Contact;
 import org.asamk.signal.manager.storage.recipients.RecipientId;
 
+import java.util.Collection;
 import java.util.List;
+import java.util.Set;
 
 public interface ContactsStore {
 
@@ -14,5 +16,10 @@ public interface ContactsStore {
 
     List<Pair<RecipientId, Contact>> getContacts();
 
+    /**
+     * @return the given recipients that are contacts
+     */
+    Set<RecipientId> getContactRecipientIds(Collection<RecipientId> recipientIds);
+
     void deleteContact(RecipientId recipientId);
 }
@@ -0,0 +1,76 @@
+package org.asamk.signal.manager.storage.groups;
+
+import org.asamk.signal.manager.groups.GroupIdV2;
+import org.asamk.signal.manager.storage.recipients.RecipientResolver;
+import org.signal.libsignal.zkgroup.groups.GroupMasterKey;
+import org.whispersystems.signalservice.api.push.DistributionId;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * In-memory copy of the stored v2 groups, so reading a group neither queries the database nor parses its state again.
+ * Every read returns a new {@link GroupInfoV2}, only the immutable {@link GroupState} is shared between them.
+ * <p>
+ * Entries are only added with the generation that was read before the database was queried, so a group that was read
+ * while it was being changed is never added after the change has been invalidated.
+ */
+final class GroupCache {
+
+    private final Map<GroupIdV2, Entry> groups = new ConcurrentHashMap<>();
+    private final AtomicLong generation = new AtomicLong();
+    private final RecipientResolver recipientResolver;
+
+    GroupCache(final RecipientResolver recipientResolver) {
+        this.recipientResolver = recipientResolver;
+    }
+
+    long getGeneration() {
+        return generation.get();
+    }
+
+    GroupInfoV2 get(final GroupIdV2 groupId) {
+        final var entry = groups.get(groupId);
+        if (entry == null) {
+            return null;
+        }
+        return new GroupInfoV2(groupId,
+                entry.masterKey(),
+                entry.state(),
+                entry.distributionId(),
+                entry.blocked(),
+                entry.permissionDenied(),
+                recipientResolver);
+    }
+
+    synchronized void put(final long generation, final GroupInfoV2 group) {
+        if (this.generation.get() != generation) {
+            return;
+        }
+        groups.put(group.getGroupId(),
+                new Entry(group.getMasterKey(),
+                        group.getState(),
+                        group.getDistributionId(),
+                        group.isBlocked(),
+                        group.isPermissionDenied()));
+    }
+
+    synchronized void invalidate(final GroupIdV2 groupId) {
+        generation.incrementAndGet();
+        groups.remove(groupId);
+    }
+
+    synchronized void clear() {
+        generation.incrementAndGet();
+        groups.clear();
+    }
+
+    private record Entry(
+            GroupMasterKey masterKey,
+            GroupState state,
+            DistributionId distributionId,
+            boolean blocked,
+            boolean permissionDenied
+    ) {}
+}
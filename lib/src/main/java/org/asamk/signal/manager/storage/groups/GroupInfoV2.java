@@ -7,14 +7,11 @@ import org.asamk.signal.manager.storage.recipients.RecipientId;
 import org.asamk.signal.manager.storage.recipients.RecipientResolver;
 import org.signal.libsignal.zkgroup.groups.GroupMasterKey;
 import org.signal.storageservice.protos.groups.AccessControl;
-import org.signal.storageservice.protos.groups.Member;
 import org.signal.storageservice.protos.groups.local.DecryptedGroup;
 import org.signal.storageservice.protos.groups.local.EnabledState;
 import org.whispersystems.signalservice.api.push.DistributionId;
-import org.whispersystems.signalservice.api.push.ServiceId;
 
 import java.util.Set;
-import java.util.stream.Collectors;
 
 public final class GroupInfoV2 extends GroupInfo {
 
@@ -22,7 +19,7 @@ public final class GroupInfoV2 extends GroupInfo {
     private final GroupMasterKey masterKey;
     private DistributionId distributionId;
     private boolean blocked;
-    private DecryptedGroup group;
+    private GroupState state;
     private boolean permissionDenied;
 
     private final RecipientResolver recipientResolver;
@@ -44,10 +41,28 @@ public final class GroupInfoV2 extends GroupInfo {
             final boolean blocked,
             final boolean permissionDenied,
             final RecipientResolver recipientResolver
+    ) {
+        this(groupId,
+                masterKey,
+                group == null ? null : new GroupState(group, recipientResolver),
+                distributionId,
+                blocked,
+                permissionDenied,
+                recipientResolver);
+    }
+
+    GroupInfoV2(
+            final GroupIdV2 groupId,
+            final GroupMasterKey masterKey,
+            final GroupState state,
+            final DistributionId distributionId,
+            final boolean blocked,
+            final boolean permissionDenied,
+            final RecipientResolver recipientResolver
     ) {
         this.groupId = groupId;
         this.masterKey = masterKey;
-        this.group = group;
+        this.state = state;
         this.distributionId = distributionId;
         this.blocked = blocked;
         this.permissionDenied = permissionDenied;
@@ -71,34 +86,41 @@ public final class GroupInfoV2 extends GroupInfo {
         if (group != null) {
             this.permissionDenied = false;
         }
-        this.group = group;
+        this.state = group == null ? null : new GroupState(group, recipientResolver);
     }
 
     public DecryptedGroup getGroup() {
-        return group;
+        return state == null ? null : state.getGroup();
+    }
+
+    GroupState getState() {
+        return state;
     }
 
     @Override
     public String getTitle() {
-        if (this.group == null) {
+        final var group = getGroup();
+        if (group == null) {
             return null;
         }
-        return this.group.getTitle();
+        return group.getTitle();
     }
 
     @Override
     public String getDescription() {
-        if (this.group == null) {
+        final var group = getGroup();
+        if (group == null) {
             return null;
         }
-        return this.group.getDescription();
+        return group.getDescription();
     }
 
     @Override
     public GroupInviteLinkUrl getGroupInviteLink() {
-        if (this.group == null || this.group.getInviteLinkPassword().isEmpty() || (
-                this.group.getAccessControl().getAddFromInviteLink() != AccessControl.AccessRequired.ANY
-                        && this.group.getAccessControl().getAddFromInviteLink()
+        final var group = getGroup();
+        if (group == null || group.getInviteLinkPassword().isEmpty() || (
+                group.getAccessControl().getAddFromInviteLink() != AccessControl.AccessRequired.ANY
+                        && group.getAccessControl().getAddFromInviteLink()
                         != AccessControl.AccessRequired.ADMINISTRATOR
         )) {
             return null;
@@ -109,63 +131,42 @@ public final class GroupInfoV2 extends GroupInfo {
 
     @Override
     public Set<RecipientId> getMembers() {
-        if (this.group == null) {
+        if (this.state == null) {
             return Set.of();
         }
-        return group.getMembersList()
-                .stream()
-                .map(m -> ServiceId.fromByteString(m.getUuid()))
-                .map(recipientResolver::resolveRecipient)
-                .collect(Collectors.toSet());
+        return state.getMembers();
     }
 
     @Override
     public Set<RecipientId> getBannedMembers() {
-        if (this.group == null) {
+        if (this.state == null) {
             return Set.of();
         }
-        return group.getBannedMembersList()
-                .stream()
-                .map(m -> ServiceId.fromByteString(m.getUuid()))
-                .map(recipientResolver::resolveRecipient)
-                .collect(Collectors.toSet());
+        return state.getBannedMembers();
     }
 
     @Override
     public Set<RecipientId> getPendingMembers() {
-        if (this.group == null) {
+        if (this.state == null) {
             return Set.of();
         }
-        return group.getPendingMembersList()
-                .stream()
-                .map(m -> ServiceId.fromByteString(m.getUuid()))
-                .map(recipientResolver::resolveRecipient)
-                .collect(Collectors.toSet());
+        return state.getPendingMembers();
     }
 
     @Override
     public Set<RecipientId> getRequestingMembers() {
-        if (this.group == null) {
+        if (this.state == null) {
             return Set.of();
         }
-        return group.getRequestingMembersList()
-                .stream()
-                .map(m -> ServiceId.fromByteString(m.getUuid()))
-                .map(recipientResolver::resolveRecipient)
-                .collect(Collectors.toSet());
+        return state.getRequestingMembers();
     }
 
     @Override
     public Set<RecipientId> getAdminMembers() {
-        if (this.group == null) {
+        if (this.state == null) {
             return Set.of();
         }
-        return group.getMembersList()
-                .stream()
-                .filter(m -> m.getRole() == Member.Role.ADMINISTRATOR)
-                .map(m -> ServiceId.fromByteString(m.getUuid()))
-                .map(recipientResolver::resolveRecipient)
-                .collect(Collectors.toSet());
+        return state.getAdminMembers();
     }
 
     @Override
@@ -180,14 +181,16 @@ public final class GroupInfoV2 extends GroupInfo {
 
     @Override
     public int getMessageExpirationTimer() {
-        return this.group != null && this.group.hasDisappearingMessagesTimer()
-                ? this.group.getDisappearingMessagesTimer().getDuration()
+        final var group = getGroup();
+        return group != null && group.hasDisappearingMessagesTimer()
+                ? group.getDisappearingMessagesTimer().getDuration()
                 : 0;
     }
 
     @Override
     public boolean isAnnouncementGroup() {
-        return this.group != null && this.group.getIsAnnouncementGroup() == EnabledState.ENABLED;
+        final var group = getGroup();
+        return group != null && group.getIsAnnouncementGroup() == EnabledState.ENABLED;
     }
 
     @Override
@@ -216,11 +219,12 @@ public final class GroupInfoV2 extends GroupInfo {
     }
 
     private AccessControl getAccessControl() {
-        if (this.group == null || !this.group.hasAccessControl()) {
+        final var group = getGroup();
+        if (group == null || !group.hasAccessControl()) {
             return null;
         }
 
-        return this.group.getAccessControl();
+        return group.getAccessControl();
     }
 
     private static GroupPermission toGroupPermission(final AccessControl.AccessRequired permission) {
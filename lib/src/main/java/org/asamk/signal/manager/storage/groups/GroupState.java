@@ -0,0 +1,94 @@
+package org.asamk.signal.manager.storage.groups;
+
+import com.google.protobuf.ByteString;
+
+import org.asamk.signal.manager.storage.recipients.RecipientId;
+import org.asamk.signal.manager.storage.recipients.RecipientResolver;
+import org.signal.storageservice.protos.groups.Member;
+import org.signal.storageservice.protos.groups.local.DecryptedBannedMember;
+import org.signal.storageservice.protos.groups.local.DecryptedGroup;
+import org.signal.storageservice.protos.groups.local.DecryptedMember;
+import org.signal.storageservice.protos.groups.local.DecryptedPendingMember;
+import org.signal.storageservice.protos.groups.local.DecryptedRequestingMember;
+import org.whispersystems.signalservice.api.push.ServiceId;
+
+import java.util.List;
+import java.util.Set;
+import java.util.function.Function;
+import java.util.stream.Collectors;
+
+/**
+ * Decrypted state of a group at one revision.
+ * The members are resolved to recipient ids on first use and then shared by all copies of the group with this state.
+ */
+final class GroupState {
+
+    private final DecryptedGroup group;
+    private final RecipientResolver recipientResolver;
+    private volatile Members members;
+
+    GroupState(final DecryptedGroup group, final RecipientResolver recipientResolver) {
+        this.group = group;
+        this.recipientResolver = recipientResolver;
+    }
+
+    DecryptedGroup getGroup() {
+        return group;
+    }
+
+    int getRevision() {
+        return group.getRevision();
+    }
+
+    Set<RecipientId> getMembers() {
+        return getResolvedMembers().members();
+    }
+
+    Set<RecipientId> getBannedMembers() {
+        return getResolvedMembers().bannedMembers();
+    }
+
+    Set<RecipientId> getPendingMembers() {
+        return getResolvedMembers().pendingMembers();
+    }
+
+    Set<RecipientId> getRequestingMembers() {
+        return getResolvedMembers().requestingMembers();
+    }
+
+    Set<RecipientId> getAdminMembers() {
+        return getResolvedMembers().adminMembers();
+    }
+
+    private Members getResolvedMembers() {
+        var members = this.members;
+        if (members == null) {
+            members = new Members(resolve(group.getMembersList(), DecryptedMember::getUuid),
+                    resolve(group.getBannedMembersList(), DecryptedBannedMember::getUuid),
+                    resolve(group.getPendingMembersList(), DecryptedPendingMember::getUuid),
+                    resolve(group.getRequestingMembersList(), DecryptedRequestingMember::getUuid),
+                    resolve(group.getMembersList()
+                            .stream()
+                            .filter(m -> m.getRole() == Member.Role.ADMINISTRATOR)
+                            .toList(), DecryptedMember::getUuid));
+            this.members = members;
+        }
+        return members;
+    }
+
+    private <T> Set<RecipientId> resolve(final List<T> members, final Function<T, ByteString> getUuid) {
+        return members.stream()
+                .map(getUuid)
+                .map(ServiceId::fromByteString)
+                .map(recipientResolver::resolveRecipient)
+                .collect(Collectors.toUnmodifiableSet());
+    }
+
+    private record Members(
+            Set<RecipientId> members,
+            Set<RecipientId> bannedMembers,
+            Set<RecipientId> pendingMembers,
+            Set<RecipientId> requestingMembers,
+            Set<RecipientId> adminMembers
+    ) {}
+}
@@ -38,10 +38,33 @@ public class GroupStore {
     private static final String TABLE_GROUP_V1 = "group_v1";
     private static final String TABLE_GROUP_V1_MEMBER = "group_v1_member";
 
+    private static final String SQL_SELECT_GROUP_V2 = """
+            SELECT g.group_id, g.master_key, g.group_data, g.distribution_id, g.blocked, g.permission_denied
+            FROM %s g
+            WHERE g.group_id = ?
+            """.formatted(TABLE_GROUP_V2);
+
+    private static final String SQL_SELECT_GROUP_V1 = """
+            SELECT g.group_id, g.group_id_v2, g.name, g.color, (select group_concat(gm.recipient_id) from %s gm where gm.group_id = g._id) as members, g.expiration_time, g.blocked, g.archived
+            FROM %s g
+            WHERE g.group_id = ?
+            """.formatted(TABLE_GROUP_V1_MEMBER, TABLE_GROUP_V1);
+
+    private static final String SQL_SELECT_GROUP_V1_BY_V2_ID = """
+            SELECT g.group_id, g.group_id_v2, g.name, g.color, (select group_concat(gm.recipient_id) from %s gm where gm.group_id = g._id) as members, g.expiration_time, g.blocked, g.archived
+            FROM %s g
+            WHERE g.group_id_v2 = ?
+            """.formatted(TABLE_GROUP_V1_MEMBER, TABLE_GROUP_V1);
+
     private final Database database;
     private final RecipientResolver recipientResolver;
     private final RecipientIdCreator recipientIdCreator;
 
+    private final GroupCache groupCache;
+    // Set while the current thread has uncommitted group changes, its lookups then read its own changes from the
+    // database instead of the cache
+    private final ThreadLocal<Boolean> bypassCache = new ThreadLocal<>();
+
     public static void createSql(Connection connection) throws SQLException {
         // When modifying the CREATE statement here, also add a migration in AccountDatabase.java
         try (final var statement = connection.createStatement()) {
@@ -83,6 +106,7 @@ public class GroupStore {
         this.database = database;
         this.recipientResolver = recipientResolver;
         this.recipientIdCreator = recipientIdCreator;
+        this.groupCache = new GroupCache(recipientResolver);
     }
 
     public void updateGroup(GroupInfo group) {
@@ -105,6 +129,9 @@ public class GroupStore {
         } catch (SQLException e) {
             throw new RuntimeException("Failed update recipient store", e);
         }
+        if (group instanceof GroupInfoV2 groupV2) {
+            publishChange(groupV2.getGroupId());
+        }
     }
 
     public void deleteGroup(GroupId groupId) {
@@ -147,10 +174,17 @@ public class GroupStore {
         } catch (SQLException e) {
             throw new RuntimeException("Failed update group store", e);
         }
+        publishChange(groupIdV2);
     }
 
     public GroupInfo getGroup(GroupId groupId) {
-        try (final var connection = database.getConnection()) {
+        if (groupId instanceof GroupIdV2 groupIdV2) {
+            final var cachedGroup = getCachedGroup(groupIdV2);
+            if (cachedGroup != null) {
+                return cachedGroup;
+            }
+        }
+        try (final var connection = database.getReadConnection()) {
             if (groupId instanceof GroupIdV1 groupIdV1) {
                 final var group = getGroup(connection, groupIdV1);
                 if (group != null) {
@@ -210,6 +244,17 @@ public class GroupStore {
                 logger.info("Updated {} group members when merging recipients", updatedRows);
             }
         }
+        // The resolved members of the cached groups may still contain the merged recipient
+        groupCache.clear();
+        database.runAfterCommit(groupCache::clear);
+    }
+
+    /**
+     * Drops all cached groups, e.g. after a transaction with group changes has been rolled back.
+     */
+    public void invalidateCache() {
+        groupCache.clear();
+        bypassCache.remove();
     }
 
     void addLegacyGroups(final Collection<GroupInfo> groups) {
@@ -224,9 +269,33 @@ public class GroupStore {
         } catch (SQLException e) {
             throw new RuntimeException("Failed update group store", e);
         }
+        groupCache.clear();
         logger.debug("Complete groups migration took {}ms", (System.nanoTime() - start) / 1000000);
     }
 
+    private boolean isCacheEnabled() {
+        return bypassCache.get() == null;
+    }
+
+    private GroupInfoV2 getCachedGroup(final GroupIdV2 groupId) {
+        return isCacheEnabled() ? groupCache.get(groupId) : null;
+    }
+
+    /**
+     * Invalidates the cached group changed by the current thread.
+     * Must be called after the change has been committed.
+     */
+    private void publishChange(final GroupIdV2 groupId) {
+        groupCache.invalidate(groupId);
+        // Inside a unit of work the change only becomes visible to other threads with its commit, so it is
+        // invalidated again then, the group cached until that time may still be the old one
+        bypassCache.set(true);
+        database.runAfterCommit(() -> {
+            groupCache.invalidate(groupId);
+            bypassCache.remove();
+        });
+    }
+
     private void insertOrReplaceGroup(
             final Connection connection, Long internalId, final GroupInfo group
     ) throws SQLException {
@@ -314,11 +383,16 @@ public class GroupStore {
                 FROM %s g
                 """
         ).formatted(TABLE_GROUP_V2);
-        try (final var connection = database.getConnection()) {
+        final var generation = groupCache.getGeneration();
+        try (final var connection = database.getReadConnection()) {
             try (final var statement = connection.prepareStatement(sql)) {
-                return Utils.executeQueryForStream(statement, this::getGroupInfoV2FromResultSet)
-                        .filter(Objects::nonNull)
-                        .toList();
+                return Utils.executeQueryForStream(statement, resultSet -> {
+                    final var cachedGroup = getCachedGroup(GroupId.v2(resultSet.getBytes("group_id")));
+                    if (cachedGroup != null) {
+                        return cachedGroup;
+                    }
+                    return cacheGroup(generation, getGroupInfoV2FromResultSet(resultSet));
+                }).filter(Objects::nonNull).toList();
             }
         } catch (SQLException e) {
             throw new RuntimeException("Failed read from group store", e);
@@ -326,17 +400,24 @@ public class GroupStore {
     }
 
     private GroupInfoV2 getGroup(Connection connection, GroupIdV2 groupIdV2) throws SQLException {
-        final var sql = (
-                """
-                SELECT g.group_id, g.master_key, g.group_data, g.distribution_id, g.blocked, g.permission_denied
-                FROM %s g
-                WHERE g.group_id = ?
-                """
-        ).formatted(TABLE_GROUP_V2);
-        try (final var statement = connection.prepareStatement(sql)) {
+        final var generation = groupCache.getGeneration();
+        try (final var statement = connection.prepareStatement(SQL_SELECT_GROUP_V2)) {
             statement.setBytes(1, groupIdV2.serialize());
-            return Utils.executeQueryForOptional(statement, this::getGroupInfoV2FromResultSet).orElse(null);
+            final var group = Utils.executeQueryForOptional(statement, this::getGroupInfoV2FromResultSet)
+                    .orElse(null);
+            return cacheGroup(generation, group);
+        }
+    }
+
+    /**
+     * Adds a group that has just been read from the database to the cache.
+     * The cache only keeps the values of the group, so later changes of the returned group don't affect it.
+     */
+    private GroupInfoV2 cacheGroup(final long generation, final GroupInfoV2 group) {
+        if (group != null && isCacheEnabled()) {
+            groupCache.put(generation, group);
         }
+        return group;
     }
 
     private GroupInfoV2 getGroupInfoV2FromResultSet(ResultSet resultSet) throws SQLException {
@@ -366,7 +447,7 @@ public class GroupStore {
                 FROM %s g
                 """
         ).formatted(TABLE_GROUP_V1_MEMBER, TABLE_GROUP_V1);
-        try (final var connection = database.getConnection()) {
+        try (final var connection = database.getReadConnection()) {
             try (final var statement = connection.prepareStatement(sql)) {
                 return Utils.executeQueryForStream(statement, this::getGroupInfoV1FromResultSet)
                         .filter(Objects::nonNull)
@@ -378,14 +459,7 @@ public class GroupStore {
     }
 
     private GroupInfoV1 getGroup(Connection connection, GroupIdV1 groupIdV1) throws SQLException {
-        final var sql = (
-                """
-                SELECT g.group_id, g.group_id_v2, g.name, g.color, (select group_concat(gm.recipient_id) from %s gm where gm.group_id = g._id) as members, g.expiration_time, g.blocked, g.archived
-                FROM %s g
-                WHERE g.group_id = ?
-                """
-        ).formatted(TABLE_GROUP_V1_MEMBER, TABLE_GROUP_V1);
-        try (final var statement = connection.prepareStatement(sql)) {
+        try (final var statement = connection.prepareStatement(SQL_SELECT_GROUP_V1)) {
             statement.setBytes(1, groupIdV1.serialize());
             return Utils.executeQueryForOptional(statement, this::getGroupInfoV1FromResultSet).orElse(null);
         }
@@ -417,18 +491,16 @@ public class GroupStore {
     }
 
     private GroupInfoV2 getGroupV2ByV1Id(final Connection connection, final GroupIdV1 groupId) throws SQLException {
-        return getGroup(connection, GroupUtils.getGroupIdV2(groupId));
+        final var groupIdV2 = GroupUtils.getGroupIdV2(groupId);
+        final var cachedGroup = getCachedGroup(groupIdV2);
+        if (cachedGroup != null) {
+            return cachedGroup;
+        }
+        return getGroup(connection, groupIdV2);
     }
 
     private GroupInfoV1 getGroupV1ByV2Id(Connection connection, GroupIdV2 groupIdV2) throws SQLException {
-        final var sql = (
-                """
-                SELECT g.group_id, g.group_id_v2, g.name, g.color, (select group_concat(gm.recipient_id) from %s gm where gm.group_id = g._id) as members, g.expiration_time, g.blocked, g.archived
-                FROM %s g
-                WHERE g.group_id_v2 = ?
-                """
-        ).formatted(TABLE_GROUP_V1_MEMBER, TABLE_GROUP_V1);
-        try (final var statement = connection.prepareStatement(sql)) {
+        try (final var statement = connection.prepareStatement(SQL_SELECT_GROUP_V1_BY_V2_ID)) {
             statement.setBytes(1, groupIdV2.serialize());
             return Utils.executeQueryForOptional(statement, this::getGroupInfoV1FromResultSet).orElse(null);
         }
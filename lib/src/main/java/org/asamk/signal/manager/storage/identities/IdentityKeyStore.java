@@ -6,6 +6,7 @@ import org.asamk.signal.manager.storage.Utils;
 import org.signal.libsignal.protocol.IdentityKey;
 import org.signal.libsignal.protocol.InvalidKeyException;
 import org.signal.libsignal.protocol.state.IdentityKeyStore.Direction;
+import org.signal.libsignal.protocol.util.Hex;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.whispersystems.signalservice.api.push.ServiceId;
@@ -15,6 +16,9 @@ import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.util.Collection;
 import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.stream.Collectors;
 
 import io.reactivex.rxjava3.core.Observable;
 import io.reactivex.rxjava3.subjects.PublishSubject;
@@ -23,11 +27,29 @@ public class IdentityKeyStore {
 
     private final static Logger logger = LoggerFactory.getLogger(IdentityKeyStore.class);
     private static final String TABLE_IDENTITY = "identity";
+
+    private static final String SQL_SELECT_IDENTITY = """
+            SELECT i.uuid, i.identity_key, i.added_timestamp, i.trust_level
+            FROM %s AS i
+            WHERE i.uuid = ?
+            """.formatted(TABLE_IDENTITY);
+
+    private static final String SQL_INSERT_IDENTITY = """
+            INSERT OR REPLACE INTO %s (uuid, identity_key, added_timestamp, trust_level)
+            VALUES (?, ?, ?, ?)
+            """.formatted(TABLE_IDENTITY);
+
+    private static final String SQL_DELETE_IDENTITY = """
+            DELETE FROM %s AS i
+            WHERE i.uuid = ?
+            """.formatted(TABLE_IDENTITY);
+
     private final Database database;
     private final TrustNewIdentity trustNewIdentity;
     private final PublishSubject<ServiceId> identityChanges = PublishSubject.create();
 
-    private boolean isRetryingDecryption = false;
+    // Per thread, so cached messages can be retried concurrently with receiving new ones
+    private final ThreadLocal<Boolean> isRetryingDecryption = ThreadLocal.withInitial(() -> false);
 
     public static void createSql(Connection connection) throws SQLException {
         // When modifying the CREATE statement here, also add a migration in AccountDatabase.java
@@ -54,7 +76,7 @@ public class IdentityKeyStore {
     }
 
     public boolean saveIdentity(final ServiceId serviceId, final IdentityKey identityKey) {
-        if (isRetryingDecryption) {
+        if (isRetryingDecryption.get()) {
             return false;
         }
         try (final var connection = database.getConnection()) {
@@ -73,7 +95,7 @@ public class IdentityKeyStore {
     }
 
     public void setRetryingDecryption(final boolean retryingDecryption) {
-        isRetryingDecryption = retryingDecryption;
+        isRetryingDecryption.set(retryingDecryption);
     }
 
     public boolean setIdentityTrustLevel(ServiceId serviceId, IdentityKey identityKey, TrustLevel trustLevel) {
@@ -137,15 +159,46 @@ public class IdentityKeyStore {
     }
 
     public IdentityInfo getIdentityInfo(ServiceId serviceId) {
-        try (final var connection = database.getConnection()) {
+        try (final var connection = database.getReadConnection()) {
             return loadIdentity(connection, serviceId);
         } catch (SQLException e) {
             throw new RuntimeException("Failed read from identity store", e);
         }
     }
 
+    /**
+     * @return the stored identities, service ids without an identity are missing from the map
+     */
+    public Map<ServiceId, IdentityInfo> getIdentityInfos(Collection<ServiceId> serviceIds) {
+        if (serviceIds.isEmpty()) {
+            return Map.of();
+        }
+        final var serviceIdsCommaSeparated = serviceIds.stream()
+                .distinct()
+                .map(ServiceId::toByteArray)
+                .map(uuid -> "x'" + Hex.toStringCondensed(uuid) + "'")
+                .collect(Collectors.joining(","));
+        final var sql = (
+                """
+                SELECT i.uuid, i.identity_key, i.added_timestamp, i.trust_level
+                FROM %s AS i
+                WHERE i.uuid IN (%s)
+                """
+        ).formatted(TABLE_IDENTITY, serviceIdsCommaSeparated);
+        try (final var connection = database.getReadConnection()) {
+            try (final var statement = Utils.prepareUncachedStatement(connection, sql)) {
+                try (var result = Utils.executeQueryForStream(statement, this::getIdentityInfoFromResultSet)) {
+                    return result.filter(Objects::nonNull)
+                            .collect(Collectors.toMap(IdentityInfo::getServiceId, i -> i));
+                }
+            }
+        } catch (SQLException e) {
+            throw new RuntimeException("Failed read from identity store", e);
+        }
+    }
+
     public List<IdentityInfo> getIdentities() {
-        try (final var connection = database.getConnection()) {
+        try (final var connection = database.getReadConnection()) {
             final var sql = (
                     """
                     SELECT i.uuid, i.identity_key, i.added_timestamp, i.trust_level
@@ -186,14 +239,7 @@ public class IdentityKeyStore {
     private IdentityInfo loadIdentity(
             final Connection connection, final ServiceId serviceId
     ) throws SQLException {
-        final var sql = (
-                """
-                SELECT i.uuid, i.identity_key, i.added_timestamp, i.trust_level
-                FROM %s AS i
-                WHERE i.uuid = ?
-                """
-        ).formatted(TABLE_IDENTITY);
-        try (final var statement = connection.prepareStatement(sql)) {
+        try (final var statement = connection.prepareStatement(SQL_SELECT_IDENTITY)) {
             statement.setBytes(1, serviceId.toByteArray());
             return Utils.executeQueryForOptional(statement, this::getIdentityInfoFromResultSet).orElse(null);
         }
@@ -219,13 +265,7 @@ public class IdentityKeyStore {
                 identityInfo.getServiceId(),
                 identityInfo.getTrustLevel(),
                 identityInfo.getDateAddedTimestamp());
-        final var sql = (
-                """
-                INSERT OR REPLACE INTO %s (uuid, identity_key, added_timestamp, trust_level)
-                VALUES (?, ?, ?, ?)
-                """
-        ).formatted(TABLE_IDENTITY);
-        try (final var statement = connection.prepareStatement(sql)) {
+        try (final var statement = connection.prepareStatement(SQL_INSERT_IDENTITY)) {
             statement.setBytes(1, identityInfo.getServiceId().toByteArray());
             statement.setBytes(2, identityInfo.getIdentityKey().serialize());
             statement.setLong(3, identityInfo.getDateAddedTimestamp());
@@ -235,13 +275,7 @@ public class IdentityKeyStore {
     }
 
     private void deleteIdentity(final Connection connection, final ServiceId serviceId) throws SQLException {
-        final var sql = (
-                """
-                DELETE FROM %s AS i
-                WHERE i.uuid = ?
-                """
-        ).formatted(TABLE_IDENTITY);
-        try (final var statement = connection.prepareStatement(sql)) {
+        try (final var statement = connection.prepareStatement(SQL_DELETE_IDENTITY)) {
             statement.setBytes(1, serviceId.toByteArray());
             statement.executeUpdate();
         }
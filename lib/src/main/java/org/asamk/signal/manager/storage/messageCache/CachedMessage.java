@@ -1,47 +1,18 @@
 package org.asamk.signal.manager.storage.messageCache;
 
-import org.asamk.signal.manager.util.MessageCacheUtils;
-import org.slf4j.Logger;
-import org.slf4j.LoggerFactory;
 import org.whispersystems.signalservice.api.messages.SignalServiceEnvelope;
 
-import java.io.File;
-import java.io.IOException;
-import java.nio.file.Files;
+public interface CachedMessage {
 
-public final class CachedMessage {
+    /**
+     * @return the cached envelope or null, if it couldn't be loaded
+     */
+    SignalServiceEnvelope loadEnvelope();
 
-    private final static Logger logger = LoggerFactory.getLogger(CachedMessage.class);
+    void delete();
 
-    private final File file;
-
-    CachedMessage(final File file) {
-        this.file = file;
-    }
-
-    File getFile() {
-        return file;
-    }
-
-    public SignalServiceEnvelope loadEnvelope() {
-        try {
-            return MessageCacheUtils.loadEnvelope(file);
-        } catch (Exception e) {
-            logger.error("Failed to load cached message envelope “{}”: {}", file, e.getMessage(), e);
-            return null;
-        }
-    }
-
-    public void delete() {
-        try {
-            Files.delete(file.toPath());
-        } catch (IOException e) {
-            logger.warn("Failed to delete cached message file “{}”, ignoring: {}", file, e.getMessage());
-        }
-        // Delete parent directory, if empty
-        try {
-            Files.delete(file.toPath().getParent());
-        } catch (IOException ignored) {
-        }
-    }
+    /**
+     * @return the raw id of the sender recipient the message has been cached for, or null if the sender isn't known
+     */
+    Long getRawRecipientId();
 }
@@ -0,0 +1,13 @@
+package org.asamk.signal.manager.storage.messageCache;
+
+public enum MessageCacheBackend {
+    /**
+     * One file per envelope, in a directory per sender.
+     */
+    FILES,
+    /**
+     * Envelopes are appended to rolling segment files, deleted envelopes are recorded in a tombstone file.
+     * Existing cached envelope files are moved to the log.
+     */
+    SEGMENTED_LOG
+}
@@ -0,0 +1,538 @@
+package org.asamk.signal.manager.storage.messageCache;
+
+import org.asamk.signal.manager.storage.recipients.RecipientId;
+import org.asamk.signal.manager.util.IOUtils;
+import org.asamk.signal.manager.util.MessageCacheUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.whispersystems.signalservice.api.messages.SignalServiceEnvelope;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Objects;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.zip.CRC32;
+
+/**
+ * Message cache that appends envelopes to rolling segment files, instead of creating a file per envelope.
+ * <p>
+ * Every record in a segment consists of the payload length, a CRC32 checksum of the payload and the payload itself:
+ * the message id, the sender recipient id (or -1) and the serialized envelope. Ids of deleted messages are appended to
+ * a tombstone file. Changing the sender of a message appends a copy with a new id and deletes the old one.
+ * <p>
+ * Cached messages are forced to disk before {@link #cacheMessage} returns, as the envelope is acknowledged to the
+ * server afterwards. Tombstones are only forced before compaction depends on them, a lost tombstone just means the
+ * message is handled again.
+ * <p>
+ * A background thread compacts segments that mostly contain deleted messages, by copying the remaining messages to
+ * the current segment and deleting the old segment file.
+ */
+public class SegmentedLogMessageCache implements MessageCache {
+
+    private final static Logger logger = LoggerFactory.getLogger(SegmentedLogMessageCache.class);
+
+    private static final long MAX_SEGMENT_SIZE = 4 * 1024 * 1024;
+    private static final double MIN_LIVE_RATIO = 0.5;
+    private static final Duration COMPACTION_INTERVAL = Duration.ofMinutes(1);
+    private static final int RECORD_HEADER_SIZE = 8; // payload length + crc
+    private static final int PAYLOAD_HEADER_SIZE = 16; // message id + recipient id
+    private static final long NO_RECIPIENT = -1;
+    private static final String SEGMENT_SUFFIX = ".log";
+    private static final String TOMBSTONE_FILE_NAME = "tombstones";
+
+    private final File path;
+    private final TreeMap<Long, Segment> segments = new TreeMap<>();
+    private final TreeMap<Long, Entry> entries = new TreeMap<>();
+    private final Thread compactionThread;
+    private FileChannel tombstones;
+    private Segment activeSegment;
+    private long nextId;
+
+    /**
+     * @param legacyMessageCachePath directory of a {@link FileMessageCache}, whose messages are moved to the log
+     */
+    public SegmentedLogMessageCache(final File path, final File legacyMessageCachePath) throws IOException {
+        this.path = path;
+        IOUtils.createPrivateDirectories(path);
+        open();
+        importLegacyMessages(legacyMessageCachePath);
+
+        this.compactionThread = new Thread(() -> {
+            try {
+                final var interval = COMPACTION_INTERVAL.toMillis();
+                while (!Thread.interrupted()) {
+                    Thread.sleep(interval);
+                    compact();
+                }
+            } catch (InterruptedException e) {
+                logger.debug("Stopping message cache compaction thread");
+            }
+        });
+        compactionThread.setName("msg-cache-compaction");
+        compactionThread.setDaemon(true);
+        compactionThread.start();
+    }
+
+    @Override
+    public synchronized Iterable<CachedMessage> getCachedMessages() {
+        return entries.keySet().stream().<CachedMessage>map(LogCachedMessage::new).toList();
+    }
+
+    @Override
+    public synchronized CachedMessage cacheMessage(SignalServiceEnvelope envelope, RecipientId recipientId) {
+        try {
+            final var data = MessageCacheUtils.encodeEnvelope(envelope);
+            final var id = nextId++;
+            final var entry = append(id, recipientId == null ? NO_RECIPIENT : recipientId.id(), data);
+            entry.segment.channel.force(false);
+            return new LogCachedMessage(id);
+        } catch (IOException e) {
+            logger.warn("Failed to store encrypted message in disk cache, ignoring: {}", e.getMessage());
+            return null;
+        }
+    }
+
+    @Override
+    public synchronized CachedMessage replaceSender(
+            CachedMessage cachedMessage, RecipientId sender
+    ) throws IOException {
+        final var entry = entries.get(((LogCachedMessage) cachedMessage).id);
+        if (entry == null || entry.recipientId == sender.id()) {
+            return cachedMessage;
+        }
+        return new LogCachedMessage(moveEntry(entry, sender.id()));
+    }
+
+    @Override
+    public synchronized void deleteMessages(final RecipientId recipientId) {
+        for (final var entry : getEntries(recipientId.id())) {
+            delete(entry.id);
+        }
+    }
+
+    @Override
+    public synchronized void mergeRecipients(final RecipientId recipientId, final RecipientId toBeMergedRecipientId) {
+        for (final var entry : getEntries(toBeMergedRecipientId.id())) {
+            try {
+                moveEntry(entry, recipientId.id());
+            } catch (IOException e) {
+                logger.warn("Failed to move cached message {}, ignoring: {}", entry.id, e.getMessage());
+            }
+        }
+    }
+
+    @Override
+    public void close() {
+        compactionThread.interrupt();
+        try {
+            compactionThread.join();
+        } catch (InterruptedException ignored) {
+        }
+        synchronized (this) {
+            for (final var segment : segments.values()) {
+                closeQuietly(segment.channel);
+            }
+            closeQuietly(tombstones);
+        }
+    }
+
+    /**
+     * Copy the remaining messages of mostly deleted segments to the current segment and delete the old segments.
+     */
+    void compact() {
+        final List<Segment> candidates;
+        synchronized (this) {
+            try {
+                // Records of deleted messages aren't copied, so their tombstones must not get lost
+                tombstones.force(false);
+            } catch (IOException e) {
+                logger.warn("Failed to sync message cache tombstones: {}", e.getMessage());
+                return;
+            }
+            candidates = segments.values()
+                    .stream()
+                    .filter(segment -> segment != activeSegment
+                            && segment.liveCount < segment.ids.size() * MIN_LIVE_RATIO)
+                    .toList();
+        }
+        if (candidates.isEmpty()) {
+            return;
+        }
+        for (final var segment : candidates) {
+            // Release the lock between segments, so receiving isn't blocked for too long
+            synchronized (this) {
+                try {
+                    compactSegment(segment);
+                } catch (IOException e) {
+                    logger.warn("Failed to compact message cache segment {}: {}", segment.file, e.getMessage());
+                    return;
+                }
+            }
+        }
+        synchronized (this) {
+            try {
+                rewriteTombstones();
+            } catch (IOException e) {
+                logger.warn("Failed to rewrite message cache tombstones: {}", e.getMessage());
+            }
+        }
+    }
+
+    private void open() throws IOException {
+        final var deletedIds = readTombstones();
+
+        final var segmentFiles = Objects.requireNonNull(path.listFiles((dir, name) -> name.endsWith(SEGMENT_SUFFIX)));
+        Arrays.sort(segmentFiles, (a, b) -> Long.compare(getSegmentNumber(a), getSegmentNumber(b)));
+        for (final var file : segmentFiles) {
+            final var segment = new Segment(getSegmentNumber(file), file);
+            segments.put(segment.number, segment);
+            scanSegment(segment, deletedIds);
+        }
+
+        final var lastSegment = segments.isEmpty() ? null : segments.lastEntry().getValue();
+        activeSegment = lastSegment == null || lastSegment.size >= MAX_SEGMENT_SIZE
+                ? createSegment(lastSegment == null ? 0 : lastSegment.number + 1)
+                : lastSegment;
+        logger.debug("Opened message cache with {} segments and {} messages", segments.size(), entries.size());
+    }
+
+    private Set<Long> readTombstones() throws IOException {
+        final var file = new File(path, TOMBSTONE_FILE_NAME);
+        tombstones = FileChannel.open(file.toPath(),
+                StandardOpenOption.CREATE,
+                StandardOpenOption.READ,
+                StandardOpenOption.WRITE);
+        final var size = tombstones.size();
+        if (size % Long.BYTES != 0) {
+            logger.warn("Dropping incomplete tombstone at the end of the message cache tombstone file");
+            tombstones.truncate(size - size % Long.BYTES);
+        }
+        final var buffer = ByteBuffer.allocate((int) tombstones.size());
+        readFully(tombstones, buffer, 0);
+        buffer.flip();
+        final var deletedIds = new HashSet<Long>();
+        while (buffer.hasRemaining()) {
+            deletedIds.add(buffer.getLong());
+        }
+        tombstones.position(tombstones.size());
+        return deletedIds;
+    }
+
+    private void scanSegment(final Segment segment, final Set<Long> deletedIds) throws IOException {
+        final var channel = segment.channel;
+        final var fileSize = channel.size();
+        final var header = ByteBuffer.allocate(RECORD_HEADER_SIZE);
+        var offset = 0L;
+        while (offset < fileSize) {
+            header.clear();
+            if (fileSize - offset < RECORD_HEADER_SIZE + PAYLOAD_HEADER_SIZE) {
+                break;
+            }
+            readFully(channel, header, offset);
+            header.flip();
+            final var length = header.getInt();
+            final var crc = header.getInt();
+            if (length < PAYLOAD_HEADER_SIZE || length > fileSize - offset - RECORD_HEADER_SIZE) {
+                break;
+            }
+            final var payload = readPayload(channel, offset, length);
+            if (getChecksum(payload) != crc) {
+                break;
+            }
+            final var id = payload.getLong();
+            final var recipientId = payload.getLong();
+            segment.ids.add(id);
+            nextId = Math.max(nextId, id + 1);
+            if (!deletedIds.contains(id)) {
+                // A later copy of the same message replaces the earlier one, e.g. after an interrupted compaction
+                addEntry(new Entry(id, recipientId, segment, offset, length));
+            }
+            offset += RECORD_HEADER_SIZE + length;
+        }
+        if (offset < fileSize) {
+            logger.warn("Dropping incomplete record at the end of message cache segment {}", segment.file);
+            channel.truncate(offset);
+        }
+        segment.size = offset;
+    }
+
+    private void importLegacyMessages(final File legacyMessageCachePath) {
+        if (legacyMessageCachePath == null || !legacyMessageCachePath.exists()) {
+            return;
+        }
+        var count = 0;
+        for (final var cachedMessage : new FileMessageCache(legacyMessageCachePath).getCachedMessages()) {
+            final var file = ((FileCachedMessage) cachedMessage).getFile();
+            final var envelope = cachedMessage.loadEnvelope();
+            if (envelope == null) {
+                // Unreadable messages would also be dropped by the next retry
+                cachedMessage.delete();
+                continue;
+            }
+            final var parent = file.getParentFile();
+            final var recipientId = parent.equals(legacyMessageCachePath)
+                    ? NO_RECIPIENT
+                    : Long.parseLong(parent.getName());
+            try {
+                synchronized (this) {
+                    final var entry = append(nextId++, recipientId, MessageCacheUtils.encodeEnvelope(envelope));
+                    entry.segment.channel.force(false);
+                }
+            } catch (IOException e) {
+                logger.warn("Failed to import cached message “{}”, ignoring: {}", file, e.getMessage());
+                continue;
+            }
+            cachedMessage.delete();
+            count++;
+        }
+        if (count > 0) {
+            logger.info("Moved {} cached messages to the message cache log", count);
+        }
+    }
+
+    private List<Entry> getEntries(final long recipientId) {
+        return entries.values().stream().filter(entry -> entry.recipientId == recipientId).toList();
+    }
+
+    private long moveEntry(final Entry entry, final long recipientId) throws IOException {
+        final var payload = readPayload(entry.segment.channel, entry.offset, entry.length);
+        payload.position(PAYLOAD_HEADER_SIZE);
+        final var envelope = new byte[payload.remaining()];
+        payload.get(envelope);
+        final var id = nextId++;
+        append(id, recipientId, envelope).segment.channel.force(false);
+        delete(entry.id);
+        return id;
+    }
+
+    private Entry append(final long id, final long recipientId, final byte[] envelope) throws IOException {
+        if (activeSegment.size >= MAX_SEGMENT_SIZE) {
+            activeSegment = createSegment(activeSegment.number + 1);
+        }
+        final var length = PAYLOAD_HEADER_SIZE + envelope.length;
+        final var buffer = ByteBuffer.allocate(RECORD_HEADER_SIZE + length);
+        buffer.position(RECORD_HEADER_SIZE);
+        buffer.putLong(id).putLong(recipientId).put(envelope);
+        buffer.position(RECORD_HEADER_SIZE);
+        final var crc = getChecksum(buffer);
+        buffer.putInt(0, length).putInt(4, crc);
+        buffer.position(0);
+
+        final var segment = activeSegment;
+        final var offset = segment.size;
+        while (buffer.hasRemaining()) {
+            segment.channel.write(buffer, offset + buffer.position());
+        }
+        segment.size += buffer.limit();
+        segment.ids.add(id);
+        final var entry = new Entry(id, recipientId, segment, offset, length);
+        addEntry(entry);
+        return entry;
+    }
+
+    private void addEntry(final Entry entry) {
+        final var previous = entries.put(entry.id, entry);
+        if (previous != null) {
+            previous.segment.liveCount--;
+        }
+        entry.segment.liveCount++;
+    }
+
+    private void delete(final long id) {
+        final var entry = entries.remove(id);
+        if (entry == null) {
+            return;
+        }
+        entry.segment.liveCount--;
+        try {
+            final var buffer = ByteBuffer.allocate(Long.BYTES).putLong(id).flip();
+            while (buffer.hasRemaining()) {
+                tombstones.write(buffer);
+            }
+        } catch (IOException e) {
+            logger.warn("Failed to delete cached message {}, ignoring: {}", id, e.getMessage());
+        }
+    }
+
+    private SignalServiceEnvelope loadEnvelope(final long id) throws IOException {
+        final var entry = entries.get(id);
+        if (entry == null) {
+            return null;
+        }
+        final var payload = readPayload(entry.segment.channel, entry.offset, entry.length);
+        return MessageCacheUtils.decodeEnvelope(payload.array(),
+                PAYLOAD_HEADER_SIZE,
+                entry.length - PAYLOAD_HEADER_SIZE);
+    }
+
+    private void compactSegment(final Segment segment) throws IOException {
+        final var targetSegments = new HashSet<Segment>();
+        for (final var id : segment.ids) {
+            final var entry = entries.get(id);
+            if (entry == null || entry.segment != segment) {
+                continue;
+            }
+            final var payload = readPayload(segment.channel, entry.offset, entry.length);
+            payload.position(PAYLOAD_HEADER_SIZE);
+            final var envelope = new byte[payload.remaining()];
+            payload.get(envelope);
+            targetSegments.add(append(entry.id, entry.recipientId, envelope).segment);
+        }
+        // The copies have to be on disk, before the originals are deleted
+        for (final var targetSegment : targetSegments) {
+            targetSegment.channel.force(false);
+        }
+        segments.remove(segment.number);
+        segment.channel.close();
+        Files.delete(segment.file.toPath());
+        logger.debug("Compacted message cache segment {}", segment.file.getName());
+    }
+
+    /**
+     * Only keep the tombstones of messages that are still contained in a segment file.
+     */
+    private void rewriteTombstones() throws IOException {
+        final var deletedIds = new ArrayList<Long>();
+        for (final var segment : segments.values()) {
+            for (final var id : segment.ids) {
+                if (!entries.containsKey(id)) {
+                    deletedIds.add(id);
+                }
+            }
+        }
+        final var file = new File(path, TOMBSTONE_FILE_NAME);
+        final var tmpFile = new File(path, TOMBSTONE_FILE_NAME + ".tmp");
+        try (final var channel = FileChannel.open(tmpFile.toPath(),
+                StandardOpenOption.CREATE,
+                StandardOpenOption.TRUNCATE_EXISTING,
+                StandardOpenOption.WRITE)) {
+            final var buffer = ByteBuffer.allocate(deletedIds.size() * Long.BYTES);
+            deletedIds.forEach(buffer::putLong);
+            buffer.flip();
+            while (buffer.hasRemaining()) {
+                channel.write(buffer);
+            }
+            channel.force(false);
+        }
+        tombstones.close();
+        Files.move(tmpFile.toPath(),
+                file.toPath(),
+                StandardCopyOption.REPLACE_EXISTING,
+                StandardCopyOption.ATOMIC_MOVE);
+        tombstones = FileChannel.open(file.toPath(), StandardOpenOption.READ, StandardOpenOption.WRITE);
+        tombstones.position(tombstones.size());
+    }
+
+    private Segment createSegment(final long number) throws IOException {
+        final var file = new File(path, String.format("%010d%s", number, SEGMENT_SUFFIX));
+        final var segment = new Segment(number, file);
+        segments.put(number, segment);
+        return segment;
+    }
+
+    private static ByteBuffer readPayload(
+            final FileChannel channel, final long recordOffset, final int length
+    ) throws IOException {
+        final var payload = ByteBuffer.allocate(length);
+        readFully(channel, payload, recordOffset + RECORD_HEADER_SIZE);
+        return payload.flip();
+    }
+
+    private static void readFully(
+            final FileChannel channel, final ByteBuffer buffer, final long offset
+    ) throws IOException {
+        final var start = buffer.position();
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer, offset + buffer.position() - start) < 0) {
+                throw new IOException("Unexpected end of message cache file");
+            }
+        }
+    }
+
+    private static int getChecksum(final ByteBuffer payload) {
+        final var crc = new CRC32();
+        crc.update(payload.duplicate());
+        return (int) crc.getValue();
+    }
+
+    private static long getSegmentNumber(final File file) {
+        final var name = file.getName();
+        return Long.parseLong(name.substring(0, name.length() - SEGMENT_SUFFIX.length()));
+    }
+
+    private static void closeQuietly(final FileChannel channel) {
+        try {
+            channel.close();
+        } catch (IOException e) {
+            logger.warn("Failed to close message cache file: {}", e.getMessage());
+        }
+    }
+
+    private static final class Segment {
+
+        private final long number;
+        private final File file;
+        private final FileChannel channel;
+        private final Set<Long> ids = new HashSet<>();
+        private long size;
+        private int liveCount;
+
+        private Segment(final long number, final File file) throws IOException {
+            this.number = number;
+            this.file = file;
+            this.channel = FileChannel.open(file.toPath(),
+                    StandardOpenOption.CREATE,
+                    StandardOpenOption.READ,
+                    StandardOpenOption.WRITE);
+        }
+    }
+
+    private record Entry(long id, long recipientId, Segment segment, long offset, int length) {}
+
+    private final class LogCachedMessage implements CachedMessage {
+
+        private final long id;
+
+        private LogCachedMessage(final long id) {
+            this.id = id;
+        }
+
+        @Override
+        public SignalServiceEnvelope loadEnvelope() {
+            synchronized (SegmentedLogMessageCache.this) {
+                try {
+                    return SegmentedLogMessageCache.this.loadEnvelope(id);
+                } catch (Exception e) {
+                    logger.error("Failed to load cached message envelope {}: {}", id, e.getMessage(), e);
+                    return null;
+                }
+            }
+        }
+
+        @Override
+        public Long getRawRecipientId() {
+            synchronized (SegmentedLogMessageCache.this) {
+                final var entry = entries.get(id);
+                return entry == null || entry.recipientId == NO_RECIPIENT ? null : entry.recipientId;
+            }
+        }
+
+        @Override
+        public void delete() {
+            synchronized (SegmentedLogMessageCache.this) {
+                SegmentedLogMessageCache.this.delete(id);
+            }
+        }
+    }
+}
@@ -0,0 +1,8 @@
+package org.asamk.signal.manager.storage.outbox;
+
+import org.asamk.signal.manager.api.Message;
+import org.asamk.signal.manager.api.RecipientIdentifier;
+
+public record OutboxEntry(
+        long id, long batch, long timestamp, RecipientIdentifier recipient, Message message, int attempts
+) {}
@@ -0,0 +1,305 @@
+package org.asamk.signal.manager.storage.outbox;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.DeserializationFeature;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import org.asamk.signal.manager.api.Message;
+import org.asamk.signal.manager.api.RecipientIdentifier;
+import org.asamk.signal.manager.groups.GroupId;
+import org.asamk.signal.manager.groups.GroupIdFormatException;
+import org.asamk.signal.manager.storage.Database;
+import org.asamk.signal.manager.storage.Utils;
+import org.whispersystems.signalservice.api.util.UuidUtil;
+
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.Collection;
+import java.util.List;
+import java.util.Optional;
+import java.util.UUID;
+
+/**
+ * Messages that have been queued for sending, one row per recipient.
+ * All rows of one message share its batch id and timestamp, so a message that is sent again after a failure is
+ * recognized as a duplicate by the recipient.
+ */
+public class OutboxStore {
+
+    private static final String TABLE_OUTBOX = "outbox";
+
+    private final Database database;
+    private final ObjectMapper objectMapper;
+
+    public static void createSql(Connection connection) throws SQLException {
+        // When modifying the CREATE statement here, also add a migration in AccountDatabase.java
+        try (final var statement = connection.createStatement()) {
+            statement.executeUpdate("""
+                                    CREATE TABLE outbox (
+                                      _id INTEGER PRIMARY KEY,
+                                      batch INTEGER NOT NULL,
+                                      timestamp INTEGER NOT NULL,
+                                      recipient TEXT NOT NULL,
+                                      message TEXT NOT NULL,
+                                      attempts INTEGER NOT NULL DEFAULT 0,
+                                      next_attempt INTEGER NOT NULL
+                                    ) STRICT;
+                                    CREATE INDEX outbox_recipient ON outbox (recipient, _id);
+                                    """);
+        }
+    }
+
+    public OutboxStore(final Database database) {
+        this.database = database;
+        this.objectMapper = new ObjectMapper().disable(DeserializationFeature.FAIL_ON_UNKNOWN_PROPERTIES);
+    }
+
+    /**
+     * Adds one row per recipient, all with the same newly allocated batch id.
+     */
+    public void addMessage(
+            final long timestamp, final Message message, final Collection<RecipientIdentifier> recipients
+    ) {
+        final var batchSql = (
+                """
+                SELECT COALESCE(MAX(batch), 0) + 1
+                FROM %s
+                """
+        ).formatted(TABLE_OUTBOX);
+        final var sql = (
+                """
+                INSERT INTO %s (batch, timestamp, recipient, message, next_attempt)
+                VALUES (?, ?, ?, ?, ?)
+                """
+        ).formatted(TABLE_OUTBOX);
+        final String serializedMessage;
+        try {
+            serializedMessage = objectMapper.writeValueAsString(StoredMessage.from(message));
+        } catch (JsonProcessingException e) {
+            throw new AssertionError(e);
+        }
+        try (final var connection = database.getConnection()) {
+            connection.setAutoCommit(false);
+            final long batch;
+            try (final var statement = connection.prepareStatement(batchSql)) {
+                batch = Utils.executeQueryForOptional(statement, resultSet -> resultSet.getLong(1)).orElse(1L);
+            }
+            try (final var statement = connection.prepareStatement(sql)) {
+                for (final var recipient : recipients) {
+                    statement.setLong(1, batch);
+                    statement.setLong(2, timestamp);
+                    statement.setString(3, serializeRecipient(recipient));
+                    statement.setString(4, serializedMessage);
+                    statement.setLong(5, System.currentTimeMillis());
+                    statement.executeUpdate();
+                }
+            }
+            connection.commit();
+        } catch (SQLException e) {
+            throw new RuntimeException("Failed update outbox store", e);
+        }
+    }
+
+    /**
+     * Returns the oldest entry of each recipient, if it's due to be sent.
+     * Later entries of a recipient are only returned once all earlier ones have been removed.
+     */
+    public List<OutboxEntry> getDueEntries(final long now, final int limit) {
+        final var sql = (
+                """
+                SELECT o._id, o.batch, o.timestamp, o.recipient, o.message, o.attempts
+                FROM %1$s o
+                WHERE o.next_attempt <= ? AND o._id = (SELECT MIN(p._id) FROM %1$s p WHERE p.recipient = o.recipient)
+                ORDER BY o._id
+                LIMIT ?
+                """
+        ).formatted(TABLE_OUTBOX);
+        try (final var connection = database.getReadConnection()) {
+            try (final var statement = connection.prepareStatement(sql)) {
+                statement.setLong(1, now);
+                statement.setInt(2, limit);
+                try (var result = Utils.executeQueryForStream(statement, this::getOutboxEntryFromResultSet)) {
+                    return result.toList();
+                }
+            }
+        } catch (SQLException e) {
+            throw new RuntimeException("Failed read from outbox store", e);
+        }
+    }
+
+    /**
+     * @return the time when the next entry is due to be sent, if there are any entries
+     */
+    public Optional<Long> getNextAttemptTime() {
+        final var sql = (
+                """
+                SELECT MIN(o.next_attempt)
+                FROM %1$s o
+                WHERE o._id = (SELECT MIN(p._id) FROM %1$s p WHERE p.recipient = o.recipient)
+                """
+        ).formatted(TABLE_OUTBOX);
+        try (final var connection = database.getReadConnection()) {
+            try (final var statement = connection.prepareStatement(sql)) {
+                return Utils.executeQueryForOptional(statement, resultSet -> {
+                    final var nextAttempt = resultSet.getLong(1);
+                    return resultSet.wasNull() ? null : nextAttempt;
+                });
+            }
+        } catch (SQLException e) {
+            throw new RuntimeException("Failed read from outbox store", e);
+        }
+    }
+
+    public void scheduleRetry(final long id, final int attempts, final long nextAttempt) {
+        final var sql = (
+                """
+                UPDATE %s
+                SET attempts = ?, next_attempt = ?
+                WHERE _id = ?
+                """
+        ).formatted(TABLE_OUTBOX);
+        try (final var connection = database.getConnection()) {
+            try (final var statement = connection.prepareStatement(sql)) {
+                statement.setInt(1, attempts);
+                statement.setLong(2, nextAttempt);
+                statement.setLong(3, id);
+                statement.executeUpdate();
+            }
+        } catch (SQLException e) {
+            throw new RuntimeException("Failed update outbox store", e);
+        }
+    }
+
+    public void deleteEntry(final long id) {
+        final var sql = (
+                """
+                DELETE FROM %s
+                WHERE _id = ?
+                """
+        ).formatted(TABLE_OUTBOX);
+        try (final var connection = database.getConnection()) {
+            try (final var statement = connection.prepareStatement(sql)) {
+                statement.setLong(1, id);
+                statement.executeUpdate();
+            }
+        } catch (SQLException e) {
+            throw new RuntimeException("Failed update outbox store", e);
+        }
+    }
+
+    private OutboxEntry getOutboxEntryFromResultSet(ResultSet resultSet) throws SQLException {
+        final var id = resultSet.getLong("_id");
+        final var batch = resultSet.getLong("batch");
+        final var timestamp = resultSet.getLong("timestamp");
+        final var recipient = deserializeRecipient(resultSet.getString("recipient"));
+        final Message message;
+        try {
+            message = objectMapper.readValue(resultSet.getString("message"), StoredMessage.class).toMessage();
+        } catch (JsonProcessingException e) {
+            throw new SQLException("Invalid outbox message", e);
+        }
+        final var attempts = resultSet.getInt("attempts");
+        return new OutboxEntry(id, batch, timestamp, recipient, message, attempts);
+    }
+
+    private static String serializeRecipient(final RecipientIdentifier recipient) {
+        if (recipient instanceof RecipientIdentifier.Group group) {
+            return "group:" + group.groupId().toBase64();
+        } else if (recipient instanceof RecipientIdentifier.Single single) {
+            return "single:" + single.getIdentifier();
+        } else {
+            return "self";
+        }
+    }
+
+    private static RecipientIdentifier deserializeRecipient(final String recipient) {
+        if (recipient.startsWith("group:")) {
+            try {
+                return new RecipientIdentifier.Group(GroupId.fromBase64(recipient.substring(6)));
+            } catch (GroupIdFormatException e) {
+                throw new AssertionError(e);
+            }
+        } else if (recipient.startsWith("single:")) {
+            return deserializeSingle(recipient.substring(7));
+        } else {
+            return RecipientIdentifier.NoteToSelf.INSTANCE;
+        }
+    }
+
+    private static RecipientIdentifier.Single deserializeSingle(final String identifier) {
+        return UuidUtil.isUuid(identifier)
+                ? new RecipientIdentifier.Uuid(UUID.fromString(identifier))
+                : new RecipientIdentifier.Number(identifier);
+    }
+
+    private record StoredMessage(
+            String messageText,
+            List<String> attachments,
+            List<StoredMention> mentions,
+            StoredQuote quote,
+            StoredSticker sticker,
+            List<StoredPreview> previews,
+            StoredStoryReply storyReply
+    ) {
+
+        static StoredMessage from(Message message) {
+            return new StoredMessage(message.messageText(),
+                    message.attachments(),
+                    message.mentions().stream().map(StoredMention::from).toList(),
+                    message.quote()
+                            .map(q -> new StoredQuote(q.timestamp(),
+                                    q.author().getIdentifier(),
+                                    q.message(),
+                                    q.mentions().stream().map(StoredMention::from).toList()))
+                            .orElse(null),
+                    message.sticker().map(s -> new StoredSticker(s.packId(), s.stickerId())).orElse(null),
+                    message.previews()
+                            .stream()
+                            .map(p -> new StoredPreview(p.url(), p.title(), p.description(), p.image().orElse(null)))
+                            .toList(),
+                    message.storyReply()
+                            .map(r -> new StoredStoryReply(r.timestamp(), r.author().getIdentifier()))
+                            .orElse(null));
+        }
+
+        Message toMessage() {
+            return new Message(messageText,
+                    attachments,
+                    mentions.stream().map(StoredMention::toMention).toList(),
+                    Optional.ofNullable(quote)
+                            .map(q -> new Message.Quote(q.timestamp(),
+                                    deserializeSingle(q.author()),
+                                    q.message(),
+                                    q.mentions().stream().map(StoredMention::toMention).toList())),
+                    Optional.ofNullable(sticker).map(s -> new Message.Sticker(s.packId(), s.stickerId())),
+                    previews.stream()
+                            .map(p -> new Message.Preview(p.url(),
+                                    p.title(),
+                                    p.description(),
+                                    Optional.ofNullable(p.image())))
+                            .toList(),
+                    Optional.ofNullable(storyReply)
+                            .map(r -> new Message.StoryReply(r.timestamp(), deserializeSingle(r.author()))));
+        }
+    }
+
+    private record StoredMention(String recipient, int start, int length) {
+
+        static StoredMention from(Message.Mention mention) {
+            return new StoredMention(mention.recipient().getIdentifier(), mention.start(), mention.length());
+        }
+
+        Message.Mention toMention() {
+            return new Message.Mention(deserializeSingle(recipient), start, length);
+        }
+    }
+
+    private record StoredQuote(long timestamp, String author, String message, List<StoredMention> mentions) {}
+
+    private record StoredSticker(byte[] packId, int stickerId) {}
+
+    private record StoredPreview(String url, String title, String description, String image) {}
+
+    private record StoredStoryReply(long timestamp, String author) {}
+}
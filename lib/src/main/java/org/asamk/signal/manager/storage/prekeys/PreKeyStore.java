@@ -19,6 +19,23 @@ import java.util.Collection;
 public class PreKeyStore implements org.signal.libsignal.protocol.state.PreKeyStore {
 
     private static final String TABLE_PRE_KEY = "pre_key";
+
+    private static final String SQL_INSERT_PRE_KEY = """
+            INSERT INTO %s (account_id_type, key_id, public_key, private_key)
+            VALUES (?, ?, ?, ?)
+            """.formatted(TABLE_PRE_KEY);
+
+    private static final String SQL_DELETE_PRE_KEY = """
+            DELETE FROM %s AS p
+            WHERE p.account_id_type = ? AND p.key_id = ?
+            """.formatted(TABLE_PRE_KEY);
+
+    private static final String SQL_SELECT_PRE_KEY = """
+            SELECT p.key_id, p.public_key, p.private_key
+            FROM %s p
+            WHERE p.account_id_type = ? AND p.key_id = ?
+            """.formatted(TABLE_PRE_KEY);
+
     private final static Logger logger = LoggerFactory.getLogger(PreKeyStore.class);
 
     private final Database database;
@@ -56,14 +73,8 @@ public class PreKeyStore implements org.signal.libsignal.protocol.state.PreKeySt
 
     @Override
     public void storePreKey(int preKeyId, PreKeyRecord record) {
-        final var sql = (
-                """
-                INSERT INTO %s (account_id_type, key_id, public_key, private_key)
-                VALUES (?, ?, ?, ?)
-                """
-        ).formatted(TABLE_PRE_KEY);
         try (final var connection = database.getConnection()) {
-            try (final var statement = connection.prepareStatement(sql)) {
+            try (final var statement = connection.prepareStatement(SQL_INSERT_PRE_KEY)) {
                 statement.setInt(1, accountIdType);
                 statement.setInt(2, preKeyId);
                 final var keyPair = record.getKeyPair();
@@ -84,14 +95,8 @@ public class PreKeyStore implements org.signal.libsignal.protocol.state.PreKeySt
 
     @Override
     public void removePreKey(int preKeyId) {
-        final var sql = (
-                """
-                DELETE FROM %s AS p
-                WHERE p.account_id_type = ? AND p.key_id = ?
-                """
-        ).formatted(TABLE_PRE_KEY);
         try (final var connection = database.getConnection()) {
-            try (final var statement = connection.prepareStatement(sql)) {
+            try (final var statement = connection.prepareStatement(SQL_DELETE_PRE_KEY)) {
                 statement.setInt(1, accountIdType);
                 statement.setInt(2, preKeyId);
                 statement.executeUpdate();
@@ -153,15 +158,8 @@ public class PreKeyStore implements org.signal.libsignal.protocol.state.PreKeySt
     }
 
     private PreKeyRecord getPreKey(int preKeyId) {
-        final var sql = (
-                """
-                SELECT p.key_id, p.public_key, p.private_key
-                FROM %s p
-                WHERE p.account_id_type = ? AND p.key_id = ?
-                """
-        ).formatted(TABLE_PRE_KEY);
         try (final var connection = database.getConnection()) {
-            try (final var statement = connection.prepareStatement(sql)) {
+            try (final var statement = connection.prepareStatement(SQL_SELECT_PRE_KEY)) {
                 statement.setInt(1, accountIdType);
                 statement.setInt(2, preKeyId);
                 return Utils.executeQueryForOptional(statement, this::getPreKeyRecordFromResultSet).orElse(null);
@@ -5,12 +5,25 @@ import org.asamk.signal.manager.storage.recipients.RecipientId;
 import org.signal.libsignal.zkgroup.profiles.ExpiringProfileKeyCredential;
 import org.signal.libsignal.zkgroup.profiles.ProfileKey;
 
+import java.util.Collection;
+import java.util.Map;
+
 public interface ProfileStore {
 
     Profile getProfile(RecipientId recipientId);
 
     ProfileKey getProfileKey(RecipientId recipientId);
 
+    /**
+     * @return the stored profiles, recipients without a profile are missing from the map
+     */
+    Map<RecipientId, Profile> getProfiles(Collection<RecipientId> recipientIds);
+
+    /**
+     * @return the stored profile keys, recipients without a profile key are missing from the map
+     */
+    Map<RecipientId, ProfileKey> getProfileKeys(Collection<RecipientId> recipientIds);
+
     ExpiringProfileKeyCredential getExpiringProfileKeyCredential(RecipientId recipientId);
 
     void storeProfile(RecipientId recipientId, Profile profile);
@@ -0,0 +1,68 @@
+package org.asamk.signal.manager.storage.recipients;
+
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * In-memory index of the recipient addresses, in both directions between the raw recipient ids and their identifiers.
+ * Lookups don't take any lock, changes of an address are applied by invalidating the recipient.
+ * <p>
+ * Entries are only added with the generation that was read before the database was queried, so an address that was
+ * read while it was being changed is never added after the change has been invalidated.
+ */
+final class RecipientAddressCache {
+
+    private final Map<Long, RecipientAddress> addresses = new ConcurrentHashMap<>();
+    private final Map<UUID, Long> recipientIdsByServiceId = new ConcurrentHashMap<>();
+    private final Map<String, Long> recipientIdsByNumber = new ConcurrentHashMap<>();
+    private final AtomicLong generation = new AtomicLong();
+
+    long getGeneration() {
+        return generation.get();
+    }
+
+    RecipientAddress getAddress(final long recipientId) {
+        return addresses.get(recipientId);
+    }
+
+    Long getRecipientId(final RecipientAddress address) {
+        // Same order as the database lookups, a service id always takes precedence over the number
+        if (address.serviceId().isPresent()) {
+            return recipientIdsByServiceId.get(address.serviceId().get().uuid());
+        }
+        return address.number().map(recipientIdsByNumber::get).orElse(null);
+    }
+
+    synchronized void put(final long generation, final long recipientId, final RecipientAddress address) {
+        if (this.generation.get() != generation) {
+            return;
+        }
+        removeIdentifiers(recipientId, addresses.put(recipientId, address));
+        address.serviceId().ifPresent(s -> recipientIdsByServiceId.put(s.uuid(), recipientId));
+        address.pni().ifPresent(p -> recipientIdsByServiceId.put(p.uuid(), recipientId));
+        address.number().ifPresent(n -> recipientIdsByNumber.put(n, recipientId));
+    }
+
+    synchronized void invalidate(final long recipientId) {
+        generation.incrementAndGet();
+        removeIdentifiers(recipientId, addresses.remove(recipientId));
+    }
+
+    synchronized void clear() {
+        generation.incrementAndGet();
+        addresses.clear();
+        recipientIdsByServiceId.clear();
+        recipientIdsByNumber.clear();
+    }
+
+    private void removeIdentifiers(final long recipientId, final RecipientAddress address) {
+        if (address == null) {
+            return;
+        }
+        address.serviceId().ifPresent(s -> recipientIdsByServiceId.remove(s.uuid(), recipientId));
+        address.pni().ifPresent(p -> recipientIdsByServiceId.remove(p.uuid(), recipientId));
+        address.number().ifPresent(n -> recipientIdsByNumber.remove(n, recipientId));
+    }
+}
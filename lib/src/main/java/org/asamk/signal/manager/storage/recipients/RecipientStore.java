@@ -24,6 +24,7 @@ import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Objects;
@@ -38,6 +39,64 @@ public class RecipientStore implements RecipientIdCreator, RecipientResolver, Re
     private static final String TABLE_RECIPIENT = "recipient";
     private static final String SQL_IS_CONTACT = "r.given_name IS NOT NULL OR r.family_name IS NOT NULL OR r.expiration_time > 0 OR r.profile_sharing = TRUE OR r.color IS NOT NULL OR r.blocked = TRUE OR r.archived = TRUE";
 
+    private static final String SQL_SELECT_RECIPIENT_ADDRESS = """
+            SELECT r.number, r.uuid, r.pni
+            FROM %s r
+            WHERE r._id = ?
+            """.formatted(TABLE_RECIPIENT);
+
+    private static final String SQL_SELECT_RECIPIENT_ID = """
+            SELECT r._id
+            FROM %s r
+            WHERE r._id = ?
+            """.formatted(TABLE_RECIPIENT);
+
+    private static final String SQL_SELECT_BY_NUMBER = """
+            SELECT r._id, r.number, r.uuid, r.pni
+            FROM %s r
+            WHERE r.number = ?
+            LIMIT 1
+            """.formatted(TABLE_RECIPIENT);
+
+    private static final String SQL_SELECT_BY_SERVICE_ID = """
+            SELECT r._id, r.number, r.uuid, r.pni
+            FROM %s r
+            WHERE r.uuid = ? OR r.pni = ?
+            LIMIT 1
+            """.formatted(TABLE_RECIPIENT);
+
+    private static final String SQL_SELECT_ALL_BY_ADDRESS = """
+            SELECT r._id, r.number, r.uuid, r.pni
+            FROM %s r
+            WHERE r.uuid = ?1 OR r.pni = ?1 OR
+                  r.uuid = ?2 OR r.pni = ?2 OR
+                  r.number = ?3
+            """.formatted(TABLE_RECIPIENT);
+
+    private static final String SQL_SELECT_CONTACT = """
+            SELECT r.given_name, r.family_name, r.expiration_time, r.profile_sharing, r.color, r.blocked, r.archived
+            FROM %s r
+            WHERE r._id = ? AND (%s)
+            """.formatted(TABLE_RECIPIENT, SQL_IS_CONTACT);
+
+    private static final String SQL_SELECT_PROFILE_KEY = """
+            SELECT r.profile_key
+            FROM %s r
+            WHERE r._id = ?
+            """.formatted(TABLE_RECIPIENT);
+
+    private static final String SQL_SELECT_PROFILE_KEY_CREDENTIAL = """
+            SELECT r.profile_key_credential
+            FROM %s r
+            WHERE r._id = ?
+            """.formatted(TABLE_RECIPIENT);
+
+    private static final String SQL_SELECT_PROFILE = """
+            SELECT r.profile_last_update_timestamp, r.profile_given_name, r.profile_family_name, r.profile_about, r.profile_about_emoji, r.profile_avatar_url_path, r.profile_mobile_coin_address, r.profile_unidentified_access_mode, r.profile_capabilities
+            FROM %s r
+            WHERE r._id = ? AND r.profile_capabilities IS NOT NULL
+            """.formatted(TABLE_RECIPIENT);
+
     private final RecipientMergeHandler recipientMergeHandler;
     private final SelfAddressProvider selfAddressProvider;
     private final Database database;
@@ -45,6 +104,13 @@ public class RecipientStore implements RecipientIdCreator, RecipientResolver, Re
     private final Object recipientsLock = new Object();
     private final Map<Long, Long> recipientsMerged = new HashMap<>();
 
+    private final RecipientAddressCache addressCache = new RecipientAddressCache();
+    // Recipients whose address the current thread has changed, that haven't been invalidated in the cache yet
+    private final ThreadLocal<Set<Long>> changedRecipients = ThreadLocal.withInitial(HashSet::new);
+    // Set while the current thread has uncommitted recipient changes, its lookups then read its own changes from the
+    // database instead of the cache
+    private final ThreadLocal<Boolean> bypassCache = new ThreadLocal<>();
+
     public static void createSql(Connection connection) throws SQLException {
         // When modifying the CREATE statement here, also add a migration in AccountDatabase.java
         try (final var statement = connection.createStatement()) {
@@ -91,21 +157,28 @@ public class RecipientStore implements RecipientIdCreator, RecipientResolver, Re
     }
 
     public RecipientAddress resolveRecipientAddress(RecipientId recipientId) {
-        final var sql = (
-                """
-                SELECT r.number, r.uuid, r.pni
-                FROM %s r
-                WHERE r._id = ?
-                """
-        ).formatted(TABLE_RECIPIENT);
-        try (final var connection = database.getConnection()) {
-            try (final var statement = connection.prepareStatement(sql)) {
-                statement.setLong(1, recipientId.id());
-                return Utils.executeQuerySingleRow(statement, this::getRecipientAddressFromResultSet);
+        final var id = recipientId.id();
+        final var useCache = isCacheEnabled();
+        if (useCache) {
+            final var address = addressCache.getAddress(id);
+            if (address != null) {
+                return address;
+            }
+        }
+        final var generation = addressCache.getGeneration();
+        final RecipientAddress address;
+        try (final var connection = database.getReadConnection()) {
+            try (final var statement = connection.prepareStatement(SQL_SELECT_RECIPIENT_ADDRESS)) {
+                statement.setLong(1, id);
+                address = Utils.executeQuerySingleRow(statement, this::getRecipientAddressFromResultSet);
             }
         } catch (SQLException e) {
             throw new RuntimeException("Failed read from recipient store", e);
         }
+        if (useCache) {
+            addressCache.put(generation, id, address);
+        }
+        return address;
     }
 
     public Collection<RecipientId> getRecipientIdsWithEnabledProfileSharing() {
@@ -116,7 +189,7 @@ public class RecipientStore implements RecipientIdCreator, RecipientResolver, Re
                 WHERE r.blocked = FALSE AND r.profile_sharing = TRUE
                 """
         ).formatted(TABLE_RECIPIENT);
-        try (final var connection = database.getConnection()) {
+        try (final var connection = database.getReadConnection()) {
             try (final var statement = connection.prepareStatement(sql)) {
                 try (var result = Utils.executeQueryForStream(statement, this::getRecipientIdFromResultSet)) {
                     return result.toList();
@@ -129,15 +202,11 @@ public class RecipientStore implements RecipientIdCreator, RecipientResolver, Re
 
     @Override
     public RecipientId resolveRecipient(final long rawRecipientId) {
-        final var sql = (
-                """
-                SELECT r._id
-                FROM %s r
-                WHERE r._id = ?
-                """
-        ).formatted(TABLE_RECIPIENT);
+        if (isCacheEnabled() && addressCache.getAddress(rawRecipientId) != null) {
+            return create(rawRecipientId);
+        }
         try (final var connection = database.getConnection()) {
-            try (final var statement = connection.prepareStatement(sql)) {
+            try (final var statement = connection.prepareStatement(SQL_SELECT_RECIPIENT_ID)) {
                 statement.setLong(1, rawRecipientId);
                 return Utils.executeQueryForOptional(statement, this::getRecipientIdFromResultSet).orElse(null);
             }
@@ -156,6 +225,10 @@ public class RecipientStore implements RecipientIdCreator, RecipientResolver, Re
     }
 
     private RecipientId resolveRecipientByNumber(final String number) {
+        final var cachedRecipientId = getCachedRecipientId(new RecipientAddress(null, number));
+        if (cachedRecipientId != null) {
+            return cachedRecipientId;
+        }
         synchronized (recipientsLock) {
             final RecipientId recipientId;
             try (final var connection = database.getConnection()) {
@@ -165,12 +238,17 @@ public class RecipientStore implements RecipientIdCreator, RecipientResolver, Re
             } catch (SQLException e) {
                 throw new RuntimeException("Failed read recipient store", e);
             }
-            return recipientId;
+            publishChanges();
+            return cacheRecipient(recipientId);
         }
     }
 
     @Override
     public RecipientId resolveRecipient(final ServiceId serviceId) {
+        final var cachedRecipientId = getCachedRecipientId(new RecipientAddress(serviceId));
+        if (cachedRecipientId != null) {
+            return cachedRecipientId;
+        }
         synchronized (recipientsLock) {
             final RecipientId recipientId;
             try (final var connection = database.getConnection()) {
@@ -180,7 +258,8 @@ public class RecipientStore implements RecipientIdCreator, RecipientResolver, Re
             } catch (SQLException e) {
                 throw new RuntimeException("Failed read recipient store", e);
             }
-            return recipientId;
+            publishChanges();
+            return cacheRecipient(recipientId);
         }
     }
 
@@ -196,6 +275,13 @@ public class RecipientStore implements RecipientIdCreator, RecipientResolver, Re
     public RecipientId resolveRecipient(
             final String number, Supplier<ServiceId> serviceIdSupplier
     ) throws UnregisteredRecipientException {
+        final var cachedRecipientId = getCachedRecipientId(new RecipientAddress(null, number));
+        if (cachedRecipientId != null) {
+            final var cachedAddress = addressCache.getAddress(cachedRecipientId.id());
+            if (cachedAddress != null && cachedAddress.serviceId().isPresent()) {
+                return cachedRecipientId;
+            }
+        }
         final Optional<RecipientWithAddress> byNumber;
         try (final var connection = database.getConnection()) {
             byNumber = findByNumber(connection, number);
@@ -215,6 +301,10 @@ public class RecipientStore implements RecipientIdCreator, RecipientResolver, Re
     }
 
     public RecipientId resolveRecipient(RecipientAddress address) {
+        final var cachedRecipientId = getCachedRecipientId(address);
+        if (cachedRecipientId != null) {
+            return cachedRecipientId;
+        }
         synchronized (recipientsLock) {
             final RecipientId recipientId;
             try (final var connection = database.getConnection()) {
@@ -224,7 +314,8 @@ public class RecipientStore implements RecipientIdCreator, RecipientResolver, Re
             } catch (SQLException e) {
                 throw new RuntimeException("Failed read recipient store", e);
             }
-            return recipientId;
+            publishChanges();
+            return cacheRecipient(recipientId);
         }
     }
 
@@ -261,7 +352,7 @@ public class RecipientStore implements RecipientIdCreator, RecipientResolver, Re
 
     @Override
     public Contact getContact(RecipientId recipientId) {
-        try (final var connection = database.getConnection()) {
+        try (final var connection = database.getReadConnection()) {
             return getContact(connection, recipientId);
         } catch (SQLException e) {
             throw new RuntimeException("Failed read from recipient store", e);
@@ -277,7 +368,7 @@ public class RecipientStore implements RecipientIdCreator, RecipientResolver, Re
                 WHERE (r.number IS NOT NULL OR r.uuid IS NOT NULL) AND %s
                 """
         ).formatted(TABLE_RECIPIENT, SQL_IS_CONTACT);
-        try (final var connection = database.getConnection()) {
+        try (final var connection = database.getReadConnection()) {
             try (final var statement = connection.prepareStatement(sql)) {
                 try (var result = Utils.executeQueryForStream(statement,
                         resultSet -> new Pair<>(getRecipientIdFromResultSet(resultSet),
@@ -290,6 +381,29 @@ public class RecipientStore implements RecipientIdCreator, RecipientResolver, Re
         }
     }
 
+    @Override
+    public Set<RecipientId> getContactRecipientIds(final Collection<RecipientId> recipientIds) {
+        if (recipientIds.isEmpty()) {
+            return Set.of();
+        }
+        final var sql = (
+                """
+                SELECT r._id
+                FROM %s r
+                WHERE r._id IN (%s) AND (%s)
+                """
+        ).formatted(TABLE_RECIPIENT, getRecipientIdsCommaSeparated(recipientIds), SQL_IS_CONTACT);
+        try (final var connection = database.getReadConnection()) {
+            try (final var statement = Utils.prepareUncachedStatement(connection, sql)) {
+                try (var result = Utils.executeQueryForStream(statement, this::getRecipientIdFromResultSet)) {
+                    return result.collect(Collectors.toSet());
+                }
+            }
+        } catch (SQLException e) {
+            throw new RuntimeException("Failed read from recipient store", e);
+        }
+    }
+
     public List<Recipient> getRecipients(
             boolean onlyContacts, Optional<Boolean> blocked, Set<RecipientId> recipientIds, Optional<String> name
     ) {
@@ -301,10 +415,7 @@ public class RecipientStore implements RecipientIdCreator, RecipientResolver, Re
             sqlWhere.add("r.blocked = ?");
         }
         if (!recipientIds.isEmpty()) {
-            final var recipientIdsCommaSeparated = recipientIds.stream()
-                    .map(recipientId -> String.valueOf(recipientId.id()))
-                    .collect(Collectors.joining(","));
-            sqlWhere.add("r._id IN (" + recipientIdsCommaSeparated + ")");
+            sqlWhere.add("r._id IN (" + getRecipientIdsCommaSeparated(recipientIds) + ")");
         }
         final var sql = (
                 """
@@ -317,8 +428,8 @@ public class RecipientStore implements RecipientIdCreator, RecipientResolver, Re
                 WHERE (r.number IS NOT NULL OR r.uuid IS NOT NULL) AND %s
                 """
         ).formatted(TABLE_RECIPIENT, sqlWhere.size() == 0 ? "TRUE" : String.join(" AND ", sqlWhere));
-        try (final var connection = database.getConnection()) {
-            try (final var statement = connection.prepareStatement(sql)) {
+        try (final var connection = database.getReadConnection()) {
+            try (final var statement = Utils.prepareUncachedStatement(connection, sql)) {
                 if (blocked.isPresent()) {
                     statement.setBoolean(1, blocked.get());
                 }
@@ -341,7 +452,7 @@ public class RecipientStore implements RecipientIdCreator, RecipientResolver, Re
                 WHERE r.uuid IS NOT NULL AND r.profile_key IS NOT NULL
                 """
         ).formatted(TABLE_RECIPIENT);
-        try (final var connection = database.getConnection()) {
+        try (final var connection = database.getReadConnection()) {
             try (final var statement = connection.prepareStatement(sql)) {
                 return Utils.executeQueryForStream(statement, resultSet -> {
                     final var serviceId = ServiceId.parseOrThrow(resultSet.getBytes("uuid"));
@@ -372,11 +483,12 @@ public class RecipientStore implements RecipientIdCreator, RecipientResolver, Re
         } catch (SQLException e) {
             throw new RuntimeException("Failed update recipient store", e);
         }
+        publishChanges();
     }
 
     @Override
     public Profile getProfile(final RecipientId recipientId) {
-        try (final var connection = database.getConnection()) {
+        try (final var connection = database.getReadConnection()) {
             return getProfile(connection, recipientId);
         } catch (SQLException e) {
             throw new RuntimeException("Failed read from recipient store", e);
@@ -385,16 +497,67 @@ public class RecipientStore implements RecipientIdCreator, RecipientResolver, Re
 
     @Override
     public ProfileKey getProfileKey(final RecipientId recipientId) {
-        try (final var connection = database.getConnection()) {
+        try (final var connection = database.getReadConnection()) {
             return getProfileKey(connection, recipientId);
         } catch (SQLException e) {
             throw new RuntimeException("Failed read from recipient store", e);
         }
     }
 
+    @Override
+    public Map<RecipientId, Profile> getProfiles(final Collection<RecipientId> recipientIds) {
+        if (recipientIds.isEmpty()) {
+            return Map.of();
+        }
+        final var sql = (
+                """
+                SELECT r._id, r.profile_last_update_timestamp, r.profile_given_name, r.profile_family_name, r.profile_about, r.profile_about_emoji, r.profile_avatar_url_path, r.profile_mobile_coin_address, r.profile_unidentified_access_mode, r.profile_capabilities
+                FROM %s r
+                WHERE r._id IN (%s) AND r.profile_capabilities IS NOT NULL
+                """
+        ).formatted(TABLE_RECIPIENT, getRecipientIdsCommaSeparated(recipientIds));
+        try (final var connection = database.getReadConnection()) {
+            try (final var statement = Utils.prepareUncachedStatement(connection, sql)) {
+                try (var result = Utils.executeQueryForStream(statement,
+                        resultSet -> new Pair<>(getRecipientIdFromResultSet(resultSet),
+                                getProfileFromResultSet(resultSet)))) {
+                    return result.collect(Collectors.toMap(Pair::first, Pair::second));
+                }
+            }
+        } catch (SQLException e) {
+            throw new RuntimeException("Failed read from recipient store", e);
+        }
+    }
+
+    @Override
+    public Map<RecipientId, ProfileKey> getProfileKeys(final Collection<RecipientId> recipientIds) {
+        if (recipientIds.isEmpty()) {
+            return Map.of();
+        }
+        final var sql = (
+                """
+                SELECT r._id, r.profile_key
+                FROM %s r
+                WHERE r._id IN (%s) AND r.profile_key IS NOT NULL
+                """
+        ).formatted(TABLE_RECIPIENT, getRecipientIdsCommaSeparated(recipientIds));
+        try (final var connection = database.getReadConnection()) {
+            try (final var statement = Utils.prepareUncachedStatement(connection, sql)) {
+                try (var result = Utils.executeQueryForStream(statement,
+                        resultSet -> new Pair<>(getRecipientIdFromResultSet(resultSet),
+                                getProfileKeyFromResultSet(resultSet)))) {
+                    return result.filter(p -> p.second() != null)
+                            .collect(Collectors.toMap(Pair::first, Pair::second));
+                }
+            }
+        } catch (SQLException e) {
+            throw new RuntimeException("Failed read from recipient store", e);
+        }
+    }
+
     @Override
     public ExpiringProfileKeyCredential getExpiringProfileKeyCredential(final RecipientId recipientId) {
-        try (final var connection = database.getConnection()) {
+        try (final var connection = database.getReadConnection()) {
             return getExpiringProfileKeyCredential(connection, recipientId);
         } catch (SQLException e) {
             throw new RuntimeException("Failed read from recipient store", e);
@@ -488,6 +651,7 @@ public class RecipientStore implements RecipientIdCreator, RecipientResolver, Re
         } catch (SQLException e) {
             throw new RuntimeException("Failed update recipient store", e);
         }
+        addressCache.clear();
         logger.debug("Complete recipients migration took {}ms", (System.nanoTime() - start) / 1000000);
     }
 
@@ -602,6 +766,15 @@ public class RecipientStore implements RecipientIdCreator, RecipientResolver, Re
     }
 
     private RecipientId resolveRecipientTrusted(RecipientAddress address, boolean isSelf) {
+        final var cachedRecipientId = getCachedRecipientId(address);
+        if (cachedRecipientId != null) {
+            final var cachedAddress = addressCache.getAddress(cachedRecipientId.id());
+            if (cachedAddress != null && cachedAddress.hasIdentifiersOf(address)) {
+                // The recipient already has all identifiers of the address, so nothing would be updated or merged
+                return cachedRecipientId;
+            }
+        }
+
         final Pair<RecipientId, List<RecipientId>> pair;
         synchronized (recipientsLock) {
             try (final var connection = database.getConnection()) {
@@ -633,7 +806,60 @@ public class RecipientStore implements RecipientIdCreator, RecipientResolver, Re
                 throw new RuntimeException("Failed update recipient store", e);
             }
         }
-        return pair.first();
+        publishChanges();
+        return cacheRecipient(pair.first());
+    }
+
+    /**
+     * Drops all cached recipient addresses, e.g. after a transaction with recipient changes has been rolled back.
+     */
+    public void invalidateCache() {
+        addressCache.clear();
+        changedRecipients.get().clear();
+        bypassCache.remove();
+    }
+
+    private boolean isCacheEnabled() {
+        return bypassCache.get() == null;
+    }
+
+    private RecipientId getCachedRecipientId(final RecipientAddress address) {
+        if (!isCacheEnabled()) {
+            return null;
+        }
+        final var recipientId = addressCache.getRecipientId(address);
+        return recipientId == null ? null : create(recipientId);
+    }
+
+    /**
+     * Adds the address of a resolved recipient to the cache, so the next lookup doesn't need the database.
+     */
+    private RecipientId cacheRecipient(final RecipientId recipientId) {
+        if (isCacheEnabled()) {
+            resolveRecipientAddress(recipientId);
+        }
+        return recipientId;
+    }
+
+    /**
+     * Invalidates the cached addresses of the recipients changed by the current thread.
+     * Must be called after the changes have been committed.
+     */
+    private void publishChanges() {
+        final var changed = changedRecipients.get();
+        if (changed.isEmpty()) {
+            return;
+        }
+        final var recipientIds = List.copyOf(changed);
+        changed.clear();
+        recipientIds.forEach(addressCache::invalidate);
+        // Inside a unit of work the changes only become visible to other threads with its commit, so they are
+        // invalidated again then, addresses cached until that time may still be the old ones
+        bypassCache.set(true);
+        database.runAfterCommit(() -> {
+            recipientIds.forEach(addressCache::invalidate);
+            bypassCache.remove();
+        });
     }
 
     private RecipientId resolveRecipientLocked(
@@ -711,6 +937,7 @@ public class RecipientStore implements RecipientIdCreator, RecipientResolver, Re
             final var generatedKeys = statement.getGeneratedKeys();
             if (generatedKeys.next()) {
                 final var recipientId = new RecipientId(generatedKeys.getLong(1), this);
+                changedRecipients.get().add(recipientId.id());
                 logger.debug("Added new recipient {} with address {}", recipientId, address);
                 return recipientId;
             } else {
@@ -731,6 +958,7 @@ public class RecipientStore implements RecipientIdCreator, RecipientResolver, Re
             statement.setLong(1, recipientId.id());
             statement.executeUpdate();
         }
+        changedRecipients.get().add(recipientId.id());
     }
 
     private void updateRecipientAddress(
@@ -750,6 +978,7 @@ public class RecipientStore implements RecipientIdCreator, RecipientResolver, Re
             statement.setLong(4, recipientId.id());
             statement.executeUpdate();
         }
+        changedRecipients.get().add(recipientId.id());
     }
 
     private void deleteRecipient(final Connection connection, final RecipientId recipientId) throws SQLException {
@@ -763,6 +992,7 @@ public class RecipientStore implements RecipientIdCreator, RecipientResolver, Re
             statement.setLong(1, recipientId.id());
             statement.executeUpdate();
         }
+        changedRecipients.get().add(recipientId.id());
     }
 
     private void mergeRecipientsLocked(
@@ -793,19 +1023,14 @@ public class RecipientStore implements RecipientIdCreator, RecipientResolver, Re
             storeProfile(connection, recipientId, toBeMergedProfile);
         }
 
+        changedRecipients.get().add(toBeMergedRecipientId.id());
         recipientsMerged.put(toBeMergedRecipientId.id(), recipientId.id());
     }
 
     private Optional<RecipientWithAddress> findByNumber(
             final Connection connection, final String number
     ) throws SQLException {
-        final var sql = """
-                        SELECT r._id, r.number, r.uuid, r.pni
-                        FROM %s r
-                        WHERE r.number = ?
-                        LIMIT 1
-                        """.formatted(TABLE_RECIPIENT);
-        try (final var statement = connection.prepareStatement(sql)) {
+        try (final var statement = connection.prepareStatement(SQL_SELECT_BY_NUMBER)) {
             statement.setString(1, number);
             return Utils.executeQueryForOptional(statement, this::getRecipientWithAddressFromResultSet);
         }
@@ -814,13 +1039,7 @@ public class RecipientStore implements RecipientIdCreator, RecipientResolver, Re
     private Optional<RecipientWithAddress> findByServiceId(
             final Connection connection, final ServiceId serviceId
     ) throws SQLException {
-        final var sql = """
-                        SELECT r._id, r.number, r.uuid, r.pni
-                        FROM %s r
-                        WHERE r.uuid = ? OR r.pni = ?
-                        LIMIT 1
-                        """.formatted(TABLE_RECIPIENT);
-        try (final var statement = connection.prepareStatement(sql)) {
+        try (final var statement = connection.prepareStatement(SQL_SELECT_BY_SERVICE_ID)) {
             statement.setBytes(1, UuidUtil.toByteArray(serviceId.uuid()));
             return Utils.executeQueryForOptional(statement, this::getRecipientWithAddressFromResultSet);
         }
@@ -829,14 +1048,7 @@ public class RecipientStore implements RecipientIdCreator, RecipientResolver, Re
     private Set<RecipientWithAddress> findAllByAddress(
             final Connection connection, final RecipientAddress address
     ) throws SQLException {
-        final var sql = """
-                        SELECT r._id, r.number, r.uuid, r.pni
-                        FROM %s r
-                        WHERE r.uuid = ?1 OR r.pni = ?1 OR
-                              r.uuid = ?2 OR r.pni = ?2 OR
-                              r.number = ?3
-                        """.formatted(TABLE_RECIPIENT);
-        try (final var statement = connection.prepareStatement(sql)) {
+        try (final var statement = connection.prepareStatement(SQL_SELECT_ALL_BY_ADDRESS)) {
             statement.setBytes(1, address.serviceId().map(ServiceId::uuid).map(UuidUtil::toByteArray).orElse(null));
             statement.setBytes(2, address.pni().map(ServiceId::uuid).map(UuidUtil::toByteArray).orElse(null));
             statement.setString(3, address.number().orElse(null));
@@ -846,28 +1058,14 @@ public class RecipientStore implements RecipientIdCreator, RecipientResolver, Re
     }
 
     private Contact getContact(final Connection connection, final RecipientId recipientId) throws SQLException {
-        final var sql = (
-                """
-                SELECT r.given_name, r.family_name, r.expiration_time, r.profile_sharing, r.color, r.blocked, r.archived
-                FROM %s r
-                WHERE r._id = ? AND (%s)
-                """
-        ).formatted(TABLE_RECIPIENT, SQL_IS_CONTACT);
-        try (final var statement = connection.prepareStatement(sql)) {
+        try (final var statement = connection.prepareStatement(SQL_SELECT_CONTACT)) {
             statement.setLong(1, recipientId.id());
             return Utils.executeQueryForOptional(statement, this::getContactFromResultSet).orElse(null);
         }
     }
 
     private ProfileKey getProfileKey(final Connection connection, final RecipientId recipientId) throws SQLException {
-        final var sql = (
-                """
-                SELECT r.profile_key
-                FROM %s r
-                WHERE r._id = ?
-                """
-        ).formatted(TABLE_RECIPIENT);
-        try (final var statement = connection.prepareStatement(sql)) {
+        try (final var statement = connection.prepareStatement(SQL_SELECT_PROFILE_KEY)) {
             statement.setLong(1, recipientId.id());
             return Utils.executeQueryForOptional(statement, this::getProfileKeyFromResultSet).orElse(null);
         }
@@ -876,14 +1074,7 @@ public class RecipientStore implements RecipientIdCreator, RecipientResolver, Re
     private ExpiringProfileKeyCredential getExpiringProfileKeyCredential(
             final Connection connection, final RecipientId recipientId
     ) throws SQLException {
-        final var sql = (
-                """
-                SELECT r.profile_key_credential
-                FROM %s r
-                WHERE r._id = ?
-                """
-        ).formatted(TABLE_RECIPIENT);
-        try (final var statement = connection.prepareStatement(sql)) {
+        try (final var statement = connection.prepareStatement(SQL_SELECT_PROFILE_KEY_CREDENTIAL)) {
             statement.setLong(1, recipientId.id());
             return Utils.executeQueryForOptional(statement, this::getExpiringProfileKeyCredentialFromResultSet)
                     .orElse(null);
@@ -891,19 +1082,19 @@ public class RecipientStore implements RecipientIdCreator, RecipientResolver, Re
     }
 
     private Profile getProfile(final Connection connection, final RecipientId recipientId) throws SQLException {
-        final var sql = (
-                """
-                SELECT r.profile_last_update_timestamp, r.profile_given_name, r.profile_family_name, r.profile_about, r.profile_about_emoji, r.profile_avatar_url_path, r.profile_mobile_coin_address, r.profile_unidentified_access_mode, r.profile_capabilities
-                FROM %s r
-                WHERE r._id = ? AND r.profile_capabilities IS NOT NULL
-                """
-        ).formatted(TABLE_RECIPIENT);
-        try (final var statement = connection.prepareStatement(sql)) {
+        try (final var statement = connection.prepareStatement(SQL_SELECT_PROFILE)) {
             statement.setLong(1, recipientId.id());
             return Utils.executeQueryForOptional(statement, this::getProfileFromResultSet).orElse(null);
         }
     }
 
+    private static String getRecipientIdsCommaSeparated(final Collection<RecipientId> recipientIds) {
+        return recipientIds.stream()
+                .map(recipientId -> String.valueOf(recipientId.id()))
+                .distinct()
+                .collect(Collectors.joining(","));
+    }
+
     private RecipientAddress getRecipientAddressFromResultSet(ResultSet resultSet) throws SQLException {
         final var serviceId = Optional.ofNullable(resultSet.getBytes("uuid")).map(ServiceId::parseOrNull);
         final var pni = Optional.ofNullable(resultSet.getBytes("pni")).map(PNI::parseOrNull);
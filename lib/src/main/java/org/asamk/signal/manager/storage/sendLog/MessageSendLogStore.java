@@ -1,5 +1,6 @@
 package org.asamk.signal.manager.storage.sendLog;
 
+import org.asamk.signal.manager.api.Pair;
 import org.asamk.signal.manager.groups.GroupId;
 import org.asamk.signal.manager.groups.GroupUtils;
 import org.asamk.signal.manager.storage.Database;
@@ -18,32 +19,48 @@ import java.sql.Connection;
 import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
+import java.util.NavigableSet;
 import java.util.Objects;
 import java.util.Optional;
-
+import java.util.concurrent.ConcurrentSkipListSet;
+import java.util.stream.Collectors;
+
+/**
+ * Content of sent messages, so they can be sent again to recipients that failed to decrypt them.
+ * <p>
+ * The log is partitioned into a pair of tables per time bucket of the sent timestamp. Lookups and deletes only touch
+ * the tables of a single bucket and outdated entries are removed by dropping the tables of whole buckets.
+ */
 public class MessageSendLogStore implements AutoCloseable {
 
     private static final Logger logger = LoggerFactory.getLogger(MessageSendLogStore.class);
 
-    private static final String TABLE_MESSAGE_SEND_LOG = "message_send_log";
-    private static final String TABLE_MESSAGE_SEND_LOG_CONTENT = "message_send_log_content";
+    private static final String TABLE_MESSAGE_SEND_LOG = "message_send_log_";
+    private static final String TABLE_MESSAGE_SEND_LOG_CONTENT = "message_send_log_content_";
 
     private static final Duration LOG_DURATION = Duration.ofDays(1);
+    private static final Duration BUCKET_DURATION = Duration.ofHours(1);
+    private static final int MAX_ROWS_PER_INSERT = 100;
 
     private final Database database;
     private final Thread cleanupThread;
     private final boolean sendLogDisabled;
+    // Buckets whose tables exist in the committed database
+    private final NavigableSet<Long> buckets = new ConcurrentSkipListSet<>();
 
     public MessageSendLogStore(final Database database, final boolean disableMessageSendLog) {
         this.database = database;
         this.sendLogDisabled = disableMessageSendLog;
+        loadBuckets();
         this.cleanupThread = new Thread(() -> {
             try {
-                final var interval = Duration.ofHours(1).toMillis();
+                final var interval = BUCKET_DURATION.toMillis();
                 while (!Thread.interrupted()) {
-                    try (final var connection = database.getConnection()) {
-                        deleteOutdatedEntries(connection);
+                    try {
+                        dropOutdatedBuckets();
                     } catch (SQLException e) {
                         logger.debug("MSL", e);
                         logger.warn("Deleting outdated entries failed");
@@ -60,44 +77,22 @@ public class MessageSendLogStore implements AutoCloseable {
         cleanupThread.start();
     }
 
-    public static void createSql(Connection connection) throws SQLException {
-        // When modifying the CREATE statement here, also add a migration in AccountDatabase.java
-        try (final var statement = connection.createStatement()) {
-            statement.executeUpdate("""
-                                    CREATE TABLE message_send_log (
-                                      _id INTEGER PRIMARY KEY,
-                                      content_id INTEGER NOT NULL REFERENCES message_send_log_content (_id) ON DELETE CASCADE,
-                                      uuid BLOB NOT NULL,
-                                      device_id INTEGER NOT NULL
-                                    ) STRICT;
-                                    CREATE TABLE message_send_log_content (
-                                      _id INTEGER PRIMARY KEY,
-                                      group_id BLOB,
-                                      timestamp INTEGER NOT NULL,
-                                      content BLOB NOT NULL,
-                                      content_hint INTEGER NOT NULL,
-                                      urgent INTEGER NOT NULL
-                                    ) STRICT;
-                                    CREATE INDEX mslc_timestamp_index ON message_send_log_content (timestamp);
-                                    CREATE INDEX msl_recipient_index ON message_send_log (uuid, device_id, content_id);
-                                    CREATE INDEX msl_content_index ON message_send_log (content_id);
-                                    """);
-        }
-    }
-
     public List<MessageSendLogEntry> findMessages(
             final ServiceId serviceId, final int deviceId, final long timestamp, final boolean isSenderKey
     ) {
+        // Outdated entries are dropped by the cleanup thread, until then they are just not returned anymore
+        final var bucket = getBucket(timestamp);
+        if (timestamp < getOutdatedTimestamp() || !buckets.contains(bucket)) {
+            return List.of();
+        }
         final var sql = """
-                        SELECT group_id, content, content_hint, urgent
+                        SELECT lc.group_id, lc.content, lc.content_hint, lc.urgent
                         FROM %s l
                              INNER JOIN %s lc ON l.content_id = lc._id
                         WHERE l.uuid = ? AND l.device_id = ? AND lc.timestamp = ?
-                        """.formatted(TABLE_MESSAGE_SEND_LOG, TABLE_MESSAGE_SEND_LOG_CONTENT);
-        try (final var connection = database.getConnection()) {
-            deleteOutdatedEntries(connection);
-
-            try (final var statement = connection.prepareStatement(sql)) {
+                        """.formatted(getLogTable(bucket), getContentTable(bucket));
+        try (final var connection = database.getReadConnection()) {
+            try (final var statement = Utils.prepareUncachedStatement(connection, sql)) {
                 statement.setBytes(1, serviceId.toByteArray());
                 statement.setInt(2, deviceId);
                 statement.setLong(3, timestamp);
@@ -131,65 +126,25 @@ public class MessageSendLogStore implements AutoCloseable {
                 urgent);
     }
 
-    public long insertIfPossible(
-            long sentTimestamp, List<SendMessageResult> sendMessageResults, ContentHint contentHint, boolean urgent
-    ) {
-        if (sendLogDisabled) {
-            return -1;
-        }
-        final var recipientDevices = sendMessageResults.stream()
-                .map(this::getRecipientDevices)
-                .filter(Objects::nonNull)
-                .toList();
-        if (recipientDevices.isEmpty()) {
-            return -1;
-        }
-
-        final var content = sendMessageResults.stream()
-                .filter(r -> r.isSuccess() && r.getSuccess().getContent().isPresent())
-                .map(r -> r.getSuccess().getContent().get())
-                .findFirst()
-                .get();
-
-        return insert(recipientDevices, sentTimestamp, content, contentHint, urgent);
-    }
-
-    public void addRecipientToExistingEntryIfPossible(final long contentId, final SendMessageResult sendMessageResult) {
-        if (sendLogDisabled) {
-            return;
-        }
-        final RecipientDevices recipientDevice = getRecipientDevices(sendMessageResult);
-        if (recipientDevice == null) {
-            return;
-        }
-
-        insertRecipientsForExistingContent(contentId, List.of(recipientDevice));
+    /**
+     * Creates a writer that adds the recipients of a message sent to multiple recipients in bulk.
+     * The writer must be closed once the message has been sent.
+     */
+    public MessageSendLogWriter createWriter(long sentTimestamp, ContentHint contentHint, boolean urgent) {
+        return new MessageSendLogWriter(this, sentTimestamp, contentHint, urgent);
     }
 
-    public void addRecipientToExistingEntryIfPossible(
-            final long contentId, final List<SendMessageResult> sendMessageResults
-    ) {
-        if (sendLogDisabled) {
-            return;
-        }
-        final var recipientDevices = sendMessageResults.stream()
-                .map(this::getRecipientDevices)
-                .filter(Objects::nonNull)
-                .toList();
-        if (recipientDevices.isEmpty()) {
+    public void deleteEntryForGroup(long sentTimestamp, GroupId groupId) {
+        final var bucket = getBucket(sentTimestamp);
+        if (!buckets.contains(bucket)) {
             return;
         }
-
-        insertRecipientsForExistingContent(contentId, recipientDevices);
-    }
-
-    public void deleteEntryForGroup(long sentTimestamp, GroupId groupId) {
         final var sql = """
                         DELETE FROM %s AS lc
                         WHERE lc.timestamp = ? AND lc.group_id = ?
-                        """.formatted(TABLE_MESSAGE_SEND_LOG_CONTENT);
+                        """.formatted(getContentTable(bucket));
         try (final var connection = database.getConnection()) {
-            try (final var statement = connection.prepareStatement(sql)) {
+            try (final var statement = Utils.prepareUncachedStatement(connection, sql)) {
                 statement.setLong(1, sentTimestamp);
                 statement.setBytes(2, groupId.serialize());
                 statement.executeUpdate();
@@ -200,19 +155,23 @@ public class MessageSendLogStore implements AutoCloseable {
     }
 
     public void deleteEntryForRecipientNonGroup(long sentTimestamp, ServiceId serviceId) {
+        final var bucket = getBucket(sentTimestamp);
+        if (!buckets.contains(bucket)) {
+            return;
+        }
         final var sql = """
                         DELETE FROM %s AS lc
                         WHERE lc.timestamp = ? AND lc.group_id IS NULL AND lc._id IN (SELECT content_id FROM %s l WHERE l.uuid = ?)
-                        """.formatted(TABLE_MESSAGE_SEND_LOG_CONTENT, TABLE_MESSAGE_SEND_LOG);
+                        """.formatted(getContentTable(bucket), getLogTable(bucket));
         try (final var connection = database.getConnection()) {
             connection.setAutoCommit(false);
-            try (final var statement = connection.prepareStatement(sql)) {
+            try (final var statement = Utils.prepareUncachedStatement(connection, sql)) {
                 statement.setLong(1, sentTimestamp);
                 statement.setBytes(2, serviceId.toByteArray());
                 statement.executeUpdate();
             }
 
-            deleteOrphanedLogContents(connection);
+            deleteOrphanedLogContents(connection, bucket);
             connection.commit();
         } catch (SQLException e) {
             logger.warn("Failed delete from message send log", e);
@@ -224,22 +183,31 @@ public class MessageSendLogStore implements AutoCloseable {
     }
 
     public void deleteEntriesForRecipient(List<Long> sentTimestamps, ServiceId serviceId, int deviceId) {
-        final var sql = """
-                        DELETE FROM %s AS l
-                        WHERE l.content_id IN (SELECT _id FROM %s lc WHERE lc.timestamp = ?) AND l.uuid = ? AND l.device_id = ?
-                        """.formatted(TABLE_MESSAGE_SEND_LOG, TABLE_MESSAGE_SEND_LOG_CONTENT);
+        final var timestampsByBucket = sentTimestamps.stream()
+                .filter(sentTimestamp -> buckets.contains(getBucket(sentTimestamp)))
+                .collect(Collectors.groupingBy(MessageSendLogStore::getBucket));
+        if (timestampsByBucket.isEmpty()) {
+            return;
+        }
         try (final var connection = database.getConnection()) {
             connection.setAutoCommit(false);
-            try (final var statement = connection.prepareStatement(sql)) {
-                for (final var sentTimestamp : sentTimestamps) {
-                    statement.setLong(1, sentTimestamp);
-                    statement.setBytes(2, serviceId.toByteArray());
-                    statement.setInt(3, deviceId);
-                    statement.executeUpdate();
+            for (final var entry : timestampsByBucket.entrySet()) {
+                final var bucket = entry.getKey();
+                final var sql = """
+                                DELETE FROM %s AS l
+                                WHERE l.content_id IN (SELECT _id FROM %s lc WHERE lc.timestamp = ?) AND l.uuid = ? AND l.device_id = ?
+                                """.formatted(getLogTable(bucket), getContentTable(bucket));
+                try (final var statement = Utils.prepareUncachedStatement(connection, sql)) {
+                    for (final var sentTimestamp : entry.getValue()) {
+                        statement.setLong(1, sentTimestamp);
+                        statement.setBytes(2, serviceId.toByteArray());
+                        statement.setInt(3, deviceId);
+                        statement.executeUpdate();
+                    }
                 }
-            }
 
-            deleteOrphanedLogContents(connection);
+                deleteOrphanedLogContents(connection, bucket);
+            }
             connection.commit();
         } catch (SQLException e) {
             logger.warn("Failed delete from message send log", e);
@@ -255,7 +223,11 @@ public class MessageSendLogStore implements AutoCloseable {
         }
     }
 
-    private RecipientDevices getRecipientDevices(final SendMessageResult sendMessageResult) {
+    boolean isSendLogDisabled() {
+        return sendLogDisabled;
+    }
+
+    static RecipientDevices getRecipientDevices(final SendMessageResult sendMessageResult) {
         if (sendMessageResult.isSuccess() && sendMessageResult.getSuccess().getContent().isPresent()) {
             final var serviceId = sendMessageResult.getAddress().getServiceId();
             return new RecipientDevices(serviceId, sendMessageResult.getSuccess().getDevices());
@@ -264,23 +236,31 @@ public class MessageSendLogStore implements AutoCloseable {
         }
     }
 
-    private long insert(
+    long insert(
             final List<RecipientDevices> recipientDevices,
             final long sentTimestamp,
             final SignalServiceProtos.Content content,
             final ContentHint contentHint,
             final boolean urgent
     ) {
+        if (sentTimestamp < getOutdatedTimestamp()) {
+            return -1;
+        }
         byte[] groupId = getGroupId(content);
 
+        final var bucket = getBucket(sentTimestamp);
         final var sql = """
                         INSERT INTO %s (timestamp, group_id, content, content_hint, urgent)
                         VALUES (?,?,?,?,?)
-                        """.formatted(TABLE_MESSAGE_SEND_LOG_CONTENT);
+                        """.formatted(getContentTable(bucket));
         try (final var connection = database.getConnection()) {
             connection.setAutoCommit(false);
+            final var isNewBucket = !buckets.contains(bucket);
+            if (isNewBucket) {
+                createBucketSql(connection, bucket);
+            }
             final long contentId;
-            try (final var statement = connection.prepareStatement(sql)) {
+            try (final var statement = Utils.prepareUncachedStatement(connection, sql)) {
                 statement.setLong(1, sentTimestamp);
                 statement.setBytes(2, groupId);
                 statement.setBytes(3, content.toByteArray());
@@ -298,9 +278,13 @@ public class MessageSendLogStore implements AutoCloseable {
                 logger.warn("Failed to insert message send log content");
                 return -1;
             }
-            insertRecipientsForExistingContent(contentId, recipientDevices, connection);
+            insertRecipientsForExistingContent(bucket, contentId, recipientDevices, connection);
 
             connection.commit();
+            if (isNewBucket) {
+                // Other connections can only query the new tables once they have been committed
+                database.runAfterCommit(() -> buckets.add(bucket));
+            }
             return contentId;
         } catch (SQLException e) {
             logger.warn("Failed to insert into message send log", e);
@@ -326,12 +310,14 @@ public class MessageSendLogStore implements AutoCloseable {
         }
     }
 
-    private void insertRecipientsForExistingContent(
-            final long contentId, final List<RecipientDevices> recipientDevices
+    void insertRecipientsForExistingContent(
+            final long sentTimestamp, final long contentId, final List<RecipientDevices> recipientDevices
     ) {
+        // The tables of the bucket have been created together with the content
+        final var bucket = getBucket(sentTimestamp);
         try (final var connection = database.getConnection()) {
             connection.setAutoCommit(false);
-            insertRecipientsForExistingContent(contentId, recipientDevices, connection);
+            insertRecipientsForExistingContent(bucket, contentId, recipientDevices, connection);
             connection.commit();
         } catch (SQLException e) {
             logger.warn("Failed to append recipients to message send log", e);
@@ -339,46 +325,124 @@ public class MessageSendLogStore implements AutoCloseable {
     }
 
     private void insertRecipientsForExistingContent(
-            final long contentId, final List<RecipientDevices> recipientDevices, final Connection connection
+            final long bucket,
+            final long contentId,
+            final List<RecipientDevices> recipientDevices,
+            final Connection connection
     ) throws SQLException {
-        final var sql = """
-                        INSERT INTO %s (uuid, device_id, content_id)
-                        VALUES (?,?,?)
-                        """.formatted(TABLE_MESSAGE_SEND_LOG);
-        try (final var statement = connection.prepareStatement(sql)) {
-            for (final var recipientDevice : recipientDevices) {
-                for (final var deviceId : recipientDevice.deviceIds()) {
-                    statement.setBytes(1, recipientDevice.serviceId().toByteArray());
-                    statement.setInt(2, deviceId);
-                    statement.setLong(3, contentId);
-                    statement.executeUpdate();
+        final var rows = new ArrayList<Pair<byte[], Integer>>();
+        for (final var recipientDevice : recipientDevices) {
+            final var serviceId = recipientDevice.serviceId().toByteArray();
+            for (final var deviceId : recipientDevice.deviceIds()) {
+                rows.add(new Pair<>(serviceId, deviceId));
+            }
+        }
+        for (var i = 0; i < rows.size(); i += MAX_ROWS_PER_INSERT) {
+            final var chunk = rows.subList(i, Math.min(i + MAX_ROWS_PER_INSERT, rows.size()));
+            final var values = String.join(",", Collections.nCopies(chunk.size(), "(?,?,?)"));
+            final var sql = """
+                            INSERT INTO %s (uuid, device_id, content_id)
+                            VALUES %s
+                            """.formatted(getLogTable(bucket), values);
+            try (final var statement = Utils.prepareUncachedStatement(connection, sql)) {
+                var parameterIndex = 1;
+                for (final var row : chunk) {
+                    statement.setBytes(parameterIndex++, row.first());
+                    statement.setInt(parameterIndex++, row.second());
+                    statement.setLong(parameterIndex++, contentId);
                 }
+                statement.executeUpdate();
             }
         }
     }
 
-    private void deleteOutdatedEntries(final Connection connection) throws SQLException {
+    private static void createBucketSql(final Connection connection, final long bucket) throws SQLException {
+        // When modifying the CREATE statement here, also add a migration of the existing buckets in AccountDatabase.java
+        try (final var statement = connection.createStatement()) {
+            statement.executeUpdate("""
+                                    CREATE TABLE IF NOT EXISTS message_send_log_content_%1$d (
+                                      _id INTEGER PRIMARY KEY,
+                                      group_id BLOB,
+                                      timestamp INTEGER NOT NULL,
+                                      content BLOB NOT NULL,
+                                      content_hint INTEGER NOT NULL,
+                                      urgent INTEGER NOT NULL
+                                    ) STRICT;
+                                    CREATE TABLE IF NOT EXISTS message_send_log_%1$d (
+                                      _id INTEGER PRIMARY KEY,
+                                      content_id INTEGER NOT NULL REFERENCES message_send_log_content_%1$d (_id) ON DELETE CASCADE,
+                                      uuid BLOB NOT NULL,
+                                      device_id INTEGER NOT NULL
+                                    ) STRICT;
+                                    CREATE INDEX IF NOT EXISTS mslc_timestamp_index_%1$d ON message_send_log_content_%1$d (timestamp);
+                                    CREATE INDEX IF NOT EXISTS msl_recipient_index_%1$d ON message_send_log_%1$d (uuid, device_id, content_id);
+                                    CREATE INDEX IF NOT EXISTS msl_content_index_%1$d ON message_send_log_%1$d (content_id);
+                                    """.formatted(bucket));
+        }
+    }
+
+    private void loadBuckets() {
         final var sql = """
-                        DELETE FROM %s
-                        WHERE timestamp < ?
+                        SELECT name
+                        FROM sqlite_master
+                        WHERE type = 'table' AND name GLOB '%s[0-9]*'
                         """.formatted(TABLE_MESSAGE_SEND_LOG_CONTENT);
-        try (final var statement = connection.prepareStatement(sql)) {
-            statement.setLong(1, System.currentTimeMillis() - LOG_DURATION.toMillis());
-            final var rowCount = statement.executeUpdate();
-            if (rowCount > 0) {
-                logger.debug("Removed {} outdated entries from the message send log", rowCount);
-            } else {
-                logger.trace("No outdated entries to be removed from message send log.");
+        try (final var connection = database.getReadConnection()) {
+            try (final var statement = connection.prepareStatement(sql)) {
+                try (var result = Utils.executeQueryForStream(statement, resultSet -> resultSet.getString("name"))) {
+                    result.map(name -> name.substring(TABLE_MESSAGE_SEND_LOG_CONTENT.length()))
+                            .map(Long::valueOf)
+                            .forEach(buckets::add);
+                }
+            }
+        } catch (SQLException e) {
+            logger.warn("Failed read from message send log", e);
+        }
+    }
+
+    private void dropOutdatedBuckets() throws SQLException {
+        // A bucket is only outdated once all its timestamps are older than the log duration
+        final var outdatedBuckets = List.copyOf(buckets.headSet(getBucket(getOutdatedTimestamp())));
+        if (outdatedBuckets.isEmpty()) {
+            logger.trace("No outdated entries to be removed from message send log.");
+            return;
+        }
+        try (final var connection = database.getConnection()) {
+            connection.setAutoCommit(false);
+            try (final var statement = connection.createStatement()) {
+                for (final var bucket : outdatedBuckets) {
+                    statement.executeUpdate("DROP TABLE IF EXISTS " + getLogTable(bucket));
+                    statement.executeUpdate("DROP TABLE IF EXISTS " + getContentTable(bucket));
+                }
             }
+            connection.commit();
         }
+        buckets.removeAll(outdatedBuckets);
+        logger.debug("Removed {} outdated buckets from the message send log", outdatedBuckets.size());
+    }
+
+    private static long getOutdatedTimestamp() {
+        return System.currentTimeMillis() - LOG_DURATION.toMillis();
+    }
+
+    private static long getBucket(final long timestamp) {
+        return Math.floorDiv(timestamp, BUCKET_DURATION.toMillis());
+    }
+
+    private static String getLogTable(final long bucket) {
+        return TABLE_MESSAGE_SEND_LOG + bucket;
+    }
+
+    private static String getContentTable(final long bucket) {
+        return TABLE_MESSAGE_SEND_LOG_CONTENT + bucket;
     }
 
-    private void deleteOrphanedLogContents(final Connection connection) throws SQLException {
+    private void deleteOrphanedLogContents(final Connection connection, final long bucket) throws SQLException {
         final var sql = """
                         DELETE FROM %s
                         WHERE _id NOT IN (SELECT content_id FROM %s)
-                        """.formatted(TABLE_MESSAGE_SEND_LOG_CONTENT, TABLE_MESSAGE_SEND_LOG);
-        try (final var statement = connection.prepareStatement(sql)) {
+                        """.formatted(getContentTable(bucket), getLogTable(bucket));
+        try (final var statement = Utils.prepareUncachedStatement(connection, sql)) {
             statement.executeUpdate();
         }
     }
@@ -397,5 +461,5 @@ public class MessageSendLogStore implements AutoCloseable {
         return new MessageSendLogEntry(groupId, content, contentHint, urgent);
     }
 
-    private record RecipientDevices(ServiceId serviceId, List<Integer> deviceIds) {}
+    record RecipientDevices(ServiceId serviceId, List<Integer> deviceIds) {}
 }
@@ -0,0 +1,82 @@
+package org.asamk.signal.manager.storage.sendLog;
+
+import org.whispersystems.signalservice.api.crypto.ContentHint;
+import org.whispersystems.signalservice.api.messages.SendMessageResult;
+import org.whispersystems.signalservice.internal.push.SignalServiceProtos;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Collects the recipients of one sent message and adds them to the message send log in a few bulk inserts.
+ * Recipients are written once enough of them have been collected and when the writer is closed.
+ */
+public class MessageSendLogWriter implements AutoCloseable {
+
+    private static final int FLUSH_THRESHOLD = 500;
+
+    private final MessageSendLogStore messageSendLogStore;
+    private final long sentTimestamp;
+    private final ContentHint contentHint;
+    private final boolean urgent;
+
+    private final List<MessageSendLogStore.RecipientDevices> pendingRecipients = new ArrayList<>();
+    private int pendingRows;
+    private SignalServiceProtos.Content content;
+    private long contentId = -1;
+
+    MessageSendLogWriter(
+            final MessageSendLogStore messageSendLogStore,
+            final long sentTimestamp,
+            final ContentHint contentHint,
+            final boolean urgent
+    ) {
+        this.messageSendLogStore = messageSendLogStore;
+        this.sentTimestamp = sentTimestamp;
+        this.contentHint = contentHint;
+        this.urgent = urgent;
+    }
+
+    public void add(final SendMessageResult sendMessageResult) {
+        add(List.of(sendMessageResult));
+    }
+
+    public synchronized void add(final List<SendMessageResult> sendMessageResults) {
+        if (messageSendLogStore.isSendLogDisabled()) {
+            return;
+        }
+        for (final var sendMessageResult : sendMessageResults) {
+            final var recipientDevices = MessageSendLogStore.getRecipientDevices(sendMessageResult);
+            if (recipientDevices == null) {
+                continue;
+            }
+            if (content == null) {
+                content = sendMessageResult.getSuccess().getContent().get();
+            }
+            pendingRecipients.add(recipientDevices);
+            pendingRows += recipientDevices.deviceIds().size();
+        }
+        if (pendingRows >= FLUSH_THRESHOLD) {
+            flush();
+        }
+    }
+
+    public synchronized void flush() {
+        if (pendingRecipients.isEmpty()) {
+            return;
+        }
+        final var recipientDevices = List.copyOf(pendingRecipients);
+        pendingRecipients.clear();
+        pendingRows = 0;
+        if (contentId == -1) {
+            contentId = messageSendLogStore.insert(recipientDevices, sentTimestamp, content, contentHint, urgent);
+        } else {
+            messageSendLogStore.insertRecipientsForExistingContent(sentTimestamp, contentId, recipientDevices);
+        }
+    }
+
+    @Override
+    public void close() {
+        flush();
+    }
+}
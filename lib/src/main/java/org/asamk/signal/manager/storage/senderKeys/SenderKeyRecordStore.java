@@ -23,6 +23,23 @@ public class SenderKeyRecordStore implements SenderKeyStore {
     private final static Logger logger = LoggerFactory.getLogger(SenderKeyRecordStore.class);
     private final static String TABLE_SENDER_KEY = "sender_key";
 
+    private static final String SQL_SELECT_SENDER_KEY = """
+            SELECT s.record
+            FROM %s AS s
+            WHERE s.uuid = ? AND s.device_id = ? AND s.distribution_id = ?
+            """.formatted(TABLE_SENDER_KEY);
+
+    private static final String SQL_UPDATE_SENDER_KEY = """
+            UPDATE %s
+            SET record = ?
+            WHERE uuid = ? AND device_id = ? and distribution_id = ?
+            """.formatted(TABLE_SENDER_KEY);
+
+    private static final String SQL_INSERT_SENDER_KEY = """
+            INSERT OR REPLACE INTO %s (uuid, device_id, distribution_id, record, created_timestamp)
+            VALUES (?, ?, ?, ?, ?)
+            """.formatted(TABLE_SENDER_KEY);
+
     private final Database database;
 
     public static void createSql(Connection connection) throws SQLException {
@@ -150,14 +167,7 @@ public class SenderKeyRecordStore implements SenderKeyStore {
     }
 
     private SenderKeyRecord loadSenderKey(final Connection connection, final Key key) throws SQLException {
-        final var sql = (
-                """
-                SELECT s.record
-                FROM %s AS s
-                WHERE s.uuid = ? AND s.device_id = ? AND s.distribution_id = ?
-                """
-        ).formatted(TABLE_SENDER_KEY);
-        try (final var statement = connection.prepareStatement(sql)) {
+        try (final var statement = connection.prepareStatement(SQL_SELECT_SENDER_KEY)) {
             statement.setBytes(1, key.serviceId().toByteArray());
             statement.setInt(2, key.deviceId());
             statement.setBytes(3, UuidUtil.toByteArray(key.distributionId()));
@@ -168,12 +178,7 @@ public class SenderKeyRecordStore implements SenderKeyStore {
     private void storeSenderKey(
             final Connection connection, final Key key, final SenderKeyRecord senderKeyRecord
     ) throws SQLException {
-        final var sqlUpdate = """
-                              UPDATE %s
-                              SET record = ?
-                              WHERE uuid = ? AND device_id = ? and distribution_id = ?
-                              """.formatted(TABLE_SENDER_KEY);
-        try (final var statement = connection.prepareStatement(sqlUpdate)) {
+        try (final var statement = connection.prepareStatement(SQL_UPDATE_SENDER_KEY)) {
             statement.setBytes(1, senderKeyRecord.serialize());
             statement.setBytes(2, key.serviceId().toByteArray());
             statement.setLong(3, key.deviceId());
@@ -185,13 +190,7 @@ public class SenderKeyRecordStore implements SenderKeyStore {
         }
 
         // Record doesn't exist yet, creating a new one
-        final var sqlInsert = (
-                """
-                INSERT OR REPLACE INTO %s (uuid, device_id, distribution_id, record, created_timestamp)
-                VALUES (?, ?, ?, ?, ?)
-                """
-        ).formatted(TABLE_SENDER_KEY);
-        try (final var statement = connection.prepareStatement(sqlInsert)) {
+        try (final var statement = connection.prepareStatement(SQL_INSERT_SENDER_KEY)) {
             statement.setBytes(1, key.serviceId().toByteArray());
             statement.setInt(2, key.deviceId());
             statement.setBytes(3, UuidUtil.toByteArray(key.distributionId()));
@@ -0,0 +1,107 @@
+package org.asamk.signal.manager.storage.sessions;
+
+import org.signal.libsignal.protocol.state.SessionRecord;
+import org.whispersystems.signalservice.api.push.ServiceId;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Size-bounded LRU cache for session records.
+ * The cache is split into stripes by service id, so all sessions of one recipient live in the same stripe and can be
+ * invalidated without touching the others.
+ */
+final class SessionCache {
+
+    private static final int STRIPE_COUNT = 16;
+
+    private final Stripe[] stripes;
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong evictions = new AtomicLong();
+
+    SessionCache(final int maxSize) {
+        final var stripeCapacity = Math.max(1, maxSize / STRIPE_COUNT);
+        this.stripes = new Stripe[STRIPE_COUNT];
+        for (var i = 0; i < STRIPE_COUNT; i++) {
+            stripes[i] = new Stripe(stripeCapacity);
+        }
+    }
+
+    SessionRecord get(final SessionStore.Key key) {
+        final var stripe = getStripe(key.serviceId());
+        final SessionRecord session;
+        synchronized (stripe) {
+            session = stripe.get(key);
+        }
+        if (session == null) {
+            misses.incrementAndGet();
+        } else {
+            hits.incrementAndGet();
+        }
+        return session;
+    }
+
+    void put(final SessionStore.Key key, final SessionRecord session) {
+        final var stripe = getStripe(key.serviceId());
+        synchronized (stripe) {
+            stripe.put(key, session);
+        }
+    }
+
+    void remove(final SessionStore.Key key) {
+        final var stripe = getStripe(key.serviceId());
+        synchronized (stripe) {
+            stripe.remove(key);
+        }
+    }
+
+    void removeAll(final ServiceId serviceId) {
+        final var stripe = getStripe(serviceId);
+        synchronized (stripe) {
+            stripe.keySet().removeIf(key -> key.serviceId().equals(serviceId));
+        }
+    }
+
+    void clear() {
+        for (final var stripe : stripes) {
+            synchronized (stripe) {
+                stripe.clear();
+            }
+        }
+    }
+
+    SessionStore.CacheStats getStats() {
+        var size = 0;
+        for (final var stripe : stripes) {
+            synchronized (stripe) {
+                size += stripe.size();
+            }
+        }
+        return new SessionStore.CacheStats(hits.get(), misses.get(), evictions.get(), size);
+    }
+
+    private Stripe getStripe(final ServiceId serviceId) {
+        return stripes[Math.floorMod(serviceId.hashCode(), STRIPE_COUNT)];
+    }
+
+    private final class Stripe extends LinkedHashMap<SessionStore.Key, SessionRecord> {
+
+        private final int capacity;
+
+        private Stripe(final int capacity) {
+            super(16, 0.75f, true);
+            this.capacity = capacity;
+        }
+
+        @Override
+        protected boolean removeEldestEntry(final Map.Entry<SessionStore.Key, SessionRecord> eldest) {
+            if (size() > capacity) {
+                evictions.incrementAndGet();
+                return true;
+            }
+            return false;
+        }
+    }
+}
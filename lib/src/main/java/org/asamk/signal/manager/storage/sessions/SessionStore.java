@@ -19,6 +19,7 @@ import org.whispersystems.signalservice.api.util.UuidUtil;
 import java.sql.Connection;
 import java.sql.ResultSet;
 import java.sql.SQLException;
+import java.time.Duration;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.HashMap;
@@ -26,17 +27,53 @@ import java.util.List;
 import java.util.Map;
 import java.util.Objects;
 import java.util.Set;
+import java.util.function.Predicate;
 import java.util.stream.Collectors;
 
-public class SessionStore implements SignalServiceSessionStore {
+public class SessionStore implements SignalServiceSessionStore, AutoCloseable {
 
     private static final String TABLE_SESSION = "session";
+
+    private static final String SQL_SELECT_SUB_DEVICES = """
+            SELECT s.device_id
+            FROM %s AS s
+            WHERE s.account_id_type = ? AND s.uuid = ? AND s.device_id != 1
+            """.formatted(TABLE_SESSION);
+
+    private static final String SQL_SELECT_SESSION = """
+            SELECT s.record
+            FROM %s AS s
+            WHERE s.account_id_type = ? AND s.uuid = ? AND s.device_id = ?
+            """.formatted(TABLE_SESSION);
+
+    private static final String SQL_INSERT_SESSION = """
+            INSERT OR REPLACE INTO %s (account_id_type, uuid, device_id, record)
+            VALUES (?, ?, ?, ?)
+            """.formatted(TABLE_SESSION);
+
+    private static final String SQL_DELETE_ALL_SESSIONS = """
+            DELETE FROM %s AS s
+            WHERE s.account_id_type = ? AND s.uuid = ?
+            """.formatted(TABLE_SESSION);
+
+    private static final String SQL_DELETE_SESSION = """
+            DELETE FROM %s AS s
+            WHERE s.account_id_type = ? AND s.uuid = ? AND s.device_id = ?
+            """.formatted(TABLE_SESSION);
+
     private final static Logger logger = LoggerFactory.getLogger(SessionStore.class);
 
-    private final Map<Key, SessionRecord> cachedSessions = new HashMap<>();
+    private static final int CACHE_SIZE = 4096;
+    private static final Duration WRITE_BEHIND_INTERVAL = Duration.ofMillis(500);
+
+    private final SessionCache cachedSessions = new SessionCache(CACHE_SIZE);
+    private final Map<Key, SessionRecord> pendingWrites = new HashMap<>();
+    private final ThreadLocal<UnitOfWork> unitOfWork = new ThreadLocal<>();
+    private final Object flushLock = new Object();
 
     private final Database database;
     private final int accountIdType;
+    private final Thread writeBehindThread;
 
     public static void createSql(Connection connection) throws SQLException {
         // When modifying the CREATE statement here, also add a migration in AccountDatabase.java
@@ -55,8 +92,34 @@ public class SessionStore implements SignalServiceSessionStore {
     }
 
     public SessionStore(final Database database, final ServiceIdType serviceIdType) {
+        this(database, serviceIdType, false);
+    }
+
+    /**
+     * @param writeBehind if true, stored sessions are only written to the cache and persisted in batches by a
+     *                    background thread. Repeated updates of the same session between two flushes are coalesced.
+     */
+    public SessionStore(final Database database, final ServiceIdType serviceIdType, final boolean writeBehind) {
         this.database = database;
         this.accountIdType = Utils.getAccountIdType(serviceIdType);
+        if (writeBehind) {
+            this.writeBehindThread = new Thread(() -> {
+                try {
+                    final var interval = WRITE_BEHIND_INTERVAL.toMillis();
+                    while (!Thread.interrupted()) {
+                        Thread.sleep(interval);
+                        flushPendingWrites();
+                    }
+                } catch (InterruptedException e) {
+                    logger.debug("Stopping session write-behind thread");
+                }
+            });
+            writeBehindThread.setName("session-write-behind");
+            writeBehindThread.setDaemon(true);
+            writeBehindThread.start();
+        } else {
+            this.writeBehindThread = null;
+        }
     }
 
     @Override
@@ -103,15 +166,9 @@ public class SessionStore implements SignalServiceSessionStore {
     public List<Integer> getSubDeviceSessions(String name) {
         final var serviceId = ServiceId.parseOrThrow(name);
         // get all sessions for recipient except primary device session
-        final var sql = (
-                """
-                SELECT s.device_id
-                FROM %s AS s
-                WHERE s.account_id_type = ? AND s.uuid = ? AND s.device_id != 1
-                """
-        ).formatted(TABLE_SESSION);
+        flushPendingWrites();
         try (final var connection = database.getConnection()) {
-            try (final var statement = connection.prepareStatement(sql)) {
+            try (final var statement = connection.prepareStatement(SQL_SELECT_SUB_DEVICES)) {
                 statement.setInt(1, accountIdType);
                 statement.setBytes(2, serviceId.toByteArray());
                 return Utils.executeQueryForStream(statement, res -> res.getInt("device_id")).toList();
@@ -139,6 +196,19 @@ public class SessionStore implements SignalServiceSessionStore {
     public void storeSession(SignalProtocolAddress address, SessionRecord session) {
         final var key = getKey(address);
 
+        if (writeBehindThread != null) {
+            cachedSessions.put(key, session);
+            final var unit = getUnitOfWork();
+            if (unit != null) {
+                unit.storedSessions.put(key, session);
+            } else {
+                synchronized (pendingWrites) {
+                    pendingWrites.put(key, session);
+                }
+            }
+            return;
+        }
+
         try (final var connection = database.getConnection()) {
             storeSession(connection, key, session);
         } catch (SQLException e) {
@@ -162,8 +232,12 @@ public class SessionStore implements SignalServiceSessionStore {
     public void deleteSession(SignalProtocolAddress address) {
         final var key = getKey(address);
 
+        // Always take the connection before the flush lock, the write-behind thread does the same
         try (final var connection = database.getConnection()) {
-            deleteSession(connection, key);
+            synchronized (flushLock) {
+                removePendingWrites(key::equals);
+                deleteSession(connection, key);
+            }
         } catch (SQLException e) {
             throw new RuntimeException("Failed update session store", e);
         }
@@ -176,8 +250,12 @@ public class SessionStore implements SignalServiceSessionStore {
     }
 
     public void deleteAllSessions(ServiceId serviceId) {
+        // Always take the connection before the flush lock, the write-behind thread does the same
         try (final var connection = database.getConnection()) {
-            deleteAllSessions(connection, serviceId);
+            synchronized (flushLock) {
+                removePendingWrites(key -> key.serviceId().equals(serviceId));
+                deleteAllSessions(connection, serviceId);
+            }
         } catch (SQLException e) {
             throw new RuntimeException("Failed update session store", e);
         }
@@ -191,6 +269,7 @@ public class SessionStore implements SignalServiceSessionStore {
 
         final var key = getKey(address);
 
+        flushPendingWrites();
         try (final var connection = database.getConnection()) {
             connection.setAutoCommit(false);
             final var session = loadSession(connection, key);
@@ -218,8 +297,9 @@ public class SessionStore implements SignalServiceSessionStore {
                 WHERE s.account_id_type = ? AND s.uuid IN (%s)
                 """
         ).formatted(TABLE_SESSION, serviceIdsCommaSeparated);
+        flushPendingWrites();
         try (final var connection = database.getConnection()) {
-            try (final var statement = connection.prepareStatement(sql)) {
+            try (final var statement = Utils.prepareUncachedStatement(connection, sql)) {
                 statement.setInt(1, accountIdType);
                 return Utils.executeQueryForStream(statement,
                                 res -> new Pair<>(getKeyFromResultSet(res), getSessionRecordFromResultSet(res)))
@@ -241,6 +321,7 @@ public class SessionStore implements SignalServiceSessionStore {
                 WHERE s.account_id_type = ?
                 """
         ).formatted(TABLE_SESSION);
+        flushPendingWrites();
         try (final var connection = database.getConnection()) {
             connection.setAutoCommit(false);
             final List<Pair<Key, SessionRecord>> records;
@@ -267,6 +348,7 @@ public class SessionStore implements SignalServiceSessionStore {
                 WHERE s.account_id_type = ? AND s.uuid = ?
                 """
         ).formatted(TABLE_SESSION);
+        flushPendingWrites();
         try (final var connection = database.getConnection()) {
             connection.setAutoCommit(false);
             final List<Pair<Key, SessionRecord>> records;
@@ -286,6 +368,85 @@ public class SessionStore implements SignalServiceSessionStore {
         }
     }
 
+    /**
+     * Drop all cached sessions, e.g. after a transaction that stored sessions has been rolled back.
+     * The sessions stored by the current thread's rolled back unit of work are discarded and the pending writes it
+     * removed are queued again.
+     */
+    public void invalidateCache() {
+        cachedSessions.clear();
+        final var unit = unitOfWork.get();
+        unitOfWork.remove();
+        if (unit != null && !unit.removedPendingWrites.isEmpty()) {
+            synchronized (pendingWrites) {
+                unit.removedPendingWrites.forEach(pendingWrites::putIfAbsent);
+            }
+        }
+    }
+
+    /**
+     * Persist all session updates that are still queued by the write-behind thread in a single transaction.
+     */
+    public void flushPendingWrites() {
+        if (writeBehindThread == null) {
+            return;
+        }
+        final var unit = unitOfWork.get();
+        synchronized (pendingWrites) {
+            if (pendingWrites.isEmpty() && (unit == null || unit.storedSessions.isEmpty())) {
+                return;
+            }
+        }
+        final Map<Key, SessionRecord> sessions;
+        try (final var connection = database.getConnection()) {
+            synchronized (flushLock) {
+                synchronized (pendingWrites) {
+                    final var allSessions = new HashMap<>(pendingWrites);
+                    if (unit != null) {
+                        // Written with the current unit of work, so they are rolled back together with it
+                        allSessions.putAll(unit.storedSessions);
+                    }
+                    sessions = Map.copyOf(allSessions);
+                }
+                final var inTransaction = !connection.getAutoCommit();
+                connection.setAutoCommit(false);
+                for (final var entry : sessions.entrySet()) {
+                    writeSession(connection, entry.getKey(), entry.getValue());
+                }
+                connection.commit();
+                if (!inTransaction) {
+                    // Sessions that have been updated again during the flush stay queued.
+                    // Inside an enclosing transaction they stay queued as well, as it may still be rolled back.
+                    synchronized (pendingWrites) {
+                        sessions.forEach((key, session) -> pendingWrites.remove(key, session));
+                    }
+                }
+            }
+        } catch (SQLException e) {
+            logger.warn("Failed to write pending sessions, retrying later: {}", e.getMessage());
+            return;
+        }
+        logger.trace("Flushed {} pending session updates", sessions.size());
+    }
+
+    @Override
+    public void close() {
+        if (writeBehindThread != null) {
+            writeBehindThread.interrupt();
+            try {
+                writeBehindThread.join();
+            } catch (InterruptedException ignored) {
+            }
+        }
+        flushPendingWrites();
+        final var stats = cachedSessions.getStats();
+        logger.debug("Session cache: {} hits, {} misses, {} evictions, {} cached sessions",
+                stats.hits(),
+                stats.misses(),
+                stats.evictions(),
+                stats.size());
+    }
+
     void addLegacySessions(final Collection<Pair<Key, SessionRecord>> sessions) {
         logger.debug("Migrating legacy sessions to database");
         long start = System.nanoTime();
@@ -307,24 +468,83 @@ public class SessionStore implements SignalServiceSessionStore {
     }
 
     private SessionRecord loadSession(Connection connection, final Key key) throws SQLException {
-        synchronized (cachedSessions) {
-            final var session = cachedSessions.get(key);
-            if (session != null) {
-                return session;
+        final var cachedSession = cachedSessions.get(key);
+        if (cachedSession != null) {
+            return cachedSession;
+        }
+        if (writeBehindThread != null) {
+            // The session may have been evicted from the cache before it was written
+            final var unit = unitOfWork.get();
+            final var storedSession = unit == null ? null : unit.storedSessions.get(key);
+            if (storedSession != null) {
+                cachedSessions.put(key, storedSession);
+                return storedSession;
+            }
+            synchronized (pendingWrites) {
+                final var pendingSession = pendingWrites.get(key);
+                if (pendingSession != null) {
+                    cachedSessions.put(key, pendingSession);
+                    return pendingSession;
+                }
             }
         }
-        final var sql = (
-                """
-                SELECT s.record
-                FROM %s AS s
-                WHERE s.account_id_type = ? AND s.uuid = ? AND s.device_id = ?
-                """
-        ).formatted(TABLE_SESSION);
-        try (final var statement = connection.prepareStatement(sql)) {
+        try (final var statement = connection.prepareStatement(SQL_SELECT_SESSION)) {
             statement.setInt(1, accountIdType);
             statement.setBytes(2, key.serviceId().toByteArray());
             statement.setInt(3, key.deviceId());
-            return Utils.executeQueryForOptional(statement, this::getSessionRecordFromResultSet).orElse(null);
+            final var session = Utils.executeQueryForOptional(statement, this::getSessionRecordFromResultSet)
+                    .orElse(null);
+            if (session != null) {
+                cachedSessions.put(key, session);
+            }
+            return session;
+        }
+    }
+
+    /**
+     * @return the changes of the current thread's unit of work, that are applied to the pending writes on commit, or
+     * null outside a unit of work.
+     */
+    private UnitOfWork getUnitOfWork() {
+        final var current = unitOfWork.get();
+        if (current != null) {
+            return current;
+        }
+        final var unit = new UnitOfWork();
+        unitOfWork.set(unit);
+        database.runAfterCommit(() -> {
+            if (unitOfWork.get() == unit) {
+                unitOfWork.remove();
+            }
+            synchronized (pendingWrites) {
+                pendingWrites.putAll(unit.storedSessions);
+            }
+        });
+        // Outside a unit of work the action has already run
+        return unitOfWork.get();
+    }
+
+    /**
+     * Removes the matching sessions from the pending writes, they are queued again if the unit of work is rolled back.
+     */
+    private void removePendingWrites(final Predicate<Key> filter) {
+        if (writeBehindThread == null) {
+            return;
+        }
+        final var removed = new HashMap<Key, SessionRecord>();
+        synchronized (pendingWrites) {
+            pendingWrites.entrySet().removeIf(entry -> {
+                if (filter.test(entry.getKey())) {
+                    removed.put(entry.getKey(), entry.getValue());
+                    return true;
+                }
+                return false;
+            });
+        }
+        final var unit = getUnitOfWork();
+        if (unit != null) {
+            unit.storedSessions.keySet().removeIf(filter);
+            removed.forEach(unit.removedPendingWrites::putIfAbsent);
         }
     }
 
@@ -347,15 +567,14 @@ public class SessionStore implements SignalServiceSessionStore {
     private void storeSession(
             final Connection connection, final Key key, final SessionRecord session
     ) throws SQLException {
-        synchronized (cachedSessions) {
-            cachedSessions.put(key, session);
-        }
+        cachedSessions.put(key, session);
+        writeSession(connection, key, session);
+    }
 
-        final var sql = """
-                        INSERT OR REPLACE INTO %s (account_id_type, uuid, device_id, record)
-                        VALUES (?, ?, ?, ?)
-                        """.formatted(TABLE_SESSION);
-        try (final var statement = connection.prepareStatement(sql)) {
+    private void writeSession(
+            final Connection connection, final Key key, final SessionRecord session
+    ) throws SQLException {
+        try (final var statement = connection.prepareStatement(SQL_INSERT_SESSION)) {
             statement.setInt(1, accountIdType);
             statement.setBytes(2, key.serviceId().toByteArray());
             statement.setInt(3, key.deviceId());
@@ -365,17 +584,9 @@ public class SessionStore implements SignalServiceSessionStore {
     }
 
     private void deleteAllSessions(final Connection connection, final ServiceId serviceId) throws SQLException {
-        synchronized (cachedSessions) {
-            cachedSessions.clear();
-        }
+        cachedSessions.removeAll(serviceId);
 
-        final var sql = (
-                """
-                DELETE FROM %s AS s
-                WHERE s.account_id_type = ? AND s.uuid = ?
-                """
-        ).formatted(TABLE_SESSION);
-        try (final var statement = connection.prepareStatement(sql)) {
+        try (final var statement = connection.prepareStatement(SQL_DELETE_ALL_SESSIONS)) {
             statement.setInt(1, accountIdType);
             statement.setBytes(2, serviceId.toByteArray());
             statement.executeUpdate();
@@ -383,17 +594,9 @@ public class SessionStore implements SignalServiceSessionStore {
     }
 
     private void deleteSession(Connection connection, final Key key) throws SQLException {
-        synchronized (cachedSessions) {
-            cachedSessions.remove(key);
-        }
+        cachedSessions.remove(key);
 
-        final var sql = (
-                """
-                DELETE FROM %s AS s
-                WHERE s.account_id_type = ? AND s.uuid = ? AND s.device_id = ?
-                """
-        ).formatted(TABLE_SESSION);
-        try (final var statement = connection.prepareStatement(sql)) {
+        try (final var statement = connection.prepareStatement(SQL_DELETE_SESSION)) {
             statement.setInt(1, accountIdType);
             statement.setBytes(2, key.serviceId().toByteArray());
             statement.setInt(3, key.deviceId());
@@ -408,4 +611,12 @@ public class SessionStore implements SignalServiceSessionStore {
     }
 
     record Key(ServiceId serviceId, int deviceId) {}
+
+    private static final class UnitOfWork {
+
+        private final Map<Key, SessionRecord> storedSessions = new HashMap<>();
+        private final Map<Key, SessionRecord> removedPendingWrites = new HashMap<>();
+    }
+
+    record CacheStats(long hits, long misses, long evictions, int size) {}
 }
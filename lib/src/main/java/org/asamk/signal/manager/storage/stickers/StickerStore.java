@@ -43,7 +43,7 @@ public class StickerStore {
                 FROM %s s
                 """
         ).formatted(TABLE_STICKER);
-        try (final var connection = database.getConnection()) {
+        try (final var connection = database.getReadConnection()) {
             try (final var statement = connection.prepareStatement(sql)) {
                 try (var result = Utils.executeQueryForStream(statement, this::getStickerPackFromResultSet)) {
                     return result.toList();
@@ -62,7 +62,7 @@ public class StickerStore {
                 WHERE s.pack_id = ?
                 """
         ).formatted(TABLE_STICKER);
-        try (final var connection = database.getConnection()) {
+        try (final var connection = database.getReadConnection()) {
             try (final var statement = connection.prepareStatement(sql)) {
                 statement.setBytes(1, packId.serialize());
                 return Utils.executeQueryForOptional(statement, this::getStickerPackFromResultSet).orElse(null);
@@ -8,109 +8,286 @@ import org.whispersystems.signalservice.api.push.SignalServiceAddress;
 import org.whispersystems.signalservice.api.util.UuidUtil;
 
 import com.fasterxml.jackson.databind.ObjectMapper;
-import com.fasterxml.jackson.databind.node.ObjectNode;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInput;
 import java.io.DataInputStream;
+import java.io.DataOutput;
 import java.io.DataOutputStream;
 import java.io.File;
-import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
+import java.nio.file.Files;
 import java.util.Optional;
+import java.util.UUID;
 
+/**
+ * Serializes envelopes for the message cache.
+ * <p>
+ * Since version 9 envelopes are stored in a compact binary format: numbers are written as variable length integers,
+ * UUIDs as 16 raw bytes and the content without any encoding. Older versions can still be read.
+ */
 public class MessageCacheUtils {
 
 	private final static Logger logger = LoggerFactory.getLogger(MessageCacheUtils.class);
 
-	final static int CURRENT_VERSION = 8;
+	final static int CURRENT_VERSION = 9;
+
+	private final static int FLAG_URGENT = 1;
+	private final static int FLAG_STORY = 1 << 1;
+	private final static int FLAG_HAS_CONTENT = 1 << 2;
+
+	private final static int STRING_ABSENT = 0;
+	private final static int STRING_UUID = 1;
+	private final static int STRING_UTF = 2;
+
+	private final static ObjectMapper jsonMapper = new ObjectMapper();
+	private final static ThreadLocal<EnvelopeWriter> writer = ThreadLocal.withInitial(EnvelopeWriter::new);
 
 	public static SignalServiceEnvelope loadEnvelope(File file) throws IOException {
-		try (var f = new FileInputStream(file)) {
-			var in = new DataInputStream(f);
-			var version = in.readInt();
-			logger.trace("Reading cached envelope file with version {} (current: {})", version, CURRENT_VERSION);
-			if (version > CURRENT_VERSION) {
-				logger.warn("Unsupported envelope version {} (current: {})", version, CURRENT_VERSION);
-				// Unsupported envelope version
-				return null;
-			}
-			var type = in.readInt();
-			var source = in.readUTF();
-			ServiceId sourceServiceId = null;
-			if (version >= 3) {
-				sourceServiceId = ServiceId.parseOrNull(in.readUTF());
-			}
-			var sourceDevice = in.readInt();
-			if (version == 1) {
-				// read legacy relay field
-				in.readUTF();
-			}
-			String destinationUuid = null;
-			if (version >= 5) {
-				destinationUuid = in.readUTF();
-			}
-			var timestamp = in.readLong();
-			byte[] content = null;
-			var contentLen = in.readInt();
-			if (contentLen > 0) {
-				content = new byte[contentLen];
-				in.readFully(content);
-			}
-			var legacyMessageLen = in.readInt();
-			if (legacyMessageLen > 0) {
-				byte[] legacyMessage = new byte[legacyMessageLen];
-				in.readFully(legacyMessage);
-			}
-			long serverReceivedTimestamp = 0;
-			String uuid = null;
-			if (version >= 2) {
-				serverReceivedTimestamp = in.readLong();
-				uuid = in.readUTF();
-				if ("".equals(uuid)) {
-					uuid = null;
-				}
-			}
-			long serverDeliveredTimestamp = 0;
-			if (version >= 4) {
-				serverDeliveredTimestamp = in.readLong();
-			}
-			boolean isUrgent = true;
-			if (version >= 6) {
-				isUrgent = in.readBoolean();
-			}
-			boolean isStory = true;
-			if (version >= 7) {
-				isStory = in.readBoolean();
-			}
-			String updatedPni = null;
-			if (version >= 8) {
-				updatedPni = in.readUTF();
-			}
-			Optional<SignalServiceAddress> addressOptional = sourceServiceId == null ? Optional.empty()
-					: Optional.of(new SignalServiceAddress(sourceServiceId, source));
-			return new SignalServiceEnvelope(type, addressOptional, sourceDevice, timestamp, content,
-					serverReceivedTimestamp, serverDeliveredTimestamp, uuid,
-					destinationUuid == null ? UuidUtil.UNKNOWN_UUID.toString() : destinationUuid, isUrgent, isStory,
-					null, updatedPni == null ? "" : updatedPni);
-		}
+		final var data = Files.readAllBytes(file.toPath());
+		return decodeEnvelope(data, 0, data.length);
 	}
 
 	public static void storeEnvelope(SignalServiceEnvelope envelope, File file) throws IOException {
-		ObjectMapper mapper = new ObjectMapper();
-		ObjectNode rootNode = mapper.createObjectNode();
+		final var writer = MessageCacheUtils.writer.get();
+		writer.write(envelope);
+		try (var f = new FileOutputStream(file)) {
+			writer.bytes.writeTo(f);
+		}
+	}
+
+	public static byte[] encodeEnvelope(SignalServiceEnvelope envelope) throws IOException {
+		final var writer = MessageCacheUtils.writer.get();
+		writer.write(envelope);
+		return writer.bytes.toByteArray();
+	}
+
+	public static SignalServiceEnvelope decodeEnvelope(byte[] data, int offset, int length) throws IOException {
+		return readEnvelope(new DataInputStream(new ByteArrayInputStream(data, offset, length)));
+	}
+
+	private static SignalServiceEnvelope readEnvelope(DataInputStream in) throws IOException {
+		var version = in.readInt();
+		logger.trace("Reading cached envelope with version {} (current: {})", version, CURRENT_VERSION);
+		if (version > CURRENT_VERSION || version < 1) {
+			logger.warn("Unsupported envelope version {} (current: {})", version, CURRENT_VERSION);
+			// Unsupported envelope version
+			return null;
+		}
+		if (version < 9) {
+			return readLegacyEnvelope(in, version);
+		}
+
+		var type = readVarInt(in);
+		var flags = in.readUnsignedByte();
+		var sourceServiceId = ServiceId.parseOrNull(readCompactString(in));
+		var sourceNumber = readCompactString(in);
+		var sourceDevice = readVarInt(in);
+		var destinationUuid = readCompactString(in);
+		var timestamp = readVarLong(in);
+		byte[] content = null;
+		var contentLen = readVarInt(in);
+		if ((flags & FLAG_HAS_CONTENT) != 0) {
+			content = new byte[contentLen];
+			in.readFully(content);
+		}
+		var serverReceivedTimestamp = readVarLong(in);
+		var serverDeliveredTimestamp = readVarLong(in);
+		var uuid = readCompactString(in);
+		var updatedPni = readCompactString(in);
+		Optional<SignalServiceAddress> addressOptional = sourceServiceId == null ? Optional.empty()
+				: Optional.of(new SignalServiceAddress(sourceServiceId, sourceNumber));
+		return new SignalServiceEnvelope(type, addressOptional, sourceDevice, timestamp, content,
+				serverReceivedTimestamp, serverDeliveredTimestamp, uuid,
+				destinationUuid == null ? UuidUtil.UNKNOWN_UUID.toString() : destinationUuid,
+				(flags & FLAG_URGENT) != 0, (flags & FLAG_STORY) != 0, null, updatedPni == null ? "" : updatedPni);
+	}
+
+	private static void writeEnvelope(SignalServiceEnvelope envelope, DataOutput out) throws IOException {
+		out.writeInt(CURRENT_VERSION);
+		writeVarLong(out, envelope.getType());
+		var flags = 0;
+		if (envelope.isUrgent()) {
+			flags |= FLAG_URGENT;
+		}
+		if (envelope.isStory()) {
+			flags |= FLAG_STORY;
+		}
+		if (envelope.hasContent()) {
+			flags |= FLAG_HAS_CONTENT;
+		}
+		out.writeByte(flags);
+		writeCompactString(out, envelope.getSourceUuid().orElse(null));
+		writeCompactString(out,
+				envelope.hasSourceUuid() ? envelope.getSourceAddress().getNumber().orElse(null) : null);
+		writeVarLong(out, envelope.getSourceDevice());
+		writeCompactString(out, envelope.getDestinationUuid());
+		writeVarLong(out, envelope.getTimestamp());
+		if (envelope.hasContent()) {
+			final var content = envelope.getContent();
+			writeVarLong(out, content.length);
+			out.write(content);
+		} else {
+			writeVarLong(out, 0);
+		}
+		writeVarLong(out, envelope.getServerReceivedTimestamp());
+		writeVarLong(out, envelope.getServerDeliveredTimestamp());
+		writeCompactString(out, envelope.getServerGuid());
+		writeCompactString(out, envelope.getUpdatedPni());
+	}
+
+	/**
+	 * Export the envelope as JSON, for processing by external tools, e.g. with a disconnected device.
+	 * The content is still encrypted and base64 encoded.
+	 */
+	public static void exportEnvelope(SignalServiceEnvelope envelope, File file) throws IOException {
+		final var rootNode = jsonMapper.createObjectNode();
 		rootNode.put("type", envelope.getType());
-		rootNode.put("from", envelope.getSourceAddress().getNumber().isPresent() ? envelope.getSourceAddress().getNumber().get() : "unknown");
+		rootNode.put("from", envelope.getSourceAddress().getNumber().orElse("unknown"));
 		rootNode.put("sourceUuid", envelope.getSourceUuid().isPresent() ? envelope.getSourceUuid().get() : "");
 		rootNode.put("sourceDevice", envelope.getSourceDevice());
 		rootNode.put("destinationUuid", envelope.getDestinationUuid() == null ? "" : envelope.getDestinationUuid());
 		rootNode.put("timestamp", envelope.getTimestamp());
-		rootNode.put("contentLength", envelope.getContent().length);
-		rootNode.put("content", envelope.getContent());
+		rootNode.put("contentLength", envelope.hasContent() ? envelope.getContent().length : 0);
+		rootNode.put("content", envelope.hasContent() ? envelope.getContent() : null);
 		rootNode.put("getServerReceivedTimestamp", envelope.getServerReceivedTimestamp());
 		rootNode.put("uuid", envelope.getServerGuid());
 		rootNode.put("getServerDeliveredTimestamp", envelope.getServerDeliveredTimestamp());
+		rootNode.put("isUrgent", envelope.isUrgent());
+		rootNode.put("isStory", envelope.isStory());
 		rootNode.put("updatedPni", envelope.getUpdatedPni() == null ? "" : envelope.getUpdatedPni());
-		mapper.writerWithDefaultPrettyPrinter().writeValue(file, rootNode);
-		System.out.println(file.getAbsolutePath());
+		jsonMapper.writerWithDefaultPrettyPrinter().writeValue(file, rootNode);
+	}
+
+	private static SignalServiceEnvelope readLegacyEnvelope(DataInputStream in, int version) throws IOException {
+		var type = in.readInt();
+		var source = in.readUTF();
+		ServiceId sourceServiceId = null;
+		if (version >= 3) {
+			sourceServiceId = ServiceId.parseOrNull(in.readUTF());
+		}
+		var sourceDevice = in.readInt();
+		if (version == 1) {
+			// read legacy relay field
+			in.readUTF();
+		}
+		String destinationUuid = null;
+		if (version >= 5) {
+			destinationUuid = in.readUTF();
+		}
+		var timestamp = in.readLong();
+		byte[] content = null;
+		var contentLen = in.readInt();
+		if (contentLen > 0) {
+			content = new byte[contentLen];
+			in.readFully(content);
+		}
+		var legacyMessageLen = in.readInt();
+		if (legacyMessageLen > 0) {
+			byte[] legacyMessage = new byte[legacyMessageLen];
+			in.readFully(legacyMessage);
+		}
+		long serverReceivedTimestamp = 0;
+		String uuid = null;
+		if (version >= 2) {
+			serverReceivedTimestamp = in.readLong();
+			uuid = in.readUTF();
+			if ("".equals(uuid)) {
+				uuid = null;
+			}
+		}
+		long serverDeliveredTimestamp = 0;
+		if (version >= 4) {
+			serverDeliveredTimestamp = in.readLong();
+		}
+		boolean isUrgent = true;
+		if (version >= 6) {
+			isUrgent = in.readBoolean();
+		}
+		boolean isStory = true;
+		if (version >= 7) {
+			isStory = in.readBoolean();
+		}
+		String updatedPni = null;
+		if (version >= 8) {
+			updatedPni = in.readUTF();
+		}
+		Optional<SignalServiceAddress> addressOptional = sourceServiceId == null ? Optional.empty()
+				: Optional.of(new SignalServiceAddress(sourceServiceId, source));
+		return new SignalServiceEnvelope(type, addressOptional, sourceDevice, timestamp, content,
+				serverReceivedTimestamp, serverDeliveredTimestamp, uuid,
+				destinationUuid == null ? UuidUtil.UNKNOWN_UUID.toString() : destinationUuid, isUrgent, isStory,
+				null, updatedPni == null ? "" : updatedPni);
+	}
+
+	private static void writeCompactString(DataOutput out, String value) throws IOException {
+		if (value == null) {
+			out.writeByte(STRING_ABSENT);
+			return;
+		}
+		final var uuid = UuidUtil.parseOrNull(value);
+		if (uuid != null && uuid.toString().equals(value)) {
+			out.writeByte(STRING_UUID);
+			out.writeLong(uuid.getMostSignificantBits());
+			out.writeLong(uuid.getLeastSignificantBits());
+		} else {
+			out.writeByte(STRING_UTF);
+			out.writeUTF(value);
+		}
+	}
+
+	private static String readCompactString(DataInput in) throws IOException {
+		final var kind = in.readUnsignedByte();
+		return switch (kind) {
+			case STRING_ABSENT -> null;
+			case STRING_UUID -> new UUID(in.readLong(), in.readLong()).toString();
+			case STRING_UTF -> in.readUTF();
+			default -> throw new IOException("Invalid string kind " + kind);
+		};
+	}
+
+	private static void writeVarLong(DataOutput out, long value) throws IOException {
+		while ((value & ~0x7FL) != 0) {
+			out.writeByte((int) ((value & 0x7F) | 0x80));
+			value >>>= 7;
+		}
+		out.writeByte((int) value);
+	}
+
+	private static long readVarLong(DataInput in) throws IOException {
+		var value = 0L;
+		for (var shift = 0; shift < 64; shift += 7) {
+			final var b = in.readUnsignedByte();
+			value |= (long) (b & 0x7F) << shift;
+			if ((b & 0x80) == 0) {
+				return value;
+			}
+		}
+		throw new IOException("Malformed variable length integer");
+	}
+
+	private static int readVarInt(DataInput in) throws IOException {
+		final var value = readVarLong(in);
+		if (value != (int) value) {
+			throw new IOException("Variable length integer out of range");
+		}
+		return (int) value;
+	}
+
+	/**
+	 * Reusable buffer, so encoding an envelope doesn't allocate a new stream every time.
+	 */
+	private static final class EnvelopeWriter {
+
+		private final ByteArrayOutputStream bytes = new ByteArrayOutputStream(1024);
+		private final DataOutputStream out = new DataOutputStream(bytes);
+
+		private void write(SignalServiceEnvelope envelope) throws IOException {
+			bytes.reset();
+			writeEnvelope(envelope, out);
+			out.flush();
+		}
 	}
 }
@@ -0,0 +1,145 @@
+package org.asamk.signal.manager.storage.groups;
+
+import org.asamk.signal.manager.groups.GroupUtils;
+import org.asamk.signal.manager.storage.AccountDatabase;
+import org.asamk.signal.manager.storage.StorageProfile;
+import org.asamk.signal.manager.storage.recipients.RecipientAddress;
+import org.asamk.signal.manager.storage.recipients.RecipientStore;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.signal.libsignal.zkgroup.InvalidInputException;
+import org.signal.libsignal.zkgroup.groups.GroupMasterKey;
+import org.signal.storageservice.protos.groups.local.DecryptedGroup;
+import org.whispersystems.signalservice.api.push.ServiceId;
+
+import java.io.File;
+import java.security.SecureRandom;
+import java.sql.SQLException;
+import java.util.UUID;
+import java.util.function.Supplier;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+class GroupStoreTest {
+
+    static final RecipientAddress SELF = new RecipientAddress(ServiceId.from(UUID.randomUUID()), "+4915100000000");
+
+    @TempDir
+    File tempDir;
+
+    private AccountDatabase database;
+    private RecipientStore recipientStore;
+    private GroupStore groupStore;
+
+    @BeforeEach
+    void setUp() throws SQLException {
+        database = AccountDatabase.init(new File(tempDir, "account.db"), StorageProfile.DEFAULT);
+        recipientStore = new RecipientStore((connection, recipientId, toBeMergedRecipientId) -> {
+        }, () -> SELF, database);
+        groupStore = new GroupStore(database, recipientStore, recipientStore);
+    }
+
+    @AfterEach
+    void tearDown() throws SQLException {
+        database.close();
+    }
+
+    @Test
+    void updatedGroupReplacesCachedGroup() throws InvalidInputException {
+        final var group = createGroup("Old title");
+        groupStore.updateGroup(group);
+
+        final var cachedGroup = getGroup(group);
+        assertEquals("Old title", cachedGroup.getTitle());
+
+        // Changing a returned group doesn't change the cached group, until it's stored
+        cachedGroup.setGroup(DecryptedGroup.newBuilder().setTitle("New title").build());
+        assertEquals("Old title", getGroup(group).getTitle());
+
+        groupStore.updateGroup(cachedGroup);
+        assertEquals("New title", getGroup(group).getTitle());
+    }
+
+    @Test
+    void deletedGroupIsRemovedFromCache() throws InvalidInputException {
+        final var group = createGroup("Title");
+        groupStore.updateGroup(group);
+        assertNotNull(getGroup(group));
+
+        groupStore.deleteGroup(group.getGroupId());
+
+        assertNull(groupStore.getGroup(group.getGroupId()));
+    }
+
+    @Test
+    void rolledBackGroupUpdateIsNotCached() throws InvalidInputException {
+        final var group = createGroup("Old title");
+        groupStore.updateGroup(group);
+        assertEquals("Old title", getGroup(group).getTitle());
+
+        assertThrows(IllegalStateException.class, () -> runInTransaction(() -> {
+            final var changedGroup = getGroup(group);
+            changedGroup.setGroup(DecryptedGroup.newBuilder().setTitle("New title").build());
+            groupStore.updateGroup(changedGroup);
+            assertEquals("New title", getGroup(group).getTitle());
+            throw new IllegalStateException("Roll back");
+        }));
+
+        assertEquals("Old title", getGroup(group).getTitle());
+    }
+
+    @Test
+    void staleLoadIsNotCachedAfterInvalidation() throws InvalidInputException {
+        final var cache = new GroupCache(recipientStore);
+        final var group = createGroup("Title");
+
+        // A load that read the database before the group was changed and invalidated
+        final var generation = cache.getGeneration();
+        cache.invalidate(group.getGroupId());
+        cache.put(generation, group);
+        assertNull(cache.get(group.getGroupId()));
+
+        final var clearedGeneration = cache.getGeneration();
+        cache.clear();
+        cache.put(clearedGeneration, group);
+        assertNull(cache.get(group.getGroupId()));
+
+        cache.put(cache.getGeneration(), group);
+        assertEquals("Title", cache.get(group.getGroupId()).getTitle());
+    }
+
+    private GroupInfoV2 getGroup(final GroupInfoV2 group) {
+        return (GroupInfoV2) groupStore.getGroup(group.getGroupId());
+    }
+
+    private GroupInfoV2 createGroup(final String title) throws InvalidInputException {
+        final var masterKeyBytes = new byte[GroupMasterKey.SIZE];
+        new SecureRandom().nextBytes(masterKeyBytes);
+        final var masterKey = new GroupMasterKey(masterKeyBytes);
+        final var group = new GroupInfoV2(GroupUtils.getGroupIdV2(masterKey), masterKey, recipientStore);
+        group.setGroup(DecryptedGroup.newBuilder().setTitle(title).build());
+        return group;
+    }
+
+    /**
+     * Same as SignalAccount.runInTransaction, the caches are invalidated if the unit of work is rolled back.
+     */
+    private <T> T runInTransaction(final Supplier<T> work) throws SQLException {
+        var committed = false;
+        try {
+            final var result = database.runInTransaction(work);
+            committed = true;
+            return result;
+        } finally {
+            if (!committed) {
+                recipientStore.invalidateCache();
+                groupStore.invalidateCache();
+            }
+        }
+    }
+}
@@ -0,0 +1,222 @@
+package org.asamk.signal.manager.storage.messageCache;
+
+import org.asamk.signal.manager.util.MessageCacheUtils;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.whispersystems.signalservice.api.messages.SignalServiceEnvelope;
+import org.whispersystems.signalservice.api.push.ServiceId;
+import org.whispersystems.signalservice.api.push.SignalServiceAddress;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Optional;
+import java.util.UUID;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class SegmentedLogMessageCacheTest {
+
+    @TempDir
+    File tempDir;
+
+    private SegmentedLogMessageCache cache;
+
+    @AfterEach
+    void tearDown() {
+        if (cache != null) {
+            cache.close();
+        }
+    }
+
+    @Test
+    void cachedMessagesRoundTrip() throws IOException {
+        cache = open();
+        final var first = createEnvelope(1000, new byte[]{1, 2, 3});
+        final var second = createEnvelope(2000, new byte[]{4, 5});
+        cache.cacheMessage(first, null);
+        cache.cacheMessage(second, null);
+
+        assertEnvelopes(List.of(first, second), cache);
+
+        reopen();
+        assertEnvelopes(List.of(first, second), cache);
+        assertNull(getCachedMessages(cache).get(0).getRawRecipientId());
+    }
+
+    @Test
+    void tornTailRecordIsDropped() throws IOException {
+        cache = open();
+        final var first = createEnvelope(1000, new byte[]{1, 2, 3});
+        cache.cacheMessage(first, null);
+        cache.cacheMessage(createEnvelope(2000, new byte[100]), null);
+        cache.close();
+
+        final var segment = getSegmentFile(0);
+        try (final var file = new RandomAccessFile(segment, "rw")) {
+            file.setLength(file.length() - 10);
+        }
+
+        cache = open();
+        assertEnvelopes(List.of(first), cache);
+
+        // New records are appended after the last complete record
+        final var third = createEnvelope(3000, new byte[]{6});
+        cache.cacheMessage(third, null);
+        reopen();
+        assertEnvelopes(List.of(first, third), cache);
+    }
+
+    @Test
+    void corruptTailRecordIsDropped() throws IOException {
+        cache = open();
+        final var first = createEnvelope(1000, new byte[]{1, 2, 3});
+        cache.cacheMessage(first, null);
+        cache.close();
+        final var validLength = getSegmentFile(0).length();
+        cache = open();
+        cache.cacheMessage(createEnvelope(2000, new byte[100]), null);
+        cache.close();
+
+        try (final var file = new RandomAccessFile(getSegmentFile(0), "rw")) {
+            file.seek(file.length() - 1);
+            final var lastByte = file.read();
+            file.seek(file.length() - 1);
+            file.write(lastByte ^ 0xff);
+        }
+
+        cache = open();
+        assertEnvelopes(List.of(first), cache);
+        assertEquals(validLength, getSegmentFile(0).length());
+    }
+
+    @Test
+    void deletedMessageStaysDeletedAfterRestart() throws IOException {
+        cache = open();
+        final var first = createEnvelope(1000, new byte[]{1});
+        final var deleted = cache.cacheMessage(createEnvelope(2000, new byte[]{2}), null);
+        cache.cacheMessage(first, null);
+        deleted.delete();
+        assertEnvelopes(List.of(first), cache);
+
+        reopen();
+        assertEnvelopes(List.of(first), cache);
+
+        // Ids aren't reused, so a new message isn't hidden by the old tombstone
+        final var third = createEnvelope(3000, new byte[]{3});
+        cache.cacheMessage(third, null);
+        reopen();
+        assertEnvelopes(List.of(first, third), cache);
+    }
+
+    @Test
+    void compactionKeepsLiveMessages() throws IOException {
+        cache = open();
+        // Fill more than one segment
+        final var content = new byte[64 * 1024];
+        final var cachedMessages = new ArrayList<CachedMessage>();
+        final var liveEnvelopes = new ArrayList<SignalServiceEnvelope>();
+        for (var i = 0; i < 80; i++) {
+            content[0] = (byte) i;
+            final var envelope = createEnvelope(i, content.clone());
+            final var cachedMessage = cache.cacheMessage(envelope, null);
+            if (i % 10 == 0) {
+                liveEnvelopes.add(envelope);
+            } else {
+                cachedMessages.add(cachedMessage);
+            }
+        }
+        assertTrue(getSegmentFile(1).exists());
+        cachedMessages.forEach(CachedMessage::delete);
+
+        cache.compact();
+
+        assertFalse(getSegmentFile(0).exists());
+        assertEnvelopes(liveEnvelopes, cache);
+        reopen();
+        assertEnvelopes(liveEnvelopes, cache);
+    }
+
+    @Test
+    void legacyMessagesAreImported() throws IOException {
+        final var legacyPath = new File(tempDir, "legacy");
+        final var withoutSender = createEnvelope(1000, new byte[]{1});
+        final var withSender = createEnvelope(2000, new byte[]{2});
+        assertNotNull(new FileMessageCache(legacyPath).cacheMessage(withoutSender, null));
+        final var senderPath = new File(legacyPath, "42");
+        assertTrue(senderPath.mkdirs());
+        // File names start with the time the message was received
+        final var fileName = (System.currentTimeMillis() + 1000) + "_2000";
+        MessageCacheUtils.storeEnvelope(withSender, new File(senderPath, fileName));
+
+        cache = new SegmentedLogMessageCache(getLogPath(), legacyPath);
+
+        final var cachedMessages = getCachedMessages(cache);
+        assertEnvelopes(List.of(withoutSender, withSender), cache);
+        assertNull(cachedMessages.get(0).getRawRecipientId());
+        assertEquals(Long.valueOf(42), cachedMessages.get(1).getRawRecipientId());
+        assertFalse(new FileMessageCache(legacyPath).getCachedMessages().iterator().hasNext());
+
+        reopen();
+        assertEnvelopes(List.of(withoutSender, withSender), cache);
+    }
+
+    private SegmentedLogMessageCache open() throws IOException {
+        return new SegmentedLogMessageCache(getLogPath(), null);
+    }
+
+    private void reopen() throws IOException {
+        cache.close();
+        cache = open();
+    }
+
+    private File getLogPath() {
+        return new File(tempDir, "log");
+    }
+
+    private File getSegmentFile(final long number) {
+        return new File(getLogPath(), String.format("%010d.log", number));
+    }
+
+    private static List<CachedMessage> getCachedMessages(final MessageCache cache) {
+        final var cachedMessages = new ArrayList<CachedMessage>();
+        cache.getCachedMessages().forEach(cachedMessages::add);
+        return cachedMessages;
+    }
+
+    private static void assertEnvelopes(final List<SignalServiceEnvelope> expected, final MessageCache cache) {
+        final var cachedMessages = getCachedMessages(cache);
+        assertEquals(expected.size(), cachedMessages.size());
+        for (var i = 0; i < expected.size(); i++) {
+            final var envelope = cachedMessages.get(i).loadEnvelope();
+            assertNotNull(envelope);
+            assertEquals(expected.get(i).getTimestamp(), envelope.getTimestamp());
+            assertEquals(expected.get(i).getSourceUuid(), envelope.getSourceUuid());
+            assertArrayEquals(expected.get(i).getContent(), envelope.getContent());
+        }
+    }
+
+    private static SignalServiceEnvelope createEnvelope(final long timestamp, final byte[] content) {
+        return new SignalServiceEnvelope(1,
+                Optional.of(new SignalServiceAddress(ServiceId.from(UUID.randomUUID()))),
+                1,
+                timestamp,
+                content,
+                timestamp + 100,
+                timestamp + 200,
+                UUID.randomUUID().toString(),
+                UUID.randomUUID().toString(),
+                true,
+                false,
+                null,
+                "");
+    }
+}
@@ -0,0 +1,145 @@
+package org.asamk.signal.manager.storage.recipients;
+
+import org.asamk.signal.manager.storage.AccountDatabase;
+import org.asamk.signal.manager.storage.StorageProfile;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.whispersystems.signalservice.api.push.ServiceId;
+
+import java.io.File;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+import java.util.function.Supplier;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class RecipientStoreTest {
+
+    static final ServiceId SERVICE_ID_A = ServiceId.from(UUID.randomUUID());
+    static final ServiceId SERVICE_ID_B = ServiceId.from(UUID.randomUUID());
+    static final String NUMBER_A = "+4915100000001";
+    static final RecipientAddress SELF = new RecipientAddress(ServiceId.from(UUID.randomUUID()), "+4915100000000");
+
+    @TempDir
+    File tempDir;
+
+    private AccountDatabase database;
+    private RecipientStore recipientStore;
+    private final List<Long> mergedRecipientIds = new ArrayList<>();
+
+    @BeforeEach
+    void setUp() throws SQLException {
+        database = AccountDatabase.init(new File(tempDir, "account.db"), StorageProfile.DEFAULT);
+        recipientStore = new RecipientStore((connection, recipientId, toBeMergedRecipientId) -> {
+            mergedRecipientIds.add(toBeMergedRecipientId.id());
+        }, () -> SELF, database);
+    }
+
+    @AfterEach
+    void tearDown() throws SQLException {
+        database.close();
+    }
+
+    @Test
+    void updatedAddressReplacesCachedAddress() {
+        final var recipientId = recipientStore.resolveRecipient(new RecipientAddress(SERVICE_ID_A));
+        assertTrue(recipientStore.resolveRecipientAddress(recipientId).number().isEmpty());
+
+        recipientStore.resolveRecipientTrusted(new RecipientAddress(SERVICE_ID_A, NUMBER_A));
+
+        assertEquals(NUMBER_A, recipientStore.resolveRecipientAddress(recipientId).number().orElse(null));
+        assertEquals(recipientId, recipientStore.resolveRecipient(NUMBER_A));
+    }
+
+    @Test
+    void numberMovedToOtherRecipientIsRemovedFromCache() {
+        final var previousRecipientId = recipientStore.resolveRecipientTrusted(new RecipientAddress(SERVICE_ID_A,
+                NUMBER_A));
+        assertEquals(previousRecipientId, recipientStore.resolveRecipient(NUMBER_A));
+
+        final var recipientId = recipientStore.resolveRecipientTrusted(new RecipientAddress(SERVICE_ID_B, NUMBER_A));
+
+        assertNotEquals(previousRecipientId, recipientId);
+        assertEquals(recipientId, recipientStore.resolveRecipient(NUMBER_A));
+        assertTrue(recipientStore.resolveRecipientAddress(previousRecipientId).number().isEmpty());
+    }
+
+    @Test
+    void mergedRecipientIsRemovedFromCache() {
+        final var recipientId = recipientStore.resolveRecipient(new RecipientAddress(SERVICE_ID_A));
+        final var numberRecipientId = recipientStore.resolveRecipient(NUMBER_A);
+        final var rawNumberRecipientId = numberRecipientId.id();
+        assertNotEquals(recipientId, numberRecipientId);
+
+        final var mergedRecipientId = recipientStore.resolveRecipientTrusted(new RecipientAddress(SERVICE_ID_A,
+                NUMBER_A));
+
+        assertEquals(recipientId, mergedRecipientId);
+        assertEquals(List.of(rawNumberRecipientId), mergedRecipientIds);
+        assertEquals(recipientId, recipientStore.resolveRecipient(NUMBER_A));
+        assertEquals(NUMBER_A, recipientStore.resolveRecipientAddress(recipientId).number().orElse(null));
+        // The merged recipient has been deleted, so its raw id must not be resolved from the cache anymore
+        assertNull(recipientStore.resolveRecipient(rawNumberRecipientId));
+    }
+
+    @Test
+    void rolledBackChangeIsNotCached() throws SQLException {
+        final var recipientId = recipientStore.resolveRecipient(new RecipientAddress(SERVICE_ID_A));
+        assertTrue(recipientStore.resolveRecipientAddress(recipientId).number().isEmpty());
+
+        assertThrows(IllegalStateException.class, () -> runInTransaction(() -> {
+            recipientStore.resolveRecipientTrusted(new RecipientAddress(SERVICE_ID_A, NUMBER_A));
+            assertEquals(NUMBER_A, recipientStore.resolveRecipientAddress(recipientId).number().orElse(null));
+            throw new IllegalStateException("Roll back");
+        }));
+
+        assertTrue(recipientStore.resolveRecipientAddress(recipientId).number().isEmpty());
+        assertNotEquals(recipientId, recipientStore.resolveRecipient(NUMBER_A));
+    }
+
+    @Test
+    void staleLoadIsNotCachedAfterInvalidation() {
+        final var cache = new RecipientAddressCache();
+        final var address = new RecipientAddress(SERVICE_ID_A, NUMBER_A);
+
+        // A load that read the database before the recipient was changed and invalidated
+        final var generation = cache.getGeneration();
+        cache.invalidate(1);
+        cache.put(generation, 1, address);
+        assertNull(cache.getAddress(1));
+        assertNull(cache.getRecipientId(address));
+
+        final var clearedGeneration = cache.getGeneration();
+        cache.clear();
+        cache.put(clearedGeneration, 1, address);
+        assertNull(cache.getAddress(1));
+
+        cache.put(cache.getGeneration(), 1, address);
+        assertEquals(address, cache.getAddress(1));
+        assertEquals(Long.valueOf(1), cache.getRecipientId(new RecipientAddress(null, NUMBER_A)));
+    }
+
+    /**
+     * Same as SignalAccount.runInTransaction, the caches are invalidated if the unit of work is rolled back.
+     */
+    private <T> T runInTransaction(final Supplier<T> work) throws SQLException {
+        var committed = false;
+        try {
+            final var result = database.runInTransaction(work);
+            committed = true;
+            return result;
+        } finally {
+            if (!committed) {
+                recipientStore.invalidateCache();
+            }
+        }
+    }
+}
@@ -0,0 +1,51 @@
+package org.asamk.signal.manager.util;
+
+import org.junit.jupiter.api.Test;
+import org.whispersystems.signalservice.api.messages.SignalServiceEnvelope;
+import org.whispersystems.signalservice.api.push.ServiceId;
+import org.whispersystems.signalservice.api.push.SignalServiceAddress;
+
+import java.io.IOException;
+import java.util.Optional;
+import java.util.UUID;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+class MessageCacheUtilsTest {
+
+    @Test
+    void encodedEnvelopeRoundTrips() throws IOException {
+        final var source = ServiceId.from(UUID.randomUUID());
+        final var envelope = new SignalServiceEnvelope(6,
+                Optional.of(new SignalServiceAddress(source, "+4915100000000")),
+                3,
+                1677000000000L,
+                new byte[]{1, 2, 3, 4},
+                1677000000100L,
+                1677000000200L,
+                UUID.randomUUID().toString(),
+                UUID.randomUUID().toString(),
+                false,
+                true,
+                null,
+                UUID.randomUUID().toString());
+
+        final var data = MessageCacheUtils.encodeEnvelope(envelope);
+        final var decoded = MessageCacheUtils.decodeEnvelope(data, 0, data.length);
+
+        assertEquals(envelope.getType(), decoded.getType());
+        assertEquals(envelope.getSourceUuid(), decoded.getSourceUuid());
+        assertEquals(envelope.getSourceAddress().getNumber(), decoded.getSourceAddress().getNumber());
+        assertEquals(envelope.getSourceDevice(), decoded.getSourceDevice());
+        assertEquals(envelope.getTimestamp(), decoded.getTimestamp());
+        assertArrayEquals(envelope.getContent(), decoded.getContent());
+        assertEquals(envelope.getServerReceivedTimestamp(), decoded.getServerReceivedTimestamp());
+        assertEquals(envelope.getServerDeliveredTimestamp(), decoded.getServerDeliveredTimestamp());
+        assertEquals(envelope.getServerGuid(), decoded.getServerGuid());
+        assertEquals(envelope.getDestinationUuid(), decoded.getDestinationUuid());
+        assertEquals(envelope.isUrgent(), decoded.isUrgent());
+        assertEquals(envelope.isStory(), decoded.isStory());
+        assertEquals(envelope.getUpdatedPni(), decoded.getUpdatedPni());
+    }
+}
@@ -29,7 +29,9 @@ import org.asamk.signal.manager.api.AccountCheckException;
 import org.asamk.signal.manager.api.NotRegisteredException;
 import org.asamk.signal.manager.config.ServiceConfig;
 import org.asamk.signal.manager.config.ServiceEnvironment;
+import org.asamk.signal.manager.storage.StorageProfile;
 import org.asamk.signal.manager.storage.identities.TrustNewIdentity;
+import org.asamk.signal.manager.storage.messageCache.MessageCacheBackend;
 import org.asamk.signal.output.JsonWriterImpl;
 import org.asamk.signal.output.OutputWriter;
 import org.asamk.signal.output.PlainTextWriterImpl;
@@ -106,6 +108,33 @@ public class App {
                 .help("Disable message send log (for resending messages that recipient couldn't decrypt)")
                 .action(Arguments.storeTrue());
 
+        parser.addArgument("--session-write-behind")
+                .help("Persist session updates in batches from a background thread instead of on every update")
+                .action(Arguments.storeTrue());
+
+        parser.addArgument("--storage-profile")
+                .help("Choose the storage profile of the account database.")
+                .type(Arguments.enumStringType(StorageProfileCli.class))
+                .setDefault(StorageProfileCli.DEFAULT);
+
+        parser.addArgument("--transaction-per-envelope")
+                .help("Handle each received message in a single database transaction")
+                .action(Arguments.storeTrue());
+
+        parser.addArgument("--message-cache")
+                .help("Choose how received messages are cached until they have been handled.")
+                .type(Arguments.enumStringType(MessageCacheBackendCli.class))
+                .setDefault(MessageCacheBackendCli.FILES);
+
+        parser.addArgument("--send-concurrency")
+                .help("Maximum number of recipients a message is sent to in parallel.")
+                .type(int.class)
+                .setDefault(1);
+
+        parser.addArgument("--background-attachment-downloads")
+                .help("Download attachments of received messages from a background queue")
+                .action(Arguments.storeTrue());
+
         var subparsers = parser.addSubparsers().title("subcommands").dest("command");
 
         Commands.getCommandSubparserAttachers().forEach((key, value) -> {
@@ -173,13 +202,30 @@ public class App {
                 : trustNewIdentityCli == TrustNewIdentityCli.ALWAYS ? TrustNewIdentity.ALWAYS : TrustNewIdentity.NEVER;
 
         final var disableSendLog = Boolean.TRUE.equals(ns.getBoolean("disable-send-log"));
+        final var sessionWriteBehind = Boolean.TRUE.equals(ns.getBoolean("session-write-behind"));
+        final var storageProfile = ns.<StorageProfileCli>get("storage-profile") == StorageProfileCli.WAL
+                ? StorageProfile.WAL
+                : StorageProfile.DEFAULT;
+        final var transactionPerEnvelope = Boolean.TRUE.equals(ns.getBoolean("transaction-per-envelope"));
+        final var messageCacheBackend = ns.<MessageCacheBackendCli>get("message-cache") == MessageCacheBackendCli.LOG
+                ? MessageCacheBackend.SEGMENTED_LOG
+                : MessageCacheBackend.FILES;
+        final var sendConcurrency = ns.getInt("send-concurrency");
+        final var backgroundAttachmentDownloads = Boolean.TRUE.equals(ns.getBoolean("background-attachment-downloads"));
 
         final SignalAccountFiles signalAccountFiles;
         try {
             signalAccountFiles = new SignalAccountFiles(configPath,
                     serviceEnvironment,
                     BaseConfig.USER_AGENT,
-                    new Settings(trustNewIdentity, disableSendLog));
+                    new Settings(trustNewIdentity,
+                            disableSendLog,
+                            sessionWriteBehind,
+                            storageProfile,
+                            transactionPerEnvelope,
+                            messageCacheBackend,
+                            sendConcurrency,
+                            backgroundAttachmentDownloads));
         } catch (IOException e) {
             throw new IOErrorException("Failed to read local accounts list", e);
         }
@@ -0,0 +1,16 @@
+package org.asamk.signal;
+
+public enum MessageCacheBackendCli {
+    FILES {
+        @Override
+        public String toString() {
+            return "files";
+        }
+    },
+    LOG {
+        @Override
+        public String toString() {
+            return "log";
+        }
+    },
+}
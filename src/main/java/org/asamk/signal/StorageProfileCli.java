@@ -0,0 +1,16 @@
+package org.asamk.signal;
+
+public enum StorageProfileCli {
+    DEFAULT {
+        @Override
+        public String toString() {
+            return "default";
+        }
+    },
+    WAL {
+        @Override
+        public String toString() {
+            return "wal";
+        }
+    },
+}
@@ -14,7 +14,9 @@ import org.asamk.signal.commands.exceptions.UserErrorException;
 import org.asamk.signal.dbus.DbusSignalControlImpl;
 import org.asamk.signal.dbus.DbusSignalImpl;
 import org.asamk.signal.http.HttpServerHandler;
+import org.asamk.signal.http.WebSocketConnection;
 import org.asamk.signal.json.JsonReceiveMessageHandler;
+import org.asamk.signal.jsonrpc.JsonRpcResponse;
 import org.asamk.signal.jsonrpc.SignalJsonRpcDispatcherHandler;
 import org.asamk.signal.manager.Manager;
 import org.asamk.signal.manager.MultiAccountManager;
@@ -39,6 +41,8 @@ import java.nio.channels.ServerSocketChannel;
 import java.nio.channels.SocketChannel;
 import java.nio.charset.StandardCharsets;
 import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Semaphore;
 import java.util.concurrent.atomic.AtomicInteger;
 import java.util.function.Consumer;
 
@@ -74,6 +78,13 @@ public class DaemonCommand implements MultiLocalCommand, LocalCommand {
                 .nargs("?")
                 .setConst("localhost:8080")
                 .help("Expose a JSON-RPC interface as http endpoint (default localhost:8080).");
+        subparser.addArgument("--websocket")
+                .nargs("?")
+                .setConst("localhost:8081")
+                .help("Expose a JSON-RPC interface as WebSocket endpoint (default localhost:8081).");
+        subparser.addArgument("--websocket-allowed-origin")
+                .nargs("+")
+                .help("Origins of web pages that may connect to the WebSocket endpoint, e.g. https://example.com");
         subparser.addArgument("--no-receive-stdout")
                 .help("Don’t print received messages to stdout.")
                 .action(Arguments.storeTrue());
@@ -90,6 +101,39 @@ public class DaemonCommand implements MultiLocalCommand, LocalCommand {
         subparser.addArgument("--send-read-receipts")
                 .help("Send read receipts for all incoming data messages (in addition to the default delivery receipts)")
                 .action(Arguments.storeTrue());
+        subparser.addArgument("--receive-batch-size")
+                .type(int.class)
+                .setDefault(1)
+                .help("Maximum number of already available messages to handle in a single database transaction.");
+        subparser.addArgument("--retry-concurrency")
+                .type(int.class)
+                .setDefault(1)
+                .help("Maximum number of senders whose cached messages are retried in parallel.");
+        subparser.addArgument("--handler-queue-size")
+                .type(int.class)
+                .setDefault(0)
+                .help("Number of received messages queued for each client, 0 to deliver messages directly.");
+        subparser.addArgument("--handler-overflow")
+                .help("Specify what happens when a client falls behind and its queue is full.")
+                .type(Arguments.enumStringType(HandlerOverflowMode.class))
+                .setDefault(HandlerOverflowMode.BLOCK);
+        subparser.addArgument("--max-concurrent-requests")
+                .type(int.class)
+                .setDefault(1)
+                .help("Maximum number of JSON-RPC requests of one connection or streamed HTTP request "
+                        + "that are handled in parallel.");
+        subparser.addArgument("--max-connections")
+                .type(int.class)
+                .setDefault(0)
+                .help("Maximum number of open connections per listening socket, 0 for no limit.");
+        subparser.addArgument("--http-threads")
+                .type(int.class)
+                .setDefault(10)
+                .help("Number of threads that handle HTTP requests.");
+        subparser.addArgument("--http-queue-size")
+                .type(int.class)
+                .setDefault(100)
+                .help("Maximum number of HTTP requests waiting for a free thread, further requests are rejected.");
     }
 
     @Override
@@ -107,8 +151,22 @@ public class DaemonCommand implements MultiLocalCommand, LocalCommand {
         final var ignoreAttachments = Boolean.TRUE.equals(ns.getBoolean("ignore-attachments"));
         final var ignoreStories = Boolean.TRUE.equals(ns.getBoolean("ignore-stories"));
         final var sendReadReceipts = Boolean.TRUE.equals(ns.getBoolean("send-read-receipts"));
-
-        m.setReceiveConfig(new ReceiveConfig(ignoreAttachments, ignoreStories, sendReadReceipts));
+        final var batchSize = ns.getInt("receive-batch-size");
+        final var retryConcurrency = ns.getInt("retry-concurrency");
+        final var handlerQueueSize = ns.getInt("handler-queue-size");
+        final var handlerOverflowPolicy = ns.<HandlerOverflowMode>get("handler-overflow").toPolicy();
+        final var maxConcurrentRequests = ns.getInt("max-concurrent-requests");
+        final var maxConnections = ns.getInt("max-connections");
+        final var httpThreads = ns.getInt("http-threads");
+        final var httpQueueSize = ns.getInt("http-queue-size");
+
+        m.setReceiveConfig(new ReceiveConfig(ignoreAttachments,
+                ignoreStories,
+                sendReadReceipts,
+                batchSize,
+                retryConcurrency,
+                handlerQueueSize,
+                handlerOverflowPolicy));
         addDefaultReceiveHandler(m, noReceiveStdOut ? null : outputWriter, receiveMode != ReceiveMode.ON_START);
 
         final Channel inheritedChannel;
@@ -116,7 +174,11 @@ public class DaemonCommand implements MultiLocalCommand, LocalCommand {
             inheritedChannel = System.inheritedChannel();
             if (inheritedChannel instanceof ServerSocketChannel serverChannel) {
                 logger.info("Using inherited socket: " + serverChannel.getLocalAddress());
-                runSocketSingleAccount(m, serverChannel, receiveMode == ReceiveMode.MANUAL);
+                runSocketSingleAccount(m,
+                        serverChannel,
+                        receiveMode == ReceiveMode.MANUAL,
+                        maxConcurrentRequests,
+                        maxConnections);
             }
         } catch (IOException e) {
             throw new IOErrorException("Failed to use inherited socket", e);
@@ -125,24 +187,48 @@ public class DaemonCommand implements MultiLocalCommand, LocalCommand {
         if (socketFile != null) {
             final var address = UnixDomainSocketAddress.of(socketFile.toPath());
             final var serverChannel = IOUtils.bindSocket(address);
-            runSocketSingleAccount(m, serverChannel, receiveMode == ReceiveMode.MANUAL);
+            runSocketSingleAccount(m,
+                    serverChannel,
+                    receiveMode == ReceiveMode.MANUAL,
+                    maxConcurrentRequests,
+                    maxConnections);
         }
         final var tcpAddress = ns.getString("tcp");
         if (tcpAddress != null) {
             final var address = IOUtils.parseInetSocketAddress(tcpAddress);
             final var serverChannel = IOUtils.bindSocket(address);
-            runSocketSingleAccount(m, serverChannel, receiveMode == ReceiveMode.MANUAL);
+            runSocketSingleAccount(m,
+                    serverChannel,
+                    receiveMode == ReceiveMode.MANUAL,
+                    maxConcurrentRequests,
+                    maxConnections);
         }
         final var httpAddress = ns.getString("http");
         if (httpAddress != null) {
             final var address = IOUtils.parseInetSocketAddress(httpAddress);
-            final var handler = new HttpServerHandler(address, m);
+            final var handler = new HttpServerHandler(address,
+                    m,
+                    httpThreads,
+                    httpQueueSize,
+                    maxConcurrentRequests);
             try {
                 handler.init();
             } catch (IOException ex) {
                 throw new IOErrorException("Failed to initialize HTTP Server", ex);
             }
         }
+        final var webSocketAddress = ns.getString("websocket");
+        if (webSocketAddress != null) {
+            final var address = IOUtils.parseInetSocketAddress(webSocketAddress);
+            final var serverChannel = IOUtils.bindSocket(address);
+            final List<String> allowedOrigins = ns.getList("websocket-allowed-origin");
+            runWebSocketSingleAccount(m,
+                    serverChannel,
+                    allowedOrigins == null ? Set.of() : Set.copyOf(allowedOrigins),
+                    receiveMode == ReceiveMode.MANUAL,
+                    maxConcurrentRequests,
+                    maxConnections);
+        }
         final var isDbusSystem = Boolean.TRUE.equals(ns.getBoolean("dbus-system"));
         if (isDbusSystem) {
             runDbusSingleAccount(m, true, receiveMode != ReceiveMode.ON_START);
@@ -153,6 +239,7 @@ public class DaemonCommand implements MultiLocalCommand, LocalCommand {
                         && socketFile == null
                         && tcpAddress == null
                         && httpAddress == null
+                        && webSocketAddress == null
                         && !(inheritedChannel instanceof ServerSocketChannel)
         )) {
             runDbusSingleAccount(m, false, receiveMode != ReceiveMode.ON_START);
@@ -182,8 +269,22 @@ public class DaemonCommand implements MultiLocalCommand, LocalCommand {
         final var ignoreAttachments = Boolean.TRUE.equals(ns.getBoolean("ignore-attachments"));
         final var ignoreStories = Boolean.TRUE.equals(ns.getBoolean("ignore-stories"));
         final var sendReadReceipts = Boolean.TRUE.equals(ns.getBoolean("send-read-receipts"));
-
-        final var receiveConfig = new ReceiveConfig(ignoreAttachments, ignoreStories, sendReadReceipts);
+        final var batchSize = ns.getInt("receive-batch-size");
+        final var retryConcurrency = ns.getInt("retry-concurrency");
+        final var handlerQueueSize = ns.getInt("handler-queue-size");
+        final var handlerOverflowPolicy = ns.<HandlerOverflowMode>get("handler-overflow").toPolicy();
+        final var maxConcurrentRequests = ns.getInt("max-concurrent-requests");
+        final var maxConnections = ns.getInt("max-connections");
+        final var httpThreads = ns.getInt("http-threads");
+        final var httpQueueSize = ns.getInt("http-queue-size");
+
+        final var receiveConfig = new ReceiveConfig(ignoreAttachments,
+                ignoreStories,
+                sendReadReceipts,
+                batchSize,
+                retryConcurrency,
+                handlerQueueSize,
+                handlerOverflowPolicy);
         c.getManagers().forEach(m -> {
             m.setReceiveConfig(receiveConfig);
             addDefaultReceiveHandler(m, noReceiveStdOut ? null : outputWriter, receiveMode != ReceiveMode.ON_START);
@@ -198,7 +299,11 @@ public class DaemonCommand implements MultiLocalCommand, LocalCommand {
             inheritedChannel = System.inheritedChannel();
             if (inheritedChannel instanceof ServerSocketChannel serverChannel) {
                 logger.info("Using inherited socket: " + serverChannel.getLocalAddress());
-                runSocketMultiAccount(c, serverChannel, receiveMode == ReceiveMode.MANUAL);
+                runSocketMultiAccount(c,
+                        serverChannel,
+                        receiveMode == ReceiveMode.MANUAL,
+                        maxConcurrentRequests,
+                        maxConnections);
             }
         } catch (IOException e) {
             throw new IOErrorException("Failed to use inherited socket", e);
@@ -207,24 +312,48 @@ public class DaemonCommand implements MultiLocalCommand, LocalCommand {
         if (socketFile != null) {
             final var address = UnixDomainSocketAddress.of(socketFile.toPath());
             final var serverChannel = IOUtils.bindSocket(address);
-            runSocketMultiAccount(c, serverChannel, receiveMode == ReceiveMode.MANUAL);
+            runSocketMultiAccount(c,
+                    serverChannel,
+                    receiveMode == ReceiveMode.MANUAL,
+                    maxConcurrentRequests,
+                    maxConnections);
         }
         final var tcpAddress = ns.getString("tcp");
         if (tcpAddress != null) {
             final var address = IOUtils.parseInetSocketAddress(tcpAddress);
             final var serverChannel = IOUtils.bindSocket(address);
-            runSocketMultiAccount(c, serverChannel, receiveMode == ReceiveMode.MANUAL);
+            runSocketMultiAccount(c,
+                    serverChannel,
+                    receiveMode == ReceiveMode.MANUAL,
+                    maxConcurrentRequests,
+                    maxConnections);
         }
         final var httpAddress = ns.getString("http");
         if (httpAddress != null) {
             final var address = IOUtils.parseInetSocketAddress(httpAddress);
-            final var handler = new HttpServerHandler(address, c);
+            final var handler = new HttpServerHandler(address,
+                    c,
+                    httpThreads,
+                    httpQueueSize,
+                    maxConcurrentRequests);
             try {
                 handler.init();
             } catch (IOException ex) {
                 throw new IOErrorException("Failed to initialize HTTP Server", ex);
             }
         }
+        final var webSocketAddress = ns.getString("websocket");
+        if (webSocketAddress != null) {
+            final var address = IOUtils.parseInetSocketAddress(webSocketAddress);
+            final var serverChannel = IOUtils.bindSocket(address);
+            final List<String> allowedOrigins = ns.getList("websocket-allowed-origin");
+            runWebSocketMultiAccount(c,
+                    serverChannel,
+                    allowedOrigins == null ? Set.of() : Set.copyOf(allowedOrigins),
+                    receiveMode == ReceiveMode.MANUAL,
+                    maxConcurrentRequests,
+                    maxConnections);
+        }
         final var isDbusSystem = Boolean.TRUE.equals(ns.getBoolean("dbus-system"));
         if (isDbusSystem) {
             runDbusMultiAccount(c, receiveMode != ReceiveMode.ON_START, true);
@@ -235,6 +364,7 @@ public class DaemonCommand implements MultiLocalCommand, LocalCommand {
                         && socketFile == null
                         && tcpAddress == null
                         && httpAddress == null
+                        && webSocketAddress == null
                         && !(inheritedChannel instanceof ServerSocketChannel)
         )) {
             runDbusMultiAccount(c, receiveMode != ReceiveMode.ON_START, false);
@@ -258,26 +388,78 @@ public class DaemonCommand implements MultiLocalCommand, LocalCommand {
     }
 
     private void runSocketSingleAccount(
-            final Manager m, final ServerSocketChannel serverChannel, final boolean noReceiveOnStart
+            final Manager m,
+            final ServerSocketChannel serverChannel,
+            final boolean noReceiveOnStart,
+            final int maxConcurrentRequests,
+            final int maxConnections
     ) {
-        runSocket(serverChannel, channel -> {
-            final var handler = getSignalJsonRpcDispatcherHandler(channel, noReceiveOnStart);
+        runSocket(serverChannel, maxConnections, DaemonCommand::rejectConnection, channel -> {
+            final var handler = getSignalJsonRpcDispatcherHandler(channel, noReceiveOnStart, maxConcurrentRequests);
             handler.handleConnection(m);
         });
     }
 
+    private void runWebSocketSingleAccount(
+            final Manager m,
+            final ServerSocketChannel serverChannel,
+            final Set<String> allowedOrigins,
+            final boolean noReceiveOnStart,
+            final int maxConcurrentRequests,
+            final int maxConnections
+    ) {
+        runSocket(serverChannel, maxConnections, WebSocketConnection::reject, channel -> {
+            final var handler = getWebSocketJsonRpcDispatcherHandler(channel,
+                    allowedOrigins,
+                    noReceiveOnStart,
+                    maxConcurrentRequests);
+            if (handler != null) {
+                handler.handleConnection(m);
+            }
+        });
+    }
+
     private void runSocketMultiAccount(
-            final MultiAccountManager c, final ServerSocketChannel serverChannel, final boolean noReceiveOnStart
+            final MultiAccountManager c,
+            final ServerSocketChannel serverChannel,
+            final boolean noReceiveOnStart,
+            final int maxConcurrentRequests,
+            final int maxConnections
     ) {
-        runSocket(serverChannel, channel -> {
-            final var handler = getSignalJsonRpcDispatcherHandler(channel, noReceiveOnStart);
+        runSocket(serverChannel, maxConnections, DaemonCommand::rejectConnection, channel -> {
+            final var handler = getSignalJsonRpcDispatcherHandler(channel, noReceiveOnStart, maxConcurrentRequests);
             handler.handleConnection(c);
         });
     }
 
+    private void runWebSocketMultiAccount(
+            final MultiAccountManager c,
+            final ServerSocketChannel serverChannel,
+            final Set<String> allowedOrigins,
+            final boolean noReceiveOnStart,
+            final int maxConcurrentRequests,
+            final int maxConnections
+    ) {
+        runSocket(serverChannel, maxConnections, WebSocketConnection::reject, channel -> {
+            final var handler = getWebSocketJsonRpcDispatcherHandler(channel,
+                    allowedOrigins,
+                    noReceiveOnStart,
+                    maxConcurrentRequests);
+            if (handler != null) {
+                handler.handleConnection(c);
+            }
+        });
+    }
+
     private static final AtomicInteger threadNumber = new AtomicInteger(0);
 
-    private void runSocket(final ServerSocketChannel serverChannel, Consumer<SocketChannel> socketHandler) {
+    private void runSocket(
+            final ServerSocketChannel serverChannel,
+            final int maxConnections,
+            final Consumer<SocketChannel> connectionRejector,
+            final Consumer<SocketChannel> socketHandler
+    ) {
+        final var connections = maxConnections > 0 ? new Semaphore(maxConnections) : null;
         final var thread = new Thread(() -> {
             while (true) {
                 final var connectionId = threadNumber.getAndIncrement();
@@ -286,7 +468,6 @@ public class DaemonCommand implements MultiLocalCommand, LocalCommand {
                 try {
                     channel = serverChannel.accept();
                     clientString = channel.getRemoteAddress() + " " + IOUtils.getUnixDomainPrincipal(channel);
-                    logger.info("Accepted new client connection {}: {}", connectionId, clientString);
                 } catch (IOException e) {
                     logger.error("Failed to accept new socket connection", e);
                     synchronized (this) {
@@ -294,6 +475,14 @@ public class DaemonCommand implements MultiLocalCommand, LocalCommand {
                     }
                     break;
                 }
+                if (connections != null && !connections.tryAcquire()) {
+                    logger.warn("Rejected client connection {}, too many open connections: {}",
+                            connectionId,
+                            clientString);
+                    connectionRejector.accept(channel);
+                    continue;
+                }
+                logger.info("Accepted new client connection {}: {}", connectionId, clientString);
                 final var connectionThread = new Thread(() -> {
                     try (final var c = channel) {
                         socketHandler.accept(c);
@@ -301,6 +490,10 @@ public class DaemonCommand implements MultiLocalCommand, LocalCommand {
                         logger.warn("Failed to close channel", e);
                     } catch (Throwable e) {
                         logger.warn("Connection handler failed, closing connection", e);
+                    } finally {
+                        if (connections != null) {
+                            connections.release();
+                        }
                     }
                     logger.info("Connection {} closed: {}", connectionId, clientString);
                 });
@@ -312,13 +505,52 @@ public class DaemonCommand implements MultiLocalCommand, LocalCommand {
         thread.start();
     }
 
+    private static void rejectConnection(final SocketChannel channel) {
+        try (channel) {
+            final var jsonOutputWriter = new JsonWriterImpl(Channels.newWriter(channel, StandardCharsets.UTF_8));
+            final var error = new JsonRpcResponse.Error(JsonRpcResponse.Error.SERVER_OVERLOADED,
+                    "Too many open connections, try again later.",
+                    null);
+            jsonOutputWriter.write(JsonRpcResponse.forError(error, null));
+        } catch (IOException | AssertionError e) {
+            // JsonWriterImpl wraps write errors in an AssertionError, the client may already be gone
+            logger.debug("Failed to reject client connection: {}", e.getMessage());
+        }
+    }
+
+    private SignalJsonRpcDispatcherHandler getWebSocketJsonRpcDispatcherHandler(
+            final SocketChannel c,
+            final Set<String> allowedOrigins,
+            final boolean noReceiveOnStart,
+            final int maxConcurrentRequests
+    ) {
+        final WebSocketConnection webSocket;
+        try {
+            webSocket = WebSocketConnection.accept(c, allowedOrigins);
+        } catch (IOException e) {
+            logger.warn("Failed to accept WebSocket connection: {}", e.getMessage());
+            return null;
+        }
+        if (webSocket == null) {
+            return null;
+        }
+
+        return new SignalJsonRpcDispatcherHandler(webSocket.getJsonWriter(),
+                webSocket.getMessageSupplier(),
+                noReceiveOnStart,
+                maxConcurrentRequests);
+    }
+
     private SignalJsonRpcDispatcherHandler getSignalJsonRpcDispatcherHandler(
-            final SocketChannel c, final boolean noReceiveOnStart
+            final SocketChannel c, final boolean noReceiveOnStart, final int maxConcurrentRequests
     ) {
         final var lineSupplier = IOUtils.getLineSupplier(Channels.newReader(c, StandardCharsets.UTF_8));
         final var jsonOutputWriter = new JsonWriterImpl(Channels.newWriter(c, StandardCharsets.UTF_8));
 
-        return new SignalJsonRpcDispatcherHandler(jsonOutputWriter, lineSupplier, noReceiveOnStart);
+        return new SignalJsonRpcDispatcherHandler(jsonOutputWriter,
+                lineSupplier,
+                noReceiveOnStart,
+                maxConcurrentRequests);
     }
 
     private void runDbusSingleAccount(
@@ -0,0 +1,32 @@
+package org.asamk.signal.commands;
+
+import org.asamk.signal.manager.api.ReceiveHandlerOverflowPolicy;
+
+enum HandlerOverflowMode {
+    BLOCK {
+        @Override
+        public String toString() {
+            return "block";
+        }
+    },
+    DROP_OLDEST {
+        @Override
+        public String toString() {
+            return "drop-oldest";
+        }
+    },
+    DISCONNECT {
+        @Override
+        public String toString() {
+            return "disconnect";
+        }
+    };
+
+    ReceiveHandlerOverflowPolicy toPolicy() {
+        return switch (this) {
+            case BLOCK -> ReceiveHandlerOverflowPolicy.BLOCK;
+            case DROP_OLDEST -> ReceiveHandlerOverflowPolicy.DROP_OLDEST;
+            case DISCONNECT -> ReceiveHandlerOverflowPolicy.DISCONNECT;
+        };
+    }
+}
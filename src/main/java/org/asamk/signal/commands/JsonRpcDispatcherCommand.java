@@ -40,6 +40,26 @@ public class JsonRpcDispatcherCommand implements LocalCommand {
         subparser.addArgument("--send-read-receipts")
                 .help("Send read receipts for all incoming data messages (in addition to the default delivery receipts)")
                 .action(Arguments.storeTrue());
+        subparser.addArgument("--receive-batch-size")
+                .type(int.class)
+                .setDefault(1)
+                .help("Maximum number of already available messages to handle in a single database transaction.");
+        subparser.addArgument("--retry-concurrency")
+                .type(int.class)
+                .setDefault(1)
+                .help("Maximum number of senders whose cached messages are retried in parallel.");
+        subparser.addArgument("--handler-queue-size")
+                .type(int.class)
+                .setDefault(0)
+                .help("Number of received messages queued for each client, 0 to deliver messages directly.");
+        subparser.addArgument("--handler-overflow")
+                .help("Specify what happens when a client falls behind and its queue is full.")
+                .type(Arguments.enumStringType(HandlerOverflowMode.class))
+                .setDefault(HandlerOverflowMode.BLOCK);
+        subparser.addArgument("--max-concurrent-requests")
+                .type(int.class)
+                .setDefault(1)
+                .help("Maximum number of JSON-RPC requests of one connection that are handled in parallel.");
     }
 
     @Override
@@ -54,13 +74,27 @@ public class JsonRpcDispatcherCommand implements LocalCommand {
         final var ignoreAttachments = Boolean.TRUE.equals(ns.getBoolean("ignore-attachments"));
         final var ignoreStories = Boolean.TRUE.equals(ns.getBoolean("ignore-stories"));
         final var sendReadReceipts = Boolean.TRUE.equals(ns.getBoolean("send-read-receipts"));
-        m.setReceiveConfig(new ReceiveConfig(ignoreAttachments, ignoreStories, sendReadReceipts));
+        final var batchSize = ns.getInt("receive-batch-size");
+        final var retryConcurrency = ns.getInt("retry-concurrency");
+        final var handlerQueueSize = ns.getInt("handler-queue-size");
+        final var handlerOverflowPolicy = ns.<HandlerOverflowMode>get("handler-overflow").toPolicy();
+        final var maxConcurrentRequests = ns.getInt("max-concurrent-requests");
+        m.setReceiveConfig(new ReceiveConfig(ignoreAttachments,
+                ignoreStories,
+                sendReadReceipts,
+                batchSize,
+                retryConcurrency,
+                handlerQueueSize,
+                handlerOverflowPolicy));
 
         final var jsonOutputWriter = (JsonWriter) outputWriter;
         final Supplier<String> lineSupplier = IOUtils.getLineSupplier(new InputStreamReader(System.in,
                 IOUtils.getConsoleCharset()));
 
-        final var handler = new SignalJsonRpcDispatcherHandler(jsonOutputWriter, lineSupplier, false);
+        final var handler = new SignalJsonRpcDispatcherHandler(jsonOutputWriter,
+                lineSupplier,
+                false,
+                maxConcurrentRequests);
         handler.handleConnection(m);
     }
 }
@@ -15,6 +15,7 @@ import org.asamk.signal.json.JsonReceiveMessageHandler;
 import org.asamk.signal.manager.Manager;
 import org.asamk.signal.manager.api.AlreadyReceivingException;
 import org.asamk.signal.manager.api.ReceiveConfig;
+import org.asamk.signal.manager.api.ReceiveHandlerOverflowPolicy;
 import org.asamk.signal.output.JsonWriter;
 import org.asamk.signal.output.OutputWriter;
 import org.asamk.signal.output.PlainTextWriter;
@@ -56,6 +57,14 @@ public class ReceiveCommand implements LocalCommand, JsonRpcSingleCommand<Receiv
         subparser.addArgument("--send-read-receipts")
                 .help("Send read receipts for all incoming data messages (in addition to the default delivery receipts)")
                 .action(Arguments.storeTrue());
+        subparser.addArgument("--receive-batch-size")
+                .type(int.class)
+                .setDefault(1)
+                .help("Maximum number of already available messages to handle in a single database transaction.");
+        subparser.addArgument("--retry-concurrency")
+                .type(int.class)
+                .setDefault(1)
+                .help("Maximum number of senders whose cached messages are retried in parallel.");
     }
 
     @Override
@@ -72,7 +81,15 @@ public class ReceiveCommand implements LocalCommand, JsonRpcSingleCommand<Receiv
         final var ignoreAttachments = Boolean.TRUE.equals(ns.getBoolean("ignore-attachments"));
         final var ignoreStories = Boolean.TRUE.equals(ns.getBoolean("ignore-stories"));
         final var sendReadReceipts = Boolean.TRUE.equals(ns.getBoolean("send-read-receipts"));
-        m.setReceiveConfig(new ReceiveConfig(ignoreAttachments, ignoreStories, sendReadReceipts));
+        final var batchSize = ns.getInt("receive-batch-size");
+        final var retryConcurrency = ns.getInt("retry-concurrency");
+        m.setReceiveConfig(new ReceiveConfig(ignoreAttachments,
+                ignoreStories,
+                sendReadReceipts,
+                batchSize,
+                retryConcurrency,
+                0,
+                ReceiveHandlerOverflowPolicy.BLOCK));
         try {
             final var handler = outputWriter instanceof JsonWriter ? new JsonReceiveMessageHandler(m,
                     (JsonWriter) outputWriter) : new ReceiveMessageHandler(m, (PlainTextWriter) outputWriter);
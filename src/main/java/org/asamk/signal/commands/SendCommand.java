@@ -16,7 +16,9 @@ import org.asamk.signal.manager.api.UnregisteredRecipientException;
 import org.asamk.signal.manager.groups.GroupNotFoundException;
 import org.asamk.signal.manager.groups.GroupSendingNotAllowedException;
 import org.asamk.signal.manager.groups.NotAGroupMemberException;
+import org.asamk.signal.output.JsonWriter;
 import org.asamk.signal.output.OutputWriter;
+import org.asamk.signal.output.PlainTextWriter;
 import org.asamk.signal.util.CommandUtil;
 import org.asamk.signal.util.Hex;
 import org.asamk.signal.util.IOUtils;
@@ -26,6 +28,7 @@ import org.slf4j.LoggerFactory;
 import java.io.IOException;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.Map;
 import java.util.Optional;
 import java.util.regex.Pattern;
 import java.util.stream.Collectors;
@@ -84,6 +87,9 @@ public class SendCommand implements JsonRpcLocalCommand {
                 .type(long.class)
                 .help("Specify the timestamp of a story to reply to.");
         subparser.addArgument("--story-author").help("Specify the number of the author of the story.");
+        subparser.addArgument("--queue")
+                .help("Add the message to the outgoing queue and return immediately, it's sent in the background.")
+                .action(Arguments.storeTrue());
     }
 
     @Override
@@ -197,6 +203,15 @@ public class SendCommand implements JsonRpcLocalCommand {
                     Optional.ofNullable(sticker),
                     previews,
                     Optional.ofNullable((storyReply)));
+            if (Boolean.TRUE.equals(ns.getBoolean("queue"))) {
+                final var timestamp = m.enqueueMessage(message, recipientIdentifiers);
+                if (outputWriter instanceof PlainTextWriter writer) {
+                    writer.println("{}", timestamp);
+                } else {
+                    ((JsonWriter) outputWriter).write(Map.of("timestamp", timestamp));
+                }
+                return;
+            }
             var results = m.sendMessage(message, recipientIdentifiers);
             outputResult(outputWriter, results);
         } catch (AttachmentInvalidException | IOException e) {
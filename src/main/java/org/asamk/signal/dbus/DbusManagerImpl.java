@@ -350,6 +350,29 @@ public class DbusManagerImpl implements Manager {
                 groupId -> signal.sendGroupMessage(message.messageText(), message.attachments(), groupId));
     }
 
+    @Override
+    public long enqueueMessage(final Message message, final Set<RecipientIdentifier> recipients) {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public void addSendResultHandler(final SendResultHandler handler) {
+        // Messages can't be queued over dbus, so there are no results
+    }
+
+    @Override
+    public void removeSendResultHandler(final SendResultHandler handler) {
+    }
+
+    @Override
+    public void addAttachmentDownloadHandler(final AttachmentDownloadHandler handler) {
+        // Attachments are downloaded by the dbus daemon
+    }
+
+    @Override
+    public void removeAttachmentDownloadHandler(final AttachmentDownloadHandler handler) {
+    }
+
     @Override
     public SendMessageResults sendRemoteDeleteMessage(
             final long targetSentTimestamp, final Set<RecipientIdentifier> recipients
@@ -0,0 +1,140 @@
+package org.asamk.signal.http;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Executor for the HTTP server that handles a fixed number of exchanges in parallel, with a bounded number of exchanges
+ * waiting for a free thread.
+ * Exchanges beyond that are handed to a separate thread that only answers them as rejected, so an overloaded server
+ * sheds load immediately instead of letting requests pile up.
+ * If even the rejecting thread falls behind, further exchanges are refused with a {@link RejectedExecutionException},
+ * which makes the HTTP server close their connection without answering.
+ * <p>
+ * The HTTP server reads the request headers on the executing thread, so a client that sends its headers slowly would
+ * hold on to that thread. If the headers haven't been received within the header timeout, the thread is interrupted,
+ * which closes the connection. The request body isn't limited, as streamed requests may legitimately take long.
+ */
+final class HttpServerExecutor implements Executor {
+
+    private static final int REJECTOR_QUEUE_SIZE = 100;
+    private static final long HEADER_TIMEOUT_MILLIS = 30_000;
+    private static final AtomicInteger threadNumber = new AtomicInteger(0);
+    private static final ThreadLocal<Boolean> rejected = ThreadLocal.withInitial(() -> false);
+    private static final ThreadLocal<HeaderDeadline> headerDeadline = new ThreadLocal<>();
+
+    private final Semaphore admitted;
+    private final ExecutorService workers;
+    private final ExecutorService rejector;
+    private final ScheduledExecutorService timer;
+
+    HttpServerExecutor(final int threads, final int queueSize) {
+        this.admitted = new Semaphore(threads + queueSize);
+        this.workers = Executors.newFixedThreadPool(threads, r -> createThread(r, "http-server-"));
+        this.rejector = new ThreadPoolExecutor(1,
+                1,
+                0L,
+                TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<>(REJECTOR_QUEUE_SIZE),
+                r -> createThread(r, "http-server-rejector-"));
+        this.timer = Executors.newSingleThreadScheduledExecutor(r -> createThread(r, "http-server-timer-"));
+    }
+
+    /**
+     * @return true if the exchange handled by the current thread was not admitted and should be answered without
+     * doing any work.
+     */
+    static boolean isRejected() {
+        return rejected.get();
+    }
+
+    /**
+     * Must be called by the handler once it's invoked, so the thread isn't interrupted while handling the exchange.
+     */
+    static void headersReceived() {
+        final var deadline = headerDeadline.get();
+        if (deadline != null) {
+            deadline.disarm();
+        }
+    }
+
+    @Override
+    public void execute(final Runnable command) {
+        if (!admitted.tryAcquire()) {
+            rejector.execute(() -> {
+                rejected.set(true);
+                try {
+                    runWithHeaderDeadline(command);
+                } finally {
+                    rejected.set(false);
+                }
+            });
+            return;
+        }
+        try {
+            workers.execute(() -> {
+                try {
+                    runWithHeaderDeadline(command);
+                } finally {
+                    admitted.release();
+                }
+            });
+        } catch (RuntimeException e) {
+            admitted.release();
+            throw e;
+        }
+    }
+
+    private void runWithHeaderDeadline(final Runnable command) {
+        final var deadline = new HeaderDeadline(Thread.currentThread());
+        final var timeout = timer.schedule(deadline::expire, HEADER_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS);
+        headerDeadline.set(deadline);
+        try {
+            command.run();
+        } finally {
+            timeout.cancel(false);
+            deadline.disarm();
+            headerDeadline.remove();
+            // Clear the interrupt of an expired deadline, before the thread is reused
+            Thread.interrupted();
+        }
+    }
+
+    private static Thread createThread(final Runnable r, final String namePrefix) {
+        final var thread = new Thread(r, namePrefix + threadNumber.getAndIncrement());
+        thread.setDaemon(true);
+        return thread;
+    }
+
+    private static final class HeaderDeadline {
+
+        private final Thread thread;
+        private boolean armed = true;
+
+        private HeaderDeadline(final Thread thread) {
+            this.thread = thread;
+        }
+
+        private synchronized void disarm() {
+            armed = false;
+        }
+
+        /**
+         * Interrupting a thread that's blocked reading from the socket channel closes the channel.
+         */
+        private synchronized void expire() {
+            if (armed) {
+                armed = false;
+                thread.interrupt();
+            }
+        }
+    }
+}
@@ -2,6 +2,7 @@ package org.asamk.signal.http;
 
 import com.fasterxml.jackson.databind.ObjectMapper;
 import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
 import com.sun.net.httpserver.HttpServer;
 
 import org.asamk.signal.commands.Commands;
@@ -12,40 +13,68 @@ import org.asamk.signal.jsonrpc.JsonRpcSender;
 import org.asamk.signal.jsonrpc.SignalJsonRpcCommandHandler;
 import org.asamk.signal.manager.Manager;
 import org.asamk.signal.manager.MultiAccountManager;
+import org.asamk.signal.manager.api.MessageEnvelope;
 import org.asamk.signal.manager.api.Pair;
 import org.asamk.signal.manager.util.Utils;
+import org.asamk.signal.output.JsonWriterImpl;
+import org.asamk.signal.util.IOUtils;
 import org.asamk.signal.util.Util;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
 import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
 import java.util.List;
 import java.util.Map;
-import java.util.concurrent.Executors;
-import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.stream.Collectors;
 
 public class HttpServerHandler {
 
     private final static Logger logger = LoggerFactory.getLogger(HttpServerHandler.class);
 
     private final ObjectMapper objectMapper = Util.createJsonObjectMapper();
+    private final ServerSentEventHub eventHub = new ServerSentEventHub();
+    private final ServerSentEventLog eventLog = new ServerSentEventLog();
 
     private final InetSocketAddress address;
+    private final int threads;
+    private final int queueSize;
+    private final int maxConcurrentRequests;
 
     private final SignalJsonRpcCommandHandler commandHandler;
     private final MultiAccountManager c;
     private final Manager m;
 
-    public HttpServerHandler(final InetSocketAddress address, final Manager m) {
+    public HttpServerHandler(
+            final InetSocketAddress address,
+            final Manager m,
+            final int threads,
+            final int queueSize,
+            final int maxConcurrentRequests
+    ) {
         this.address = address;
+        this.threads = threads;
+        this.queueSize = queueSize;
+        this.maxConcurrentRequests = maxConcurrentRequests;
         commandHandler = new SignalJsonRpcCommandHandler(m, Commands::getCommand);
         this.c = null;
         this.m = m;
     }
 
-    public HttpServerHandler(final InetSocketAddress address, final MultiAccountManager c) {
+    public HttpServerHandler(
+            final InetSocketAddress address,
+            final MultiAccountManager c,
+            final int threads,
+            final int queueSize,
+            final int maxConcurrentRequests
+    ) {
         this.address = address;
+        this.threads = threads;
+        this.queueSize = queueSize;
+        this.maxConcurrentRequests = maxConcurrentRequests;
         commandHandler = new SignalJsonRpcCommandHandler(c, Commands::getCommand);
         this.c = c;
         this.m = null;
@@ -55,15 +84,43 @@ public class HttpServerHandler {
         logger.info("Starting server on " + address.toString());
 
         final var server = HttpServer.create(address, 0);
-        server.setExecutor(Executors.newFixedThreadPool(10));
+        server.setExecutor(new HttpServerExecutor(threads, queueSize));
 
-        server.createContext("/api/v1/rpc", this::handleRpcEndpoint);
-        server.createContext("/api/v1/events", this::handleEventsEndpoint);
-        server.createContext("/api/v1/check", this::handleCheckEndpoint);
+        server.createContext("/api/v1/rpc", withAdmissionControl(this::handleRpcEndpoint));
+        server.createContext("/api/v1/events", withAdmissionControl(this::handleEventsEndpoint));
+        server.createContext("/api/v1/check", withAdmissionControl(this::handleCheckEndpoint));
 
+        if (m != null) {
+            addEventLogHandler(m);
+        } else {
+            c.getManagers().forEach(this::addEventLogHandler);
+            c.addOnManagerAddedHandler(this::addEventLogHandler);
+        }
+        eventHub.start();
         server.start();
     }
 
+    private HttpHandler withAdmissionControl(final HttpHandler handler) {
+        return httpExchange -> {
+            HttpServerExecutor.headersReceived();
+            if (!HttpServerExecutor.isRejected()) {
+                handler.handle(httpExchange);
+                return;
+            }
+            logger.debug("Server is overloaded, rejecting request for {}", httpExchange.getRequestURI().getPath());
+            httpExchange.getResponseHeaders().add("Retry-After", "1");
+            if ("/api/v1/rpc".equals(httpExchange.getRequestURI().getPath())) {
+                sendResponse(503,
+                        JsonRpcResponse.forError(new JsonRpcResponse.Error(JsonRpcResponse.Error.SERVER_OVERLOADED,
+                                "The server is overloaded, try again later.",
+                                null), null),
+                        httpExchange);
+            } else {
+                sendResponse(503, null, httpExchange);
+            }
+        };
+    }
+
     private void sendResponse(int status, Object response, HttpExchange httpExchange) throws IOException {
         if (response != null) {
             final var byteResponse = objectMapper.writeValueAsBytes(response);
@@ -89,7 +146,12 @@ public class HttpServerHandler {
             return;
         }
 
-        if (!"application/json".equals(httpExchange.getRequestHeaders().getFirst("Content-Type"))) {
+        final var contentType = httpExchange.getRequestHeaders().getFirst("Content-Type");
+        if ("application/x-ndjson".equals(contentType)) {
+            handleRpcStream(httpExchange);
+            return;
+        }
+        if (!"application/json".equals(contentType)) {
             sendResponse(415, null, httpExchange);
             return;
         }
@@ -125,6 +187,29 @@ public class HttpServerHandler {
         }
     }
 
+    /**
+     * Handles a body with one JSON-RPC message per line.
+     * Responses are streamed back one per line with chunked encoding as soon as each request has completed, so a client
+     * can send many requests in a single HTTP request.
+     */
+    private void handleRpcStream(HttpExchange httpExchange) throws IOException {
+        httpExchange.getResponseHeaders().add("Content-Type", "application/x-ndjson");
+        httpExchange.sendResponseHeaders(200, 0);
+
+        try (final var responseBody = httpExchange.getResponseBody()) {
+            final var jsonRpcSender = new JsonRpcSender(new JsonWriterImpl(new OutputStreamWriter(responseBody,
+                    StandardCharsets.UTF_8)));
+            final var lineSupplier = IOUtils.getLineSupplier(new InputStreamReader(httpExchange.getRequestBody(),
+                    StandardCharsets.UTF_8));
+            final var jsonRpcReader = new JsonRpcReader(jsonRpcSender, lineSupplier, maxConcurrentRequests);
+            jsonRpcReader.readMessages((method, params) -> commandHandler.handleRequest(objectMapper, method, params),
+                    response -> logger.debug("Received unexpected response for id {}", response.getId()));
+        } catch (Throwable aEx) {
+            // The response has already started, so the error can't be reported to the client anymore
+            logger.warn("Failed to process streamed request: {}", aEx.getMessage());
+        }
+    }
+
     private void handleEventsEndpoint(HttpExchange httpExchange) throws IOException {
         if (!"/api/v1/events".equals(httpExchange.getRequestURI().getPath())) {
             sendResponse(404, null, httpExchange);
@@ -145,42 +230,19 @@ public class HttpServerHandler {
                 return;
             }
 
+            final var lastEventId = getLastEventId(httpExchange);
+            final var accounts = managers.stream().map(Manager::getSelfNumber).collect(Collectors.toSet());
+
             httpExchange.getResponseHeaders().add("Content-Type", "text/event-stream");
             httpExchange.sendResponseHeaders(200, 0);
-            final var sender = new ServerSentEventSender(httpExchange.getResponseBody());
-
-            final var shouldStop = new AtomicBoolean(false);
-            final var handlers = subscribeReceiveHandlers(managers, sender, () -> {
-                shouldStop.set(true);
-                synchronized (this) {
-                    this.notify();
-                }
+            final var subscriber = eventHub.subscribe(httpExchange);
+            final var handlers = subscribeReceiveHandlers(managers, subscriber::close);
+            eventLog.subscribe(subscriber, accounts, lastEventId);
+            // The exchange stays open after returning, the hub closes it once the client has disconnected
+            subscriber.setOnClose(() -> {
+                eventLog.unsubscribe(subscriber);
+                handlers.forEach(this::unsubscribeReceiveHandler);
             });
-
-            try {
-                while (true) {
-                    synchronized (this) {
-                        wait(15_000);
-                    }
-                    if (shouldStop.get()) {
-                        break;
-                    }
-
-                    try {
-                        sender.sendKeepAlive();
-                    } catch (IOException e) {
-                        break;
-                    }
-                }
-            } finally {
-                for (final var pair : handlers) {
-                    unsubscribeReceiveHandler(pair);
-                }
-                try {
-                    httpExchange.getResponseBody().close();
-                } catch (IOException ignored) {
-                }
-            }
         } catch (Throwable aEx) {
             logger.error("Failed to process request.", aEx);
             sendResponse(500, null, httpExchange);
@@ -219,19 +281,59 @@ public class HttpServerHandler {
         return managers;
     }
 
+    private Long getLastEventId(final HttpExchange httpExchange) {
+        final var lastEventId = httpExchange.getRequestHeaders().getFirst("Last-Event-ID");
+        if (lastEventId == null || lastEventId.isEmpty()) {
+            return null;
+        }
+        try {
+            return Long.parseLong(lastEventId);
+        } catch (NumberFormatException e) {
+            logger.debug("Ignoring invalid Last-Event-ID: {}", lastEventId);
+            return null;
+        }
+    }
+
+    /**
+     * Records the received messages of the account, even while no client is connected, so a reconnecting client can
+     * catch up on the events it has missed.
+     * The handler is weak, as only connected clients should keep the account receiving.
+     */
+    private void addEventLogHandler(final Manager manager) {
+        final var account = manager.getSelfNumber();
+        manager.addReceiveHandler(new JsonReceiveMessageHandler(manager, s -> {
+            try {
+                eventLog.append(account, "receive", objectMapper.writeValueAsString(s));
+            } catch (IOException e) {
+                logger.warn("Failed to serialize received message, ignoring", e);
+            }
+        }, () -> {
+            logger.warn("Event log of {} fell behind, some received messages are missing", account);
+            addEventLogHandler(manager);
+        }), true);
+    }
+
+    /**
+     * Keeps the accounts receiving while the client is connected, the events themselves are sent by the event log.
+     *
+     * @param disconnectHandler closes the event stream if a handler has been disconnected
+     */
     private List<Pair<Manager, Manager.ReceiveMessageHandler>> subscribeReceiveHandlers(
-            final List<Manager> managers, final ServerSentEventSender sender, Callable unsubscribe
+            final List<Manager> managers, final Runnable disconnectHandler
     ) {
         return managers.stream().map(m1 -> {
-            final var receiveMessageHandler = new JsonReceiveMessageHandler(m1, s -> {
-                try {
-                    sender.sendEvent(null, "receive", List.of(objectMapper.writeValueAsString(s)));
-                } catch (IOException e) {
-                    unsubscribe.call();
+            final Manager.ReceiveMessageHandler receiveMessageHandler = new Manager.ReceiveMessageHandler() {
+                @Override
+                public void handleMessage(final MessageEnvelope envelope, final Throwable e) {
                 }
-            });
+
+                @Override
+                public void handleDisconnect() {
+                    disconnectHandler.run();
+                }
+            };
             m1.addReceiveHandler(receiveMessageHandler);
-            return new Pair<>(m1, (Manager.ReceiveMessageHandler) receiveMessageHandler);
+            return new Pair<>(m1, receiveMessageHandler);
         }).toList();
     }
 
@@ -240,9 +342,4 @@ public class HttpServerHandler {
         final var handler = pair.second();
         m.removeReceiveHandler(handler);
     }
-
-    private interface Callable {
-
-        void call();
-    }
 }
@@ -0,0 +1,373 @@
+package org.asamk.signal.http;
+
+import com.sun.net.httpserver.HttpExchange;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Sends server-sent events to all subscribed clients from a small set of writer threads.
+ * Subscribing doesn't occupy a thread, so the number of open event streams is independent of the number of threads.
+ * <p>
+ * Each subscriber has a bounded buffer of events that haven't been written yet, a subscriber that falls so far behind
+ * that its buffer is full is disconnected.
+ * Keep alive comments are scheduled with a timer wheel that has one slot per second of the keep alive interval, each
+ * tick only visits the subscribers of a single slot.
+ * <p>
+ * A write that hasn't completed within the write timeout pins its writer thread, so the subscriber is closed and the
+ * writer is replaced by a new thread. The stalled thread exits once its write returns.
+ */
+public class ServerSentEventHub {
+
+    private final static Logger logger = LoggerFactory.getLogger(ServerSentEventHub.class);
+    private final static int WRITER_COUNT = 2;
+    private final static int BUFFER_CAPACITY = 1000;
+    private final static long TICK_MILLIS = 1000;
+    private final static int KEEP_ALIVE_SLOTS = 15;
+    private final static long WRITE_TIMEOUT_MILLIS = 30_000;
+
+    private static final AtomicInteger threadNumber = new AtomicInteger(0);
+
+    private final BlockingQueue<Subscriber> readySubscribers = new LinkedBlockingQueue<>();
+    private final Set<Subscriber> writingSubscribers = ConcurrentHashMap.newKeySet();
+    private final Set<Thread> retiredWriters = ConcurrentHashMap.newKeySet();
+    private final List<Set<Subscriber>> keepAliveWheel = new ArrayList<>(KEEP_ALIVE_SLOTS);
+    private final List<Thread> threads = new ArrayList<>();
+    private int currentSlot;
+
+    public ServerSentEventHub() {
+        for (var i = 0; i < KEEP_ALIVE_SLOTS; i++) {
+            keepAliveWheel.add(new HashSet<>());
+        }
+    }
+
+    public synchronized void start() {
+        if (!threads.isEmpty()) {
+            return;
+        }
+        for (var i = 0; i < WRITER_COUNT; i++) {
+            startWriter();
+        }
+        threads.add(startThread(this::runKeepAlive, "sse-keep-alive-" + threadNumber.getAndIncrement()));
+    }
+
+    public void close() {
+        final List<Thread> threads;
+        synchronized (this) {
+            threads = new ArrayList<>(this.threads);
+            this.threads.clear();
+        }
+        threads.forEach(Thread::interrupt);
+        for (final var thread : threads) {
+            try {
+                thread.join();
+            } catch (InterruptedException ignored) {
+            }
+        }
+        final List<Subscriber> subscribers;
+        synchronized (keepAliveWheel) {
+            subscribers = keepAliveWheel.stream().flatMap(Set::stream).toList();
+        }
+        subscribers.forEach(Subscriber::close);
+    }
+
+    /**
+     * Registers the event stream of an exchange whose response headers have already been sent.
+     * The exchange is closed by the hub once the client has disconnected or fallen behind.
+     */
+    public Subscriber subscribe(final HttpExchange exchange) {
+        final var subscriber = new Subscriber(exchange);
+        synchronized (keepAliveWheel) {
+            // Place it in the slot that was visited last, so the first keep alive is sent after a full rotation
+            subscriber.slot = (currentSlot + KEEP_ALIVE_SLOTS - 1) % KEEP_ALIVE_SLOTS;
+            keepAliveWheel.get(subscriber.slot).add(subscriber);
+        }
+        return subscriber;
+    }
+
+    private synchronized void startWriter() {
+        threads.add(startThread(this::runWriter, "sse-writer-" + threadNumber.getAndIncrement()));
+    }
+
+    /**
+     * Replaces a writer whose write has stalled, the stalled thread isn't joined on close as it may never return.
+     */
+    private void replaceWriter(final Thread writer) {
+        synchronized (this) {
+            if (!threads.remove(writer)) {
+                return;
+            }
+            retiredWriters.add(writer);
+        }
+        startWriter();
+    }
+
+    private static Thread startThread(final Runnable runnable, final String name) {
+        final var thread = new Thread(runnable);
+        thread.setName(name);
+        thread.setDaemon(true);
+        thread.start();
+        return thread;
+    }
+
+    private void runWriter() {
+        while (!Thread.currentThread().isInterrupted() && !retiredWriters.remove(Thread.currentThread())) {
+            final Subscriber subscriber;
+            try {
+                subscriber = readySubscribers.take();
+            } catch (InterruptedException e) {
+                break;
+            }
+            try {
+                subscriber.writePending();
+            } catch (Throwable e) {
+                logger.warn("Failed to write server-sent events, disconnecting client", e);
+                subscriber.close();
+            }
+        }
+    }
+
+    private void runKeepAlive() {
+        while (!Thread.currentThread().isInterrupted()) {
+            try {
+                Thread.sleep(TICK_MILLIS);
+            } catch (InterruptedException e) {
+                break;
+            }
+            final List<Subscriber> due;
+            synchronized (keepAliveWheel) {
+                due = List.copyOf(keepAliveWheel.get(currentSlot));
+                currentSlot = (currentSlot + 1) % KEEP_ALIVE_SLOTS;
+            }
+            due.forEach(Subscriber::scheduleKeepAlive);
+            checkWriteTimeouts();
+        }
+    }
+
+    private void checkWriteTimeouts() {
+        final var now = System.currentTimeMillis();
+        for (final var subscriber : writingSubscribers) {
+            final var writer = subscriber.getStalledWriter(now);
+            if (writer != null) {
+                logger.debug("Server-sent event client stopped reading, disconnecting");
+                writingSubscribers.remove(subscriber);
+                replaceWriter(writer);
+                subscriber.close(true);
+            }
+        }
+    }
+
+    record Event(String id, String event, List<String> data) {}
+
+    public final class Subscriber {
+
+        private final HttpExchange exchange;
+        private final ServerSentEventSender sender;
+        private final ArrayDeque<Event> events = new ArrayDeque<>();
+        private int slot;
+        private boolean scheduled;
+        private boolean keepAlive;
+        private boolean overflowed;
+        private boolean closed;
+        private long lastWriteTime = System.currentTimeMillis();
+        private long writeStartTime;
+        private Thread writer;
+        private Runnable onClose;
+
+        private Subscriber(final HttpExchange exchange) {
+            this.exchange = exchange;
+            this.sender = new ServerSentEventSender(exchange.getResponseBody());
+        }
+
+        /**
+         * Sets the action that is run once, when the stream is closed.
+         * It's run immediately if the stream has already been closed.
+         */
+        public void setOnClose(final Runnable onClose) {
+            synchronized (this) {
+                if (!closed) {
+                    this.onClose = onClose;
+                    return;
+                }
+            }
+            onClose.run();
+        }
+
+        /**
+         * Adds the event to the buffer of this subscriber, it's written later by one of the writer threads.
+         *
+         * @param data Event data, each entry must not contain newline chars.
+         */
+        public void sendEvent(final String id, final String event, final List<String> data) {
+            synchronized (this) {
+                if (closed || overflowed) {
+                    return;
+                }
+                if (events.size() >= BUFFER_CAPACITY) {
+                    logger.debug("Server-sent event client fell behind, disconnecting");
+                    overflowed = true;
+                    events.clear();
+                } else {
+                    events.add(new Event(id, event, data));
+                }
+                if (!schedule()) {
+                    return;
+                }
+            }
+            readySubscribers.add(this);
+        }
+
+        /**
+         * Adds events that the client has missed before it connected.
+         * They may exceed the buffer capacity, as their number is already bounded by the replayed log.
+         */
+        void replayEvents(final List<Event> missedEvents) {
+            if (missedEvents.isEmpty()) {
+                return;
+            }
+            synchronized (this) {
+                if (closed || overflowed) {
+                    return;
+                }
+                events.addAll(missedEvents);
+                if (!schedule()) {
+                    return;
+                }
+            }
+            readySubscribers.add(this);
+        }
+
+        /**
+         * @return true if the subscriber was not scheduled yet and has to be added to the ready queue.
+         */
+        private boolean schedule() {
+            if (scheduled) {
+                return false;
+            }
+            scheduled = true;
+            return true;
+        }
+
+        private void scheduleKeepAlive() {
+            synchronized (this) {
+                if (closed
+                        || scheduled
+                        || System.currentTimeMillis() - lastWriteTime < KEEP_ALIVE_SLOTS * TICK_MILLIS / 2) {
+                    return;
+                }
+                keepAlive = true;
+                scheduled = true;
+            }
+            readySubscribers.add(this);
+        }
+
+        /**
+         * Only called by the writer that took this subscriber from the ready queue, it stays scheduled until all
+         * pending events are written, so events of one subscriber are never written by two writers at the same time.
+         */
+        private void writePending() {
+            while (true) {
+                final List<Event> pending;
+                final boolean sendKeepAlive;
+                synchronized (this) {
+                    if (closed) {
+                        return;
+                    }
+                    if (overflowed) {
+                        break;
+                    }
+                    if (events.isEmpty() && !keepAlive) {
+                        scheduled = false;
+                        return;
+                    }
+                    pending = new ArrayList<>(events);
+                    events.clear();
+                    sendKeepAlive = keepAlive && pending.isEmpty();
+                    keepAlive = false;
+                    writeStartTime = System.currentTimeMillis();
+                    writer = Thread.currentThread();
+                }
+                writingSubscribers.add(this);
+                try {
+                    for (final var event : pending) {
+                        sender.writeEvent(event.id(), event.event(), event.data());
+                    }
+                    if (sendKeepAlive) {
+                        sender.sendKeepAlive();
+                    } else {
+                        sender.flush();
+                    }
+                } catch (IOException e) {
+                    logger.debug("Server-sent event client disconnected: {}", e.getMessage());
+                    break;
+                } finally {
+                    writingSubscribers.remove(this);
+                    synchronized (this) {
+                        writer = null;
+                    }
+                }
+                synchronized (this) {
+                    lastWriteTime = System.currentTimeMillis();
+                }
+            }
+            close();
+        }
+
+        /**
+         * @return the writer thread, if it has been writing to this subscriber for longer than the write timeout
+         */
+        private synchronized Thread getStalledWriter(final long now) {
+            if (writer == null || now - writeStartTime < WRITE_TIMEOUT_MILLIS) {
+                return null;
+            }
+            return writer;
+        }
+
+        public void close() {
+            close(false);
+        }
+
+        /**
+         * @param stalled if true, a write to the exchange is blocked, closing it is then done from a separate thread
+         *                as it may block as well
+         */
+        private void close(final boolean stalled) {
+            final Runnable onClose;
+            synchronized (this) {
+                if (closed) {
+                    return;
+                }
+                closed = true;
+                events.clear();
+                onClose = this.onClose;
+                this.onClose = null;
+            }
+            synchronized (keepAliveWheel) {
+                keepAliveWheel.get(slot).remove(this);
+            }
+            if (onClose != null) {
+                try {
+                    onClose.run();
+                } catch (Throwable e) {
+                    logger.warn("Server-sent event close handler failed, ignoring", e);
+                }
+            }
+            if (stalled) {
+                startThread(exchange::close, "sse-close-" + threadNumber.getAndIncrement());
+            } else {
+                exchange.close();
+            }
+        }
+    }
+}
@@ -0,0 +1,71 @@
+package org.asamk.signal.http;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Keeps the most recent events of all accounts in a bounded ring buffer and passes new events to the subscribed streams.
+ * <p>
+ * Event ids increase across all accounts, so each account's events also have increasing ids. The first id is derived
+ * from the current time, so ids from a previous run are always lower. A client that reconnects with the id of the last
+ * event it received gets every event it has missed, as long as the buffer still contains them.
+ */
+final class ServerSentEventLog {
+
+    private final static Logger logger = LoggerFactory.getLogger(ServerSentEventLog.class);
+    private final static int CAPACITY = 10_000;
+
+    private final ArrayDeque<Entry> entries = new ArrayDeque<>(CAPACITY);
+    private final Map<ServerSentEventHub.Subscriber, Set<String>> subscribers = new HashMap<>();
+    private long lastId = System.currentTimeMillis() * 1000;
+
+    synchronized void append(final String account, final String event, final String data) {
+        final var entry = new Entry(++lastId,
+                account,
+                new ServerSentEventHub.Event(String.valueOf(lastId), event, List.of(data)));
+        if (entries.size() >= CAPACITY) {
+            entries.removeFirst();
+        }
+        entries.addLast(entry);
+        subscribers.forEach((subscriber, accounts) -> {
+            if (accounts.contains(account)) {
+                subscriber.sendEvent(entry.event().id(), entry.event().event(), entry.event().data());
+            }
+        });
+    }
+
+    /**
+     * Passes all future events of the given accounts to the subscriber.
+     *
+     * @param lastEventId id of the last event the client has received, the buffered events after it are sent first.
+     */
+    synchronized void subscribe(
+            final ServerSentEventHub.Subscriber subscriber, final Set<String> accounts, final Long lastEventId
+    ) {
+        if (lastEventId != null) {
+            if (!entries.isEmpty() && entries.getFirst().id() > lastEventId + 1) {
+                logger.debug("Events after {} are no longer buffered, replaying from {}",
+                        lastEventId,
+                        entries.getFirst().id());
+            }
+            final var missedEvents = entries.stream()
+                    .filter(e -> e.id() > lastEventId && accounts.contains(e.account()))
+                    .map(Entry::event)
+                    .toList();
+            subscriber.replayEvents(missedEvents);
+        }
+        subscribers.put(subscriber, accounts);
+    }
+
+    synchronized void unsubscribe(final ServerSentEventHub.Subscriber subscriber) {
+        subscribers.remove(subscriber);
+    }
+
+    private record Entry(long id, String account, ServerSentEventHub.Event event) {}
+}
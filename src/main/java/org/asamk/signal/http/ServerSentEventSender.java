@@ -25,6 +25,14 @@ public class ServerSentEventSender {
      * @param data  Event data, each entry must not contain newline chars.
      */
     public synchronized void sendEvent(String id, String event, List<String> data) throws IOException {
+        writeEvent(id, event, data);
+        writer.flush();
+    }
+
+    /**
+     * Writes the event without flushing, so multiple events can be sent with a single {@link #flush()}.
+     */
+    public synchronized void writeEvent(String id, String event, List<String> data) throws IOException {
         if (id != null) {
             writer.write("id:");
             writer.write(id);
@@ -45,11 +53,14 @@ public class ServerSentEventSender {
             }
         }
         writer.write("\n");
-        writer.flush();
     }
 
     public synchronized void sendKeepAlive() throws IOException {
         writer.write(":\n");
         writer.flush();
     }
+
+    public synchronized void flush() throws IOException {
+        writer.flush();
+    }
 }
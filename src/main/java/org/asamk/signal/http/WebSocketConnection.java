@@ -0,0 +1,521 @@
+package org.asamk.signal.http;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+
+import org.asamk.signal.output.JsonWriter;
+import org.asamk.signal.util.Util;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Set;
+import java.util.function.Supplier;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Server side of a WebSocket connection (RFC 6455) on an accepted socket channel, each text message carries one
+ * JSON-RPC message.
+ * Supports fragmented messages, ping and close frames and the permessage-deflate extension (RFC 7692).
+ * <p>
+ * The channel is read and written directly instead of through stream adapters, as those would block writing
+ * while a read is waiting for the next message.
+ */
+public class WebSocketConnection {
+
+    private final static Logger logger = LoggerFactory.getLogger(WebSocketConnection.class);
+    private final static String ACCEPT_GUID = "258EAFA5-E914-47DA-95CA-C5AB0DC85B11";
+    private final static int MAX_HANDSHAKE_SIZE = 16 * 1024;
+    private final static int MAX_MESSAGE_SIZE = 1024 * 1024;
+    private final static byte[] DEFLATE_TAIL = {0x00, 0x00, (byte) 0xff, (byte) 0xff};
+
+    private final static int OPCODE_CONTINUATION = 0x0;
+    private final static int OPCODE_TEXT = 0x1;
+    private final static int OPCODE_BINARY = 0x2;
+    private final static int OPCODE_CLOSE = 0x8;
+    private final static int OPCODE_PING = 0x9;
+    private final static int OPCODE_PONG = 0xA;
+
+    private final static int STATUS_NORMAL = 1000;
+    private final static int STATUS_PROTOCOL_ERROR = 1002;
+    private final static int STATUS_UNSUPPORTED_DATA = 1003;
+    private final static int STATUS_INVALID_PAYLOAD = 1007;
+    private final static int STATUS_MESSAGE_TOO_BIG = 1009;
+
+    private final SocketChannel channel;
+    private final ByteBuffer readBuffer = ByteBuffer.allocate(8192);
+    private Inflater inflater;
+    private Deflater deflater;
+    private boolean serverNoContextTakeover;
+    private boolean closeSent;
+
+    private WebSocketConnection(final SocketChannel channel) {
+        this.channel = channel;
+        this.readBuffer.limit(0);
+    }
+
+    /**
+     * Performs the opening handshake on a newly accepted connection.
+     * <p>
+     * Browsers don't apply CORS to WebSockets, so any web page could connect to a local endpoint. Upgrade requests
+     * that carry an Origin header are only accepted if that origin is explicitly allowed, requests from other clients
+     * don't send the header.
+     *
+     * @param allowedOrigins origins of web pages that may connect, e.g. "https://example.com"
+     * @return the connection, or null if the client didn't request a valid WebSocket upgrade
+     */
+    public static WebSocketConnection accept(
+            final SocketChannel channel, final Set<String> allowedOrigins
+    ) throws IOException {
+        final var connection = new WebSocketConnection(channel);
+        return connection.handshake(allowedOrigins) ? connection : null;
+    }
+
+    /**
+     * Answers the upgrade request of a client that can't be accepted right now and closes the connection.
+     */
+    public static void reject(final SocketChannel channel) {
+        try (channel) {
+            final var connection = new WebSocketConnection(channel);
+            connection.writeFully(("HTTP/1.1 503 Service Unavailable\r\n"
+                    + "Retry-After: 1\r\n"
+                    + "Content-Length: 0\r\n"
+                    + "Connection: close\r\n\r\n").getBytes(StandardCharsets.US_ASCII));
+        } catch (IOException e) {
+            logger.debug("Failed to reject WebSocket connection: {}", e.getMessage());
+        }
+    }
+
+    /**
+     * @return supplier of the received messages, it returns null once the connection is closed
+     */
+    public Supplier<String> getMessageSupplier() {
+        return () -> {
+            try {
+                return readTextMessage();
+            } catch (IOException e) {
+                logger.debug("Failed to read WebSocket message: {}", e.getMessage());
+                return null;
+            }
+        };
+    }
+
+    public JsonWriter getJsonWriter() {
+        final var objectMapper = Util.createJsonObjectMapper();
+        return object -> {
+            final String message;
+            try {
+                message = objectMapper.writeValueAsString(object);
+            } catch (JsonProcessingException e) {
+                // Some issue with json serialization, probably caused by a bug
+                throw new AssertionError(e);
+            }
+            try {
+                sendTextMessage(message);
+            } catch (IOException e) {
+                throw new AssertionError(e);
+            }
+        };
+    }
+
+    public synchronized void sendTextMessage(final String message) throws IOException {
+        final var payload = message.getBytes(StandardCharsets.UTF_8);
+        if (deflater == null) {
+            sendFrame(OPCODE_TEXT, false, payload);
+        } else {
+            sendFrame(OPCODE_TEXT, true, deflate(payload));
+        }
+    }
+
+    private boolean handshake(final Set<String> allowedOrigins) throws IOException {
+        final var requestLine = readLine();
+        final var headers = new HashMap<String, String>();
+        for (var line = readLine(); !line.isEmpty(); line = readLine()) {
+            final var colonIndex = line.indexOf(':');
+            if (colonIndex <= 0) {
+                continue;
+            }
+            headers.merge(line.substring(0, colonIndex).trim().toLowerCase(Locale.ROOT),
+                    line.substring(colonIndex + 1).trim(),
+                    (a, b) -> a + ", " + b);
+        }
+
+        final var key = headers.get("sec-websocket-key");
+        if (!requestLine.startsWith("GET ")
+                || !containsToken(headers.get("upgrade"), "websocket")
+                || !containsToken(headers.get("connection"), "upgrade")
+                || !"13".equals(headers.get("sec-websocket-version"))
+                || key == null) {
+            logger.debug("Rejecting invalid WebSocket handshake: {}", requestLine);
+            writeFully(("HTTP/1.1 400 Bad Request\r\n"
+                    + "Sec-WebSocket-Version: 13\r\n"
+                    + "Content-Length: 0\r\n"
+                    + "Connection: close\r\n\r\n").getBytes(StandardCharsets.US_ASCII));
+            return false;
+        }
+
+        final var origin = headers.get("origin");
+        if (origin != null && !isAllowedOrigin(origin, allowedOrigins)) {
+            logger.warn("Rejecting WebSocket connection from origin that is not allowed: {}", origin);
+            writeFully(("HTTP/1.1 403 Forbidden\r\n"
+                    + "Content-Length: 0\r\n"
+                    + "Connection: close\r\n\r\n").getBytes(StandardCharsets.US_ASCII));
+            return false;
+        }
+
+        final var response = new StringBuilder();
+        response.append("HTTP/1.1 101 Switching Protocols\r\n");
+        response.append("Upgrade: websocket\r\n");
+        response.append("Connection: Upgrade\r\n");
+        response.append("Sec-WebSocket-Accept: ").append(getAcceptKey(key)).append("\r\n");
+        final var extension = negotiateDeflate(headers.get("sec-websocket-extensions"));
+        if (extension != null) {
+            response.append("Sec-WebSocket-Extensions: ").append(extension).append("\r\n");
+        }
+        response.append("\r\n");
+        writeFully(response.toString().getBytes(StandardCharsets.US_ASCII));
+        return true;
+    }
+
+    /**
+     * Accepts the first permessage-deflate offer that can be served with the default window size.
+     *
+     * @return the extension response header value, or null if compression is not used
+     */
+    private String negotiateDeflate(final String extensions) {
+        if (extensions == null) {
+            return null;
+        }
+        offers:
+        for (final var offer : extensions.split(",")) {
+            final var parts = offer.split(";");
+            if (!"permessage-deflate".equals(parts[0].trim())) {
+                continue;
+            }
+            var noContextTakeover = false;
+            for (var i = 1; i < parts.length; i++) {
+                final var parameter = parts[i].trim();
+                if ("server_no_context_takeover".equals(parameter)) {
+                    noContextTakeover = true;
+                } else if (parameter.startsWith("server_max_window_bits")
+                        && !parameter.replace(" ", "").equals("server_max_window_bits=15")) {
+                    // The deflater always uses the maximum window size
+                    continue offers;
+                }
+            }
+            inflater = new Inflater(true);
+            deflater = new Deflater(Deflater.DEFAULT_COMPRESSION, true);
+            serverNoContextTakeover = noContextTakeover;
+            return noContextTakeover ? "permessage-deflate; server_no_context_takeover" : "permessage-deflate";
+        }
+        return null;
+    }
+
+    private String readTextMessage() throws IOException {
+        ByteArrayOutputStream message = null;
+        var compressed = false;
+        try {
+            while (true) {
+                final var frame = readFrameHeader();
+                switch (frame.opcode()) {
+                    case OPCODE_PING -> {
+                        sendPong(readControlPayload(frame));
+                        continue;
+                    }
+                    case OPCODE_PONG -> {
+                        readControlPayload(frame);
+                        continue;
+                    }
+                    case OPCODE_CLOSE -> {
+                        readControlPayload(frame);
+                        sendClose(STATUS_NORMAL, "");
+                        return null;
+                    }
+                    case OPCODE_BINARY -> throw new WebSocketException(STATUS_UNSUPPORTED_DATA,
+                            "Only text messages are supported");
+                    case OPCODE_TEXT -> {
+                        if (message != null) {
+                            throw new WebSocketException(STATUS_PROTOCOL_ERROR, "Expected continuation frame");
+                        }
+                        if (frame.rsv1() && inflater == null) {
+                            throw new WebSocketException(STATUS_PROTOCOL_ERROR, "Compression was not negotiated");
+                        }
+                        message = new ByteArrayOutputStream();
+                        compressed = frame.rsv1();
+                    }
+                    case OPCODE_CONTINUATION -> {
+                        if (message == null) {
+                            throw new WebSocketException(STATUS_PROTOCOL_ERROR, "Unexpected continuation frame");
+                        }
+                    }
+                    default -> throw new WebSocketException(STATUS_PROTOCOL_ERROR, "Unknown opcode");
+                }
+                if (message.size() + frame.length() > MAX_MESSAGE_SIZE) {
+                    throw new WebSocketException(STATUS_MESSAGE_TOO_BIG, "Message too big");
+                }
+                readPayload(frame, message);
+                if (frame.fin()) {
+                    final var payload = compressed ? inflate(message.toByteArray()) : message.toByteArray();
+                    return new String(payload, StandardCharsets.UTF_8);
+                }
+            }
+        } catch (WebSocketException e) {
+            logger.debug("Closing WebSocket connection: {}", e.getMessage());
+            sendClose(e.getStatus(), e.getMessage());
+            return null;
+        }
+    }
+
+    private FrameHeader readFrameHeader() throws IOException, WebSocketException {
+        final var b0 = readByte();
+        final var b1 = readByte();
+        final var fin = (b0 & 0x80) != 0;
+        final var rsv1 = (b0 & 0x40) != 0;
+        final var opcode = b0 & 0x0f;
+        if ((b0 & 0x30) != 0 || (b1 & 0x80) == 0) {
+            throw new WebSocketException(STATUS_PROTOCOL_ERROR, "Invalid frame header");
+        }
+        long length = b1 & 0x7f;
+        if (length == 126) {
+            length = (readByte() << 8) | readByte();
+        } else if (length == 127) {
+            length = ByteBuffer.wrap(readBytes(8)).getLong();
+        }
+        if (length < 0 || length > MAX_MESSAGE_SIZE) {
+            throw new WebSocketException(STATUS_MESSAGE_TOO_BIG, "Message too big");
+        }
+        return new FrameHeader(fin, rsv1, opcode, (int) length, readBytes(4));
+    }
+
+    private byte[] readControlPayload(final FrameHeader frame) throws IOException, WebSocketException {
+        if (!frame.fin() || frame.rsv1() || frame.length() > 125) {
+            throw new WebSocketException(STATUS_PROTOCOL_ERROR, "Invalid control frame");
+        }
+        final var payload = new ByteArrayOutputStream(frame.length());
+        readPayload(frame, payload);
+        return payload.toByteArray();
+    }
+
+    /**
+     * Reads the payload as it arrives, so memory is only used for data the client has actually sent.
+     */
+    private void readPayload(final FrameHeader frame, final ByteArrayOutputStream output) throws IOException {
+        final var mask = frame.mask();
+        final var chunk = new byte[Math.min(frame.length(), readBuffer.capacity())];
+        var offset = 0;
+        while (offset < frame.length()) {
+            if (!readBuffer.hasRemaining()) {
+                fillReadBuffer();
+            }
+            final var n = Math.min(Math.min(readBuffer.remaining(), chunk.length), frame.length() - offset);
+            readBuffer.get(chunk, 0, n);
+            for (var i = 0; i < n; i++) {
+                chunk[i] ^= mask[(offset + i) % 4];
+            }
+            output.write(chunk, 0, n);
+            offset += n;
+        }
+    }
+
+    private byte[] inflate(final byte[] data) throws WebSocketException {
+        inflater.setInput(concat(data, DEFLATE_TAIL));
+        final var output = new ByteArrayOutputStream();
+        final var buffer = new byte[8192];
+        try {
+            int n;
+            while ((n = inflater.inflate(buffer)) > 0) {
+                output.write(buffer, 0, n);
+                if (output.size() > MAX_MESSAGE_SIZE) {
+                    throw new WebSocketException(STATUS_MESSAGE_TOO_BIG, "Message too big");
+                }
+            }
+        } catch (DataFormatException e) {
+            throw new WebSocketException(STATUS_INVALID_PAYLOAD, "Invalid compressed data");
+        }
+        if (inflater.needsDictionary()) {
+            throw new WebSocketException(STATUS_INVALID_PAYLOAD, "Invalid compressed data");
+        }
+        if (inflater.finished()) {
+            inflater.reset();
+        }
+        return output.toByteArray();
+    }
+
+    private byte[] deflate(final byte[] data) {
+        deflater.setInput(data);
+        final var output = new ByteArrayOutputStream();
+        final var buffer = new byte[8192];
+        int n;
+        do {
+            n = deflater.deflate(buffer, 0, buffer.length, Deflater.SYNC_FLUSH);
+            output.write(buffer, 0, n);
+        } while (n == buffer.length);
+        if (serverNoContextTakeover) {
+            deflater.reset();
+        }
+        final var compressed = output.toByteArray();
+        // The sync flush marker is implied by the extension and must be removed from the message
+        if (compressed.length >= 4 && Arrays.equals(compressed,
+                compressed.length - 4,
+                compressed.length,
+                DEFLATE_TAIL,
+                0,
+                4)) {
+            return Arrays.copyOf(compressed, compressed.length - 4);
+        }
+        return compressed;
+    }
+
+    private synchronized void sendPong(final byte[] payload) throws IOException {
+        sendFrame(OPCODE_PONG, false, payload);
+    }
+
+    private synchronized void sendClose(final int status, final String reason) throws IOException {
+        if (closeSent) {
+            return;
+        }
+        closeSent = true;
+        final var reasonBytes = reason.getBytes(StandardCharsets.UTF_8);
+        final var payload = ByteBuffer.allocate(2 + reasonBytes.length).putShort((short) status).put(reasonBytes);
+        sendFrame(OPCODE_CLOSE, false, payload.array());
+    }
+
+    private void sendFrame(final int opcode, final boolean rsv1, final byte[] payload) throws IOException {
+        final var frame = ByteBuffer.allocate(10 + payload.length);
+        frame.put((byte) (0x80 | (rsv1 ? 0x40 : 0) | opcode));
+        if (payload.length < 126) {
+            frame.put((byte) payload.length);
+        } else if (payload.length <= 0xffff) {
+            frame.put((byte) 126).putShort((short) payload.length);
+        } else {
+            frame.put((byte) 127).putLong(payload.length);
+        }
+        frame.put(payload).flip();
+        while (frame.hasRemaining()) {
+            channel.write(frame);
+        }
+    }
+
+    private void writeFully(final byte[] data) throws IOException {
+        final var buffer = ByteBuffer.wrap(data);
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+    }
+
+    private String readLine() throws IOException {
+        final var line = new StringBuilder();
+        while (true) {
+            final var c = readByte();
+            if (c == '\n') {
+                break;
+            }
+            if (c != '\r') {
+                line.append((char) c);
+            }
+            if (line.length() > MAX_HANDSHAKE_SIZE) {
+                throw new IOException("WebSocket handshake too large");
+            }
+        }
+        return line.toString();
+    }
+
+    private int readByte() throws IOException {
+        if (!readBuffer.hasRemaining()) {
+            fillReadBuffer();
+        }
+        return readBuffer.get() & 0xff;
+    }
+
+    private byte[] readBytes(final int length) throws IOException {
+        final var bytes = new byte[length];
+        var offset = 0;
+        while (offset < length) {
+            if (!readBuffer.hasRemaining()) {
+                fillReadBuffer();
+            }
+            final var n = Math.min(readBuffer.remaining(), length - offset);
+            readBuffer.get(bytes, offset, n);
+            offset += n;
+        }
+        return bytes;
+    }
+
+    private void fillReadBuffer() throws IOException {
+        readBuffer.clear();
+        int n;
+        do {
+            n = channel.read(readBuffer);
+        } while (n == 0);
+        readBuffer.flip();
+        if (n < 0) {
+            throw new EOFException("Connection closed by client");
+        }
+    }
+
+    private static boolean isAllowedOrigin(final String origin, final Set<String> allowedOrigins) {
+        final var normalizedOrigin = normalizeOrigin(origin);
+        return allowedOrigins.stream().map(WebSocketConnection::normalizeOrigin).anyMatch(normalizedOrigin::equals);
+    }
+
+    private static String normalizeOrigin(final String origin) {
+        final var trimmed = origin.trim().toLowerCase(Locale.ROOT);
+        return trimmed.endsWith("/") ? trimmed.substring(0, trimmed.length() - 1) : trimmed;
+    }
+
+    private static boolean containsToken(final String header, final String token) {
+        if (header == null) {
+            return false;
+        }
+        for (final var value : header.split(",")) {
+            if (value.trim().equalsIgnoreCase(token)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static String getAcceptKey(final String key) {
+        try {
+            final var digest = MessageDigest.getInstance("SHA-1")
+                    .digest((key.trim() + ACCEPT_GUID).getBytes(StandardCharsets.US_ASCII));
+            return Base64.getEncoder().encodeToString(digest);
+        } catch (NoSuchAlgorithmException e) {
+            throw new AssertionError(e);
+        }
+    }
+
+    private static byte[] concat(final byte[] a, final byte[] b) {
+        final var result = Arrays.copyOf(a, a.length + b.length);
+        System.arraycopy(b, 0, result, a.length, b.length);
+        return result;
+    }
+
+    private record FrameHeader(boolean fin, boolean rsv1, int opcode, int length, byte[] mask) {}
+
+    private static final class WebSocketException extends Exception {
+
+        private final int status;
+
+        private WebSocketException(final int status, final String message) {
+            super(message);
+            this.status = status;
+        }
+
+        private int getStatus() {
+            return status;
+        }
+    }
+}
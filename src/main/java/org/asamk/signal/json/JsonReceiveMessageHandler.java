@@ -14,10 +14,19 @@ public class JsonReceiveMessageHandler implements Manager.ReceiveMessageHandler
 
     private final Manager m;
     private final JsonWriter jsonWriter;
+    private final Runnable disconnectHandler;
 
     public JsonReceiveMessageHandler(Manager m, JsonWriter jsonWriter) {
+        this(m, jsonWriter, () -> {});
+    }
+
+    /**
+     * @param disconnectHandler called when the handler has been disconnected because it fell too far behind
+     */
+    public JsonReceiveMessageHandler(Manager m, JsonWriter jsonWriter, Runnable disconnectHandler) {
         this.m = m;
         this.jsonWriter = jsonWriter;
+        this.disconnectHandler = disconnectHandler;
     }
 
     @Override
@@ -34,4 +43,9 @@ public class JsonReceiveMessageHandler implements Manager.ReceiveMessageHandler
 
         jsonWriter.write(object);
     }
+
+    @Override
+    public void handleDisconnect() {
+        disconnectHandler.run();
+    }
 }
@@ -14,7 +14,14 @@ import org.slf4j.LoggerFactory;
 
 import java.io.IOException;
 import java.io.InputStream;
+import java.util.List;
 import java.util.Objects;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.function.Consumer;
 import java.util.function.Supplier;
 import java.util.stream.StreamSupport;
@@ -27,11 +34,24 @@ public class JsonRpcReader {
     private final ObjectMapper objectMapper;
     private final InputStream input;
     private final Supplier<String> lineSupplier;
+    private final int maxConcurrentRequests;
 
     public JsonRpcReader(final JsonRpcSender jsonRpcSender, final Supplier<String> lineSupplier) {
+        this(jsonRpcSender, lineSupplier, 1);
+    }
+
+    /**
+     * @param maxConcurrentRequests with a value larger than 1, requests with an id are handled concurrently and
+     *                              their responses are sent in the order the requests complete. Reading further
+     *                              messages blocks while this many requests are in flight.
+     */
+    public JsonRpcReader(
+            final JsonRpcSender jsonRpcSender, final Supplier<String> lineSupplier, final int maxConcurrentRequests
+    ) {
         this.jsonRpcSender = jsonRpcSender;
         this.input = null;
         this.lineSupplier = lineSupplier;
+        this.maxConcurrentRequests = maxConcurrentRequests;
         this.objectMapper = Util.createJsonObjectMapper();
     }
 
@@ -39,6 +59,7 @@ public class JsonRpcReader {
         this.jsonRpcSender = jsonRpcSender;
         this.input = input;
         this.lineSupplier = null;
+        this.maxConcurrentRequests = 1;
         this.objectMapper = Util.createJsonObjectMapper();
     }
 
@@ -49,40 +70,72 @@ public class JsonRpcReader {
                 return;
             }
 
-            handleMessage(message, requestHandler, responseHandler);
+            handleMessage(message, requestHandler, responseHandler, null);
             return;
         }
 
-        while (!Thread.interrupted()) {
-            String input = lineSupplier.get();
-            if (input == null) {
-                logger.trace("Reached end of JSON-RPC input stream.");
-                break;
-            }
+        final var concurrentRequests = maxConcurrentRequests > 1
+                ? new ConcurrentRequests(maxConcurrentRequests)
+                : null;
+        try {
+            while (!Thread.interrupted()) {
+                String input = lineSupplier.get();
+                if (input == null) {
+                    logger.trace("Reached end of JSON-RPC input stream.");
+                    break;
+                }
 
-            logger.trace("Incoming JSON-RPC message: {}", input);
-            JsonRpcMessage message = parseJsonRpcMessage(input);
-            if (message == null) {
-                continue;
-            }
+                logger.trace("Incoming JSON-RPC message: {}", input);
+                JsonRpcMessage message = parseJsonRpcMessage(input);
+                if (message == null) {
+                    continue;
+                }
 
-            handleMessage(message, requestHandler, responseHandler);
+                handleMessage(message, requestHandler, responseHandler, concurrentRequests);
+            }
+        } finally {
+            if (concurrentRequests != null) {
+                concurrentRequests.close();
+            }
         }
     }
 
     private void handleMessage(
             final JsonRpcMessage message,
             final RequestHandler requestHandler,
-            final Consumer<JsonRpcResponse> responseHandler
+            final Consumer<JsonRpcResponse> responseHandler,
+            final ConcurrentRequests concurrentRequests
     ) {
         if (message instanceof final JsonRpcRequest jsonRpcRequest) {
             logger.debug("Received json rpc request, method: " + jsonRpcRequest.getMethod());
+            if (concurrentRequests != null && jsonRpcRequest.getId() != null) {
+                concurrentRequests.submit(() -> handleRequest(requestHandler, jsonRpcRequest), jsonRpcRequest)
+                        .thenAccept(this::sendResponse);
+                return;
+            }
             final var response = handleRequest(requestHandler, jsonRpcRequest);
             if (response != null) {
                 jsonRpcSender.sendResponse(response);
             }
         } else if (message instanceof JsonRpcResponse jsonRpcResponse) {
             responseHandler.accept(jsonRpcResponse);
+        } else if (concurrentRequests != null) {
+            final var responseFutures = ((JsonRpcBatchMessage) message).getMessages().stream().map(jsonNode -> {
+                final JsonRpcRequest request;
+                try {
+                    request = parseJsonRpcRequest(jsonNode);
+                } catch (JsonRpcException e) {
+                    return CompletableFuture.completedFuture(JsonRpcResponse.forError(e.getError(), getId(jsonNode)));
+                }
+
+                return concurrentRequests.submit(() -> handleRequest(requestHandler, request), request);
+            }).toList();
+
+            CompletableFuture.allOf(responseFutures.toArray(CompletableFuture[]::new))
+                    .thenRun(() -> sendBatchResponses(responseFutures.stream()
+                            .map(CompletableFuture::join)
+                            .filter(Objects::nonNull)
+                            .toList()));
         } else {
             final var responseList = ((JsonRpcBatchMessage) message).getMessages().stream().map(jsonNode -> {
                 final JsonRpcRequest request;
@@ -99,6 +152,25 @@ public class JsonRpcReader {
         }
     }
 
+    private void sendResponse(final JsonRpcResponse response) {
+        if (response == null) {
+            return;
+        }
+        try {
+            jsonRpcSender.sendResponse(response);
+        } catch (AssertionError e) {
+            logger.debug("Failed to send JSON-RPC response for id {}", response.getId(), e);
+        }
+    }
+
+    private void sendBatchResponses(final List<JsonRpcResponse> responses) {
+        try {
+            jsonRpcSender.sendBatchResponses(responses);
+        } catch (AssertionError e) {
+            logger.debug("Failed to send JSON-RPC batch response", e);
+        }
+    }
+
     private JsonRpcResponse handleRequest(final RequestHandler requestHandler, final JsonRpcRequest request) {
         try {
             final var result = requestHandler.apply(request.getMethod(), request.getParams());
@@ -255,6 +327,66 @@ public class JsonRpcReader {
         return response;
     }
 
+    /**
+     * Runs requests on a bounded pool, reading further messages blocks while all permits are in use.
+     */
+    private static final class ConcurrentRequests {
+
+        private static final AtomicInteger threadNumber = new AtomicInteger(0);
+
+        private final Semaphore inFlight;
+        private final ExecutorService executor;
+
+        private ConcurrentRequests(final int maxConcurrentRequests) {
+            this.inFlight = new Semaphore(maxConcurrentRequests);
+            this.executor = Executors.newFixedThreadPool(maxConcurrentRequests, r -> {
+                final var thread = new Thread(r, "jsonrpc-request-" + threadNumber.getAndIncrement());
+                thread.setDaemon(true);
+                return thread;
+            });
+        }
+
+        private CompletableFuture<JsonRpcResponse> submit(
+                final Supplier<JsonRpcResponse> handler, final JsonRpcRequest request
+        ) {
+            try {
+                inFlight.acquire();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return CompletableFuture.completedFuture(null);
+            }
+            return CompletableFuture.supplyAsync(() -> {
+                try {
+                    return handler.get();
+                } catch (Throwable e) {
+                    logger.warn("Command '{}' failed unexpectedly", request.getMethod(), e);
+                    return request.getId() == null
+                            ? null
+                            : JsonRpcResponse.forError(new JsonRpcResponse.Error(JsonRpcResponse.Error.INTERNAL_ERROR,
+                                    "internal error: " + e.getMessage(),
+                                    null), request.getId());
+                } finally {
+                    inFlight.release();
+                }
+            }, executor);
+        }
+
+        /**
+         * Waits until the requests that are still in flight have completed.
+         */
+        private void close() {
+            executor.shutdown();
+            try {
+                while (!executor.awaitTermination(1, TimeUnit.MINUTES)) {
+                    logger.debug("Waiting for running JSON-RPC requests to complete");
+                }
+            } catch (InterruptedException e) {
+                executor.shutdownNow();
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
     public interface RequestHandler {
 
         JsonNode apply(String method, ContainerNode<?> params) throws JsonRpcException;
@@ -79,6 +79,7 @@ public final class JsonRpcResponse extends JsonRpcMessage {
         public static final int METHOD_NOT_FOUND = -32601;
         public static final int INVALID_PARAMS = -32602;
         public static final int INTERNAL_ERROR = -32603;
+        public static final int SERVER_OVERLOADED = -32000;
 
         /**
          * A Number that indicates the error type that occurred.
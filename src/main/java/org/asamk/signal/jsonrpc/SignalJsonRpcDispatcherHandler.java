@@ -14,19 +14,20 @@ import org.asamk.signal.commands.JsonRpcMultiCommand;
 import org.asamk.signal.commands.JsonRpcSingleCommand;
 import org.asamk.signal.commands.exceptions.CommandException;
 import org.asamk.signal.commands.exceptions.UserErrorException;
+import org.asamk.signal.json.JsonAttachment;
 import org.asamk.signal.json.JsonReceiveMessageHandler;
 import org.asamk.signal.manager.Manager;
 import org.asamk.signal.manager.MultiAccountManager;
-import org.asamk.signal.manager.api.Pair;
 import org.asamk.signal.output.JsonWriter;
+import org.asamk.signal.util.SendMessageResultUtils;
 import org.asamk.signal.util.Util;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.nio.channels.ClosedChannelException;
-import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.atomic.AtomicInteger;
 import java.util.function.Supplier;
 
@@ -39,16 +40,30 @@ public class SignalJsonRpcDispatcherHandler {
     private final JsonRpcReader jsonRpcReader;
     private final boolean noReceiveOnStart;
 
-    private final Map<Integer, List<Pair<Manager, Manager.ReceiveMessageHandler>>> receiveHandlers = new HashMap<>();
+    private final Map<Integer, List<Subscription>> receiveHandlers = new ConcurrentHashMap<>();
     private SignalJsonRpcCommandHandler commandHandler;
+    private volatile Thread connectionThread;
 
     public SignalJsonRpcDispatcherHandler(
             final JsonWriter jsonWriter, final Supplier<String> lineSupplier, final boolean noReceiveOnStart
+    ) {
+        this(jsonWriter, lineSupplier, noReceiveOnStart, 1);
+    }
+
+    /**
+     * @param maxConcurrentRequests maximum number of requests of this connection that are handled concurrently,
+     *                              1 to handle requests one after another
+     */
+    public SignalJsonRpcDispatcherHandler(
+            final JsonWriter jsonWriter,
+            final Supplier<String> lineSupplier,
+            final boolean noReceiveOnStart,
+            final int maxConcurrentRequests
     ) {
         this.noReceiveOnStart = noReceiveOnStart;
         this.objectMapper = Util.createJsonObjectMapper();
         this.jsonRpcSender = new JsonRpcSender(jsonWriter);
-        this.jsonRpcReader = new JsonRpcReader(jsonRpcSender, lineSupplier);
+        this.jsonRpcReader = new JsonRpcReader(jsonRpcSender, lineSupplier, maxConcurrentRequests);
     }
 
     public void handleConnection(final MultiAccountManager c) {
@@ -96,9 +111,48 @@ public class SignalJsonRpcDispatcherHandler {
                         unsubscribeReceive(subscriptionId);
                     }
                 }
+            }, () -> {
+                logger.debug("Receive subscription {} fell behind, closing connection", subscriptionId);
+                unsubscribeReceive(subscriptionId);
+                closeConnection();
             });
+            final Manager.SendResultHandler sendResultHandler = (results, e) -> {
+                final var params = objectMapper.createObjectNode();
+                params.put("account", m.getSelfNumber());
+                params.put("subscription", subscriptionId);
+                params.put("timestamp", results.timestamp());
+                params.set("results",
+                        objectMapper.valueToTree(SendMessageResultUtils.getJsonSendMessageResults(results.results())));
+                if (e != null) {
+                    params.put("error", e.getMessage());
+                }
+                final var jsonRpcRequest = JsonRpcRequest.forNotification("sendResult", params, null);
+                try {
+                    jsonRpcSender.sendRequest(jsonRpcRequest);
+                } catch (AssertionError ex) {
+                    if (ex.getCause() instanceof ClosedChannelException) {
+                        unsubscribeReceive(subscriptionId);
+                    }
+                }
+            };
+            final Manager.AttachmentDownloadHandler attachmentDownloadHandler = attachment -> {
+                final var params = objectMapper.createObjectNode();
+                params.put("account", m.getSelfNumber());
+                params.put("subscription", subscriptionId);
+                params.set("attachment", objectMapper.valueToTree(JsonAttachment.from(attachment)));
+                final var jsonRpcRequest = JsonRpcRequest.forNotification("attachmentDownloaded", params, null);
+                try {
+                    jsonRpcSender.sendRequest(jsonRpcRequest);
+                } catch (AssertionError e) {
+                    if (e.getCause() instanceof ClosedChannelException) {
+                        unsubscribeReceive(subscriptionId);
+                    }
+                }
+            };
             m.addReceiveHandler(receiveMessageHandler);
-            return new Pair<>(m, (Manager.ReceiveMessageHandler) receiveMessageHandler);
+            m.addSendResultHandler(sendResultHandler);
+            m.addAttachmentDownloadHandler(attachmentDownloadHandler);
+            return new Subscription(m, receiveMessageHandler, sendResultHandler, attachmentDownloadHandler);
         }).toList();
         receiveHandlers.put(subscriptionId, handlers);
 
@@ -110,8 +164,8 @@ public class SignalJsonRpcDispatcherHandler {
         if (handlers == null) {
             return false;
         }
-        for (final var pair : handlers) {
-            unsubscribeReceiveHandler(pair);
+        for (final var subscription : handlers) {
+            unsubscribeReceiveHandler(subscription);
         }
         return true;
     }
@@ -119,13 +173,14 @@ public class SignalJsonRpcDispatcherHandler {
     private void unsubscribeReceive(final Manager m) {
         final var subscriptionId = receiveHandlers.entrySet()
                 .stream()
-                .filter(e -> e.getValue().size() == 1 && e.getValue().get(0).first().equals(m))
+                .filter(e -> e.getValue().size() == 1 && e.getValue().get(0).manager().equals(m))
                 .map(Map.Entry::getKey)
                 .findFirst();
         subscriptionId.ifPresent(this::unsubscribeReceive);
     }
 
     private void handleConnection() {
+        connectionThread = Thread.currentThread();
         try {
             jsonRpcReader.readMessages((method, params) -> commandHandler.handleRequest(objectMapper, method, params),
                     response -> logger.debug("Received unexpected response for id {}", response.getId()));
@@ -135,10 +190,21 @@ public class SignalJsonRpcDispatcherHandler {
         }
     }
 
-    private void unsubscribeReceiveHandler(final Pair<Manager, Manager.ReceiveMessageHandler> pair) {
-        final var m = pair.first();
-        final var handler = pair.second();
-        m.removeReceiveHandler(handler);
+    /**
+     * Interrupting the connection thread stops reading requests, which closes interruptible channels.
+     */
+    private void closeConnection() {
+        final var thread = connectionThread;
+        if (thread != null) {
+            thread.interrupt();
+        }
+    }
+
+    private void unsubscribeReceiveHandler(final Subscription subscription) {
+        final var m = subscription.manager();
+        m.removeReceiveHandler(subscription.receiveHandler());
+        m.removeSendResultHandler(subscription.sendResultHandler());
+        m.removeAttachmentDownloadHandler(subscription.attachmentDownloadHandler());
     }
 
     private Command getCommand(final String method) {
@@ -151,6 +217,13 @@ public class SignalJsonRpcDispatcherHandler {
         return Commands.getCommand(method);
     }
 
+    private record Subscription(
+            Manager manager,
+            Manager.ReceiveMessageHandler receiveHandler,
+            Manager.SendResultHandler sendResultHandler,
+            Manager.AttachmentDownloadHandler attachmentDownloadHandler
+    ) {}
+
     private class SubscribeReceiveCommand implements JsonRpcSingleCommand<Void>, JsonRpcMultiCommand<Void> {
 
         @Override
@@ -0,0 +1,310 @@
+package org.asamk.signal.http;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Set;
+import java.util.function.Supplier;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class WebSocketConnectionTest {
+
+    private static final String KEY = "dGhlIHNhbXBsZSBub25jZQ==";
+
+    private ServerSocketChannel serverChannel;
+    private SocketChannel client;
+    private SocketChannel server;
+    private final ByteBuffer clientBuffer = ByteBuffer.allocate(64 * 1024).limit(0);
+
+    @BeforeEach
+    void setUp() throws IOException {
+        serverChannel = ServerSocketChannel.open().bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+        client = SocketChannel.open(serverChannel.getLocalAddress());
+        server = serverChannel.accept();
+    }
+
+    @AfterEach
+    void tearDown() throws IOException {
+        client.close();
+        server.close();
+        serverChannel.close();
+    }
+
+    @Test
+    void handshakeReturnsAcceptKey() throws Exception {
+        final var connection = connect(null, null, Set.of());
+
+        assertNotNull(connection);
+        final var response = readHandshakeResponse();
+        assertTrue(response.startsWith("HTTP/1.1 101 "));
+        // Example key and accept value from RFC 6455
+        assertTrue(response.contains("Sec-WebSocket-Accept: s3pPLMBiTxaQ9kYGzzhZRbK+xOo=\r\n"));
+        assertTrue(!response.contains("Sec-WebSocket-Extensions"));
+    }
+
+    @Test
+    void maskedTextMessageRoundTrips() throws Exception {
+        final var connection = connect(null, null, Set.of());
+        readHandshakeResponse();
+
+        sendFrame(true, false, 0x1, "{\"jsonrpc\":\"2.0\"}".getBytes(StandardCharsets.UTF_8), true);
+        assertEquals("{\"jsonrpc\":\"2.0\"}", connection.getMessageSupplier().get());
+
+        connection.sendTextMessage("response");
+        final var frame = readFrame();
+        assertEquals(0x81, frame.b0());
+        assertEquals("response", new String(frame.payload(), StandardCharsets.UTF_8));
+    }
+
+    @Test
+    void unmaskedClientFrameClosesWithProtocolError() throws Exception {
+        final var connection = connect(null, null, Set.of());
+        readHandshakeResponse();
+
+        sendFrame(true, false, 0x1, "hi".getBytes(StandardCharsets.UTF_8), false);
+
+        assertNull(connection.getMessageSupplier().get());
+        assertCloseFrame(1002);
+    }
+
+    @Test
+    void fragmentedMessageWithInterleavedPing() throws Exception {
+        final var connection = connect(null, null, Set.of());
+        readHandshakeResponse();
+
+        sendFrame(false, false, 0x1, "frag".getBytes(StandardCharsets.UTF_8), true);
+        sendFrame(true, false, 0x9, "ping".getBytes(StandardCharsets.UTF_8), true);
+        sendFrame(false, false, 0x0, "men".getBytes(StandardCharsets.UTF_8), true);
+        sendFrame(true, false, 0x0, "ted".getBytes(StandardCharsets.UTF_8), true);
+
+        assertEquals("fragmented", connection.getMessageSupplier().get());
+        final var pong = readFrame();
+        assertEquals(0x8A, pong.b0());
+        assertArrayEquals("ping".getBytes(StandardCharsets.UTF_8), pong.payload());
+    }
+
+    @Test
+    void continuationWithoutStartClosesWithProtocolError() throws Exception {
+        final var connection = connect(null, null, Set.of());
+        readHandshakeResponse();
+
+        sendFrame(true, false, 0x0, "x".getBytes(StandardCharsets.UTF_8), true);
+
+        assertNull(connection.getMessageSupplier().get());
+        assertCloseFrame(1002);
+    }
+
+    @Test
+    void closeFrameIsAnswered() throws Exception {
+        final var connection = connect(null, null, Set.of());
+        readHandshakeResponse();
+
+        sendFrame(true, false, 0x8, new byte[]{0x03, (byte) 0xe8}, true);
+
+        assertNull(connection.getMessageSupplier().get());
+        assertCloseFrame(1000);
+    }
+
+    @Test
+    void oversizedFrameIsRejectedBeforeReadingPayload() throws Exception {
+        final var connection = connect(null, null, Set.of());
+        readHandshakeResponse();
+
+        // Only the header is sent, the declared payload of 1 TiB never arrives
+        final var header = ByteBuffer.allocate(14).put((byte) 0x81).put((byte) (0x80 | 127)).putLong(1L << 40);
+        header.put(new byte[4]).flip();
+        client.write(header);
+
+        assertNull(connection.getMessageSupplier().get());
+        assertCloseFrame(1009);
+    }
+
+    @Test
+    void deflateKeepsContextAcrossMessages() throws Exception {
+        final var connection = connect("permessage-deflate; client_max_window_bits", null, Set.of());
+        assertTrue(readHandshakeResponse().contains("Sec-WebSocket-Extensions: permessage-deflate\r\n"));
+
+        final var deflater = new Deflater(Deflater.DEFAULT_COMPRESSION, true);
+        final var inflater = new Inflater(true);
+        final var message = "{\"jsonrpc\":\"2.0\",\"method\":\"send\",\"params\":{\"message\":\"hello hello\"}}";
+
+        final var first = deflate(deflater, message);
+        final var second = deflate(deflater, message);
+        // The second message refers back to the first one, so it's only readable with the shared context
+        assertTrue(second.length < first.length);
+        sendFrame(true, true, 0x1, first, true);
+        sendFrame(true, true, 0x1, second, true);
+        final Supplier<String> messages = connection.getMessageSupplier();
+        assertEquals(message, messages.get());
+        assertEquals(message, messages.get());
+
+        connection.sendTextMessage(message);
+        connection.sendTextMessage(message);
+        for (var i = 0; i < 2; i++) {
+            final var frame = readFrame();
+            assertEquals(0xC1, frame.b0());
+            assertEquals(message, inflate(inflater, frame.payload()));
+        }
+    }
+
+    @Test
+    void compressedFrameWithoutNegotiationIsRejected() throws Exception {
+        final var connection = connect(null, null, Set.of());
+        readHandshakeResponse();
+
+        sendFrame(true, true, 0x1, deflate(new Deflater(Deflater.DEFAULT_COMPRESSION, true), "hi"), true);
+
+        assertNull(connection.getMessageSupplier().get());
+        assertCloseFrame(1002);
+    }
+
+    @Test
+    void originMustBeAllowed() throws Exception {
+        assertNull(connect(null, "https://evil.example", Set.of("https://example.com")));
+        assertTrue(readHandshakeResponse().startsWith("HTTP/1.1 403 "));
+    }
+
+    @Test
+    void allowedOriginIsAccepted() throws Exception {
+        assertNotNull(connect(null, "https://Example.com", Set.of("https://example.com/")));
+        assertTrue(readHandshakeResponse().startsWith("HTTP/1.1 101 "));
+    }
+
+    @Test
+    void requestWithoutUpgradeIsRejected() throws Exception {
+        writeClient("GET / HTTP/1.1\r\nHost: localhost\r\n\r\n".getBytes(StandardCharsets.US_ASCII));
+
+        assertNull(WebSocketConnection.accept(server, Set.of()));
+        assertTrue(readHandshakeResponse().startsWith("HTTP/1.1 400 "));
+    }
+
+    private WebSocketConnection connect(
+            final String extensions, final String origin, final Set<String> allowedOrigins
+    ) throws IOException {
+        final var request = new StringBuilder();
+        request.append("GET /api/v1/ws HTTP/1.1\r\n");
+        request.append("Host: localhost\r\n");
+        request.append("Upgrade: websocket\r\n");
+        request.append("Connection: keep-alive, Upgrade\r\n");
+        request.append("Sec-WebSocket-Key: ").append(KEY).append("\r\n");
+        request.append("Sec-WebSocket-Version: 13\r\n");
+        if (extensions != null) {
+            request.append("Sec-WebSocket-Extensions: ").append(extensions).append("\r\n");
+        }
+        if (origin != null) {
+            request.append("Origin: ").append(origin).append("\r\n");
+        }
+        request.append("\r\n");
+        writeClient(request.toString().getBytes(StandardCharsets.US_ASCII));
+        return WebSocketConnection.accept(server, allowedOrigins);
+    }
+
+    private String readHandshakeResponse() throws IOException {
+        final var response = new StringBuilder();
+        while (!response.toString().endsWith("\r\n\r\n")) {
+            response.append((char) readClientByte());
+        }
+        return response.toString();
+    }
+
+    private void sendFrame(
+            final boolean fin, final boolean rsv1, final int opcode, final byte[] payload, final boolean masked
+    ) throws IOException {
+        final var frame = ByteBuffer.allocate(14 + payload.length);
+        frame.put((byte) ((fin ? 0x80 : 0) | (rsv1 ? 0x40 : 0) | opcode));
+        final var maskBit = masked ? 0x80 : 0;
+        if (payload.length < 126) {
+            frame.put((byte) (maskBit | payload.length));
+        } else {
+            frame.put((byte) (maskBit | 126)).putShort((short) payload.length);
+        }
+        if (masked) {
+            final var mask = new byte[]{0x12, 0x34, 0x56, 0x78};
+            frame.put(mask);
+            for (var i = 0; i < payload.length; i++) {
+                frame.put((byte) (payload[i] ^ mask[i % 4]));
+            }
+        } else {
+            frame.put(payload);
+        }
+        writeClient(Arrays.copyOf(frame.array(), frame.position()));
+    }
+
+    private Frame readFrame() throws IOException {
+        final var b0 = readClientByte();
+        var length = readClientByte();
+        if (length == 126) {
+            length = (readClientByte() << 8) | readClientByte();
+        }
+        final var payload = new byte[length];
+        for (var i = 0; i < length; i++) {
+            payload[i] = (byte) readClientByte();
+        }
+        return new Frame(b0, payload);
+    }
+
+    private void assertCloseFrame(final int status) throws IOException {
+        final var frame = readFrame();
+        assertEquals(0x88, frame.b0());
+        assertEquals(status, ByteBuffer.wrap(frame.payload()).getShort() & 0xffff);
+    }
+
+    private void writeClient(final byte[] data) throws IOException {
+        final var buffer = ByteBuffer.wrap(data);
+        while (buffer.hasRemaining()) {
+            client.write(buffer);
+        }
+    }
+
+    private int readClientByte() throws IOException {
+        if (!clientBuffer.hasRemaining()) {
+            clientBuffer.clear();
+            if (client.read(clientBuffer) < 0) {
+                throw new IOException("Connection closed");
+            }
+            clientBuffer.flip();
+        }
+        return clientBuffer.get() & 0xff;
+    }
+
+    private static byte[] deflate(final Deflater deflater, final String message) {
+        deflater.setInput(message.getBytes(StandardCharsets.UTF_8));
+        final var buffer = new byte[8192];
+        final var n = deflater.deflate(buffer, 0, buffer.length, Deflater.SYNC_FLUSH);
+        // Remove the 00 00 ff ff sync flush marker, as required by RFC 7692
+        return Arrays.copyOf(buffer, n - 4);
+    }
+
+    private static String inflate(final Inflater inflater, final byte[] payload) throws Exception {
+        final var input = Arrays.copyOf(payload, payload.length + 4);
+        input[payload.length + 2] = (byte) 0xff;
+        input[payload.length + 3] = (byte) 0xff;
+        inflater.setInput(input);
+        final var output = new ByteArrayOutputStream();
+        final var buffer = new byte[8192];
+        int n;
+        while ((n = inflater.inflate(buffer)) > 0) {
+            output.write(buffer, 0, n);
+        }
+        return output.toString(StandardCharsets.UTF_8);
+    }
+
+    private record Frame(int b0, byte[] payload) {}
+}